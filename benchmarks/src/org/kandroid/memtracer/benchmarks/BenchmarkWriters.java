@@ -0,0 +1,113 @@
+package org.kandroid.memtracer.benchmarks;
+
+import java.io.File;
+
+import org.kandroid.memtracer.MemoryTraceAsyncWriter;
+import org.kandroid.memtracer.MemoryTraceBinaryWriter;
+import org.kandroid.memtracer.MemoryTraceCsvWriter;
+import org.kandroid.memtracer.MemoryTraceMappedWriter;
+import org.kandroid.memtracer.MemoryTraceSnapshot;
+import org.kandroid.memtracer.MemoryTracer;
+
+import android.os.Bundle;
+import android.os.Environment;
+
+/**
+ * Creates the writers the benchmarks are parameterized with, configured the
+ * way MemoryInstrumentation configures them.
+ */
+final class BenchmarkWriters {
+
+	/** Discards everything, to measure collection alone. */
+	static final String NONE = "none";
+	/** CSV, flushed after every row, as without the async writer. */
+	static final String CSV = "csv";
+	/** CSV, flushed only when the buffer fills. */
+	static final String CSV_BUFFERED = "csv-buffered";
+	static final String BINARY = "binary";
+	static final String MAPPED = "mapped";
+	static final String ASYNC_CSV = "async-csv";
+	static final String ASYNC_BINARY = "async-binary";
+
+	private static final String TRACE_DIR = "kmemtracer";
+	private static final String CSV_FILE_NAME = "kmemtrace.csv";
+	private static final String BINARY_FILE_NAME = "kmemtrace.kmt";
+	private static final String MAPPED_FILE_NAME = "kmemtrace.kmm";
+
+	private BenchmarkWriters() {
+	}
+
+	static MemoryTracer.SnapshotWriter create(String name) {
+		if (NONE.equals(name)) {
+			return new NullWriter();
+		} else if (CSV.equals(name)) {
+			return new MemoryTraceCsvWriter();
+		} else if (CSV_BUFFERED.equals(name)) {
+			MemoryTraceCsvWriter writer = new MemoryTraceCsvWriter();
+			writer.setAutoFlush(false);
+			return writer;
+		} else if (BINARY.equals(name)) {
+			return new MemoryTraceBinaryWriter();
+		} else if (MAPPED.equals(name)) {
+			return new MemoryTraceMappedWriter();
+		} else if (ASYNC_CSV.equals(name)) {
+			MemoryTraceCsvWriter writer = new MemoryTraceCsvWriter();
+			writer.setAutoFlush(false);
+			return new MemoryTraceAsyncWriter(writer);
+		} else if (ASYNC_BINARY.equals(name)) {
+			return new MemoryTraceAsyncWriter(new MemoryTraceBinaryWriter());
+		}
+		throw new IllegalArgumentException("Unknown writer " + name);
+	}
+
+	/**
+	 * Returns the file a writer created by {@link #create(String)} writes to,
+	 * or null if it writes none.
+	 */
+	static File getTraceFile(String name) {
+		String fileName;
+		if (CSV.equals(name) || CSV_BUFFERED.equals(name) || ASYNC_CSV.equals(name)) {
+			fileName = CSV_FILE_NAME;
+		} else if (BINARY.equals(name) || ASYNC_BINARY.equals(name)) {
+			fileName = BINARY_FILE_NAME;
+		} else if (MAPPED.equals(name)) {
+			fileName = MAPPED_FILE_NAME;
+		} else {
+			return null;
+		}
+		return new File(new File(Environment.getExternalStorageDirectory(), TRACE_DIR), fileName);
+	}
+
+	private static class NullWriter implements MemoryTracer.SnapshotWriter {
+		// The default keys of the file writers, so that all collect the same.
+		private static final String[] METRIC_KEYS = {
+			MemoryTracer.METRIC_KEY_LABEL,
+			MemoryTracer.METRIC_KEY_TIMESTAMP,
+			MemoryTracer.METRIC_KEY_JAVA_ALLOCATED,
+			MemoryTracer.METRIC_KEY_JAVA_FREE,
+			MemoryTracer.METRIC_KEY_NATIVE_ALLOCATED,
+			MemoryTracer.METRIC_KEY_NATIVE_FREE,
+		};
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		}
+
+		@Override
+		public String[] getMetricKeys() {
+			return METRIC_KEYS;
+		}
+	}
+}
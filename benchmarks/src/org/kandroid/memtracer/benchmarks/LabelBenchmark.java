@@ -0,0 +1,43 @@
+package org.kandroid.memtracer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kandroid.memtracer.MemoryTracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the labels MemoryInstrumentation builds for every callback: the
+ * local class name of the activity and the callback name, concatenated and
+ * then interned.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LabelBenchmark {
+
+	// What Activity.getLocalClassName() returns for a typical activity.
+	public String localClassName = "ui.settings.SettingsActivity";
+
+	private final MemoryTracer mTracer = new MemoryTracer(BenchmarkWriters.create(BenchmarkWriters.NONE));
+
+	@Benchmark
+	public String buildLabel() {
+		return localClassName + "-OnResume";
+	}
+
+	@Benchmark
+	public int buildAndInternLabel() {
+		return mTracer.internLabel(localClassName + "-OnResume");
+	}
+}
@@ -0,0 +1,92 @@
+package org.kandroid.memtracer.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kandroid.memtracer.MemoryTraceMetric;
+import org.kandroid.memtracer.MemoryTraceProcfsSource;
+import org.kandroid.memtracer.MemoryTraceSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MemoryTraceProcfsSource} on the live /proc of the host.
+ * <code>smapsScan</code> sums PSS over the per-mapping smaps, the walk
+ * behind Debug.getMemoryInfo, for comparison with <code>smapsRollup</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcfsBenchmark {
+
+	private MemoryTraceProcfsSource mSource;
+	private final MemoryTraceSnapshot mSnapshot = new MemoryTraceSnapshot();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mSource = new MemoryTraceProcfsSource();
+		for (MemoryTraceMetric.Collector collector : new MemoryTraceMetric.Collector[] {
+				MemoryTraceMetric.Collector.PROCESS_MEMORY,
+				MemoryTraceMetric.Collector.PROCESS_STATUS,
+				MemoryTraceMetric.Collector.MEMORY_ROLLUP }) {
+			if (!mSource.provides(collector)) {
+				throw new IllegalStateException("Cannot read " + collector);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mSource.close();
+	}
+
+	@Benchmark
+	public MemoryTraceSnapshot statm() {
+		mSource.collect(MemoryTraceMetric.Collector.PROCESS_MEMORY, mSnapshot);
+		return mSnapshot;
+	}
+
+	@Benchmark
+	public MemoryTraceSnapshot status() {
+		mSource.collect(MemoryTraceMetric.Collector.PROCESS_STATUS, mSnapshot);
+		return mSnapshot;
+	}
+
+	@Benchmark
+	public MemoryTraceSnapshot smapsRollup() {
+		mSource.collect(MemoryTraceMetric.Collector.MEMORY_ROLLUP, mSnapshot);
+		return mSnapshot;
+	}
+
+	@Benchmark
+	public long smapsScan() throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader("/proc/self/smaps"));
+		try {
+			long pss = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("Pss:")) {
+					pss += Long.parseLong(line.substring(4, line.length() - 3).trim());
+				}
+			}
+			return pss;
+		} finally {
+			in.close();
+		}
+	}
+}
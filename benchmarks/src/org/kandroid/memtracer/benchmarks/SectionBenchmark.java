@@ -0,0 +1,75 @@
+package org.kandroid.memtracer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kandroid.memtracer.MemoryTracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of an empty section and of a nested pair, which is what
+ * instrumented hot code pays per call. Run with <code>-prof gc</code> to
+ * check that neither allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SectionBenchmark {
+
+	private MemoryTracer mTracer;
+	private int mOuterId;
+	private int mInnerId;
+
+	@Setup
+	public void setUp() {
+		mTracer = new MemoryTracer(BenchmarkWriters.create(BenchmarkWriters.NONE));
+		mTracer.startTracing("SectionBenchmark");
+		mOuterId = mTracer.internLabel("decode");
+		mInnerId = mTracer.internLabel("inflate");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mTracer.stopTracing();
+	}
+
+	@Benchmark
+	public void section() {
+		mTracer.beginSection(mOuterId);
+		mTracer.endSection();
+	}
+
+	@Benchmark
+	public void sectionByName() {
+		mTracer.beginSection("decode");
+		mTracer.endSection();
+	}
+
+	@Benchmark
+	public void nestedSections() {
+		mTracer.beginSection(mOuterId);
+		mTracer.beginSection(mInnerId);
+		mTracer.endSection();
+		mTracer.endSection();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void sectionContended() {
+		mTracer.beginSection(mOuterId);
+		mTracer.endSection();
+	}
+}
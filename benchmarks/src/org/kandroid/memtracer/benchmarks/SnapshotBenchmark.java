@@ -0,0 +1,80 @@
+package org.kandroid.memtracer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kandroid.memtracer.MemoryTraceSnapshot;
+import org.kandroid.memtracer.MemoryTracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+/**
+ * Measures the latency of {@link MemoryTracer#addSnapshot}, from collection
+ * to the writer, for each writer and snapshot mode. Run with
+ * <code>-prof gc</code> for the allocation per snapshot.
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+
+	private static final String LABEL = "MainActivity-OnResume";
+
+	@Param({ BenchmarkWriters.NONE, BenchmarkWriters.CSV, BenchmarkWriters.BINARY,
+			BenchmarkWriters.MAPPED, BenchmarkWriters.ASYNC_CSV, BenchmarkWriters.ASYNC_BINARY })
+	public String writer;
+
+	@Param({ "full", "light" })
+	public String mode;
+
+	private MemoryTracer mTracer;
+	private int mLabelId;
+	private final MemoryTraceSnapshot mResult = new MemoryTraceSnapshot();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mTracer = new MemoryTracer(BenchmarkWriters.create(writer));
+		mTracer.setSnapshotMode("light".equals(mode)
+				? MemoryTracer.SNAPSHOT_MODE_LIGHT : MemoryTracer.SNAPSHOT_MODE_FULL);
+		mTracer.startTracing(SnapshotBenchmark.class.getSimpleName());
+		mLabelId = mTracer.internLabel(LABEL);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mTracer.stopTracing();
+	}
+
+	/**
+	 * The path MemoryInstrumentation takes: an interned label and a reused
+	 * result record.
+	 */
+	@Benchmark
+	public MemoryTraceSnapshot addSnapshotRecord() {
+		mTracer.addSnapshot(mLabelId, false, mResult);
+		return mResult;
+	}
+
+	/**
+	 * The public path that returns every snapshot as a Bundle.
+	 */
+	@Benchmark
+	public Bundle addSnapshotBundle() {
+		return mTracer.addSnapshot(LABEL);
+	}
+}
@@ -0,0 +1,129 @@
+package org.kandroid.memtracer.benchmarks;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kandroid.memtracer.MemoryTraceSnapshot;
+import org.kandroid.memtracer.MemoryTracer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+/**
+ * Measures the throughput of each writer on its own, in rows per second,
+ * for snapshot records and for Bundles. The <code>bytes</code> counter is
+ * the trace file growth per second; divide by 10^6 for MB/s. The mapped
+ * writer grows its file a chunk at a time, so its count is coarse.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriterBenchmark {
+
+	// Rows written per invocation, between two flushes.
+	private static final int ROWS = 1024;
+	private static final String[] LABELS = {
+		"MainActivity-OnCreate", "MainActivity-OnStart", "MainActivity-OnResume",
+		"MainActivity-OnPause", "MainActivity-OnStop", "SettingsActivity-OnCreate",
+		"SettingsActivity-OnResume", "SettingsActivity-OnDestroy",
+	};
+
+	@Param({ BenchmarkWriters.CSV, BenchmarkWriters.CSV_BUFFERED, BenchmarkWriters.BINARY,
+			BenchmarkWriters.MAPPED })
+	public String writer;
+
+	@Param({ "full", "light" })
+	public String mode;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Output {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	private MemoryTracer.SnapshotWriter mWriter;
+	private File mTraceFile;
+	private long mTraceFileLength;
+	private MemoryTraceSnapshot[] mSnapshots;
+	private Bundle[] mBundles;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Real snapshots, taken by a tracer that writes nowhere.
+		MemoryTracer tracer = new MemoryTracer(BenchmarkWriters.create(BenchmarkWriters.NONE));
+		tracer.setSnapshotMode("light".equals(mode)
+				? MemoryTracer.SNAPSHOT_MODE_LIGHT : MemoryTracer.SNAPSHOT_MODE_FULL);
+		tracer.startTracing(WriterBenchmark.class.getSimpleName());
+		mSnapshots = new MemoryTraceSnapshot[ROWS];
+		mBundles = new Bundle[ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			mSnapshots[i] = new MemoryTraceSnapshot();
+			tracer.addSnapshot(tracer.internLabel(LABELS[i % LABELS.length]), false, mSnapshots[i]);
+			mBundles[i] = mSnapshots[i].toBundle();
+		}
+		tracer.stopTracing();
+
+		mWriter = BenchmarkWriters.create(writer);
+		mWriter.writeTraceStart(WriterBenchmark.class.getSimpleName());
+		mTraceFile = BenchmarkWriters.getTraceFile(writer);
+		mTraceFileLength = mTraceFile.length();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mWriter.writeTraceStop(new Bundle());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void writeRecords(Output output) throws IOException {
+		MemoryTracer.SnapshotWriter writer = mWriter;
+		for (MemoryTraceSnapshot snapshot : mSnapshots) {
+			writer.writeTraceSnapshot(snapshot);
+		}
+		flush(output);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void writeBundles(Output output) throws IOException {
+		MemoryTracer.SnapshotWriter writer = mWriter;
+		for (Bundle bundle : mBundles) {
+			writer.writeTraceSnapshot(bundle);
+		}
+		flush(output);
+	}
+
+	private void flush(Output output) throws IOException {
+		if (mWriter instanceof Flushable) {
+			((Flushable) mWriter).flush();
+		}
+		long length = mTraceFile.length();
+		output.bytes += length - mTraceFileLength;
+		mTraceFileLength = length;
+	}
+}
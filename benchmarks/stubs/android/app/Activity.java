@@ -0,0 +1,7 @@
+package android.app;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only.
+ */
+public class Activity {
+}
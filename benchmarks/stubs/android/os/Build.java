@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only. Reports the
+ * platform the library builds against.
+ */
+public class Build {
+
+	public static class VERSION {
+		public static final int SDK_INT = 18;
+	}
+
+	public static class VERSION_CODES {
+		public static final int JELLY_BEAN_MR1 = 17;
+	}
+}
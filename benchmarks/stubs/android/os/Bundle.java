@@ -0,0 +1,94 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only. Like the real
+ * one, it boxes every value into a map.
+ */
+public final class Bundle implements Parcelable {
+	private final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+	public Bundle() {
+	}
+
+	public Bundle(Bundle bundle) {
+		mMap.putAll(bundle.mMap);
+	}
+
+	public Set<String> keySet() {
+		return mMap.keySet();
+	}
+
+	public boolean containsKey(String key) {
+		return mMap.containsKey(key);
+	}
+
+	public boolean isEmpty() {
+		return mMap.isEmpty();
+	}
+
+	public int size() {
+		return mMap.size();
+	}
+
+	public Object get(String key) {
+		return mMap.get(key);
+	}
+
+	public void putAll(Bundle bundle) {
+		mMap.putAll(bundle.mMap);
+	}
+
+	public void putInt(String key, int value) {
+		mMap.put(key, value);
+	}
+
+	public void putLong(String key, long value) {
+		mMap.put(key, value);
+	}
+
+	public long getLong(String key) {
+		Object value = mMap.get(key);
+		return value instanceof Long ? (Long) value : 0L;
+	}
+
+	public void putDouble(String key, double value) {
+		mMap.put(key, value);
+	}
+
+	public void putString(String key, String value) {
+		mMap.put(key, value);
+	}
+
+	public String getString(String key) {
+		Object value = mMap.get(key);
+		return value instanceof String ? (String) value : null;
+	}
+
+	public void putBundle(String key, Bundle value) {
+		mMap.put(key, value);
+	}
+
+	public Bundle getBundle(String key) {
+		Object value = mMap.get(key);
+		return value instanceof Bundle ? (Bundle) value : null;
+	}
+
+	public void putParcelableArrayList(String key, ArrayList<? extends Parcelable> value) {
+		mMap.put(key, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T extends Parcelable> ArrayList<T> getParcelableArrayList(String key) {
+		Object value = mMap.get(key);
+		return value instanceof ArrayList ? (ArrayList<T>) value : null;
+	}
+
+	@Override
+	public String toString() {
+		return "Bundle" + mMap;
+	}
+}
@@ -0,0 +1,146 @@
+package android.os;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only. Heap sizes come
+ * from the host runtime so that consecutive snapshots differ as they do on a
+ * device; the counters grow by one per call.
+ */
+public final class Debug {
+
+	public static class MemoryInfo {
+		public int dalvikPss;
+		public int dalvikPrivateDirty;
+		public int dalvikSharedDirty;
+		public int nativePss;
+		public int nativePrivateDirty;
+		public int nativeSharedDirty;
+		public int otherPss;
+		public int otherPrivateDirty;
+		public int otherSharedDirty;
+	}
+
+	private static int sCount;
+
+	private Debug() {
+	}
+
+	public static void getMemoryInfo(MemoryInfo memoryInfo) {
+		int usedKb = (int) (usedBytes() >> 10);
+		memoryInfo.dalvikPss = usedKb;
+		memoryInfo.dalvikPrivateDirty = usedKb / 2;
+		memoryInfo.dalvikSharedDirty = usedKb / 4;
+		memoryInfo.nativePss = usedKb / 2;
+		memoryInfo.nativePrivateDirty = usedKb / 4;
+		memoryInfo.nativeSharedDirty = usedKb / 8;
+		memoryInfo.otherPss = usedKb / 4;
+		memoryInfo.otherPrivateDirty = usedKb / 8;
+		memoryInfo.otherSharedDirty = usedKb / 16;
+	}
+
+	public static long getNativeHeapSize() {
+		return Runtime.getRuntime().totalMemory();
+	}
+
+	public static long getNativeHeapAllocatedSize() {
+		return usedBytes();
+	}
+
+	public static long getNativeHeapFreeSize() {
+		return Runtime.getRuntime().freeMemory();
+	}
+
+	public static void startAllocCounting() {
+	}
+
+	public static void stopAllocCounting() {
+	}
+
+	public static void resetAllCounts() {
+		sCount = 0;
+	}
+
+	public static int getGlobalAllocCount() {
+		return ++sCount;
+	}
+
+	public static int getGlobalAllocSize() {
+		return ++sCount;
+	}
+
+	public static int getGlobalFreedCount() {
+		return ++sCount;
+	}
+
+	public static int getGlobalFreedSize() {
+		return ++sCount;
+	}
+
+	public static int getGlobalExternalAllocCount() {
+		return ++sCount;
+	}
+
+	public static int getGlobalExternalAllocSize() {
+		return ++sCount;
+	}
+
+	public static int getGlobalExternalFreedCount() {
+		return ++sCount;
+	}
+
+	public static int getGlobalExternalFreedSize() {
+		return ++sCount;
+	}
+
+	public static int getGlobalGcInvocationCount() {
+		return ++sCount;
+	}
+
+	public static int getThreadAllocCount() {
+		return ++sCount;
+	}
+
+	public static int getThreadAllocSize() {
+		return ++sCount;
+	}
+
+	public static void dumpHprofData(String fileName) throws java.io.IOException {
+		new java.io.FileOutputStream(fileName).close();
+	}
+
+	public static long threadCpuTimeNanos() {
+		return System.nanoTime();
+	}
+
+	public static int getBinderSentTransactions() {
+		return ++sCount;
+	}
+
+	public static int getBinderReceivedTransactions() {
+		return ++sCount;
+	}
+
+	/**
+	 * Reports the collections of the host runtime under the names ART uses.
+	 */
+	public static String getRuntimeStat(String statName) {
+		long count = 0;
+		long time = 0;
+		for (java.lang.management.GarbageCollectorMXBean bean
+				: java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+			time += Math.max(0, bean.getCollectionTime());
+		}
+		if ("art.gc.gc-count".equals(statName)) {
+			return Long.toString(count);
+		}
+		if ("art.gc.gc-time".equals(statName)) {
+			return Long.toString(time);
+		}
+		return null;
+	}
+
+	private static long usedBytes() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
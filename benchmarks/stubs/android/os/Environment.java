@@ -0,0 +1,20 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only. The external
+ * storage is the directory in the <code>kmemtracer.storage</code> system
+ * property, or the temporary directory.
+ */
+public class Environment {
+	public static final String MEDIA_MOUNTED = "mounted";
+
+	public static String getExternalStorageState() {
+		return MEDIA_MOUNTED;
+	}
+
+	public static File getExternalStorageDirectory() {
+		return new File(System.getProperty("kmemtracer.storage", System.getProperty("java.io.tmpdir")));
+	}
+}
@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * Host stand-in for the platform interface, for benchmarks only.
+ */
+public interface Parcelable {
+}
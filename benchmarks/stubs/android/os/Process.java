@@ -0,0 +1,25 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only.
+ */
+public class Process {
+	public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	public static long getElapsedCpuTime() {
+		return THREADS.getCurrentThreadCpuTime() / 1000000L;
+	}
+
+	public static void setThreadPriority(int priority) {
+	}
+
+	public static int myPid() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		return Integer.parseInt(name.substring(0, name.indexOf('@')));
+	}
+}
@@ -0,0 +1,30 @@
+package android.util;
+
+/**
+ * Host stand-in for the platform class, for benchmarks only. Nothing is
+ * loggable, and warnings go to standard error.
+ */
+public final class Log {
+	public static final int DEBUG = 3;
+
+	private Log() {
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return false;
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		System.err.println(tag + ": " + msg);
+		return 0;
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		System.err.println(tag + ": " + msg + ": " + tr);
+		return 0;
+	}
+}
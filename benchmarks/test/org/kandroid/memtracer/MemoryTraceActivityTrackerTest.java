@@ -0,0 +1,90 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import android.app.Activity;
+
+/**
+ * Fills the live instances of a tracker past its bound and checks which
+ * instance makes room.
+ */
+public class MemoryTraceActivityTrackerTest {
+
+	private static final int MAX_LIVE = 8;
+
+	/**
+	 * Records the instances that reach their destroy callback.
+	 */
+	static class DestroyedListener implements MemoryTraceActivityTracker.Listener {
+		final List<String> mDestroyed = new ArrayList<String>();
+
+		@Override
+		public void onActivityDestroyed(MemoryTraceActivityTracker.Instance instance) {
+			mDestroyed.add(instance.getClassName() + "#" + instance.getId());
+		}
+
+		@Override
+		public void onLeakSuspected(MemoryTraceActivityTracker.Instance instance) {
+		}
+	}
+
+	static class First extends Activity {
+	}
+
+	@Test
+	public void testEvictsOldestInstance() {
+		DestroyedListener listener = new DestroyedListener();
+		MemoryTraceActivityTracker tracker = new MemoryTraceActivityTracker(listener, MAX_LIVE, 1, 0, 1);
+		MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+		List<Activity> activities = new ArrayList<Activity>();
+		activities.add(new First());
+		for (int i = 1; i <= MAX_LIVE * 4; i++) {
+			activities.add(new Activity());
+		}
+		for (Activity activity : activities) {
+			tracker.onActivityCreated(activity, snapshot);
+		}
+		assertEquals(MAX_LIVE * 4 + 1 - MAX_LIVE, tracker.getDroppedCount());
+
+		// Only the newest instances are still tracked.
+		for (Activity activity : activities) {
+			tracker.onActivityDestroyed(activity, snapshot);
+		}
+		assertEquals(MAX_LIVE, listener.mDestroyed.size());
+		for (int i = 0; i < MAX_LIVE; i++) {
+			assertEquals(Activity.class.getName() + "#" + (MAX_LIVE * 3 + 1 + i), listener.mDestroyed.get(i));
+		}
+	}
+
+	@Test
+	public void testEvictsReclaimedInstanceFirst() throws InterruptedException {
+		DestroyedListener listener = new DestroyedListener();
+		MemoryTraceActivityTracker tracker = new MemoryTraceActivityTracker(listener, MAX_LIVE, 1, 0, 1);
+		MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+		First first = new First();
+		tracker.onActivityCreated(first, snapshot);
+		List<Activity> activities = new ArrayList<Activity>();
+		for (int i = 1; i < MAX_LIVE; i++) {
+			Activity activity = new Activity();
+			activities.add(activity);
+			tracker.onActivityCreated(activity, snapshot);
+		}
+		// Reclaim one instance created after the first, without a destroy.
+		activities.remove(MAX_LIVE / 2);
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		tracker.onActivityCreated(new Activity(), snapshot);
+		assertEquals(0, tracker.getDroppedCount());
+
+		tracker.onActivityDestroyed(first, snapshot);
+		assertEquals(1, listener.mDestroyed.size());
+		assertEquals(First.class.getName() + "#0", listener.mDestroyed.get(0));
+	}
+}
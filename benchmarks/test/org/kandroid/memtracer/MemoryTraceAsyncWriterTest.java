@@ -0,0 +1,148 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Stops an asynchronous writer while producers are still writing into it,
+ * and checks that every snapshot is either written or counted as dropped.
+ */
+public class MemoryTraceAsyncWriterTest {
+
+	/**
+	 * Counts what it wrote.
+	 */
+	static class TallyWriter implements MemoryTracer.SnapshotWriter {
+		final AtomicLong mWritten = new AtomicLong();
+
+		@Override
+		public String[] getMetricKeys() {
+			return null;
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+			mWritten.incrementAndGet();
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			mWritten.incrementAndGet();
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+	}
+
+	/**
+	 * Writes slowly and counts what it wrote.
+	 */
+	static class SlowWriter extends TallyWriter {
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			super.writeTraceSnapshot(snapshot);
+		}
+	}
+
+	private static final int ROUNDS = 50;
+	private static final int PRODUCERS = 4;
+
+	@Test(timeout = 60000)
+	public void testBlockedProducerReturnsOnStop() throws InterruptedException {
+		SlowWriter slow = new SlowWriter();
+		final MemoryTraceAsyncWriter writer = new MemoryTraceAsyncWriter(slow, 4,
+				MemoryTraceAsyncWriter.OVERFLOW_BLOCK, 1, 1);
+		writer.writeTraceStart("test");
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final int total = 2000;
+		Thread producer = new Thread("producer") {
+			@Override
+			public void run() {
+				MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+				for (int n = 0; n < total; n++) {
+					snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, n);
+					writer.writeTraceSnapshot(snapshot);
+					if (n == 100) {
+						blocked.countDown();
+					}
+				}
+			}
+		};
+		producer.start();
+		blocked.await();
+		Bundle results = new Bundle();
+		writer.writeTraceStop(results);
+		// Without a writer thread, nothing makes room any more; the producer
+		// must not wait for it.
+		producer.join();
+
+		long dropped = writer.getDroppedCount();
+		assertTrue(dropped > 0);
+		assertEquals(total, slow.mWritten.get() + dropped);
+		// The results count what was dropped up to the stop.
+		assertTrue(results.getLong(MemoryTraceAsyncWriter.METRIC_KEY_DROPPED_SNAPSHOTS) <= dropped);
+	}
+
+	@Test(timeout = 60000)
+	public void testNoSnapshotIsLostAroundStop() throws InterruptedException {
+		for (int round = 0; round < ROUNDS; round++) {
+			TallyWriter tally = new TallyWriter();
+			final MemoryTraceAsyncWriter writer = new MemoryTraceAsyncWriter(tally, 64,
+					MemoryTraceAsyncWriter.OVERFLOW_DROP_NEWEST, 16, 1);
+			writer.writeTraceStart("test");
+			final AtomicLong offered = new AtomicLong();
+			final CountDownLatch started = new CountDownLatch(PRODUCERS);
+			final boolean[] done = new boolean[1];
+			Thread[] producers = new Thread[PRODUCERS];
+			for (int i = 0; i < PRODUCERS; i++) {
+				producers[i] = new Thread("producer-" + i) {
+					@Override
+					public void run() {
+						MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+						started.countDown();
+						while (true) {
+							synchronized (done) {
+								if (done[0]) {
+									return;
+								}
+							}
+							writer.writeTraceSnapshot(snapshot);
+							offered.incrementAndGet();
+						}
+					}
+				};
+				producers[i].start();
+			}
+			started.await();
+			writer.writeTraceStop(new Bundle());
+			long writtenAtStop = tally.mWritten.get();
+			synchronized (done) {
+				done[0] = true;
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			// Nothing is written after the stop, and what was not written
+			// was dropped.
+			assertEquals(writtenAtStop, tally.mWritten.get());
+			assertEquals(offered.get(), tally.mWritten.get() + writer.getDroppedCount());
+		}
+	}
+}
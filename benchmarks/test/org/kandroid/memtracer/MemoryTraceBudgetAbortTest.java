@@ -0,0 +1,171 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Aborts tracing over the budget the way {@link MemoryInstrumentation} does,
+ * while other threads keep taking snapshots, and checks the trace it leaves.
+ */
+public class MemoryTraceBudgetAbortTest {
+
+	private static final int THREADS = 8;
+	private static final long LIMIT = 2000;
+	private static final String[] KEYS = { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED };
+
+	private String mStorage;
+	private File mDir;
+
+	/**
+	 * Counts up the Java heap by one per snapshot.
+	 */
+	static class CountingSource implements MemoryTraceMetricSource {
+		final AtomicLong mCount = new AtomicLong();
+
+		@Override
+		public boolean provides(MemoryTraceMetric.Collector collector) {
+			return collector == MemoryTraceMetric.Collector.JAVA_HEAP;
+		}
+
+		@Override
+		public void collect(MemoryTraceMetric.Collector collector, MemoryTraceSnapshot snapshot) {
+			snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, mCount.incrementAndGet());
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = System.getProperty("kmemtracer.storage");
+		mDir = File.createTempFile("kmemtracer", "");
+		mDir.delete();
+		mDir.mkdirs();
+		System.setProperty("kmemtracer.storage", mDir.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		if (mStorage != null) {
+			System.setProperty("kmemtracer.storage", mStorage);
+		} else {
+			System.clearProperty("kmemtracer.storage");
+		}
+		File traceDir = new File(mDir, MemoryTraceFiles.MEMORY_TRACE_FILE_DIR);
+		File[] files = traceDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		traceDir.delete();
+		mDir.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void testAbortFlushesConsistentTrace() throws Exception {
+		final MemoryTracer tracer = new MemoryTracer(new MemoryTraceCsvWriter(KEYS));
+		tracer.setMetricSources(new CountingSource());
+		tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		MemoryTraceBudget budget = new MemoryTraceBudget();
+		budget.addRule(MemoryTraceBudget.Rule.absolute(null, MemoryTraceMetric.JAVA_ALLOCATED, LIMIT));
+		final AtomicReference<Bundle> results = new AtomicReference<Bundle>();
+		final Thread[] abort = new Thread[1];
+		budget.setListener(new MemoryTraceBudget.Listener() {
+			@Override
+			public void onBudgetExceeded(MemoryTraceBudget.Violation violation) {
+				synchronized (abort) {
+					if (abort[0] != null) {
+						return;
+					}
+					tracer.stopRecording();
+					abort[0] = new Thread("MemoryBudgetAbort") {
+						@Override
+						public void run() {
+							results.set(tracer.stopTracing());
+						}
+					};
+					abort[0].start();
+				}
+			}
+		});
+		tracer.setBudget(budget);
+		tracer.startTracing(MemoryTraceBudgetAbortTest.class.getSimpleName());
+
+		final long[] taken = new long[THREADS];
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread("producer-" + i) {
+				@Override
+				public void run() {
+					int labelId = tracer.internLabel(getName());
+					MemoryTraceSnapshot result = new MemoryTraceSnapshot();
+					while (results.get() == null) {
+						tracer.addSnapshot(labelId, false, result);
+						if (result.getLabelId() >= 0) {
+							taken[index]++;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		synchronized (abort) {
+			abort[0].join();
+		}
+
+		long total = 0;
+		for (long count : taken) {
+			total += count;
+		}
+		assertTrue(budget.isExceeded());
+		assertNotNull(results.get().getBundle(MemoryTracer.METRIC_KEY_BUDGET_VIOLATIONS));
+		// Every snapshot taken is in the trace, whole, and the one over the
+		// budget among them.
+		List<String[]> rows = readTrace();
+		assertEquals(total, rows.size());
+		boolean over = false;
+		for (String[] row : rows) {
+			assertEquals(KEYS.length, row.length);
+			assertTrue(row[0], row[0].startsWith("producer-"));
+			over |= Long.parseLong(row[1]) > LIMIT;
+		}
+		assertTrue(over);
+	}
+
+	private List<String[]> readTrace() throws IOException {
+		File file = new File(new File(mDir, MemoryTraceFiles.MEMORY_TRACE_FILE_DIR), "kmemtrace.csv");
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			assertEquals(MemoryTraceBudgetAbortTest.class.getSimpleName(), in.readLine());
+			assertEquals("label,java_allocated,", in.readLine());
+			List<String[]> rows = new ArrayList<String[]>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				assertTrue(line, line.endsWith(","));
+				rows.add(line.split(","));
+			}
+			return rows;
+		} finally {
+			in.close();
+		}
+	}
+}
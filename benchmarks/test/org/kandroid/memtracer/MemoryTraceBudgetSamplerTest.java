@@ -0,0 +1,60 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Checks that a budget sees a snapshot as soon as it is taken while the
+ * sampler batches what it writes.
+ */
+public class MemoryTraceBudgetSamplerTest {
+
+	static class NullWriter implements MemoryTracer.SnapshotWriter {
+		@Override
+		public String[] getMetricKeys() {
+			return new String[] { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED };
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testBudgetIsCheckedWithoutWaitingForBatch() {
+		MemoryTracer tracer = new MemoryTracer(new NullWriter());
+		tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		MemoryTraceBudget budget = new MemoryTraceBudget();
+		budget.addRule(MemoryTraceBudget.Rule.absolute(null, MemoryTraceMetric.JAVA_ALLOCATED, 0));
+		tracer.setBudget(budget);
+		tracer.startTracing("test");
+		// A long period and a large batch: the sampler drains nothing here.
+		MemoryTraceSampler sampler = new MemoryTraceSampler(1000);
+		sampler.setSamplingPeriod(60000, 60000, 60000);
+		tracer.startSampling(sampler);
+		try {
+			tracer.addSnapshot("Lifecycle");
+			assertTrue(budget.isExceeded());
+			budget.reset();
+			tracer.addSample(tracer.internLabel(MemoryTraceSampler.LABEL_SAMPLE));
+			assertTrue(budget.isExceeded());
+		} finally {
+			tracer.stopTracing();
+		}
+	}
+}
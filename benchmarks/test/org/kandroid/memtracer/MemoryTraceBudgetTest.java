@@ -0,0 +1,43 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Checks that the results of a budget keep every violated rule apart.
+ */
+public class MemoryTraceBudgetTest {
+
+	@Test(timeout = 60000)
+	public void testRulesOnSameMetricAreReportedApart() {
+		MemoryTraceBudget budget = new MemoryTraceBudget();
+		budget.addRule(MemoryTraceBudget.Rule.absolute(null, MemoryTraceMetric.JAVA_ALLOCATED, 100));
+		budget.addRule(MemoryTraceBudget.Rule.absolute("Checkout", MemoryTraceMetric.JAVA_ALLOCATED, 200));
+		MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+		snapshot.setLabel(0, "Checkout");
+		snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, 300);
+		budget.check(snapshot);
+
+		Bundle results = budget.toBundle();
+		assertNotNull(results);
+		assertEquals(2, results.size());
+		Set<Long> limits = new HashSet<Long>();
+		Set<String> rules = new HashSet<String>();
+		for (String key : results.keySet()) {
+			Bundle violation = results.getBundle(key);
+			assertEquals("Checkout", violation.getString(MemoryTraceBudget.BUDGET_KEY_LABEL));
+			assertEquals(300, violation.getLong(MemoryTraceBudget.BUDGET_KEY_VALUE));
+			limits.add(violation.getLong(MemoryTraceBudget.BUDGET_KEY_LIMIT));
+			rules.add(violation.getString(MemoryTraceBudget.BUDGET_KEY_RULE));
+		}
+		assertEquals(2, limits.size());
+		assertEquals(2, rules.size());
+	}
+}
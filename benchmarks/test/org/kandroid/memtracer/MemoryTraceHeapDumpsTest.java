@@ -0,0 +1,94 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Stops tracing right after a dump was triggered.
+ */
+public class MemoryTraceHeapDumpsTest {
+
+	private File mDir;
+
+	/**
+	 * Keeps the labels of the snapshots written.
+	 */
+	static class LabelWriter implements MemoryTracer.SnapshotWriter {
+		final List<String> mLabels = new ArrayList<String>();
+
+		@Override
+		public String[] getMetricKeys() {
+			return new String[] { MemoryTracer.METRIC_KEY_LABEL };
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+			mLabels.add(snapshot.getString(MemoryTracer.METRIC_KEY_LABEL));
+		}
+
+		@Override
+		public synchronized void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			mLabels.add(snapshot.getLabel());
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("kmemtracer", "");
+		mDir.delete();
+		mDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void testDumpInProgressIsInTraceAndNoneAfterStop() {
+		for (int run = 0; run < 20; run++) {
+			LabelWriter writer = new LabelWriter();
+			MemoryTracer tracer = new MemoryTracer(writer);
+			tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+			MemoryTraceHeapDumps heapDumps = new MemoryTraceHeapDumps();
+			heapDumps.setDirectory(mDir);
+			heapDumps.setCooldownMillis(0);
+			heapDumps.setQuotaBytes(Long.MAX_VALUE);
+			tracer.setHeapDumps(heapDumps);
+			tracer.startTracing("test");
+			assertTrue(heapDumps.trigger(MemoryTraceHeapDumps.REASON_LEAK, "run " + run, -1));
+			tracer.stopTracing();
+
+			assertTrue(writer.mLabels.toString(), writer.mLabels.contains("HeapDump-" + MemoryTraceHeapDumps.REASON_LEAK));
+			assertEquals(run + 1, mDir.list().length);
+			assertFalse(heapDumps.trigger(MemoryTraceHeapDumps.REASON_LEAK, "after stop", -1));
+			assertEquals(run + 1, mDir.list().length);
+		}
+	}
+}
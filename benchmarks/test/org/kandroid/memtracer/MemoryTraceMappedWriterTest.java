@@ -0,0 +1,112 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Stops a mapped trace while other threads are writing to it.
+ */
+public class MemoryTraceMappedWriterTest {
+
+	private static final String FILE_NAME = "test_mapped";
+	private static final String[] KEYS = { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED,
+			MemoryTracer.METRIC_KEY_JAVA_FREE };
+
+	private String mStorage;
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = System.getProperty("kmemtracer.storage");
+		mDir = File.createTempFile("kmemtracer", "");
+		mDir.delete();
+		mDir.mkdirs();
+		System.setProperty("kmemtracer.storage", mDir.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		if (mStorage != null) {
+			System.setProperty("kmemtracer.storage", mStorage);
+		} else {
+			System.clearProperty("kmemtracer.storage");
+		}
+		File traceDir = new File(mDir, MemoryTraceFiles.MEMORY_TRACE_FILE_DIR);
+		File[] files = traceDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		traceDir.delete();
+		mDir.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void testStopWhileWriting() throws Exception {
+		final MemoryTraceMappedWriter writer = new MemoryTraceMappedWriter(KEYS, FILE_NAME, 4096, 64L << 20);
+		writer.writeTraceStart("test");
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread("writer-" + i) {
+				@Override
+				public void run() {
+					MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+					snapshot.setLabel(index, getName());
+					try {
+						for (long n = 0; !stopped.get(); n++) {
+							snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, n);
+							snapshot.set(MemoryTraceMetric.JAVA_FREE, n * 3 + index);
+							writer.writeTraceSnapshot(snapshot);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		Thread.sleep(200);
+		writer.writeTraceStop(new Bundle());
+		Thread.sleep(20);
+		stopped.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		File file = new File(new File(mDir, MemoryTraceFiles.MEMORY_TRACE_FILE_DIR),
+				writer.getTraceFileName(0));
+		MemoryTraceMappedReader reader = new MemoryTraceMappedReader(
+				new BufferedInputStream(new FileInputStream(file)));
+		int rows = 0;
+		while (reader.next()) {
+			long[] values = reader.getValues();
+			int index = Integer.parseInt(reader.getLabel().substring("writer-".length()));
+			assertEquals(reader.getLabel(), values[1] * 3 + index, values[2]);
+			rows++;
+		}
+		assertFalse(reader.isTruncated());
+		assertEquals(file.length(), reader.getCommittedLength());
+		assertTrue(rows > 0);
+	}
+}
@@ -0,0 +1,185 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads process directories of fixture files laid out like the kernel's,
+ * and the live <code>/proc/self</code> where there is one.
+ */
+public class MemoryTraceProcfsSourceTest {
+
+	private static final String STATM = "25000 3000 1500 200 0 5000 0\n";
+
+	private static final String STATUS = "Name:\tapp_process\n"
+			+ "Umask:\t0077\n"
+			+ "State:\tS (sleeping)\n"
+			+ "VmPeak:\t  120000 kB\n"
+			+ "VmSize:\t  100000 kB\n"
+			+ "VmLck:\t       0 kB\n"
+			+ "VmHWM:\t   14000 kB\n"
+			+ "VmRSS:\t   12000 kB\n"
+			+ "RssAnon:\t    5000 kB\n"
+			+ "RssFile:\t    6500 kB\n"
+			+ "RssShmem:\t     500 kB\n"
+			+ "VmData:\t   40000 kB\n"
+			+ "VmSwap:\t      64 kB\n"
+			+ "Threads:\t20\n";
+
+	// The breakdown of Pss that newer kernels add after it.
+	private static final String SMAPS_ROLLUP = "12c00000-ffffffffff601000 ---p 00000000 00:00 0    [rollup]\n"
+			+ "Rss:               12000 kB\n"
+			+ "Pss:                8123 kB\n"
+			+ "Pss_Dirty:          4100 kB\n"
+			+ "Pss_Anon:           4000 kB\n"
+			+ "Pss_File:           3623 kB\n"
+			+ "Pss_Shmem:           500 kB\n"
+			+ "Shared_Clean:       5000 kB\n"
+			+ "Shared_Dirty:        700 kB\n"
+			+ "Private_Clean:      1900 kB\n"
+			+ "Private_Dirty:      4400 kB\n"
+			+ "Referenced:        11000 kB\n"
+			+ "Anonymous:          5000 kB\n"
+			+ "Swap:                 64 kB\n"
+			+ "SwapPss:              32 kB\n"
+			+ "Locked:                0 kB\n";
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("proc", "");
+		mDir.delete();
+		mDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	@Test
+	public void testParsesFixtures() throws IOException {
+		write("statm", STATM);
+		write("status", STATUS);
+		write("smaps_rollup", SMAPS_ROLLUP);
+		MemoryTraceSnapshot snapshot = collect(new MemoryTraceProcfsSource(mDir));
+
+		// statm counts pages; status and smaps_rollup are in kB already.
+		assertEquals(100000, snapshot.get(MemoryTraceMetric.VM_SIZE));
+		assertEquals(12000, snapshot.get(MemoryTraceMetric.RSS));
+		assertEquals(6000, snapshot.get(MemoryTraceMetric.RSS_SHARED));
+		assertEquals(14000, snapshot.get(MemoryTraceMetric.VM_HWM));
+		assertEquals(5000, snapshot.get(MemoryTraceMetric.RSS_ANON));
+		assertEquals(6500, snapshot.get(MemoryTraceMetric.RSS_FILE));
+		assertEquals(500, snapshot.get(MemoryTraceMetric.RSS_SHMEM));
+		assertEquals(64, snapshot.get(MemoryTraceMetric.VM_SWAP));
+		assertEquals(8123, snapshot.get(MemoryTraceMetric.TOTAL_PSS));
+		assertEquals(4400, snapshot.get(MemoryTraceMetric.TOTAL_PRIVATE_DIRTY));
+		assertEquals(700, snapshot.get(MemoryTraceMetric.TOTAL_SHARED_DIRTY));
+		assertEquals(32, snapshot.get(MemoryTraceMetric.TOTAL_SWAP_PSS));
+	}
+
+	@Test
+	public void testPssIsNotTakenFromPrefixedKeys() throws IOException {
+		write("smaps_rollup", "00000000-ffffffff ---p 00000000 00:00 0    [rollup]\n"
+				+ "Pss_Anon:           4000 kB\n"
+				+ "Pss_File:           3623 kB\n"
+				+ "SwapPss:              32 kB\n"
+				+ "Pss:                8123 kB\n");
+		MemoryTraceSnapshot snapshot = collect(new MemoryTraceProcfsSource(mDir));
+
+		assertEquals(8123, snapshot.get(MemoryTraceMetric.TOTAL_PSS));
+		assertEquals(32, snapshot.get(MemoryTraceMetric.TOTAL_SWAP_PSS));
+		assertFalse(snapshot.has(MemoryTraceMetric.TOTAL_PRIVATE_DIRTY));
+	}
+
+	@Test
+	public void testDerivesLargerPageSize() throws IOException {
+		// 16 kB pages, and the size moved a little between the two reads.
+		write("statm", "25000 750 375 50 0 1250 0\n");
+		write("status", "VmSize:\t  400100 kB\n");
+		MemoryTraceSnapshot snapshot = collect(new MemoryTraceProcfsSource(mDir));
+
+		assertEquals(400000, snapshot.get(MemoryTraceMetric.VM_SIZE));
+		assertEquals(12000, snapshot.get(MemoryTraceMetric.RSS));
+		assertEquals(6000, snapshot.get(MemoryTraceMetric.RSS_SHARED));
+	}
+
+	@Test
+	public void testWithoutSmapsRollup() throws IOException {
+		write("statm", STATM);
+		write("status", STATUS);
+		MemoryTraceProcfsSource source = new MemoryTraceProcfsSource(mDir);
+
+		assertTrue(source.provides(MemoryTraceMetric.Collector.PROCESS_MEMORY));
+		assertTrue(source.provides(MemoryTraceMetric.Collector.PROCESS_STATUS));
+		assertFalse(source.provides(MemoryTraceMetric.Collector.MEMORY_ROLLUP));
+		MemoryTraceSnapshot snapshot = collect(source);
+		assertEquals(12000, snapshot.get(MemoryTraceMetric.RSS));
+		assertFalse(snapshot.has(MemoryTraceMetric.TOTAL_PSS));
+	}
+
+	@Test
+	public void testReadsLiveProcSelf() {
+		Assume.assumeTrue(new File(MemoryTraceProcfsSource.PROC_SELF, "smaps_rollup").canRead());
+		MemoryTraceProcfsSource source = new MemoryTraceProcfsSource();
+		for (MemoryTraceMetric.Collector collector : new MemoryTraceMetric.Collector[] {
+				MemoryTraceMetric.Collector.PROCESS_MEMORY, MemoryTraceMetric.Collector.PROCESS_STATUS,
+				MemoryTraceMetric.Collector.MEMORY_ROLLUP }) {
+			assertTrue(collector.toString(), source.provides(collector));
+		}
+		MemoryTraceSnapshot snapshot = collect(source);
+		// Read again from the open files.
+		collect(source, snapshot);
+		source.close();
+
+		long rss = snapshot.get(MemoryTraceMetric.RSS);
+		assertTrue(snapshot.toString(), rss > 0);
+		assertTrue(snapshot.toString(), snapshot.get(MemoryTraceMetric.VM_SIZE) > rss);
+		assertTrue(snapshot.toString(), snapshot.get(MemoryTraceMetric.VM_HWM) > 0);
+		assertTrue(snapshot.toString(), snapshot.get(MemoryTraceMetric.RSS_ANON) > 0);
+		long pss = snapshot.get(MemoryTraceMetric.TOTAL_PSS);
+		assertTrue(snapshot.toString(), pss > 0 && pss <= rss * 2);
+		assertTrue(snapshot.toString(), snapshot.get(MemoryTraceMetric.TOTAL_PRIVATE_DIRTY) > 0);
+	}
+
+	private static MemoryTraceSnapshot collect(MemoryTraceProcfsSource source) {
+		MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+		collect(source, snapshot);
+		return snapshot;
+	}
+
+	private static void collect(MemoryTraceProcfsSource source, MemoryTraceSnapshot snapshot) {
+		for (MemoryTraceMetric.Collector collector : MemoryTraceMetric.Collector.values()) {
+			if (source.provides(collector)) {
+				source.collect(collector, snapshot);
+			}
+		}
+	}
+
+	private void write(String name, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(new File(mDir, name));
+		try {
+			out.write(content.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Checks that the stacks of threads that have died are dropped, and that
+ * the sections they measured are still reported.
+ */
+public class MemoryTraceSectionsTest {
+
+	private static final int THREADS = 50;
+
+	@Test(timeout = 60000)
+	public void testStacksOfDeadThreadsAreDropped() throws InterruptedException {
+		final MemoryTraceSections sections = new MemoryTraceSections();
+		MemoryTraceLabels labels = new MemoryTraceLabels();
+		final int labelId = labels.intern("Work");
+		for (int i = 0; i < THREADS; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					sections.begin(labelId);
+					sections.end();
+				}
+			};
+			thread.start();
+			thread.join();
+		}
+		// Each thread that starts measuring drops the stacks of those before.
+		assertTrue(sections.getStackCount() <= 1);
+
+		Bundle results = sections.toBundle(labels);
+		assertEquals(0, sections.getStackCount());
+		assertEquals(THREADS, results.getBundle("Work").getLong(MemoryTraceSections.SECTION_KEY_COUNT));
+		// The totals of the dropped stacks are still there the next time.
+		results = sections.toBundle(labels);
+		assertEquals(THREADS, results.getBundle("Work").getLong(MemoryTraceSections.SECTION_KEY_COUNT));
+
+		sections.clear();
+		assertNull(sections.toBundle(labels));
+	}
+}
@@ -0,0 +1,268 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Process;
+
+/**
+ * Traces from several JVM processes into one shared file and merges it with
+ * a reader in this one.
+ */
+public class MemoryTraceSharedFileTest {
+
+	private static final String FILE_NAME = "test_shared.kms";
+	private static final String[] KEYS = { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_TIMESTAMP };
+	private static final int SLOTS = 4;
+
+	private File mStorage;
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = File.createTempFile("kmemtracer", "");
+		mStorage.delete();
+		mStorage.mkdirs();
+		mFile = new File(new File(mStorage, MemoryTraceFiles.MEMORY_TRACE_FILE_DIR), FILE_NAME);
+		mFile.getParentFile().mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+		mFile.getParentFile().delete();
+		mStorage.delete();
+	}
+
+	@Test(timeout = 120000)
+	public void testMergesProcessesInTimestampOrder() throws Exception {
+		layOut(1024);
+		Merge merge = merge(new String[] { ":a", ":b", ":c" }, 1024, 500);
+
+		assertEquals(0, merge.mLost);
+		assertEquals(1500, merge.mRows);
+		for (String process : new String[] { ":a", ":b", ":c" }) {
+			assertEquals(process, 500, merge.mCounts.get(process).intValue());
+		}
+		assertEquals(3, merge.mPids.size());
+		assertFalse(merge.mPids.contains(Process.myPid()));
+	}
+
+	@Test(timeout = 120000)
+	public void testOverwrittenRecordsAreCountedNotTorn() throws Exception {
+		layOut(16);
+		Merge merge = merge(new String[] { ":a", ":b" }, 16, 5000);
+
+		// Each row checked out whole and in order; the rest are counted.
+		assertEquals(10000, merge.mRows + merge.mLost);
+		assertTrue(merge.mRows > 0);
+	}
+
+	@Test
+	public void testReaderDoesNotCreateFile() {
+		try {
+			new MemoryTraceSharedReader(mFile, KEYS);
+			fail("Opened a missing file");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertFalse(mFile.exists());
+	}
+
+	@Test
+	public void testReaderLeavesOtherFilesAlone() throws IOException {
+		byte[] content = "label,timestamp,\n".getBytes("UTF-8");
+		FileOutputStream out = new FileOutputStream(mFile);
+		out.write(content);
+		out.close();
+		try {
+			new MemoryTraceSharedReader(mFile, KEYS);
+			fail("Opened a file that is not laid out");
+		} catch (IOException e) {
+			// Expected.
+		}
+		byte[] read = new byte[(int) mFile.length()];
+		RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		file.readFully(read);
+		file.close();
+		assertArrayEquals(content, read);
+	}
+
+	@Test
+	public void testRecordSeenWithStaleBodyIsNotMerged() throws IOException {
+		layOut(4);
+		String storage = System.getProperty("kmemtracer.storage");
+		System.setProperty("kmemtracer.storage", mStorage.getPath());
+		MemoryTraceSharedWriter writer = new MemoryTraceSharedWriter(KEYS, ":a", FILE_NAME, SLOTS, 4);
+		MemoryTraceSharedFile file = MemoryTraceSharedFile.open(mFile, SLOTS, 4);
+		try {
+			writer.writeTraceStart("test");
+			assertEquals(0, writer.getSlot());
+			for (int n = 0; n < 4; n++) {
+				write(writer, n);
+			}
+			// Record 4 replaces record 0. A reader on a weakly ordered CPU may
+			// see its sequence before its body, i.e. the body of record 0.
+			MappedByteBuffer buffer = file.getBuffer();
+			int offset = file.recordOffset(0, 0);
+			byte[] stale = copy(buffer, offset);
+			write(writer, 4);
+			byte[] complete = copy(buffer, offset);
+			paste(buffer, offset, stale);
+			buffer.putLong(offset + MemoryTraceSharedFile.RECORD_SEQ_OFFSET, 2 * 4 + 2);
+
+			MemoryTraceSharedReader reader = new MemoryTraceSharedReader(mFile, KEYS);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(bytes, false, "UTF-8");
+			assertEquals(3, reader.poll());
+			assertEquals(1, reader.getLostCount());
+			paste(buffer, offset, complete);
+			assertEquals(1, reader.poll());
+			assertEquals(1, reader.getLostCount());
+			reader.writeRows(out, Long.MAX_VALUE);
+			reader.close();
+			out.flush();
+			String[] lines = bytes.toString("UTF-8").split("\n");
+			assertEquals(4, lines.length);
+			for (int i = 0; i < lines.length; i++) {
+				assertTrue(lines[i], lines[i].startsWith(":a," + Process.myPid() + ",:a-" + (i + 1) + ","
+						+ (1000 + i + 1) + ","));
+			}
+		} finally {
+			writer.writeTraceStop(null);
+			file.close();
+			if (storage != null) {
+				System.setProperty("kmemtracer.storage", storage);
+			} else {
+				System.clearProperty("kmemtracer.storage");
+			}
+		}
+	}
+
+	private static void write(MemoryTraceSharedWriter writer, int n) {
+		MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+		snapshot.setLabel(-1, ":a-" + n);
+		snapshot.set(MemoryTraceMetric.TIMESTAMP, 1000 + n);
+		writer.writeTraceSnapshot(snapshot);
+	}
+
+	private static byte[] copy(MappedByteBuffer buffer, int offset) {
+		byte[] bytes = new byte[MemoryTraceSharedFile.RECORD_SIZE];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return bytes;
+	}
+
+	private static void paste(MappedByteBuffer buffer, int offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(offset + i, bytes[i]);
+		}
+	}
+
+	private void layOut(int capacity) throws IOException {
+		MemoryTraceSharedFile.open(mFile, SLOTS, capacity).close();
+	}
+
+	static class Merge {
+		int mRows;
+		long mLost;
+		final Map<String, Integer> mCounts = new HashMap<String, Integer>();
+		final Set<Integer> mPids = new HashSet<Integer>();
+	}
+
+	/*
+	 * Runs a writer process per name, each taking count snapshots labeled
+	 * "<name>-<n>", merges them while they run and checks the merged rows.
+	 */
+	private Merge merge(String[] processes, int capacity, int count) throws Exception {
+		MemoryTraceSharedReader reader = new MemoryTraceSharedReader(mFile, KEYS);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, false, "UTF-8");
+		reader.skipExisting();
+		reader.writeHeader(out, "test");
+		// Rows are ordered as long as a writer is not held up for longer
+		// than the delay between taking a snapshot and storing it.
+		reader.startMerging(out, 1, 2000);
+		java.lang.Process[] children = new java.lang.Process[processes.length];
+		for (int i = 0; i < processes.length; i++) {
+			children[i] = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+					"-cp", System.getProperty("java.class.path"),
+					"-Dkmemtracer.storage=" + mStorage.getPath(),
+					Writer.class.getName(), processes[i], String.valueOf(capacity), String.valueOf(count))
+					.inheritIO().start();
+		}
+		for (java.lang.Process child : children) {
+			assertEquals(0, child.waitFor());
+		}
+		reader.stopMerging(out);
+		reader.close();
+		out.flush();
+
+		Merge merge = new Merge();
+		merge.mLost = reader.getLostCount();
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		long lastTimestamp = Long.MIN_VALUE;
+		String[] lines = bytes.toString("UTF-8").split("\n");
+		assertEquals("process,pid,label,timestamp,", lines[1]);
+		for (int i = 2; i < lines.length; i++) {
+			String[] columns = lines[i].split(",");
+			String process = columns[0];
+			String label = columns[2];
+			long timestamp = Long.parseLong(columns[3]);
+			assertTrue(lines[i], label.startsWith(process + "-"));
+			int n = Integer.parseInt(label.substring(process.length() + 1));
+			Integer previous = last.get(process);
+			assertTrue(lines[i] + " after " + previous, previous == null || n > previous);
+			assertTrue(lines[i], timestamp >= lastTimestamp);
+			last.put(process, n);
+			lastTimestamp = timestamp;
+			Integer rows = merge.mCounts.get(process);
+			merge.mCounts.put(process, rows == null ? 1 : rows + 1);
+			merge.mPids.add(Integer.valueOf(columns[1]));
+			merge.mRows++;
+		}
+		return merge;
+	}
+
+	/**
+	 * A traced process: traces count snapshots to the shared file.
+	 */
+	public static class Writer {
+		public static void main(String[] args) {
+			String process = args[0];
+			int capacity = Integer.parseInt(args[1]);
+			int count = Integer.parseInt(args[2]);
+			MemoryTraceSharedWriter writer = new MemoryTraceSharedWriter(KEYS, process, FILE_NAME, SLOTS, capacity);
+			MemoryTracer tracer = new MemoryTracer(writer);
+			tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+			tracer.startTracing(process);
+			if (writer.getSlot() < 0) {
+				System.exit(1);
+			}
+			for (int n = 0; n < count; n++) {
+				tracer.addSnapshot(process + "-" + n);
+			}
+			tracer.stopTracing();
+		}
+	}
+}
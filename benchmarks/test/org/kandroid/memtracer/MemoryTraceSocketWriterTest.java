@@ -0,0 +1,124 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Streams a trace over loopback to a collector that writes slower than the
+ * tracer takes snapshots.
+ */
+public class MemoryTraceSocketWriterTest {
+
+	private static final String[] KEYS = { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED };
+	private static final int BURST_ROWS = 1000;
+	private static final int BURSTS = 4;
+
+	/**
+	 * Takes a while for every flush, which the collector does per frame.
+	 */
+	static class SlowOutputStream extends ByteArrayOutputStream {
+		@Override
+		public void flush() {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Collects from the writer on its own connection.
+	 */
+	static class CollectorThread extends Thread {
+		final SlowOutputStream mTrace = new SlowOutputStream();
+		final AtomicReference<Throwable> mFailure = new AtomicReference<Throwable>();
+		private final int mPort;
+		long mRows = -1;
+		long mDropped = -1;
+
+		CollectorThread(int port) {
+			super("collector");
+			mPort = port;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket socket = new Socket("127.0.0.1", mPort);
+				try {
+					MemoryTraceCollector collector = new MemoryTraceCollector(socket.getInputStream(),
+							socket.getOutputStream(), new PrintStream(mTrace, false, "UTF-8"), null);
+					mRows = collector.collect();
+					mDropped = collector.getDroppedCount();
+				} finally {
+					socket.close();
+				}
+			} catch (Throwable t) {
+				mFailure.set(t);
+			}
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testSlowCollector() throws Exception {
+		MemoryTraceSocketWriter writer = new MemoryTraceSocketWriter(KEYS, 0, 1024, 10, 50);
+		writer.writeTraceStart("test");
+		CollectorThread collector = new CollectorThread(writer.getLocalPort());
+		collector.start();
+
+		// Each burst outruns the credits the collector grants and fills the
+		// queue; the pause lets it drain so that the stream restarts.
+		MemoryTraceSnapshot snapshot = new MemoryTraceSnapshot();
+		int n = 0;
+		for (int burst = 0; burst < BURSTS; burst++) {
+			snapshot.setLabel(burst, "burst-" + burst);
+			for (int i = 0; i < BURST_ROWS; i++) {
+				snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, n++);
+				writer.writeTraceSnapshot(snapshot);
+			}
+			Thread.sleep(1000);
+		}
+		writer.writeTraceStop(new Bundle());
+		collector.join();
+		if (collector.mFailure.get() != null) {
+			throw new AssertionError(collector.mFailure.get());
+		}
+
+		// The end frame arrived and accounts for every row not sent.
+		long total = BURSTS * BURST_ROWS;
+		assertTrue(writer.getDroppedCount() > 0);
+		assertEquals(writer.getDroppedCount(), collector.mDropped);
+		assertEquals(total, collector.mRows + collector.mDropped);
+
+		// Rows decode whole and in order across the restarts, and some come
+		// from every burst.
+		String[] lines = collector.mTrace.toString("UTF-8").split("\n");
+		assertEquals("test", lines[0]);
+		assertEquals("label,java_allocated,", lines[1]);
+		assertEquals(collector.mRows, lines.length - 2);
+		long last = -1;
+		boolean[] seen = new boolean[BURSTS];
+		for (int i = 2; i < lines.length; i++) {
+			String[] columns = lines[i].split(",");
+			long value = Long.parseLong(columns[1]);
+			assertTrue(lines[i] + " after " + last, value > last);
+			int burst = (int) (value / BURST_ROWS);
+			assertEquals(lines[i], "burst-" + burst, columns[0]);
+			seen[burst] = true;
+			last = value;
+		}
+		for (int burst = 0; burst < BURSTS; burst++) {
+			assertTrue("No rows from burst " + burst, seen[burst]);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Checks that a snapshot in steady state allocates nothing on the calling
+ * thread, so the tracer does not perturb the heap counters it reports.
+ */
+public class MemoryTracerAllocationTest {
+
+	private static final int WARM_UP = 20000;
+	private static final int SNAPSHOTS = 10000;
+
+	/**
+	 * Sums what it is written without keeping it.
+	 */
+	static class SummingWriter implements MemoryTracer.SnapshotWriter {
+		long mSum;
+
+		@Override
+		public String[] getMetricKeys() {
+			return new String[] { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED };
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			mSum += snapshot.get(MemoryTraceMetric.JAVA_ALLOCATED);
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+	}
+
+	@Test
+	public void testSteadyStateSnapshotDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		MemoryTracer tracer = new MemoryTracer(new SummingWriter());
+		tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		tracer.startTracing(MemoryTracerAllocationTest.class.getSimpleName());
+		try {
+			int labelId = tracer.internLabel("Steady");
+			MemoryTraceSnapshot result = new MemoryTraceSnapshot();
+			for (int i = 0; i < WARM_UP; i++) {
+				tracer.addSnapshot(labelId, false, result);
+			}
+			// What reading the counter itself costs, if anything.
+			long start = threads.getThreadAllocatedBytes(threadId);
+			long empty = threads.getThreadAllocatedBytes(threadId) - start;
+
+			start = threads.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < SNAPSHOTS; i++) {
+				tracer.addSnapshot(labelId, false, result);
+			}
+			long allocated = threads.getThreadAllocatedBytes(threadId) - start - empty;
+			assertEquals("Bytes allocated by " + SNAPSHOTS + " snapshots", 0, allocated);
+		} finally {
+			tracer.stopTracing();
+		}
+	}
+}
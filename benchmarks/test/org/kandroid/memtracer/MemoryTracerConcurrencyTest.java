@@ -0,0 +1,256 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Takes snapshots from many threads at once and checks that the writer gets
+ * every one of them, whole, in order per thread, one call at a time, and
+ * nothing after the trace is closed.
+ */
+public class MemoryTracerConcurrencyTest {
+
+	private static final int THREADS = 16;
+	private static final String PRODUCER = "producer-";
+
+	/**
+	 * Stamps each snapshot with the index of its thread and a sequence per
+	 * thread, and a check value over both, so that a snapshot mixed from two
+	 * others shows.
+	 */
+	static class StampingSource implements MemoryTraceMetricSource {
+		private final ThreadLocal<long[]> mSequences = new ThreadLocal<long[]>() {
+			@Override
+			protected long[] initialValue() {
+				return new long[1];
+			}
+		};
+
+		@Override
+		public boolean provides(MemoryTraceMetric.Collector collector) {
+			return collector == MemoryTraceMetric.Collector.JAVA_HEAP;
+		}
+
+		@Override
+		public void collect(MemoryTraceMetric.Collector collector, MemoryTraceSnapshot snapshot) {
+			long thread = threadIndex(Thread.currentThread());
+			long sequence = mSequences.get()[0]++;
+			snapshot.set(MemoryTraceMetric.JAVA_SIZE, thread);
+			snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, sequence);
+			snapshot.set(MemoryTraceMetric.JAVA_FREE, check(thread, sequence));
+		}
+	}
+
+	/**
+	 * Checks every call it gets and counts the snapshots per thread.
+	 */
+	static class CheckingWriter implements MemoryTracer.SnapshotWriter {
+		private final MemoryTracer mTracer;
+		private final AtomicInteger mInside = new AtomicInteger();
+		private final long[] mNextSequences = new long[THREADS];
+		private final List<String> mErrors = new ArrayList<String>();
+		private volatile boolean mOpen;
+		private int mWritten;
+
+		CheckingWriter(MemoryTracer tracer) {
+			mTracer = tracer;
+		}
+
+		@Override
+		public String[] getMetricKeys() {
+			return new String[] { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_JAVA_SIZE,
+					MemoryTracer.METRIC_KEY_JAVA_ALLOCATED, MemoryTracer.METRIC_KEY_JAVA_FREE };
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+			mOpen = true;
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+			error("Bundle written");
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			enter();
+			try {
+				if (!mOpen) {
+					error("Snapshot written while the trace is closed");
+				}
+				long thread = snapshot.get(MemoryTraceMetric.JAVA_SIZE);
+				long sequence = snapshot.get(MemoryTraceMetric.JAVA_ALLOCATED);
+				if (snapshot.get(MemoryTraceMetric.JAVA_FREE) != check(thread, sequence)) {
+					error("Torn snapshot " + snapshot);
+				}
+				if (mTracer.internLabel(snapshot.getLabel()) != snapshot.getLabelId()) {
+					error("Label " + snapshot.getLabel() + " under id " + snapshot.getLabelId());
+				}
+				if (thread >= 0) {
+					if (!snapshot.getLabel().equals(PRODUCER + thread)) {
+						error("Snapshot of thread " + thread + " labeled " + snapshot.getLabel());
+					}
+					if (sequence != mNextSequences[(int) thread]) {
+						error("Thread " + thread + " wrote " + sequence + " after "
+								+ (mNextSequences[(int) thread] - 1));
+					}
+					mNextSequences[(int) thread] = sequence + 1;
+				}
+				mWritten++;
+				// A slow writer, so that the queue fills up.
+				if (mWritten % 64 == 0) {
+					LockSupport.parkNanos(100000);
+				}
+			} finally {
+				exit();
+			}
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+			enter();
+			mOpen = false;
+			exit();
+		}
+
+		private void enter() {
+			if (mInside.incrementAndGet() != 1) {
+				error("Writer called from two threads at once");
+			}
+		}
+
+		private void exit() {
+			mInside.decrementAndGet();
+		}
+
+		private synchronized void error(String error) {
+			if (mErrors.size() < 10) {
+				mErrors.add(error);
+			}
+		}
+
+		synchronized List<String> getErrors() {
+			return new ArrayList<String>(mErrors);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testNoSnapshotLostOrTorn() throws InterruptedException {
+		final MemoryTracer tracer = new MemoryTracer();
+		CheckingWriter writer = startTracing(tracer);
+		final long[] taken = new long[THREADS];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread(PRODUCER + i) {
+				@Override
+				public void run() {
+					int labelId = tracer.internLabel(getName());
+					MemoryTraceSnapshot result = new MemoryTraceSnapshot();
+					awaitQuietly(start);
+					for (int n = 0; n < 5000; n++) {
+						tracer.addSnapshot(labelId, false, result);
+						if (result.getLabelId() >= 0) {
+							taken[index]++;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		tracer.stopTracing();
+
+		assertEquals("[]", writer.getErrors().toString());
+		for (int i = 0; i < THREADS; i++) {
+			assertEquals(5000, taken[i]);
+			assertEquals("Snapshots of thread " + i, taken[i], writer.mNextSequences[i]);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testStopWhileTakingSnapshots() throws InterruptedException {
+		final MemoryTracer tracer = new MemoryTracer();
+		CheckingWriter writer = startTracing(tracer);
+		tracer.startSampling(1);
+		final long[] taken = new long[THREADS];
+		final AtomicBoolean stopped = new AtomicBoolean();
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread(PRODUCER + i) {
+				@Override
+				public void run() {
+					int labelId = tracer.internLabel(getName());
+					MemoryTraceSnapshot result = new MemoryTraceSnapshot();
+					while (!stopped.get()) {
+						tracer.addSnapshot(labelId, false, result);
+						if (result.getLabelId() >= 0) {
+							taken[index]++;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		Thread.sleep(200);
+		tracer.stopTracing();
+		// Snapshots taken after the trace is closed are discarded.
+		Thread.sleep(20);
+		stopped.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals("[]", writer.getErrors().toString());
+		long total = 0;
+		for (int i = 0; i < THREADS; i++) {
+			assertEquals("Snapshots of thread " + i, taken[i], writer.mNextSequences[i]);
+			total += taken[i];
+		}
+		assertTrue("No snapshot taken", total > 0);
+		assertEquals(0, tracer.getPendingCount());
+	}
+
+	private static CheckingWriter startTracing(MemoryTracer tracer) {
+		CheckingWriter writer = new CheckingWriter(tracer);
+		tracer.setResultsWriter(writer);
+		tracer.setMetricSources(new StampingSource());
+		tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		tracer.startTracing(MemoryTracerConcurrencyTest.class.getSimpleName());
+		return writer;
+	}
+
+	static int threadIndex(Thread thread) {
+		String name = thread.getName();
+		return name.startsWith(PRODUCER) ? Integer.parseInt(name.substring(PRODUCER.length())) : -1;
+	}
+
+	static long check(long thread, long sequence) {
+		return thread * 1000003L ^ sequence * 7919L;
+	}
+
+	static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
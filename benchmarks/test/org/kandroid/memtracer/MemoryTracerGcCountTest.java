@@ -0,0 +1,87 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+import android.os.Debug;
+
+/**
+ * Checks that the collections reported by the snapshots of several threads
+ * add up to the collections of the process rather than counting each one
+ * once per thread.
+ */
+public class MemoryTracerGcCountTest {
+
+	private static final int THREADS = 2;
+	private static final int SNAPSHOTS = 10;
+
+	static class GcCountWriter implements MemoryTracer.SnapshotWriter {
+		final AtomicLong mGcCount = new AtomicLong();
+
+		@Override
+		public String[] getMetricKeys() {
+			return new String[] { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_GC_COUNT };
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			if (snapshot.has(MemoryTraceMetric.GC_COUNT)) {
+				mGcCount.addAndGet(snapshot.get(MemoryTraceMetric.GC_COUNT));
+			}
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+	}
+
+	private static long gcCount() {
+		return Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+	}
+
+	@Test(timeout = 60000)
+	public void testCollectionsAreCountedOnce() throws InterruptedException {
+		GcCountWriter writer = new GcCountWriter();
+		final MemoryTracer tracer = new MemoryTracer(writer);
+		tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		long before = gcCount();
+		tracer.startTracing("test");
+		long start = gcCount();
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < SNAPSHOTS; j++) {
+						System.gc();
+						tracer.addSnapshot("Collected");
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		tracer.addSnapshot("Joined");
+		long end = gcCount();
+		tracer.stopTracing();
+
+		long reported = writer.mGcCount.get();
+		assertTrue("reported " + reported + " of " + (end - start), reported >= end - start);
+		// The collections that start tracing forces are not reported.
+		assertTrue("reported " + reported + " of " + (end - before), reported <= end - before);
+	}
+}
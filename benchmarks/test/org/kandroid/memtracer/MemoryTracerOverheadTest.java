@@ -0,0 +1,74 @@
+package org.kandroid.memtracer;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import android.os.Bundle;
+
+/**
+ * Checks that the tracer counts what a snapshot costs, the GC a full
+ * snapshot forces included, to its own overhead.
+ */
+public class MemoryTracerOverheadTest {
+
+	/**
+	 * Keeps the last snapshot written.
+	 */
+	static class LastWriter implements MemoryTracer.SnapshotWriter {
+		final MemoryTraceSnapshot mLast = new MemoryTraceSnapshot();
+
+		@Override
+		public String[] getMetricKeys() {
+			return new String[] { MemoryTracer.METRIC_KEY_LABEL, MemoryTracer.METRIC_KEY_TRACER_TIME,
+					MemoryTracer.METRIC_KEY_TRACER_CPU_TIME };
+		}
+
+		@Override
+		public void writeTraceStart(String label) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(Bundle snapshot) {
+		}
+
+		@Override
+		public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+			mLast.copyFrom(snapshot);
+		}
+
+		@Override
+		public void writeTraceStop(Bundle results) {
+		}
+	}
+
+	@Test
+	public void testFullSnapshotIsCountedToTracer() {
+		LastWriter writer = new LastWriter();
+		MemoryTracer tracer = new MemoryTracer(writer);
+		tracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		tracer.setOverheadTracking(true, false);
+		tracer.startTracing(MemoryTracerOverheadTest.class.getSimpleName());
+		int labelId = tracer.internLabel("Full");
+		try {
+			// Threads woken by the GC may run before the call returns, so only
+			// the closest of a few snapshots is held to the wall time.
+			double closest = 0;
+			for (int i = 0; i < 5; i++) {
+				long start = System.nanoTime();
+				tracer.addSnapshot(labelId, true, null);
+				long duration = System.nanoTime() - start;
+				// The next snapshot reports the cost of this one.
+				tracer.addSnapshot(labelId, false, null);
+				long tracerTime = writer.mLast.get(MemoryTraceMetric.TRACER_TIME);
+				assertTrue("Tracer time " + tracerTime + " of a snapshot taking " + duration,
+						tracerTime <= duration);
+				closest = Math.max(closest, (double) tracerTime / duration);
+			}
+			assertTrue("Tracer time at most " + closest + " of the wall time", closest >= 0.9);
+			assertTrue(tracer.getOverhead() > 0);
+		} finally {
+			tracer.stopTracing();
+		}
+	}
+}
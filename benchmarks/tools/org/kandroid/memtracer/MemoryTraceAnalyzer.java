@@ -0,0 +1,670 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Summarizes trace files offline: the distribution of every metric, per
+ * label, in {@link MemoryTraceSketch}es. Runs on a host:
+ * <pre>
+ * java org.kandroid.memtracer.MemoryTraceAnalyzer stats kmemtrace.csv
+ * java org.kandroid.memtracer.MemoryTraceAnalyzer diff baseline.csv candidate.csv
+ * </pre>
+ *
+ * Reads CSV traces, binary traces and gzipped segments of either. A large
+ * CSV trace is split at line boundaries into chunks that are parsed in
+ * parallel; other files are one chunk each. Only a few chunks are in flight
+ * at a time and each is reduced to sketches, so memory is bounded by the
+ * number of labels and threads, not by the size of the input. Labels beyond
+ * the limit are folded into {@link MemoryTraceStatistics#LABEL_OTHER}.
+ *
+ * A run can span several files, e.g. the segments of one trace, and is
+ * given as a comma-separated list. See {@link MemoryTraceComparison} for the
+ * diff.
+ */
+public class MemoryTraceAnalyzer {
+
+	private static final int DEFAULT_MAX_LABELS = 256;
+	private static final long DEFAULT_CHUNK_BYTES = 32 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The sketches of one run, by label and metric key.
+	 */
+	public static class Run {
+		// Sorted, since chunks complete in any order.
+		private final TreeMap<String, TreeMap<String, MemoryTraceSketch>> mLabels =
+				new TreeMap<String, TreeMap<String, MemoryTraceSketch>>();
+		private final int mMaxLabels;
+		private long mRows;
+
+		Run(int maxLabels) {
+			mMaxLabels = maxLabels;
+		}
+
+		/**
+		 * Returns the labels, sorted.
+		 */
+		public List<String> getLabels() {
+			return new ArrayList<String>(mLabels.keySet());
+		}
+
+		/**
+		 * Returns the metric keys of a label that have values, sorted.
+		 */
+		public List<String> getKeys(String label) {
+			Map<String, MemoryTraceSketch> sketches = mLabels.get(label);
+			return sketches != null ? new ArrayList<String>(sketches.keySet()) : new ArrayList<String>();
+		}
+
+		/**
+		 * Returns the sketch of a label and metric, or null if it has no
+		 * values.
+		 */
+		public MemoryTraceSketch getSketch(String label, String key) {
+			Map<String, MemoryTraceSketch> sketches = mLabels.get(label);
+			return sketches != null ? sketches.get(key) : null;
+		}
+
+		public long getRowCount() {
+			return mRows;
+		}
+
+		void merge(Chunk chunk) {
+			mRows += chunk.mRows;
+			String[] keys = chunk.mKeys;
+			for (Map.Entry<String, MemoryTraceSketch[]> entry : chunk.mSketches.entrySet()) {
+				String label = entry.getKey();
+				TreeMap<String, MemoryTraceSketch> sketches = mLabels.get(label);
+				if (sketches == null) {
+					if (mLabels.size() >= mMaxLabels && !MemoryTraceStatistics.LABEL_OTHER.equals(label)) {
+						label = MemoryTraceStatistics.LABEL_OTHER;
+						sketches = mLabels.get(label);
+					}
+					if (sketches == null) {
+						sketches = new TreeMap<String, MemoryTraceSketch>();
+						mLabels.put(label, sketches);
+					}
+				}
+				MemoryTraceSketch[] columns = entry.getValue();
+				for (int column = 0; column < columns.length; column++) {
+					if (columns[column] == null) {
+						continue;
+					}
+					MemoryTraceSketch sketch = sketches.get(keys[column]);
+					if (sketch == null) {
+						sketches.put(keys[column], columns[column]);
+					} else {
+						sketch.merge(columns[column]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Writes one line per label and metric with its count, range, mean,
+		 * standard deviation and quantiles.
+		 */
+		public void writeCsv(PrintStream out) {
+			out.println("label,metric,count,min,max,mean,stddev,p50,p95,p99");
+			for (Map.Entry<String, TreeMap<String, MemoryTraceSketch>> label : mLabels.entrySet()) {
+				for (Map.Entry<String, MemoryTraceSketch> metric : label.getValue().entrySet()) {
+					MemoryTraceSketch sketch = metric.getValue();
+					out.println(label.getKey() + "," + metric.getKey()
+							+ "," + sketch.getCount()
+							+ "," + sketch.getMin()
+							+ "," + sketch.getMax()
+							+ "," + sketch.getMean()
+							+ "," + Math.sqrt(sketch.getVariance())
+							+ "," + sketch.getQuantile(0.50)
+							+ "," + sketch.getQuantile(0.95)
+							+ "," + sketch.getQuantile(0.99));
+				}
+			}
+			out.flush();
+		}
+	}
+
+	/*
+	 * The sketches of one chunk, by label and by column of its file.
+	 */
+	static class Chunk {
+		final String[] mKeys;
+		final int mLabelColumn;
+		final int mMaxLabels;
+		final HashMap<String, MemoryTraceSketch[]> mSketches = new HashMap<String, MemoryTraceSketch[]>();
+		long mRows;
+
+		// The sketches of the previous row's label, which is usually the
+		// next row's label too.
+		private byte[] mLastLabel = new byte[64];
+		private int mLastLabelLength = -1;
+		private MemoryTraceSketch[] mLastSketches;
+
+		Chunk(String[] keys, int maxLabels) {
+			mKeys = keys;
+			mMaxLabels = maxLabels;
+			int labelColumn = -1;
+			for (int i = 0; i < keys.length; i++) {
+				if (MemoryTracer.METRIC_KEY_LABEL.equals(keys[i])) {
+					labelColumn = i;
+				}
+			}
+			mLabelColumn = labelColumn;
+		}
+
+		MemoryTraceSketch[] sketchesOf(String label) {
+			MemoryTraceSketch[] sketches = mSketches.get(label);
+			if (sketches == null) {
+				if (mSketches.size() >= mMaxLabels) {
+					label = MemoryTraceStatistics.LABEL_OTHER;
+					sketches = mSketches.get(label);
+				}
+				if (sketches == null) {
+					sketches = new MemoryTraceSketch[mKeys.length];
+					mSketches.put(label, sketches);
+				}
+			}
+			return sketches;
+		}
+
+		MemoryTraceSketch[] sketchesOf(byte[] line, int start, int length) {
+			if (length == mLastLabelLength) {
+				boolean same = true;
+				for (int i = 0; i < length; i++) {
+					if (mLastLabel[i] != line[start + i]) {
+						same = false;
+						break;
+					}
+				}
+				if (same) {
+					return mLastSketches;
+				}
+			}
+			if (mLastLabel.length < length) {
+				mLastLabel = new byte[length];
+			}
+			System.arraycopy(line, start, mLastLabel, 0, length);
+			mLastLabelLength = length;
+			mLastSketches = sketchesOf(decode(line, start, length));
+			return mLastSketches;
+		}
+
+		void add(MemoryTraceSketch[] sketches, int column, long value) {
+			MemoryTraceSketch sketch = sketches[column];
+			if (sketch == null) {
+				sketch = new MemoryTraceSketch();
+				sketches[column] = sketch;
+			}
+			sketch.add(value);
+		}
+
+		/*
+		 * Adds a CSV row: the values in the order of the keys, each followed
+		 * by a comma. Values that are not numbers, like "null", are skipped.
+		 */
+		void addCsvRow(byte[] line, int start, int end) {
+			if (mLabelColumn < 0) {
+				return;
+			}
+			int[] fieldStarts = findFields(line, start, end);
+			if (fieldStarts == null) {
+				return;
+			}
+			int labelStart = fieldStarts[mLabelColumn];
+			int labelEnd = fieldStarts[mLabelColumn + 1] - 1;
+			MemoryTraceSketch[] sketches = sketchesOf(line, labelStart, labelEnd - labelStart);
+			for (int column = 0; column < mKeys.length; column++) {
+				if (column == mLabelColumn) {
+					continue;
+				}
+				int fieldStart = fieldStarts[column];
+				int fieldEnd = fieldStarts[column + 1] - 1;
+				long value = parseLong(line, fieldStart, fieldEnd);
+				if (value != NOT_A_NUMBER) {
+					add(sketches, column, value);
+				}
+			}
+			mRows++;
+		}
+
+		private int[] mFieldStarts;
+
+		private int[] findFields(byte[] line, int start, int end) {
+			if (mFieldStarts == null) {
+				mFieldStarts = new int[mKeys.length + 1];
+			}
+			int field = 0;
+			mFieldStarts[0] = start;
+			for (int i = start; i < end && field < mKeys.length; i++) {
+				if (line[i] == ',') {
+					mFieldStarts[++field] = i + 1;
+				}
+			}
+			if (field < mKeys.length) {
+				// A short line, e.g. the trace label of a concatenated trace.
+				return null;
+			}
+			return mFieldStarts;
+		}
+	}
+
+	// Returned by parseLong for a field that is not an integer.
+	private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+	static long parseLong(byte[] line, int start, int end) {
+		if (start >= end) {
+			return NOT_A_NUMBER;
+		}
+		boolean negative = line[start] == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end || end - i > 18) {
+			return NOT_A_NUMBER;
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return NOT_A_NUMBER;
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private static String decode(byte[] bytes, int start, int length) {
+		try {
+			return new String(bytes, start, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private int mThreads = Runtime.getRuntime().availableProcessors();
+	private int mMaxLabels = DEFAULT_MAX_LABELS;
+	private long mChunkBytes = DEFAULT_CHUNK_BYTES;
+
+	public void setThreads(int threads) {
+		mThreads = Math.max(1, threads);
+	}
+
+	public void setMaxLabels(int maxLabels) {
+		mMaxLabels = Math.max(1, maxLabels);
+	}
+
+	/**
+	 * Sets the size of the chunks a CSV trace is split into.
+	 */
+	public void setChunkBytes(long chunkBytes) {
+		mChunkBytes = Math.max(BUFFER_SIZE, chunkBytes);
+	}
+
+	/**
+	 * Analyzes the files of one run.
+	 */
+	public Run analyze(List<File> files) throws IOException {
+		List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+		for (File file : files) {
+			addTasks(file, tasks);
+		}
+		Run run = new Run(mMaxLabels);
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+		try {
+			CompletionService<Chunk> completion = new ExecutorCompletionService<Chunk>(executor);
+			// Bound the chunks in flight, and the memory of their results.
+			int inFlight = 0;
+			int next = 0;
+			while (next < tasks.size() || inFlight > 0) {
+				while (next < tasks.size() && inFlight < mThreads * 2) {
+					completion.submit(tasks.get(next++));
+					inFlight++;
+				}
+				Chunk chunk;
+				try {
+					chunk = completion.take().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+				inFlight--;
+				run.merge(chunk);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return run;
+	}
+
+	private void addTasks(final File file, List<Callable<Chunk>> tasks) throws IOException {
+		final String name = file.getName();
+		if (name.endsWith(".gz")) {
+			final boolean binary = name.endsWith(".kmt.gz");
+			tasks.add(new Callable<Chunk>() {
+				@Override
+				public Chunk call() throws IOException {
+					InputStream in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+					try {
+						return binary ? readBinary(in) : readCsv(in, 0, Long.MAX_VALUE, null);
+					} finally {
+						in.close();
+					}
+				}
+			});
+			return;
+		}
+		if (name.endsWith(".kmt")) {
+			tasks.add(new Callable<Chunk>() {
+				@Override
+				public Chunk call() throws IOException {
+					InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+					try {
+						return readBinary(in);
+					} finally {
+						in.close();
+					}
+				}
+			});
+			return;
+		}
+
+		// Read the header once to find where the rows start.
+		LineReader header = new LineReader(new FileInputStream(file));
+		final String[] keys;
+		final long dataStart;
+		try {
+			if (!header.readLine() || !header.readLine()) {
+				return;
+			}
+			keys = parseKeys(header);
+			dataStart = header.getLineEnd();
+		} finally {
+			header.close();
+		}
+		long length = file.length();
+		for (long start = dataStart; start < length; start += mChunkBytes) {
+			final long chunkStart = start;
+			final long chunkEnd = Math.min(length, start + mChunkBytes);
+			tasks.add(new Callable<Chunk>() {
+				@Override
+				public Chunk call() throws IOException {
+					InputStream in = new FileInputStream(file);
+					try {
+						return readCsv(in, chunkStart, chunkEnd, keys);
+					} finally {
+						in.close();
+					}
+				}
+			});
+		}
+	}
+
+	/*
+	 * Reads the CSV rows that start in [start, end). The stream is at the
+	 * start of the file; if keys is null, the header is read from it.
+	 */
+	private Chunk readCsv(InputStream in, long start, long end, String[] keys) throws IOException {
+		LineReader lines = new LineReader(in);
+		if (keys == null) {
+			if (!lines.readLine() || !lines.readLine()) {
+				return new Chunk(new String[0], mMaxLabels);
+			}
+			keys = parseKeys(lines);
+		} else {
+			// Start on the line that starts in this chunk.
+			lines.skipTo(start - 1);
+			if (!lines.readLine()) {
+				return new Chunk(keys, mMaxLabels);
+			}
+		}
+		Chunk chunk = new Chunk(keys, mMaxLabels);
+		while (lines.getLineEnd() < end && lines.readLine()) {
+			chunk.addCsvRow(lines.getBuffer(), lines.getLineStart(), lines.getLineLimit());
+		}
+		return chunk;
+	}
+
+	private static String[] parseKeys(LineReader lines) {
+		String line = decode(lines.getBuffer(), lines.getLineStart(),
+				lines.getLineLimit() - lines.getLineStart());
+		// Every key is followed by a comma.
+		return line.split(",");
+	}
+
+	private Chunk readBinary(InputStream in) throws IOException {
+		MemoryTraceBinaryDecoder decoder = new MemoryTraceBinaryDecoder(in);
+		Chunk chunk = new Chunk(decoder.getMetricKeys(), mMaxLabels);
+		int columns = decoder.getMetricKeys().length;
+		String lastLabel = null;
+		MemoryTraceSketch[] sketches = null;
+		while (decoder.next()) {
+			// The decoder returns the same String for the same label.
+			if (decoder.getLabel() != lastLabel) {
+				lastLabel = decoder.getLabel();
+				sketches = chunk.sketchesOf(lastLabel);
+			}
+			long[] values = decoder.getValues();
+			for (int column = 0; column < columns; column++) {
+				if (column != chunk.mLabelColumn && decoder.isPresent(column)) {
+					chunk.add(sketches, column, values[column]);
+				}
+			}
+			chunk.mRows++;
+		}
+		return chunk;
+	}
+
+	/*
+	 * Reads lines into a reusable buffer, and tracks the file offset of the
+	 * current line.
+	 */
+	private static class LineReader {
+		private final InputStream mIn;
+		private byte[] mBuffer = new byte[BUFFER_SIZE];
+		private int mStart;
+		private int mLimit;
+		private int mLineStart;
+		private int mLineLimit;
+		// The file offset of mBuffer[0].
+		private long mBufferOffset;
+		private boolean mEof;
+
+		LineReader(InputStream in) {
+			mIn = in;
+		}
+
+		/*
+		 * Skips to the given offset, from the start of the stream.
+		 */
+		void skipTo(long offset) throws IOException {
+			long remaining = offset - (mBufferOffset + mLimit);
+			while (remaining > 0) {
+				long skipped = mIn.skip(remaining);
+				if (skipped <= 0) {
+					break;
+				}
+				remaining -= skipped;
+			}
+			mBufferOffset = offset - mLimit;
+			mStart = mLimit;
+		}
+
+		/*
+		 * Reads the next line, without its line break. Returns false at the
+		 * end of the stream.
+		 */
+		boolean readLine() throws IOException {
+			// The bytes of the line scanned so far, which fill() may move.
+			int scanned = 0;
+			while (true) {
+				for (int i = mStart + scanned; i < mLimit; i++) {
+					if (mBuffer[i] == '\n') {
+						mLineStart = mStart;
+						mLineLimit = i > mStart && mBuffer[i - 1] == '\r' ? i - 1 : i;
+						mStart = i + 1;
+						return true;
+					}
+				}
+				scanned = mLimit - mStart;
+				if (mEof || !fill()) {
+					if (mStart < mLimit) {
+						// The last line has no line break.
+						mLineStart = mStart;
+						mLineLimit = mLimit;
+						mStart = mLimit;
+						return true;
+					}
+					return false;
+				}
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (mStart > 0) {
+				// Keep the partial line at the start of the buffer.
+				System.arraycopy(mBuffer, mStart, mBuffer, 0, mLimit - mStart);
+				mBufferOffset += mStart;
+				mLimit -= mStart;
+				mStart = 0;
+			} else if (mLimit == mBuffer.length) {
+				byte[] grown = new byte[mBuffer.length * 2];
+				System.arraycopy(mBuffer, 0, grown, 0, mLimit);
+				mBuffer = grown;
+			}
+			int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+			if (read <= 0) {
+				mEof = true;
+				return false;
+			}
+			mLimit += read;
+			return true;
+		}
+
+		byte[] getBuffer() {
+			return mBuffer;
+		}
+
+		int getLineStart() {
+			return mLineStart;
+		}
+
+		int getLineLimit() {
+			return mLineLimit;
+		}
+
+		/*
+		 * Returns the file offset after the line break of the current line.
+		 */
+		long getLineEnd() {
+			return mBufferOffset + mStart;
+		}
+
+		void close() throws IOException {
+			mIn.close();
+		}
+	}
+
+	static List<File> parseFiles(String files) {
+		List<File> list = new ArrayList<File>();
+		for (String file : files.split(",")) {
+			if (file.length() > 0) {
+				list.add(new File(file));
+			}
+		}
+		return list;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: MemoryTraceAnalyzer [<options>] stats <trace>[,<trace>...] [<out.csv>]");
+		System.err.println("       MemoryTraceAnalyzer [<options>] diff <baseline>[,...] <candidate>[,...] [<out.csv>]");
+		System.err.println("Options: -threads <n> -max-labels <n> -alpha <p> -min-change <percent>");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws IOException {
+		MemoryTraceAnalyzer analyzer = new MemoryTraceAnalyzer();
+		MemoryTraceComparison comparison = new MemoryTraceComparison();
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-"); i += 2) {
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				String option = args[i];
+				String value = args[i + 1];
+				if ("-threads".equals(option)) {
+					analyzer.setThreads(Integer.parseInt(value));
+				} else if ("-max-labels".equals(option)) {
+					analyzer.setMaxLabels(Integer.parseInt(value));
+				} else if ("-alpha".equals(option)) {
+					comparison.setAlpha(Double.parseDouble(value));
+				} else if ("-min-change".equals(option)) {
+					comparison.setMinChange(Double.parseDouble(value) / 100);
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+		if (i >= args.length) {
+			usage();
+		}
+		String command = args[i++];
+		int inputs = "diff".equals(command) ? 2 : 1;
+		if (!"stats".equals(command) && !"diff".equals(command)
+				|| args.length - i < inputs || args.length - i > inputs + 1) {
+			usage();
+		}
+		PrintStream out = args.length - i > inputs
+				? new PrintStream(new BufferedOutputStream(new FileOutputStream(args[i + inputs])))
+				: System.out;
+		try {
+			long startTime = System.currentTimeMillis();
+			Run run = analyzer.analyze(parseFiles(args[i]));
+			if (inputs == 1) {
+				run.writeCsv(out);
+				System.err.println("Analyzed " + run.getRowCount() + " rows in "
+						+ (System.currentTimeMillis() - startTime) + " ms");
+				return;
+			}
+			Run candidate = analyzer.analyze(parseFiles(args[i + 1]));
+			List<MemoryTraceComparison.Difference> differences = comparison.compare(run, candidate);
+			MemoryTraceComparison.writeCsv(differences, out);
+			int regressions = MemoryTraceComparison.countRegressions(differences);
+			System.err.println("Compared " + run.getRowCount() + " and " + candidate.getRowCount()
+					+ " rows in " + (System.currentTimeMillis() - startTime) + " ms: "
+					+ regressions + " regressions");
+			if (regressions > 0) {
+				out.close();
+				System.exit(1);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+
+/**
+ * Receives the stream of a {@link MemoryTraceSocketWriter}, writes it to
+ * disk in the CSV layout of {@link MemoryTraceCsvWriter} and prints rolling
+ * statistics once a second. Runs on a host:
+ * <pre>
+ * adb forward tcp:7575 tcp:7575
+ * java org.kandroid.memtracer.MemoryTraceCollector [host:]7575 kmemtrace.csv
+ * </pre>
+ *
+ * It grants the writer a window of credits and one more for every frame it
+ * has written out, so a slow disk slows the writer down instead of filling
+ * the collector's memory.
+ */
+public class MemoryTraceCollector {
+
+	private static final int INITIAL_CREDITS = 16;
+	private static final long STATS_INTERVAL_MILLIS = 1000;
+
+	/*
+	 * Serves the payload of one frame at a time to the decoder, and ends
+	 * where the payload ends.
+	 */
+	private static class FrameInputStream extends InputStream {
+		private byte[] mPayload = new byte[0];
+		private int mPosition;
+		private int mLength;
+
+		void setPayload(byte[] payload, int offset, int length) {
+			mPayload = payload;
+			mPosition = offset;
+			mLength = offset + length;
+		}
+
+		@Override
+		public int read() {
+			return mPosition < mLength ? mPayload[mPosition++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (mPosition >= mLength) {
+				return -1;
+			}
+			int count = Math.min(length, mLength - mPosition);
+			System.arraycopy(mPayload, mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+	}
+
+	private final DataInputStream mIn;
+	private final DataOutputStream mOut;
+	private final PrintStream mTraceOut;
+	private final PrintStream mStatsOut;
+	private final FrameInputStream mFrame = new FrameInputStream();
+
+	private MemoryTraceBinaryDecoder mDecoder;
+	private boolean mHeaderWritten;
+	private int mJavaAllocatedColumn = -1;
+	private byte[] mPayload = new byte[4096];
+
+	private long mRows;
+	private long mBytes;
+	private long mDropped;
+	private long mStreams;
+	private long mLastJavaAllocated = -1;
+	private long mLastStatsTime;
+	private long mLastStatsRows;
+	private long mLastStatsBytes;
+
+	/**
+	 * @param in the stream of the writer
+	 * @param out where credits are sent to the writer
+	 * @param traceOut where the rows are written
+	 * @param statsOut where the statistics are printed, or null
+	 */
+	public MemoryTraceCollector(InputStream in, OutputStream out, PrintStream traceOut,
+			PrintStream statsOut) {
+		mIn = new DataInputStream(new BufferedInputStream(in));
+		mOut = new DataOutputStream(out);
+		mTraceOut = traceOut;
+		mStatsOut = statsOut;
+	}
+
+	/**
+	 * Collects until the trace ends or the writer disconnects. Returns the
+	 * number of rows received.
+	 */
+	public long collect() throws IOException {
+		grant(INITIAL_CREDITS);
+		mLastStatsTime = System.currentTimeMillis();
+		try {
+			while (true) {
+				int type;
+				try {
+					type = mIn.readUnsignedByte();
+				} catch (EOFException e) {
+					break;
+				}
+				int length = mIn.readInt();
+				if (length < 0) {
+					throw new IOException("Bad frame length " + length);
+				}
+				if (mPayload.length < length) {
+					mPayload = new byte[length];
+				}
+				mIn.readFully(mPayload, 0, length);
+				mBytes += 5 + length;
+				if (type == MemoryTraceSocketWriter.FRAME_END) {
+					mDropped = readLong(mPayload, 0);
+					break;
+				}
+				if (type == MemoryTraceSocketWriter.FRAME_HEADER) {
+					startStream(length);
+				} else if (type == MemoryTraceSocketWriter.FRAME_BLOCK) {
+					writeRows(length);
+				} else {
+					throw new IOException("Bad frame type " + type);
+				}
+				mTraceOut.flush();
+				grant(1);
+				printStatsIfDue();
+			}
+		} finally {
+			mTraceOut.flush();
+			printStats(System.currentTimeMillis());
+		}
+		return mRows;
+	}
+
+	public long getDroppedCount() {
+		return mDropped;
+	}
+
+	private void startStream(int length) throws IOException {
+		mDropped = readLong(mPayload, 0);
+		mFrame.setPayload(mPayload, 8, length - 8);
+		mDecoder = new MemoryTraceBinaryDecoder(mFrame);
+		mStreams++;
+		String[] keys = mDecoder.getMetricKeys();
+		mJavaAllocatedColumn = -1;
+		for (int i = 0; i < keys.length; i++) {
+			if (MemoryTracer.METRIC_KEY_JAVA_ALLOCATED.equals(keys[i])) {
+				mJavaAllocatedColumn = i;
+			}
+		}
+		// A restarted stream has the same keys; it only starts new labels.
+		if (!mHeaderWritten) {
+			mTraceOut.println(mDecoder.getTraceLabel());
+			for (String key : keys) {
+				mTraceOut.print(key);
+				mTraceOut.print(',');
+			}
+			mTraceOut.println();
+			mHeaderWritten = true;
+		}
+	}
+
+	private void writeRows(int length) throws IOException {
+		if (mDecoder == null) {
+			throw new IOException("Block before the first header");
+		}
+		mFrame.setPayload(mPayload, 0, length);
+		String[] keys = mDecoder.getMetricKeys();
+		while (mDecoder.next()) {
+			long[] values = mDecoder.getValues();
+			for (int column = 0; column < keys.length; column++) {
+				if (MemoryTracer.METRIC_KEY_LABEL.equals(keys[column])) {
+					mTraceOut.print(mDecoder.getLabel());
+				} else if (mDecoder.isPresent(column)) {
+					mTraceOut.print(values[column]);
+				} else {
+					mTraceOut.print("null");
+				}
+				mTraceOut.print(',');
+			}
+			mTraceOut.println();
+			if (mJavaAllocatedColumn >= 0 && mDecoder.isPresent(mJavaAllocatedColumn)) {
+				mLastJavaAllocated = values[mJavaAllocatedColumn];
+			}
+			mRows++;
+		}
+		if (mDecoder.isTruncated()) {
+			throw new IOException("Corrupt block");
+		}
+	}
+
+	private void grant(int credits) throws IOException {
+		mOut.writeInt(credits);
+		mOut.flush();
+	}
+
+	private void printStatsIfDue() {
+		long now = System.currentTimeMillis();
+		if (now - mLastStatsTime >= STATS_INTERVAL_MILLIS) {
+			printStats(now);
+		}
+	}
+
+	private void printStats(long now) {
+		if (mStatsOut == null) {
+			return;
+		}
+		long elapsed = Math.max(1, now - mLastStatsTime);
+		mStatsOut.println("rows=" + mRows
+				+ " rows/s=" + (mRows - mLastStatsRows) * 1000 / elapsed
+				+ " KB/s=" + (mBytes - mLastStatsBytes) * 1000 / 1024 / elapsed
+				+ " dropped=" + mDropped
+				+ " restarts=" + Math.max(0, mStreams - 1)
+				+ (mLastJavaAllocated >= 0 ? " java_allocated=" + mLastJavaAllocated : ""));
+		mLastStatsTime = now;
+		mLastStatsRows = mRows;
+		mLastStatsBytes = mBytes;
+	}
+
+	private static long readLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: MemoryTraceCollector [<host>:]<port> [<trace.csv>]");
+			System.exit(2);
+		}
+		String host = "127.0.0.1";
+		String port = args[0];
+		int colon = port.lastIndexOf(':');
+		if (colon >= 0) {
+			host = port.substring(0, colon);
+			port = port.substring(colon + 1);
+		}
+		Socket socket = new Socket(host, Integer.parseInt(port));
+		PrintStream traceOut = args.length > 1
+				? new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1])))
+				: System.out;
+		try {
+			MemoryTraceCollector collector = new MemoryTraceCollector(socket.getInputStream(),
+					socket.getOutputStream(), traceOut, System.err);
+			long rows = collector.collect();
+			System.err.println("Collected " + rows + " rows, " + collector.getDroppedCount()
+					+ " dropped by the writer");
+		} finally {
+			socket.close();
+			if (traceOut != System.out) {
+				traceOut.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package org.kandroid.memtracer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares two runs summarized by {@link MemoryTraceAnalyzer}, label by
+ * label and metric by metric, with Welch's t-test on the means.
+ *
+ * A difference is significant if its p-value is below alpha divided by the
+ * number of comparisons (the Bonferroni correction, as a report compares
+ * hundreds of metrics) and the mean changed by at least the minimum change,
+ * so that a tiny shift over millions of snapshots is not reported. A
+ * significant increase is a regression, except for the free heap metrics,
+ * where a decrease is.
+ *
+ * Snapshots of one run are not independent samples, so the p-values are
+ * a screen rather than exact probabilities.
+ */
+public class MemoryTraceComparison {
+
+	public static final String VERDICT_REGRESSION = "regression";
+	public static final String VERDICT_IMPROVEMENT = "improvement";
+	public static final String VERDICT_UNCHANGED = "unchanged";
+	/**
+	 * The verdict when either run has fewer than two values.
+	 */
+	public static final String VERDICT_INSUFFICIENT = "insufficient";
+
+	private static final double DEFAULT_ALPHA = 0.01;
+	private static final double DEFAULT_MIN_CHANGE = 0.05;
+
+	/**
+	 * The comparison of one metric of one label.
+	 */
+	public static class Difference {
+		private final String mLabel;
+		private final String mKey;
+		private final MemoryTraceSketch mBaseline;
+		private final MemoryTraceSketch mCandidate;
+		private final double mT;
+		private final double mDegreesOfFreedom;
+		private final double mPValue;
+		private String mVerdict;
+
+		Difference(String label, String key, MemoryTraceSketch baseline, MemoryTraceSketch candidate,
+				double t, double degreesOfFreedom, double pValue) {
+			mLabel = label;
+			mKey = key;
+			mBaseline = baseline;
+			mCandidate = candidate;
+			mT = t;
+			mDegreesOfFreedom = degreesOfFreedom;
+			mPValue = pValue;
+		}
+
+		public String getLabel() {
+			return mLabel;
+		}
+
+		public String getKey() {
+			return mKey;
+		}
+
+		public MemoryTraceSketch getBaseline() {
+			return mBaseline;
+		}
+
+		public MemoryTraceSketch getCandidate() {
+			return mCandidate;
+		}
+
+		public double getChange() {
+			return mCandidate.getMean() - mBaseline.getMean();
+		}
+
+		/**
+		 * Returns the change relative to the baseline mean, or infinity if
+		 * the baseline mean is zero and the candidate's is not.
+		 */
+		public double getRelativeChange() {
+			double change = getChange();
+			if (change == 0) {
+				return 0;
+			}
+			double baseline = Math.abs(mBaseline.getMean());
+			return baseline > 0 ? change / baseline
+					: change > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+		}
+
+		public double getT() {
+			return mT;
+		}
+
+		public double getDegreesOfFreedom() {
+			return mDegreesOfFreedom;
+		}
+
+		public double getPValue() {
+			return mPValue;
+		}
+
+		/**
+		 * Returns one of the <code>VERDICT_*</code> values.
+		 */
+		public String getVerdict() {
+			return mVerdict;
+		}
+	}
+
+	private double mAlpha = DEFAULT_ALPHA;
+	private double mMinChange = DEFAULT_MIN_CHANGE;
+
+	/**
+	 * Sets the significance level of the whole report, before the
+	 * Bonferroni correction.
+	 */
+	public void setAlpha(double alpha) {
+		mAlpha = alpha;
+	}
+
+	/**
+	 * Sets the smallest change of the mean, relative to the baseline, that
+	 * counts as a regression or improvement.
+	 */
+	public void setMinChange(double minChange) {
+		mMinChange = minChange;
+	}
+
+	/**
+	 * Compares every metric of every label the runs have in common. The
+	 * timestamps are not compared.
+	 */
+	public List<Difference> compare(MemoryTraceAnalyzer.Run baseline, MemoryTraceAnalyzer.Run candidate) {
+		List<Difference> differences = new ArrayList<Difference>();
+		int tests = 0;
+		for (String label : baseline.getLabels()) {
+			for (String key : baseline.getKeys(label)) {
+				if (MemoryTracer.METRIC_KEY_TIMESTAMP.equals(key)) {
+					continue;
+				}
+				MemoryTraceSketch candidateSketch = candidate.getSketch(label, key);
+				if (candidateSketch == null) {
+					continue;
+				}
+				Difference difference = test(label, key, baseline.getSketch(label, key), candidateSketch);
+				if (!Double.isNaN(difference.mPValue)) {
+					tests++;
+				}
+				differences.add(difference);
+			}
+		}
+		double threshold = mAlpha / Math.max(1, tests);
+		for (Difference difference : differences) {
+			difference.mVerdict = verdictOf(difference, threshold);
+		}
+		return differences;
+	}
+
+	private String verdictOf(Difference difference, double threshold) {
+		if (Double.isNaN(difference.mPValue)) {
+			return VERDICT_INSUFFICIENT;
+		}
+		double relativeChange = difference.getRelativeChange();
+		if (difference.mPValue >= threshold || Math.abs(relativeChange) < mMinChange) {
+			return VERDICT_UNCHANGED;
+		}
+		boolean increased = relativeChange > 0;
+		if (isLowerWorse(difference.mKey)) {
+			increased = !increased;
+		}
+		return increased ? VERDICT_REGRESSION : VERDICT_IMPROVEMENT;
+	}
+
+	private static boolean isLowerWorse(String key) {
+		return MemoryTracer.METRIC_KEY_JAVA_FREE.equals(key)
+				|| MemoryTracer.METRIC_KEY_NATIVE_FREE.equals(key);
+	}
+
+	static Difference test(String label, String key, MemoryTraceSketch baseline,
+			MemoryTraceSketch candidate) {
+		long n1 = baseline.getCount();
+		long n2 = candidate.getCount();
+		if (n1 < 2 || n2 < 2) {
+			return new Difference(label, key, baseline, candidate, Double.NaN, Double.NaN, Double.NaN);
+		}
+		double v1 = baseline.getVariance() / n1;
+		double v2 = candidate.getVariance() / n2;
+		double change = candidate.getMean() - baseline.getMean();
+		double error = v1 + v2;
+		if (error == 0) {
+			// Both runs are constant: either the same or certainly different.
+			double p = change == 0 ? 1 : 0;
+			double t = change == 0 ? 0 : change > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+			return new Difference(label, key, baseline, candidate, t, n1 + n2 - 2, p);
+		}
+		double t = change / Math.sqrt(error);
+		// The Welch-Satterthwaite approximation.
+		double df = error * error / (v1 * v1 / (n1 - 1) + v2 * v2 / (n2 - 1));
+		double p = regularizedIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+		return new Difference(label, key, baseline, candidate, t, df, Math.max(0, Math.min(1, p)));
+	}
+
+	/**
+	 * Returns the number of regressions.
+	 */
+	public static int countRegressions(List<Difference> differences) {
+		int count = 0;
+		for (Difference difference : differences) {
+			if (VERDICT_REGRESSION.equals(difference.mVerdict)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Writes one line per comparison, regressions first.
+	 */
+	public static void writeCsv(List<Difference> differences, PrintStream out) {
+		out.println("label,metric,verdict,baseline_count,baseline_mean,candidate_count,candidate_mean,"
+				+ "change,change_percent,baseline_p95,candidate_p95,t,df,p_value");
+		String[] order = { VERDICT_REGRESSION, VERDICT_IMPROVEMENT, VERDICT_UNCHANGED, VERDICT_INSUFFICIENT };
+		for (String verdict : order) {
+			for (Difference difference : differences) {
+				if (!verdict.equals(difference.mVerdict)) {
+					continue;
+				}
+				MemoryTraceSketch baseline = difference.mBaseline;
+				MemoryTraceSketch candidate = difference.mCandidate;
+				out.println(difference.mLabel + "," + difference.mKey + "," + verdict
+						+ "," + baseline.getCount()
+						+ "," + baseline.getMean()
+						+ "," + candidate.getCount()
+						+ "," + candidate.getMean()
+						+ "," + difference.getChange()
+						+ "," + difference.getRelativeChange() * 100
+						+ "," + baseline.getQuantile(0.95)
+						+ "," + candidate.getQuantile(0.95)
+						+ "," + difference.mT
+						+ "," + difference.mDegreesOfFreedom
+						+ "," + difference.mPValue);
+			}
+		}
+		out.flush();
+	}
+
+	/*
+	 * The regularized incomplete beta function I_x(a, b), from its continued
+	 * fraction (Numerical Recipes, 6.4).
+	 */
+	static double regularizedIncompleteBeta(double x, double a, double b) {
+		if (x <= 0) {
+			return 0;
+		}
+		if (x >= 1) {
+			return 1;
+		}
+		double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b)
+				+ a * Math.log(x) + b * Math.log(1 - x));
+		// The continued fraction converges quickly on this side.
+		if (x < (a + 1) / (a + b + 2)) {
+			return front * betaContinuedFraction(x, a, b) / a;
+		}
+		return 1 - front * betaContinuedFraction(1 - x, b, a) / b;
+	}
+
+	private static double betaContinuedFraction(double x, double a, double b) {
+		final double tiny = 1e-300;
+		double c = 1;
+		double d = 1 - (a + b) * x / (a + 1);
+		if (Math.abs(d) < tiny) {
+			d = tiny;
+		}
+		d = 1 / d;
+		double result = d;
+		for (int m = 1; m <= 300; m++) {
+			int m2 = 2 * m;
+			double numerator = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+			d = 1 + numerator * d;
+			if (Math.abs(d) < tiny) {
+				d = tiny;
+			}
+			c = 1 + numerator / c;
+			if (Math.abs(c) < tiny) {
+				c = tiny;
+			}
+			d = 1 / d;
+			result *= d * c;
+			numerator = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+			d = 1 + numerator * d;
+			if (Math.abs(d) < tiny) {
+				d = tiny;
+			}
+			c = 1 + numerator / c;
+			if (Math.abs(c) < tiny) {
+				c = tiny;
+			}
+			d = 1 / d;
+			double delta = d * c;
+			result *= delta;
+			if (Math.abs(delta - 1) < 1e-12) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	// The Lanczos approximation of ln(gamma(x)), for x > 0.
+	private static double logGamma(double x) {
+		final double[] coefficients = {
+			76.18009172947146, -86.50532032941677, 24.01409824083091,
+			-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5,
+		};
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		for (double coefficient : coefficients) {
+			series += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+}
@@ -0,0 +1,44 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Converts a binary trace to the CSV layout of {@link MemoryTraceCsvWriter},
+ * through a {@link MemoryTraceBinaryDecoder}. Runs on a host:
+ * <pre>
+ * java org.kandroid.memtracer.MemoryTraceDecode kmemtrace.kmt [kmemtrace.csv]
+ * </pre>
+ */
+public class MemoryTraceDecode {
+
+	private MemoryTraceDecode() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: MemoryTraceDecode <trace.kmt> [<trace.csv>]");
+			System.exit(2);
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+		PrintStream out = args.length > 1
+				? new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1])))
+				: System.out;
+		try {
+			MemoryTraceBinaryDecoder decoder = new MemoryTraceBinaryDecoder(in);
+			long rows = decoder.writeCsv(out);
+			System.err.println("Decoded " + rows + " rows"
+					+ (decoder.isTruncated() ? ", trace is truncated" : ""));
+		} finally {
+			in.close();
+			if (out != System.out) {
+				out.close();
+			}
+		}
+	}
+}
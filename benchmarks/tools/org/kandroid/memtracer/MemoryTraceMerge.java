@@ -0,0 +1,49 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Merges what the shared file of an application holds into one trace
+ * ordered by timestamp, through a {@link MemoryTraceSharedReader}. Runs on a
+ * host:
+ * <pre>
+ * java org.kandroid.memtracer.MemoryTraceMerge kmemtrace_shared.kms [kmemtrace_processes.csv]
+ * </pre>
+ */
+public class MemoryTraceMerge {
+
+	private MemoryTraceMerge() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: MemoryTraceMerge <shared.kms> [<merged.csv>]");
+			System.exit(2);
+		}
+		String[] keys = new String[MemoryTraceMetric.count() + 1];
+		keys[0] = MemoryTracer.METRIC_KEY_LABEL;
+		for (int i = 0; i < MemoryTraceMetric.count(); i++) {
+			keys[i + 1] = MemoryTraceMetric.get(i).getKey();
+		}
+		MemoryTraceSharedReader reader = new MemoryTraceSharedReader(new File(args[0]), keys);
+		PrintStream out = args.length > 1
+				? new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1])))
+				: System.out;
+		try {
+			reader.poll();
+			reader.writeHeader(out, args[0]);
+			int rows = reader.writeRows(out, Long.MAX_VALUE);
+			System.err.println("Merged " + rows + " rows"
+					+ (reader.getLostCount() > 0 ? ", " + reader.getLostCount() + " overwritten" : ""));
+		} finally {
+			reader.close();
+			if (out != System.out) {
+				out.close();
+			}
+		}
+	}
+}
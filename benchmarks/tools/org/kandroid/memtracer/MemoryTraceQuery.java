@@ -0,0 +1,70 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Prints the rows of a binary trace that match a label and a time range, in
+ * the CSV layout of {@link MemoryTraceCsvWriter}, through a
+ * {@link MemoryTraceStore}. The time range is in seconds from the first
+ * snapshot. Runs on a host:
+ * <pre>
+ * java org.kandroid.memtracer.MemoryTraceQuery kmemtrace.kmt CheckoutActivity-OnResume 2400 3600
+ * </pre>
+ */
+public class MemoryTraceQuery {
+
+	private MemoryTraceQuery() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 4) {
+			System.err.println("Usage: MemoryTraceQuery <trace.kmt> [<label>|-] [<from_sec> [<to_sec>]]");
+			System.exit(2);
+		}
+		MemoryTraceStore store = MemoryTraceStore.open(new File(args[0]));
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+		try {
+			String label = args.length > 1 && !"-".equals(args[1]) ? args[1] : null;
+			long from = Long.MIN_VALUE;
+			long to = Long.MAX_VALUE;
+			long first = store.getFirstTimestamp();
+			if (args.length > 2) {
+				from = first + (long) (Double.parseDouble(args[2]) * 1000000000L);
+			}
+			if (args.length > 3) {
+				to = first + (long) (Double.parseDouble(args[3]) * 1000000000L);
+			}
+			String[] keys = store.getMetricKeys();
+			out.println(store.getTraceLabel());
+			for (String key : keys) {
+				out.print(key);
+				out.print(',');
+			}
+			out.println();
+			long rows = 0;
+			MemoryTraceStore.Cursor cursor = store.query(label, from, to);
+			while (cursor.next()) {
+				long[] values = cursor.getValues();
+				for (int column = 0; column < keys.length; column++) {
+					if (MemoryTracer.METRIC_KEY_LABEL.equals(keys[column])) {
+						out.print(cursor.getLabel());
+					} else if (cursor.isPresent(column)) {
+						out.print(values[column]);
+					} else {
+						out.print("null");
+					}
+					out.print(',');
+				}
+				out.println();
+				rows++;
+			}
+			out.flush();
+			System.err.println("Matched " + rows + " rows");
+		} finally {
+			store.close();
+		}
+	}
+}
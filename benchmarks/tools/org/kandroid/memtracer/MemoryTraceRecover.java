@@ -0,0 +1,46 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Converts a trace written by {@link MemoryTraceMappedWriter} to the CSV
+ * layout of {@link MemoryTraceCsvWriter}, through a
+ * {@link MemoryTraceMappedReader}, also one left behind by a process that
+ * died while tracing. Runs on a host:
+ * <pre>
+ * java org.kandroid.memtracer.MemoryTraceRecover kmemtrace.kmm [kmemtrace.csv]
+ * </pre>
+ */
+public class MemoryTraceRecover {
+
+	private MemoryTraceRecover() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: MemoryTraceRecover <trace.kmm> [<trace.csv>]");
+			System.exit(2);
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+		PrintStream out = args.length > 1
+				? new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1])))
+				: System.out;
+		try {
+			MemoryTraceMappedReader reader = new MemoryTraceMappedReader(in);
+			long rows = reader.writeCsv(out);
+			System.err.println("Recovered " + rows + " rows"
+					+ (reader.isTruncated() ? ", discarded a torn record" : ""));
+		} finally {
+			in.close();
+			if (out != System.out) {
+				out.close();
+			}
+		}
+	}
+}
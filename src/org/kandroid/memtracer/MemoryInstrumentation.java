@@ -1,5 +1,17 @@
 package org.kandroid.memtracer;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.app.Activity;
 import android.app.Application;
 import android.content.Intent;
@@ -12,6 +24,91 @@ public class MemoryInstrumentation extends InstrumentationTestRunner {
 	
     private static final String OPTION_MAIN_ACTIVITY_CLASS = "activity";
     private static final String OPTION_DEBUG = "debug";
+    private static final String OPTION_SNAPSHOT_MODE = "snapshot_mode";
+    private static final String OPTION_FULL_SNAPSHOT_INTERVAL = "full_snapshot_interval";
+    private static final String OPTION_FULL_SNAPSHOT_CALLBACKS = "full_snapshot_callbacks";
+    private static final String OPTION_ASYNC_WRITER = "async_writer";
+    private static final String OPTION_TRACE_FORMAT = "trace_format";
+    private static final String OPTION_METRICS = "metrics";
+    private static final String OPTION_SAMPLE_PERIOD = "sample_period";
+    private static final String OPTION_TRACK_ACTIVITIES = "track_activities";
+    private static final String OPTION_SEGMENT_SIZE = "segment_size";
+    private static final String OPTION_SEGMENT_PERIOD = "segment_period";
+    private static final String OPTION_RETAIN_SIZE = "retain_size";
+    private static final String OPTION_RETAIN_PERIOD = "retain_period";
+    private static final String OPTION_COMPRESS_SEGMENTS = "compress_segments";
+    private static final String OPTION_THREAD_ALLOCATIONS = "thread_allocations";
+    private static final String OPTION_STREAM_PORT = "stream_port";
+    private static final String OPTION_TRACE_INDEX = "trace_index";
+    private static final String OPTION_BUDGET = "budget";
+    private static final String OPTION_BUDGET_BASELINE = "budget_baseline";
+    private static final String OPTION_BUDGET_ABORT = "budget_abort";
+    private static final String OPTION_HEAP_DUMP_THRESHOLD = "heap_dump_threshold";
+    private static final String OPTION_HEAP_DUMP_GROWTH = "heap_dump_growth";
+    private static final String OPTION_HEAP_DUMP_GROWTH_WINDOW = "heap_dump_growth_window";
+    private static final String OPTION_HEAP_DUMP_ON_LEAK = "heap_dump_on_leak";
+    private static final String OPTION_HEAP_DUMP_COOLDOWN = "heap_dump_cooldown";
+    private static final String OPTION_HEAP_DUMP_MAX = "heap_dump_max";
+    private static final String OPTION_HEAP_DUMP_QUOTA = "heap_dump_quota";
+    private static final String OPTION_STARTUP = "startup";
+    private static final String OPTION_OVERHEAD = "overhead";
+    private static final String OPTION_CALLBACKS = "callbacks";
+
+    private static final String SNAPSHOT_MODE_LIGHT = "light";
+    private static final String OVERHEAD_TRACK = "track";
+    private static final String OVERHEAD_SUBTRACT = "subtract";
+    private static final String TRACE_FORMAT_BINARY = "binary";
+    private static final String TRACE_FORMAT_MAPPED = "mapped";
+    private static final String TRACE_FORMAT_SOCKET = "socket";
+    private static final String TRACE_FORMAT_SHARED = "shared";
+    private static final long MERGE_PERIOD_MILLIS = 500;
+    private static final long MERGE_DELAY_MILLIS = 1000;
+    private static final long STARTUP_RESUME_TIMEOUT_MILLIS = 10000;
+    private static final String DEFAULT_FULL_SNAPSHOT_CALLBACKS = "OnCreate,OnDestroy";
+    private static final int MAX_TRACKED_THREADS = 64;
+    private static final int DEFAULT_HEAP_DUMP_GROWTH_WINDOW = 10;
+
+    /**
+     * The status code of the results sent when a destroyed activity is still
+     * reachable.
+     */
+    public static final int REPORT_VALUE_LEAK_SUSPECT = 10;
+    public static final String REPORT_KEY_LEAK_SUSPECT_CLASS = "leak_suspect_class";
+    public static final String REPORT_KEY_LEAK_SUSPECT_ID = "leak_suspect_id";
+    public static final String REPORT_KEY_JAVA_ALLOCATED_DELTA = "java_allocated_delta";
+    public static final String REPORT_KEY_NATIVE_ALLOCATED_DELTA = "native_allocated_delta";
+    /**
+     * The status code of the results that rank the threads by the bytes they
+     * allocated since the previous full snapshot.
+     */
+    public static final int REPORT_VALUE_THREAD_ALLOCATIONS = 11;
+    public static final String REPORT_KEY_INTERVAL_LABEL = "interval_label";
+    /**
+     * The status code of the results sent when a snapshot first exceeds a
+     * rule of the memory budget.
+     */
+    public static final int REPORT_VALUE_BUDGET_EXCEEDED = 12;
+    public static final String REPORT_KEY_BUDGET_LABEL = "budget_label";
+    public static final String REPORT_KEY_BUDGET_METRIC = "budget_metric";
+    public static final String REPORT_KEY_BUDGET_VALUE = "budget_value";
+    public static final String REPORT_KEY_BUDGET_LIMIT = "budget_limit";
+    /**
+     * Set in the final results if the budget was exceeded.
+     */
+    public static final String REPORT_KEY_BUDGET_EXCEEDED = "budget_exceeded";
+    /**
+     * The status code of the results sent when a heap dump is complete.
+     */
+    public static final int REPORT_VALUE_HEAP_DUMP = 13;
+    public static final String REPORT_KEY_HEAP_DUMP_REASON = "heap_dump_reason";
+    public static final String REPORT_KEY_HEAP_DUMP_FILE = "heap_dump_file";
+    public static final String REPORT_KEY_HEAP_DUMP_TIMESTAMP = "heap_dump_timestamp";
+    /**
+     * The status code of the startup timeline, sent once the first activity
+     * has resumed and the application is idle. See
+     * {@link MemoryTraceStartup#toBundle()}.
+     */
+    public static final int REPORT_VALUE_STARTUP = 14;
 
 	private MemoryTracer mMemoryTracer;
 
@@ -19,6 +116,36 @@ public class MemoryInstrumentation extends InstrumentationTestRunner {
 	
 	private boolean mDebug;
 	
+	private boolean mAsyncWriter;
+	
+	private String mTraceFormat;
+	
+	private String[] mMetricKeys;
+	
+	private Bundle mArguments;
+	
+	private MemoryTraceCallbacks mCallbacks;
+	
+	private MemoryTraceDebugLog mDebugLog;
+	
+	private final MemoryTraceSnapshot mSnapshot = new MemoryTraceSnapshot();
+	
+	private MemoryTraceActivityTracker mActivityTracker;
+	
+	private int mTopThreadCount;
+	
+	private boolean mAbortOnBudget;
+	
+	private final AtomicBoolean mAborted = new AtomicBoolean();
+	
+	private volatile MemoryTraceStartup mStartup;
+	
+	private final CountDownLatch mFirstResume = new CountDownLatch(1);
+	
+	private MemoryTraceSharedReader mSharedReader;
+	
+	private PrintStream mMergedOut;
+	
 	public MemoryInstrumentation() {
 		
 	}
@@ -28,13 +155,541 @@ public class MemoryInstrumentation extends InstrumentationTestRunner {
 		Log.d(TAG, "onCreate()");
 		mMainActivityClass = arguments.getString(OPTION_MAIN_ACTIVITY_CLASS);
 		mDebug = arguments.getBoolean(OPTION_DEBUG, false);
+		mTraceFormat = arguments.getString(OPTION_TRACE_FORMAT);
+		mArguments = arguments;
+		// Snapshots queued for a background thread would be lost in a crash,
+		// which the mapped format is meant to survive. The socket writer has
+		// its own sender thread, and the shared one writes to memory only.
+		String asyncWriter = arguments.getString(OPTION_ASYNC_WRITER);
+		mAsyncWriter = TRACE_FORMAT_MAPPED.equals(mTraceFormat) || TRACE_FORMAT_SOCKET.equals(mTraceFormat)
+				|| TRACE_FORMAT_SHARED.equals(mTraceFormat)
+				? "true".equals(asyncWriter) : !"false".equals(asyncWriter);
+		mMetricKeys = parseMetricKeys(arguments.getString(OPTION_METRICS));
 		mMemoryTracer = createMemoryTracer();
-		mMemoryTracer.startTracing(getTargetContext().getPackageName());
+		mCallbacks = new MemoryTraceCallbacks(mMemoryTracer);
+		configureCallbacks(arguments);
+		configureSnapshotMode(arguments);
+		configureOverhead(arguments.getString(OPTION_OVERHEAD));
+		configureThreadAllocations(arguments.getString(OPTION_THREAD_ALLOCATIONS));
+		configureBudget(arguments);
+		configureHeapDumps(arguments);
+		if (mDebug) {
+			mDebugLog = new MemoryTraceDebugLog(TAG);
+			mDebugLog.start();
+		}
+		if ("true".equals(arguments.getString(OPTION_STARTUP))) {
+			// Starting to trace would collect and open the trace in the middle
+			// of the startup, so only record a timeline until it is over.
+			mStartup = new MemoryTraceStartup();
+			mStartup.mark("Instrumentation-OnCreate", null);
+		} else {
+			startTracing(arguments);
+		}
 		super.onCreate(arguments);
 	}
 	
+	private void startTracing(Bundle arguments) {
+		mMemoryTracer.startTracing(getTargetContext().getPackageName());
+		if (TRACE_FORMAT_SHARED.equals(mTraceFormat)) {
+			// The writer of this process has laid out the shared file by now.
+			startMerging();
+		}
+		startSampling(arguments.getString(OPTION_SAMPLE_PERIOD));
+		if ("true".equals(arguments.getString(OPTION_TRACK_ACTIVITIES))) {
+			mActivityTracker = createActivityTracker();
+			mActivityTracker.start();
+		}
+	}
+	
+	/*
+	 * Starts the tracer deferred by the startup mode and reports the
+	 * startup timeline.
+	 */
+	private void finishStartup() {
+		MemoryTraceStartup startup = mStartup;
+		if (startup == null || startup.isStopped()) {
+			return;
+		}
+		startTracing(mArguments);
+		// Callbacks go to the timeline until the tracer is ready.
+		startup.stop();
+		Bundle results = startup.toBundle();
+		results.putString(REPORT_KEY_STREAMRESULT, startup.toString());
+		sendStatus(REPORT_VALUE_STARTUP, results);
+	}
+	
+	/*
+	 * Merges the snapshots that the processes of the application write to
+	 * the shared file, this one included, into one trace.
+	 */
+	private void startMerging() {
+		File sharedFile = MemoryTraceFiles.getTraceFile(MemoryTraceSharedFile.DEFAULT_FILE_NAME);
+		File mergedFile = MemoryTraceFiles.getTraceFile(MemoryTraceSharedReader.DEFAULT_MERGED_FILE_NAME);
+		if (sharedFile == null || mergedFile == null) {
+			return;
+		}
+		try {
+			mSharedReader = new MemoryTraceSharedReader(sharedFile,
+					mMetricKeys != null ? mMetricKeys : MemoryTraceCsvWriter.DEFAULT_METRIC_KEYS);
+			mMergedOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(mergedFile)));
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to merge the shared trace file", e);
+			closeSharedReader();
+			return;
+		}
+		mSharedReader.skipExisting();
+		mSharedReader.writeHeader(mMergedOut, getTargetContext().getPackageName());
+		mSharedReader.startMerging(mMergedOut, MERGE_PERIOD_MILLIS, MERGE_DELAY_MILLIS);
+	}
+	
+	private void stopMerging() {
+		if (mSharedReader != null) {
+			mSharedReader.stopMerging(mMergedOut);
+			closeSharedReader();
+		}
+	}
+	
+	private void closeSharedReader() {
+		if (mMergedOut != null) {
+			mMergedOut.close();
+			mMergedOut = null;
+		}
+		if (mSharedReader != null) {
+			try {
+				mSharedReader.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to close the shared trace file", e);
+			}
+			mSharedReader = null;
+		}
+	}
+	
+	private void markStartup(String label) {
+		MemoryTraceStartup startup = mStartup;
+		if (startup != null) {
+			startup.mark(label, null);
+		}
+	}
+	
 	protected MemoryTracer createMemoryTracer() {
-		return new MemoryTracer(new MemoryTraceCsvWriter());
+		MemoryTracer.ResultsWriter writer;
+		if (TRACE_FORMAT_BINARY.equals(mTraceFormat)) {
+			MemoryTraceBinaryWriter binaryWriter = mMetricKeys != null
+					? new MemoryTraceBinaryWriter(mMetricKeys) : new MemoryTraceBinaryWriter();
+			if (isSegmented()) {
+				binaryWriter.setSegments(configureSegments(MemoryTraceBinaryWriter.createSegments()));
+			} else {
+				binaryWriter.setIndexed(mArguments != null
+						&& "true".equals(mArguments.getString(OPTION_TRACE_INDEX)));
+			}
+			writer = binaryWriter;
+		} else if (TRACE_FORMAT_SOCKET.equals(mTraceFormat)) {
+			writer = new MemoryTraceSocketWriter(
+					mMetricKeys != null ? mMetricKeys : MemoryTraceCsvWriter.DEFAULT_METRIC_KEYS,
+					parseStreamPort());
+		} else if (TRACE_FORMAT_SHARED.equals(mTraceFormat)) {
+			writer = mMetricKeys != null
+					? new MemoryTraceSharedWriter(mMetricKeys, null) : new MemoryTraceSharedWriter(null);
+		} else if (TRACE_FORMAT_MAPPED.equals(mTraceFormat)) {
+			writer = mMetricKeys != null
+					? new MemoryTraceMappedWriter(mMetricKeys) : new MemoryTraceMappedWriter();
+		} else {
+			MemoryTraceCsvWriter csvWriter = mMetricKeys != null
+					? new MemoryTraceCsvWriter(mMetricKeys) : new MemoryTraceCsvWriter();
+			csvWriter.setAutoFlush(!mAsyncWriter);
+			if (isSegmented()) {
+				csvWriter.setSegments(configureSegments(MemoryTraceCsvWriter.createSegments()));
+			}
+			writer = csvWriter;
+		}
+		if (mAsyncWriter) {
+			writer = new MemoryTraceAsyncWriter(writer);
+		}
+		return new MemoryTracer(writer);
+	}
+	
+	private boolean isSegmented() {
+		return mArguments != null && (mArguments.getString(OPTION_SEGMENT_SIZE) != null
+				|| mArguments.getString(OPTION_SEGMENT_PERIOD) != null);
+	}
+	
+	/*
+	 * Sizes are in KB and periods in milliseconds, like the metrics and the
+	 * sample period.
+	 */
+	private MemoryTraceSegments configureSegments(MemoryTraceSegments segments) {
+		segments.setMaxSegmentBytes(parseLongOption(OPTION_SEGMENT_SIZE) * 1024);
+		segments.setMaxSegmentMillis(parseLongOption(OPTION_SEGMENT_PERIOD));
+		segments.setMaxTotalBytes(parseLongOption(OPTION_RETAIN_SIZE) * 1024);
+		segments.setMaxAgeMillis(parseLongOption(OPTION_RETAIN_PERIOD));
+		segments.setCompress(!"false".equals(mArguments.getString(OPTION_COMPRESS_SEGMENTS)));
+		return segments;
+	}
+	
+	private int parseStreamPort() {
+		long port = parseLongOption(OPTION_STREAM_PORT);
+		return port > 0 && port <= 0xFFFF ? (int) port : MemoryTraceSocketWriter.DEFAULT_PORT;
+	}
+	
+	private long parseLongOption(String option) {
+		String value = mArguments.getString(option);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring invalid " + option + ": " + value);
+			return 0;
+		}
+	}
+	
+	protected MemoryTraceActivityTracker createActivityTracker() {
+		return new MemoryTraceActivityTracker(new MemoryTraceActivityTracker.Listener() {
+			@Override
+			public void onActivityDestroyed(MemoryTraceActivityTracker.Instance instance) {
+				if (mDebug) Log.d(TAG, "Destroyed " + instance);
+			}
+
+			@Override
+			public void onLeakSuspected(MemoryTraceActivityTracker.Instance instance) {
+				Bundle results = new Bundle();
+				results.putString(REPORT_KEY_LEAK_SUSPECT_CLASS, instance.getClassName());
+				results.putLong(REPORT_KEY_LEAK_SUSPECT_ID, instance.getId());
+				results.putLong(REPORT_KEY_JAVA_ALLOCATED_DELTA, instance.getJavaAllocatedDelta());
+				results.putLong(REPORT_KEY_NATIVE_ALLOCATED_DELTA, instance.getNativeAllocatedDelta());
+				results.putString(REPORT_KEY_STREAMRESULT, "Leak suspect: " + instance + "\n");
+				sendStatus(REPORT_VALUE_LEAK_SUSPECT, results);
+				MemoryTraceHeapDumps heapDumps = mMemoryTracer.getHeapDumps();
+				if (heapDumps != null && "true".equals(mArguments.getString(OPTION_HEAP_DUMP_ON_LEAK))) {
+					heapDumps.trigger(MemoryTraceHeapDumps.REASON_LEAK, instance.toString(), -1);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Parses a comma separated list of metric keys. The label always comes
+	 * first. Only the collectors these metrics need are run.
+	 */
+	private static String[] parseMetricKeys(String metrics) {
+		if (metrics == null) {
+			return null;
+		}
+		List<String> keys = new ArrayList<String>();
+		keys.add(MemoryTracer.METRIC_KEY_LABEL);
+		for (String key : metrics.split(",")) {
+			key = key.trim();
+			if (MemoryTraceMetric.forKey(key) != null) {
+				keys.add(key);
+			} else if (key.length() > 0 && !MemoryTracer.METRIC_KEY_LABEL.equals(key)) {
+				Log.w(TAG, "Ignoring unknown metric " + key);
+			}
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+	
+	private void startSampling(String period) {
+		if (period == null) {
+			return;
+		}
+		try {
+			long periodMillis = Long.parseLong(period.trim());
+			if (periodMillis > 0) {
+				mMemoryTracer.startSampling(periodMillis);
+			}
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring invalid " + OPTION_SAMPLE_PERIOD + ": " + period);
+		}
+	}
+	
+	/*
+	 * Reports the cost of the tracer in every snapshot, and with "subtract"
+	 * also takes it out of the measured times and allocations.
+	 */
+	private void configureOverhead(String overhead) {
+		if (overhead == null) {
+			return;
+		}
+		if (OVERHEAD_TRACK.equals(overhead)) {
+			mMemoryTracer.setOverheadTracking(true, false);
+		} else if (OVERHEAD_SUBTRACT.equals(overhead)) {
+			mMemoryTracer.setOverheadTracking(true, true);
+		} else {
+			Log.w(TAG, "Ignoring invalid " + OPTION_OVERHEAD + ": " + overhead);
+		}
+	}
+	
+	/*
+	 * Tracks the allocations of each thread and reports the given number of
+	 * threads that allocated the most since the previous full snapshot, at
+	 * every full snapshot, and overall when tracing stops.
+	 */
+	private void configureThreadAllocations(String topCount) {
+		if (topCount == null) {
+			return;
+		}
+		try {
+			mTopThreadCount = Integer.parseInt(topCount.trim());
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring invalid " + OPTION_THREAD_ALLOCATIONS + ": " + topCount);
+			return;
+		}
+		if (mTopThreadCount > 0) {
+			mMemoryTracer.setThreadAllocationTracking(MAX_TRACKED_THREADS, mTopThreadCount);
+		}
+	}
+	
+	private void reportThreadAllocations(String label) {
+		MemoryTraceThreadAllocations threadAllocations = mMemoryTracer.getThreadAllocations();
+		if (threadAllocations == null) {
+			return;
+		}
+		Bundle results = MemoryTraceThreadAllocations.toBundle(
+				threadAllocations.rank(mTopThreadCount), true);
+		results.putString(REPORT_KEY_INTERVAL_LABEL, label);
+		sendStatus(REPORT_VALUE_THREAD_ALLOCATIONS, results);
+	}
+	
+	/*
+	 * Loads the budget and its baseline from the assets of the test package,
+	 * so they ship with the test APK.
+	 */
+	private void configureBudget(Bundle arguments) {
+		String budgetAsset = arguments.getString(OPTION_BUDGET);
+		if (budgetAsset == null) {
+			return;
+		}
+		MemoryTraceBudget budget;
+		try {
+			budget = MemoryTraceBudget.parse(openAsset(budgetAsset));
+			String baselineAsset = arguments.getString(OPTION_BUDGET_BASELINE);
+			if (baselineAsset != null) {
+				budget.setBaseline(openAsset(baselineAsset));
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Ignoring the budget " + budgetAsset, e);
+			return;
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Ignoring the budget " + budgetAsset + ": " + e.getMessage());
+			return;
+		}
+		mAbortOnBudget = "true".equals(arguments.getString(OPTION_BUDGET_ABORT));
+		budget.setListener(new MemoryTraceBudget.Listener() {
+			@Override
+			public void onBudgetExceeded(MemoryTraceBudget.Violation violation) {
+				reportBudgetViolation(violation);
+			}
+		});
+		mMemoryTracer.setBudget(budget);
+	}
+	
+	/*
+	 * Dumps the heap when the allocated Java heap reaches a threshold in KB,
+	 * grows faster than a rate in KB per second over a window of snapshots,
+	 * or a destroyed activity is not reclaimed, within the limits.
+	 */
+	private void configureHeapDumps(Bundle arguments) {
+		long threshold = parseLongOption(OPTION_HEAP_DUMP_THRESHOLD);
+		long growth = parseLongOption(OPTION_HEAP_DUMP_GROWTH);
+		boolean onLeak = "true".equals(arguments.getString(OPTION_HEAP_DUMP_ON_LEAK));
+		if (threshold <= 0 && growth <= 0 && !onLeak) {
+			return;
+		}
+		MemoryTraceHeapDumps heapDumps = new MemoryTraceHeapDumps();
+		heapDumps.setThreshold(threshold);
+		if (growth > 0) {
+			long window = parseLongOption(OPTION_HEAP_DUMP_GROWTH_WINDOW);
+			heapDumps.setGrowthLimit(window > 1 ? (int) window : DEFAULT_HEAP_DUMP_GROWTH_WINDOW,
+					growth);
+		}
+		if (arguments.getString(OPTION_HEAP_DUMP_COOLDOWN) != null) {
+			heapDumps.setCooldownMillis(parseLongOption(OPTION_HEAP_DUMP_COOLDOWN));
+		}
+		if (arguments.getString(OPTION_HEAP_DUMP_MAX) != null) {
+			heapDumps.setMaxDumps((int) parseLongOption(OPTION_HEAP_DUMP_MAX));
+		}
+		if (arguments.getString(OPTION_HEAP_DUMP_QUOTA) != null) {
+			heapDumps.setQuotaBytes(parseLongOption(OPTION_HEAP_DUMP_QUOTA) * 1024);
+		}
+		heapDumps.setListener(new MemoryTraceHeapDumps.Listener() {
+			@Override
+			public void onHeapDump(MemoryTraceHeapDumps.Dump dump) {
+				Bundle results = new Bundle();
+				results.putString(REPORT_KEY_HEAP_DUMP_REASON, dump.getReason());
+				results.putString(REPORT_KEY_HEAP_DUMP_FILE, dump.getFile().getAbsolutePath());
+				results.putLong(REPORT_KEY_HEAP_DUMP_TIMESTAMP, dump.getTimestamp());
+				results.putString(REPORT_KEY_STREAMRESULT, "Heap dump: " + dump + "\n");
+				sendStatus(REPORT_VALUE_HEAP_DUMP, results);
+			}
+		});
+		mMemoryTracer.setHeapDumps(heapDumps);
+	}
+	
+	private InputStream openAsset(String name) throws IOException {
+		InputStream in = getContext().getAssets().open(name);
+		if (in == null) {
+			throw new IOException("No asset " + name);
+		}
+		return in;
+	}
+	
+	private void reportBudgetViolation(MemoryTraceBudget.Violation violation) {
+		Bundle results = new Bundle();
+		results.putString(REPORT_KEY_BUDGET_LABEL, violation.getLabel());
+		results.putString(REPORT_KEY_BUDGET_METRIC, violation.getMetric().getKey());
+		results.putLong(REPORT_KEY_BUDGET_VALUE, violation.getValue());
+		results.putLong(REPORT_KEY_BUDGET_LIMIT, violation.getLimit());
+		results.putString(REPORT_KEY_STREAMRESULT, "Memory budget exceeded: " + violation + "\n");
+		sendStatus(REPORT_VALUE_BUDGET_EXCEEDED, results);
+		if (mAbortOnBudget && mAborted.compareAndSet(false, true)) {
+			// Turn away further snapshots now, so that the trace ends here.
+			// This runs while the tracer records a snapshot, which stopping
+			// it would wait for, so stop from another thread.
+			mMemoryTracer.stopRecording();
+			new Thread("MemoryBudgetAbort") {
+				@Override
+				public void run() {
+					finish(Activity.RESULT_CANCELED, new Bundle());
+				}
+			}.start();
+		}
+	}
+	
+	/**
+	 * Adds the violations of the budget, if any, to the final results.
+	 */
+	@Override
+	public void finish(int resultCode, Bundle results) {
+		MemoryTraceBudget budget = mMemoryTracer.getBudget();
+		if (budget != null) {
+			if (mAborted.get()) {
+				// Flush the trace before the process goes away.
+				if (mActivityTracker != null) {
+					mActivityTracker.stop();
+				}
+				mMemoryTracer.stopTracing();
+				stopMerging();
+			} else {
+				mMemoryTracer.drainRecords(Integer.MAX_VALUE, true);
+			}
+			if (budget.isExceeded()) {
+				if (results == null) {
+					results = new Bundle();
+				}
+				StringBuilder report = new StringBuilder();
+				String stream = results.getString(REPORT_KEY_STREAMRESULT);
+				if (stream != null) {
+					report.append(stream);
+				}
+				report.append(mAborted.get() ? "Aborted, memory budget exceeded:\n" : "Memory budget exceeded:\n");
+				for (MemoryTraceBudget.Violation violation : budget.getViolations()) {
+					report.append("  ").append(violation).append('\n');
+				}
+				results.putString(REPORT_KEY_STREAMRESULT, report.toString());
+				results.putBoolean(REPORT_KEY_BUDGET_EXCEEDED, true);
+				results.putBundle(MemoryTracer.METRIC_KEY_BUDGET_VIOLATIONS, budget.toBundle());
+			}
+		}
+		super.finish(resultCode, results);
+	}
+	
+	private void configureSnapshotMode(Bundle arguments) {
+		if (!SNAPSHOT_MODE_LIGHT.equals(arguments.getString(OPTION_SNAPSHOT_MODE))) {
+			mMemoryTracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_FULL);
+			return;
+		}
+		mMemoryTracer.setSnapshotMode(MemoryTracer.SNAPSHOT_MODE_LIGHT);
+		String interval = arguments.getString(OPTION_FULL_SNAPSHOT_INTERVAL);
+		if (interval != null) {
+			try {
+				mMemoryTracer.setFullSnapshotInterval(Integer.parseInt(interval.trim()));
+			} catch (IllegalArgumentException e) {
+				Log.w(TAG, "Ignoring invalid " + OPTION_FULL_SNAPSHOT_INTERVAL + ": " + interval);
+			}
+		}
+		String callbacks = arguments.getString(OPTION_FULL_SNAPSHOT_CALLBACKS);
+		if (callbacks == null) {
+			callbacks = DEFAULT_FULL_SNAPSHOT_CALLBACKS;
+		}
+		for (String name : callbacks.split(",")) {
+			MemoryTraceCallbacks.Callback callback = parseCallback(name);
+			if (callback != null) {
+				mCallbacks.setFull(callback, true);
+			}
+		}
+	}
+	
+	/*
+	 * Takes snapshots only at the listed callbacks, if any are. The activity
+	 * tracker needs the create and destroy callbacks.
+	 */
+	private void configureCallbacks(Bundle arguments) {
+		String callbacks = arguments.getString(OPTION_CALLBACKS);
+		if (callbacks == null) {
+			return;
+		}
+		for (MemoryTraceCallbacks.Callback callback : MemoryTraceCallbacks.Callback.values()) {
+			mCallbacks.setEnabled(callback, false);
+		}
+		for (String name : callbacks.split(",")) {
+			MemoryTraceCallbacks.Callback callback = parseCallback(name);
+			if (callback != null) {
+				mCallbacks.setEnabled(callback, true);
+			}
+		}
+		if ("true".equals(arguments.getString(OPTION_TRACK_ACTIVITIES))) {
+			mCallbacks.setEnabled(MemoryTraceCallbacks.Callback.ON_CREATE, true);
+			mCallbacks.setEnabled(MemoryTraceCallbacks.Callback.ON_DESTROY, true);
+		}
+	}
+	
+	private MemoryTraceCallbacks.Callback parseCallback(String name) {
+		name = name.trim();
+		if (name.length() == 0) {
+			return null;
+		}
+		MemoryTraceCallbacks.Callback callback = MemoryTraceCallbacks.Callback.forName(name);
+		if (callback == null) {
+			Log.w(TAG, "Ignoring unknown callback: " + name);
+		}
+		return callback;
+	}
+	
+	/*
+	 * Takes the snapshot of a lifecycle callback, if the callback is enabled,
+	 * and returns it, or returns null. Every callback goes through here.
+	 */
+	private MemoryTraceSnapshot onCallback(MemoryTraceCallbacks.Labels labels,
+			MemoryTraceCallbacks.Callback callback) {
+		if (!mCallbacks.isEnabled(callback)) {
+			return null;
+		}
+		MemoryTraceStartup startup = mStartup;
+		MemoryTraceDebugLog debugLog = mDebugLog;
+		if (startup != null && startup.mark(labels.get(callback), mSnapshot)) {
+			if (debugLog != null) debugLog.log(mSnapshot);
+			return mSnapshot;
+		}
+		boolean full = mCallbacks.isFull(callback);
+		// Only copy the snapshot out when it is going to be used.
+		boolean copy = debugLog != null || mActivityTracker != null;
+		mMemoryTracer.addSnapshot(labels.getId(callback), full, copy ? mSnapshot : null);
+		if (copy && mSnapshot.getLabelId() < 0) {
+			// Tracing stopped, e.g. aborted over the budget.
+			return null;
+		}
+		if (full || mMemoryTracer.getSnapshotMode() == MemoryTracer.SNAPSHOT_MODE_FULL) {
+			reportThreadAllocations(labels.get(callback));
+		}
+		if (debugLog != null) debugLog.log(mSnapshot);
+		return mSnapshot;
+	}
+	
+	private void markStartupEnd(MemoryTraceCallbacks.Labels labels, MemoryTraceCallbacks.Callback callback) {
+		if (mStartup != null && mCallbacks.isEnabled(callback)) {
+			markStartup(labels.get(callback) + "-End");
+		}
 	}
 	
 	@Override
@@ -43,11 +698,37 @@ public class MemoryInstrumentation extends InstrumentationTestRunner {
 		String mainActivityClass = getMainActivityClass();
 		if (mainActivityClass != null && mainActivityClass.length() > 0) {
 			launchMainActivity(getTargetContext().getPackageName(), mainActivityClass);
+			finishStartup();
 		} else {
+			if (mStartup != null) {
+				finishStartupWhenIdle();
+			}
 			super.onStart();
 		}
 	}
 
+	/*
+	 * Without a main activity to launch, the tests start the application
+	 * while super.onStart() runs them, so the startup is over once the first
+	 * activity has resumed and the application is idle, or, if no activity
+	 * resumes in time, once it is idle.
+	 */
+	private void finishStartupWhenIdle() {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mFirstResume.await(STARTUP_RESUME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				waitForIdleSync();
+				markStartup("WaitForIdleSync-End");
+				finishStartup();
+			}
+		}, TAG + "-Startup").start();
+	}
+
 	protected String getMainActivityClass() {
 		return mMainActivityClass;
 	}
@@ -58,117 +739,109 @@ public class MemoryInstrumentation extends InstrumentationTestRunner {
 		intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 		this.startActivitySync(intent);
 		this.waitForIdleSync();
+		markStartup("WaitForIdleSync-End");
 	}
     
 	@Override
 	public void onDestroy() {
 		if (mDebug) Log.d(TAG, "onDestroy()");
+		if (mActivityTracker != null) {
+			mActivityTracker.stop();
+		}
 		mMemoryTracer.stopTracing();
+		stopMerging();
+		if (mDebugLog != null) {
+			mDebugLog.stop();
+		}
 		super.onDestroy();
 	}
 
 	@Override
 	public void callActivityOnCreate(Activity activity, Bundle icicle) {
-		String label = activity.getLocalClassName()+"-OnCreate";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		MemoryTraceCallbacks.Labels labels = mCallbacks.getLabels(activity);
+		MemoryTraceSnapshot snapshot = onCallback(labels, MemoryTraceCallbacks.Callback.ON_CREATE);
+		if (mActivityTracker != null && snapshot != null) mActivityTracker.onActivityCreated(activity, snapshot);
 		super.callActivityOnCreate(activity, icicle);
+		markStartupEnd(labels, MemoryTraceCallbacks.Callback.ON_CREATE);
 	}
 
 	@Override
 	public void callActivityOnDestroy(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnDestroy";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		MemoryTraceSnapshot snapshot = onCallback(mCallbacks.getLabels(activity),
+				MemoryTraceCallbacks.Callback.ON_DESTROY);
+		if (mActivityTracker != null && snapshot != null) mActivityTracker.onActivityDestroyed(activity, snapshot);
 		super.callActivityOnDestroy(activity);
 	}
 
 	@Override
 	public void callActivityOnNewIntent(Activity activity, Intent intent) {
-		String label = activity.getLocalClassName()+"-OnNewIntent";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_NEW_INTENT);
 		super.callActivityOnNewIntent(activity, intent);
 	}
 
 	@Override
 	public void callActivityOnPause(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnPause";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_PAUSE);
 		super.callActivityOnPause(activity);
 	}
 
 	@Override
 	public void callActivityOnPostCreate(Activity activity, Bundle icicle) {
-		String label = activity.getLocalClassName()+"-OnPostCreate";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_POST_CREATE);
 		super.callActivityOnPostCreate(activity, icicle);
 	}
 
 	@Override
 	public void callActivityOnRestart(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnRestart";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_RESTART);
 		super.callActivityOnRestart(activity);
 	}
 
 	@Override
 	public void callActivityOnRestoreInstanceState(Activity activity, Bundle savedInstanceState) {
-		String label = activity.getLocalClassName()+"-OnRestoreInstanceState";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_RESTORE_INSTANCE_STATE);
 		super.callActivityOnRestoreInstanceState(activity, savedInstanceState);
 	}
 
 	@Override
 	public void callActivityOnResume(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnResume";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		MemoryTraceCallbacks.Labels labels = mCallbacks.getLabels(activity);
+		onCallback(labels, MemoryTraceCallbacks.Callback.ON_RESUME);
 		super.callActivityOnResume(activity);
+		markStartupEnd(labels, MemoryTraceCallbacks.Callback.ON_RESUME);
+		mFirstResume.countDown();
 	}
 
 	@Override
 	public void callActivityOnSaveInstanceState(Activity activity, Bundle outState) {
-		String label = activity.getLocalClassName()+"-OnSaveInstanceState";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_SAVE_INSTANCE_STATE);
 		super.callActivityOnSaveInstanceState(activity, outState);
 	}
 
 	@Override
 	public void callActivityOnStart(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnStart";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_START);
 		super.callActivityOnStart(activity);
 	}
 
 	@Override
 	public void callActivityOnStop(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnStop";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_STOP);
 		super.callActivityOnStop(activity);
 	}
 
 	@Override
 	public void callActivityOnUserLeaving(Activity activity) {
-		String label = activity.getLocalClassName()+"-OnUserLeaving";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		onCallback(mCallbacks.getLabels(activity), MemoryTraceCallbacks.Callback.ON_USER_LEAVING);
 		super.callActivityOnUserLeaving(activity);
 	}
 
 	@Override
 	public void callApplicationOnCreate(Application app) {
-		String label = app.getPackageName()+"-OnAppCreate";
-		Bundle snapshot = mMemoryTracer.addSnapshot(label);
-		if (mDebug) Log.d(TAG, "[" + label + "] " + snapshot.toString());
+		MemoryTraceCallbacks.Labels labels = mCallbacks.getLabels(app);
+		onCallback(labels, MemoryTraceCallbacks.Callback.ON_APP_CREATE);
 		super.callApplicationOnCreate(app);
+		markStartupEnd(labels, MemoryTraceCallbacks.Callback.ON_APP_CREATE);
 	}
 	
 }
@@ -0,0 +1,272 @@
+package org.kandroid.memtracer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.app.Activity;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Pairs the create and destroy callbacks of each activity instance and
+ * checks, after a stabilizing GC on a background thread, whether destroyed
+ * instances are still reachable.
+ *
+ * Instances are only held weakly. The number of live and of destroyed but
+ * not yet checked instances is bounded, so the tracker can stay on for long
+ * monkey runs; instances beyond the bounds are dropped and counted.
+ */
+public class MemoryTraceActivityTracker {
+	private static final String TAG = MemoryTraceActivityTracker.class.getSimpleName();
+
+	public interface Listener {
+		/**
+		 * Called on the instrumentation thread when an instance is destroyed.
+		 */
+		public void onActivityDestroyed(Instance instance);
+		/**
+		 * Called on the tracker thread when a destroyed instance is still
+		 * reachable after the last check.
+		 */
+		public void onLeakSuspected(Instance instance);
+	}
+
+	/**
+	 * One activity instance, from its create to its destroy callback.
+	 */
+	public static class Instance extends WeakReference<Activity> {
+		private final long mId;
+		private final String mClassName;
+		private final long mCreateJavaAllocated;
+		private final long mCreateNativeAllocated;
+		private long mDestroyJavaAllocated;
+		private long mDestroyNativeAllocated;
+		private long mDestroyTime;
+		private int mChecks;
+
+		Instance(Activity activity, long id, MemoryTraceSnapshot snapshot) {
+			super(activity);
+			mId = id;
+			mClassName = activity.getClass().getName();
+			mCreateJavaAllocated = snapshot.get(MemoryTraceMetric.JAVA_ALLOCATED);
+			mCreateNativeAllocated = snapshot.get(MemoryTraceMetric.NATIVE_ALLOCATED);
+		}
+
+		/**
+		 * Returns an id that is unique among the instances seen by a tracker.
+		 */
+		public long getId() {
+			return mId;
+		}
+
+		public String getClassName() {
+			return mClassName;
+		}
+
+		/**
+		 * Returns the change of the allocated Java heap, in KB, from create
+		 * to destroy.
+		 */
+		public long getJavaAllocatedDelta() {
+			return mDestroyJavaAllocated - mCreateJavaAllocated;
+		}
+
+		/**
+		 * Returns the change of the allocated native heap, in KB, from create
+		 * to destroy.
+		 */
+		public long getNativeAllocatedDelta() {
+			return mDestroyNativeAllocated - mCreateNativeAllocated;
+		}
+
+		/**
+		 * Returns the uptime in milliseconds at which the instance was destroyed.
+		 */
+		public long getDestroyTime() {
+			return mDestroyTime;
+		}
+
+		@Override
+		public String toString() {
+			return mClassName + "#" + mId + " {java_allocated_delta=" + getJavaAllocatedDelta()
+					+ ", native_allocated_delta=" + getNativeAllocatedDelta() + "}";
+		}
+	}
+
+	private static final int DEFAULT_MAX_LIVE_INSTANCES = 256;
+	private static final int DEFAULT_MAX_PENDING_CHECKS = 64;
+	private static final long DEFAULT_CHECK_DELAY_MILLIS = 2000;
+	private static final int DEFAULT_CHECK_ATTEMPTS = 2;
+
+	private final Listener mListener;
+	private final int mMaxLiveInstances;
+	private final long mCheckDelayMillis;
+	private final int mCheckAttempts;
+
+	// Activities do not override equals(), so this is keyed by identity.
+	private final WeakHashMap<Activity, Instance> mLiveInstances = new WeakHashMap<Activity, Instance>();
+	private final LinkedBlockingQueue<Instance> mPendingChecks;
+	private final AtomicLong mDroppedCount = new AtomicLong();
+	private long mNextId;
+
+	private volatile boolean mRunning;
+	private Thread mCheckThread;
+
+	public MemoryTraceActivityTracker(Listener listener) {
+		this(listener, DEFAULT_MAX_LIVE_INSTANCES, DEFAULT_MAX_PENDING_CHECKS,
+				DEFAULT_CHECK_DELAY_MILLIS, DEFAULT_CHECK_ATTEMPTS);
+	}
+
+	public MemoryTraceActivityTracker(Listener listener, int maxLiveInstances, int maxPendingChecks,
+			long checkDelayMillis, int checkAttempts) {
+		mListener = listener;
+		mMaxLiveInstances = maxLiveInstances;
+		mPendingChecks = new LinkedBlockingQueue<Instance>(maxPendingChecks);
+		mCheckDelayMillis = checkDelayMillis;
+		mCheckAttempts = Math.max(1, checkAttempts);
+	}
+
+	public synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		mCheckThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				checkUntilStopped();
+			}
+		}, TAG);
+		mCheckThread.start();
+	}
+
+	public synchronized void stop() {
+		mRunning = false;
+		if (mCheckThread != null) {
+			mCheckThread.interrupt();
+			mCheckThread = null;
+		}
+	}
+
+	/**
+	 * Returns the number of instances that could not be tracked or checked
+	 * because a bound was reached.
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/**
+	 * Starts tracking an instance. The snapshot is the one taken for its
+	 * create callback.
+	 */
+	public void onActivityCreated(Activity activity, MemoryTraceSnapshot snapshot) {
+		synchronized (mLiveInstances) {
+			if (mLiveInstances.size() >= mMaxLiveInstances) {
+				evictOldest();
+			}
+			mLiveInstances.put(activity, new Instance(activity, mNextId++, snapshot));
+		}
+	}
+
+	/*
+	 * Makes room for one instance. Instances already reclaimed without a
+	 * destroy callback go first, as nothing is lost with them; otherwise
+	 * the oldest instance is dropped.
+	 */
+	private void evictOldest() {
+		Instance oldest = null;
+		boolean reclaimed = false;
+		for (Iterator<Instance> it = mLiveInstances.values().iterator(); it.hasNext();) {
+			Instance instance = it.next();
+			if (instance.get() == null) {
+				it.remove();
+				reclaimed = true;
+			} else if (oldest == null || instance.mId < oldest.mId) {
+				oldest = instance;
+			}
+		}
+		if (!reclaimed && oldest != null) {
+			Activity activity = oldest.get();
+			if (activity != null) {
+				mLiveInstances.remove(activity);
+				mDroppedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Completes the instance with the snapshot taken for its destroy callback
+	 * and schedules the reachability check.
+	 */
+	public void onActivityDestroyed(Activity activity, MemoryTraceSnapshot snapshot) {
+		Instance instance;
+		synchronized (mLiveInstances) {
+			instance = mLiveInstances.remove(activity);
+		}
+		if (instance == null) {
+			return;
+		}
+		instance.mDestroyJavaAllocated = snapshot.get(MemoryTraceMetric.JAVA_ALLOCATED);
+		instance.mDestroyNativeAllocated = snapshot.get(MemoryTraceMetric.NATIVE_ALLOCATED);
+		instance.mDestroyTime = SystemClock.uptimeMillis();
+		if (mListener != null) {
+			mListener.onActivityDestroyed(instance);
+		}
+		if (!mRunning || !mPendingChecks.offer(instance)) {
+			mDroppedCount.incrementAndGet();
+		}
+	}
+
+	private void checkUntilStopped() {
+		List<Instance> batch = new ArrayList<Instance>();
+		try {
+			while (mRunning) {
+				batch.add(mPendingChecks.take());
+				// Let the framework release the instance, and let more destroyed
+				// instances arrive so that one GC checks them all.
+				Thread.sleep(mCheckDelayMillis);
+				mPendingChecks.drainTo(batch);
+				checkReachability(batch);
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	private void checkReachability(List<Instance> batch) throws InterruptedException {
+		for (int attempt = 1; attempt <= mCheckAttempts && !batch.isEmpty(); attempt++) {
+			if (attempt > 1) {
+				Thread.sleep(mCheckDelayMillis);
+			}
+			Runtime.getRuntime().gc();
+			Runtime.getRuntime().runFinalization();
+			Runtime.getRuntime().gc();
+			for (Iterator<Instance> it = batch.iterator(); it.hasNext();) {
+				Instance instance = it.next();
+				instance.mChecks = attempt;
+				if (instance.get() == null) {
+					it.remove();
+				}
+			}
+		}
+		for (Instance instance : batch) {
+			Log.w(TAG, "Leak suspect: " + instance + " is reachable " + instance.mChecks
+					+ " GCs after its destroy");
+			if (mListener != null) {
+				mListener.onLeakSuspected(instance);
+			}
+			// Do not keep the leaked instance reachable from here.
+			instance.clear();
+		}
+		batch.clear();
+	}
+}
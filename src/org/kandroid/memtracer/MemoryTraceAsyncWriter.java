@@ -0,0 +1,279 @@
+package org.kandroid.memtracer;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Hands snapshots to a bounded lock-free queue and writes them to the
+ * wrapped writer on a background thread, so the instrumentation thread never
+ * waits for I/O.
+ *
+ * The writer thread drains the queue in batches and flushes the wrapped
+ * writer, if it is {@link Flushable}, once <code>flushBatchSize</code>
+ * snapshots have been written or <code>flushIntervalMillis</code> have
+ * passed. {@link #writeTraceStop(Bundle)} drains every queued snapshot before
+ * stopping the wrapped writer.
+ */
+public class MemoryTraceAsyncWriter implements MemoryTracer.SnapshotWriter, MemoryTracer.CountingWriter {
+	private static final String TAG = MemoryTraceAsyncWriter.class.getSimpleName();
+
+	/**
+	 * In a results Bundle, this key reports the number of snapshots dropped
+	 * because the queue was full.
+	 */
+	public static final String METRIC_KEY_DROPPED_SNAPSHOTS = "dropped_snapshots";
+
+	/**
+	 * When the queue is full, the caller waits until the writer thread has
+	 * made room.
+	 */
+	public static final int OVERFLOW_BLOCK = 0;
+	/**
+	 * When the queue is full, the oldest queued snapshot is dropped.
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+	/**
+	 * When the queue is full, the new snapshot is dropped.
+	 */
+	public static final int OVERFLOW_DROP_NEWEST = 2;
+
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final int DEFAULT_FLUSH_BATCH_SIZE = 64;
+	private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+	private static final long BLOCK_PARK_NANOS = 100 * 1000;
+
+	private final MemoryTracer.ResultsWriter mWriter;
+	// Holds snapshot Bundles and copies of snapshot records.
+	private final MemoryTraceQueue<Object> mQueue;
+	private final MemoryTraceSnapshotPool mSnapshotPool;
+	private final int mOverflowPolicy;
+	private final int mFlushBatchSize;
+	private final long mFlushIntervalNanos;
+	private final AtomicLong mDroppedCount = new AtomicLong();
+
+	// A producer counts itself in mProducers before it checks the flag, so
+	// that stopping can set the flag and then wait for the snapshots already
+	// being queued before the final drain.
+	private volatile boolean mStopping;
+	private final AtomicInteger mProducers = new AtomicInteger();
+	private Thread mWriterThread;
+
+	public MemoryTraceAsyncWriter(MemoryTracer.ResultsWriter writer) {
+		this(writer, DEFAULT_CAPACITY, OVERFLOW_DROP_NEWEST,
+				DEFAULT_FLUSH_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	public MemoryTraceAsyncWriter(MemoryTracer.ResultsWriter writer, int capacity,
+			int overflowPolicy, int flushBatchSize, long flushIntervalMillis) {
+		if (overflowPolicy < OVERFLOW_BLOCK || overflowPolicy > OVERFLOW_DROP_NEWEST) {
+			throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+		}
+		mWriter = writer;
+		mQueue = new MemoryTraceQueue<Object>(capacity);
+		mSnapshotPool = new MemoryTraceSnapshotPool(capacity);
+		mOverflowPolicy = overflowPolicy;
+		mFlushBatchSize = Math.max(1, flushBatchSize);
+		mFlushIntervalNanos = flushIntervalMillis * 1000000L;
+	}
+
+	@Override
+	public void writeTraceStart(String label) {
+		mWriter.writeTraceStart(label);
+		mStopping = false;
+		mDroppedCount.set(0);
+		mWriterThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				drainUntilStopped();
+			}
+		}, TAG);
+		mWriterThread.start();
+	}
+
+	@Override
+	public void writeTraceSnapshot(Bundle snapshot) {
+		enqueue(snapshot);
+	}
+
+	@Override
+	public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		MemoryTraceSnapshot copy = mSnapshotPool.obtain();
+		copy.copyFrom(snapshot);
+		if (!enqueue(copy)) {
+			mSnapshotPool.recycle(copy);
+		}
+	}
+
+	@Override
+	public String[] getMetricKeys() {
+		if (mWriter instanceof MemoryTracer.SnapshotWriter) {
+			return ((MemoryTracer.SnapshotWriter) mWriter).getMetricKeys();
+		}
+		return null;
+	}
+
+	/*
+	 * Queues the snapshot, or returns false and counts it as dropped. Once
+	 * stopping, snapshots are dropped, since no writer thread makes room.
+	 */
+	private boolean enqueue(Object snapshot) {
+		mProducers.incrementAndGet();
+		try {
+			return offer(snapshot);
+		} finally {
+			mProducers.decrementAndGet();
+		}
+	}
+
+	private boolean offer(Object snapshot) {
+		if (mStopping) {
+			mDroppedCount.incrementAndGet();
+			return false;
+		}
+		while (!mQueue.offer(snapshot)) {
+			switch (mOverflowPolicy) {
+			case OVERFLOW_BLOCK:
+				if (mStopping) {
+					mDroppedCount.incrementAndGet();
+					return false;
+				}
+				LockSupport.unpark(mWriterThread);
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				break;
+			case OVERFLOW_DROP_OLDEST:
+				Object oldest = mQueue.poll();
+				if (oldest != null) {
+					recycle(oldest);
+					mDroppedCount.incrementAndGet();
+				}
+				break;
+			default:
+				mDroppedCount.incrementAndGet();
+				return false;
+			}
+		}
+		if (mQueue.size() >= mFlushBatchSize) {
+			LockSupport.unpark(mWriterThread);
+		}
+		return true;
+	}
+
+	private void recycle(Object snapshot) {
+		if (snapshot instanceof MemoryTraceSnapshot) {
+			mSnapshotPool.recycle((MemoryTraceSnapshot) snapshot);
+		}
+	}
+
+	@Override
+	public void writeTraceStop(Bundle results) {
+		mStopping = true;
+		// A blocked producer sees the flag and gives up, so this ends.
+		while (mProducers.get() != 0) {
+			Thread.yield();
+		}
+		Thread writerThread = mWriterThread;
+		if (writerThread != null) {
+			LockSupport.unpark(writerThread);
+			boolean interrupted = false;
+			while (writerThread.isAlive()) {
+				try {
+					writerThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			mWriterThread = null;
+		}
+		// The writer thread has exited, so whatever is left is ours to write.
+		drain(Integer.MAX_VALUE);
+		flush();
+
+		long dropped = mDroppedCount.get();
+		if (dropped > 0) {
+			Log.w(TAG, "Dropped " + dropped + " snapshots");
+		}
+		if (results != null) {
+			results.putLong(METRIC_KEY_DROPPED_SNAPSHOTS, dropped);
+		}
+		mWriter.writeTraceStop(results);
+	}
+
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/**
+	 * Returns the bytes the wrapped writer wrote, or zero if it does not
+	 * count them.
+	 */
+	@Override
+	public long getBytesWritten() {
+		return mWriter instanceof MemoryTracer.CountingWriter
+				? ((MemoryTracer.CountingWriter) mWriter).getBytesWritten() : 0;
+	}
+
+	private void drainUntilStopped() {
+		long lastFlushTime = System.nanoTime();
+		int unflushed = 0;
+		while (!mStopping) {
+			int written = drain(mFlushBatchSize);
+			unflushed += written;
+			long now = System.nanoTime();
+			if (unflushed >= mFlushBatchSize
+					|| (unflushed > 0 && now - lastFlushTime >= mFlushIntervalNanos)) {
+				flush();
+				unflushed = 0;
+				lastFlushTime = now;
+			}
+			if (written == 0) {
+				LockSupport.parkNanos(mFlushIntervalNanos);
+			}
+		}
+	}
+
+	private int drain(int max) {
+		int count = 0;
+		Object snapshot;
+		while (count < max && (snapshot = mQueue.poll()) != null) {
+			try {
+				write(snapshot);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Failed to write a snapshot", e);
+			}
+			recycle(snapshot);
+			count++;
+		}
+		return count;
+	}
+
+	private void write(Object snapshot) {
+		if (snapshot instanceof Bundle) {
+			mWriter.writeTraceSnapshot((Bundle) snapshot);
+		} else if (mWriter instanceof MemoryTracer.SnapshotWriter) {
+			((MemoryTracer.SnapshotWriter) mWriter).writeTraceSnapshot((MemoryTraceSnapshot) snapshot);
+		} else {
+			mWriter.writeTraceSnapshot(((MemoryTraceSnapshot) snapshot).toBundle());
+		}
+	}
+
+	private void flush() {
+		if (mWriter instanceof Flushable) {
+			try {
+				((Flushable) mWriter).flush();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to flush", e);
+			}
+		}
+	}
+}
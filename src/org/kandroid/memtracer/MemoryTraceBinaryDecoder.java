@@ -0,0 +1,365 @@
+package org.kandroid.memtracer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a trace written by {@link MemoryTraceBinaryEncoder} block by block.
+ * Only one block is held in memory at a time. A truncated or corrupt final
+ * block ends the stream instead of failing it.
+ */
+public class MemoryTraceBinaryDecoder {
+
+	private final InputStream mIn;
+	private final CRC32 mCrc = new CRC32();
+	private final ArrayList<String> mLabels = new ArrayList<String>();
+	// Set when the labels of the whole file are known up front, so blocks can
+	// be decoded out of order.
+	private final boolean mLabelsKnown;
+
+	private String mTraceLabel;
+	private String[] mMetricKeys;
+	private boolean mTruncated;
+
+	private byte[] mBlock = new byte[4096];
+	private int mBlockLength;
+	private int mPosition;
+	private int mRowCount;
+	private int mRowIndex;
+	private int[] mRowLabels = new int[0];
+	private long[] mRowMasks = new long[0];
+	private long[][] mColumns = new long[0][];
+
+	private String mLabel;
+	private int mLabelId;
+	private long[] mValues;
+	private long mPresentMask;
+
+	public MemoryTraceBinaryDecoder(InputStream in) throws IOException {
+		mIn = in;
+		mLabelsKnown = false;
+		readHeader();
+	}
+
+	/*
+	 * Creates a decoder for blocks read with readBlock(InputStream), in any
+	 * order, given all the labels of the file.
+	 */
+	MemoryTraceBinaryDecoder(String traceLabel, String[] metricKeys, List<String> labels) {
+		mIn = null;
+		mLabelsKnown = true;
+		mTraceLabel = traceLabel;
+		mMetricKeys = metricKeys;
+		mLabels.addAll(labels);
+		mValues = new long[metricKeys.length];
+		mColumns = new long[metricKeys.length][];
+	}
+
+	public String getTraceLabel() {
+		return mTraceLabel;
+	}
+
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	/**
+	 * Advances to the next row. Returns false at the end of the stream.
+	 */
+	public boolean next() throws IOException {
+		while (!nextInBlock()) {
+			if (!readBlock(mIn)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Advances to the next row of the current block. Returns false at the end
+	 * of the block.
+	 */
+	boolean nextInBlock() {
+		if (mRowIndex >= mRowCount) {
+			return false;
+		}
+		int row = mRowIndex++;
+		mLabelId = mRowLabels[row];
+		mLabel = mLabels.get(mLabelId);
+		mPresentMask = mRowMasks[row];
+		for (int column = 0; column < mValues.length; column++) {
+			mValues[column] = mColumns[column][row];
+		}
+		return true;
+	}
+
+	public String getLabel() {
+		return mLabel;
+	}
+
+	int getLabelId() {
+		return mLabelId;
+	}
+
+	/*
+	 * Adds labels already declared by the blocks before the one that is read
+	 * next, when decoding starts in the middle of a file.
+	 */
+	void addLabels(List<String> labels) {
+		mLabels.addAll(labels);
+	}
+
+	/**
+	 * Returns the values of the current row, indexed like the metric keys.
+	 * The array is reused by {@link #next()}.
+	 */
+	public long[] getValues() {
+		return mValues;
+	}
+
+	public boolean isPresent(int column) {
+		return (mPresentMask & (1L << column)) != 0;
+	}
+
+	/**
+	 * Returns true if the stream ended in a truncated or corrupt block.
+	 */
+	public boolean isTruncated() {
+		return mTruncated;
+	}
+
+	/**
+	 * Writes the remaining rows in the layout of {@link MemoryTraceCsvWriter}.
+	 * Returns the number of rows written.
+	 */
+	public long writeCsv(PrintStream out) throws IOException {
+		String[] keys = mMetricKeys;
+		out.println(mTraceLabel);
+		for (String key : keys) {
+			out.print(key);
+			out.print(',');
+		}
+		out.println();
+		long rows = 0;
+		while (next()) {
+			for (int column = 0; column < keys.length; column++) {
+				if (MemoryTracer.METRIC_KEY_LABEL.equals(keys[column])) {
+					out.print(mLabel);
+				} else if (isPresent(column)) {
+					out.print(mValues[column]);
+				} else {
+					out.print("null");
+				}
+				out.print(',');
+			}
+			out.println();
+			rows++;
+		}
+		out.flush();
+		return rows;
+	}
+
+	private void readHeader() throws IOException {
+		byte[] magic = new byte[MemoryTraceBinaryEncoder.MAGIC.length];
+		readFully(mIn, magic, 0, magic.length);
+		for (int i = 0; i < magic.length; i++) {
+			if (magic[i] != MemoryTraceBinaryEncoder.MAGIC[i]) {
+				throw new IOException("Not a binary memory trace");
+			}
+		}
+		mCrc.reset();
+		mCrc.update(magic, 0, magic.length);
+		int version = readHeaderByte();
+		if (version != MemoryTraceBinaryEncoder.VERSION) {
+			throw new IOException("Unsupported version " + version);
+		}
+		mTraceLabel = readHeaderString();
+		int keyCount = (int) readHeaderVarint();
+		if (keyCount > MemoryTraceBinaryEncoder.MAX_COLUMNS) {
+			throw new IOException("Too many columns: " + keyCount);
+		}
+		mMetricKeys = new String[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			mMetricKeys[i] = readHeaderString();
+		}
+		int crc = (int) mCrc.getValue();
+		if (readInt(mIn) != crc) {
+			throw new IOException("Corrupt header");
+		}
+		mValues = new long[keyCount];
+		mColumns = new long[keyCount][];
+	}
+
+	/*
+	 * Reads the next block from the stream. Returns false at the end of the
+	 * stream or at a truncated or corrupt block.
+	 */
+	boolean readBlock(InputStream in) throws IOException {
+		int marker = in.read();
+		if (marker < 0) {
+			return false;
+		}
+		try {
+			if (marker != MemoryTraceBinaryEncoder.BLOCK_MARKER) {
+				throw new IOException("Bad block marker " + marker);
+			}
+			long length = readVarint(in);
+			if (length < 0 || length > Integer.MAX_VALUE) {
+				throw new IOException("Bad block length " + length);
+			}
+			int crc = readInt(in);
+			int blockLength = (int) length;
+			if (mBlock.length < blockLength) {
+				mBlock = new byte[blockLength];
+			}
+			readFully(in, mBlock, 0, blockLength);
+			mCrc.reset();
+			mCrc.update(mBlock, 0, blockLength);
+			if ((int) mCrc.getValue() != crc) {
+				throw new IOException("Block checksum mismatch");
+			}
+			mBlockLength = blockLength;
+			parseBlock();
+			return true;
+		} catch (IOException e) {
+			// Whatever follows the last good block is a torn write.
+			mTruncated = true;
+			mRowCount = 0;
+			mRowIndex = 0;
+			return false;
+		}
+	}
+
+	private void parseBlock() throws IOException {
+		mPosition = 0;
+		int rowCount = (int) blockVarint();
+		int newLabelCount = (int) blockVarint();
+		for (int i = 0; i < newLabelCount; i++) {
+			int length = (int) blockVarint();
+			checkBlockRemaining(length);
+			if (!mLabelsKnown) {
+				mLabels.add(new String(mBlock, mPosition, length, "UTF-8"));
+			}
+			mPosition += length;
+		}
+		if (mRowLabels.length < rowCount) {
+			mRowLabels = new int[rowCount];
+			mRowMasks = new long[rowCount];
+			for (int column = 0; column < mColumns.length; column++) {
+				mColumns[column] = new long[rowCount];
+			}
+		}
+		for (int row = 0; row < rowCount; row++) {
+			int labelId = (int) blockVarint();
+			if (labelId < 0 || labelId >= mLabels.size()) {
+				throw new IOException("Unknown label id " + labelId);
+			}
+			mRowLabels[row] = labelId;
+		}
+		for (int row = 0; row < rowCount; row++) {
+			mRowMasks[row] = blockVarint();
+		}
+		for (int column = 0; column < mColumns.length; column++) {
+			long bit = 1L << column;
+			long[] values = mColumns[column];
+			long previous = 0;
+			for (int row = 0; row < rowCount; row++) {
+				if ((mRowMasks[row] & bit) != 0) {
+					long delta = blockVarint();
+					previous += (delta >>> 1) ^ -(delta & 1);
+					values[row] = previous;
+				} else {
+					values[row] = 0;
+				}
+			}
+		}
+		mRowCount = rowCount;
+		mRowIndex = 0;
+	}
+
+	private void checkBlockRemaining(int length) throws IOException {
+		if (length < 0 || mPosition + length > mBlockLength) {
+			throw new IOException("Block overrun");
+		}
+	}
+
+	private long blockVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			checkBlockRemaining(1);
+			int b = mBlock[mPosition++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private int readHeaderByte() throws IOException {
+		int b = mIn.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		mCrc.update(b);
+		return b;
+	}
+
+	private long readHeaderVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readHeaderByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private String readHeaderString() throws IOException {
+		int length = (int) readHeaderVarint();
+		byte[] bytes = new byte[length];
+		readFully(mIn, bytes, 0, length);
+		mCrc.update(bytes, 0, length);
+		return new String(bytes, "UTF-8");
+	}
+
+	static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static int readInt(InputStream in) throws IOException {
+		byte[] bytes = new byte[4];
+		readFully(in, bytes, 0, 4);
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+				| ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+
+	static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, offset, length);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+}
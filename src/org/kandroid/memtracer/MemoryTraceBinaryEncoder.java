@@ -0,0 +1,267 @@
+package org.kandroid.memtracer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes snapshots into the compact binary trace format.
+ *
+ * <pre>
+ * file   := header block*
+ * header := "KMTB" version:u8 label:string keyCount:varint key:string* crc:u32
+ * block  := 'B' length:varint crc:u32 payload
+ * payload:= rowCount:varint newLabelCount:varint newLabel:string*
+ *           labelId:varint[rowCount] presentMask:varint[rowCount]
+ *           column*   (one per metric key, zigzag varint deltas of present values)
+ * string := length:varint utf8
+ * </pre>
+ *
+ * Label ids are assigned in order of first appearance and stay valid for the
+ * rest of the file. Column deltas restart from zero in every block, and every
+ * block carries its own CRC, so a file truncated by a killed process decodes
+ * up to its last complete block.
+ */
+public class MemoryTraceBinaryEncoder {
+
+	static final byte[] MAGIC = { 'K', 'M', 'T', 'B' };
+	static final int VERSION = 1;
+	static final int BLOCK_MARKER = 'B';
+	static final int MAX_COLUMNS = 64;
+
+	private static final int DEFAULT_BLOCK_ROWS = 256;
+
+	private final OutputStream mOut;
+	private final int mColumnCount;
+	private final int mBlockRows;
+	private final CRC32 mCrc = new CRC32();
+
+	private final HashMap<String, Integer> mLabelIds = new HashMap<String, Integer>();
+	private final ArrayList<String> mNewLabels = new ArrayList<String>();
+
+	private final int[] mRowLabels;
+	private final long[] mRowMasks;
+	private final long[][] mColumns;
+	private int mRowCount;
+
+	private byte[] mBuffer = new byte[4096];
+	private int mLength;
+	private long mBytesWritten;
+
+	private MemoryTraceIndex mIndex;
+	private int mTimestampColumn = -1;
+
+	public MemoryTraceBinaryEncoder(OutputStream out, int columnCount) {
+		this(out, columnCount, DEFAULT_BLOCK_ROWS);
+	}
+
+	public MemoryTraceBinaryEncoder(OutputStream out, int columnCount, int blockRows) {
+		if (columnCount > MAX_COLUMNS) {
+			throw new IllegalArgumentException("At most " + MAX_COLUMNS + " columns: " + columnCount);
+		}
+		mOut = out;
+		mColumnCount = columnCount;
+		mBlockRows = Math.max(1, blockRows);
+		mRowLabels = new int[mBlockRows];
+		mRowMasks = new long[mBlockRows];
+		mColumns = new long[columnCount][mBlockRows];
+	}
+
+	/*
+	 * Adds every block written from now on to an index. The encoder must
+	 * write from the start of the indexed file, and set the index before the
+	 * first block.
+	 */
+	void setIndex(MemoryTraceIndex index, int timestampColumn) {
+		mIndex = index;
+		mTimestampColumn = timestampColumn;
+	}
+
+	/**
+	 * Writes the file header. The metric keys name the columns in order.
+	 */
+	public void writeHeader(String traceLabel, String[] metricKeys) throws IOException {
+		if (metricKeys.length != mColumnCount) {
+			throw new IllegalArgumentException("Expected " + mColumnCount + " keys: " + metricKeys.length);
+		}
+		mLength = 0;
+		putBytes(MAGIC, 0, MAGIC.length);
+		putByte(VERSION);
+		putString(traceLabel != null ? traceLabel : "");
+		putVarint(metricKeys.length);
+		for (String key : metricKeys) {
+			putString(key);
+		}
+		mCrc.reset();
+		mCrc.update(mBuffer, 0, mLength);
+		putInt((int) mCrc.getValue());
+		writeBuffer();
+	}
+
+	/**
+	 * Adds a row. Bit <code>i</code> of <code>presentMask</code> tells whether
+	 * <code>values[i]</code> holds a value. The row is written once the block
+	 * is full or on {@link #flushBlock()}.
+	 */
+	public void addRow(String label, long[] values, long presentMask) throws IOException {
+		int row = mRowCount;
+		mRowLabels[row] = internLabel(label);
+		mRowMasks[row] = presentMask;
+		for (int column = 0; column < mColumnCount; column++) {
+			mColumns[column][row] = values[column];
+		}
+		mRowCount = row + 1;
+		if (mRowCount == mBlockRows) {
+			flushBlock();
+		}
+	}
+
+	/**
+	 * Writes the pending rows, if any, as one block.
+	 */
+	public void flushBlock() throws IOException {
+		if (mRowCount == 0) {
+			return;
+		}
+		int rowCount = mRowCount;
+		mLength = 0;
+		putVarint(rowCount);
+		putVarint(mNewLabels.size());
+		for (int i = 0; i < mNewLabels.size(); i++) {
+			putString(mNewLabels.get(i));
+		}
+		for (int row = 0; row < rowCount; row++) {
+			putVarint(mRowLabels[row]);
+		}
+		for (int row = 0; row < rowCount; row++) {
+			putVarint(mRowMasks[row]);
+		}
+		for (int column = 0; column < mColumnCount; column++) {
+			long bit = 1L << column;
+			long[] values = mColumns[column];
+			long previous = 0;
+			for (int row = 0; row < rowCount; row++) {
+				if ((mRowMasks[row] & bit) != 0) {
+					long value = values[row];
+					putVarint(zigzag(value - previous));
+					previous = value;
+				}
+			}
+		}
+		int payloadLength = mLength;
+		mCrc.reset();
+		mCrc.update(mBuffer, 0, payloadLength);
+		int crc = (int) mCrc.getValue();
+
+		// Block framing goes after the payload in the buffer so the payload
+		// does not have to be moved; it is written out first.
+		putByte(BLOCK_MARKER);
+		putVarint(payloadLength);
+		putInt(crc);
+		mOut.write(mBuffer, payloadLength, mLength - payloadLength);
+		mOut.write(mBuffer, 0, payloadLength);
+		long offset = mBytesWritten;
+		mBytesWritten += mLength;
+		mLength = 0;
+		if (mIndex != null) {
+			indexBlock(offset, rowCount);
+		}
+
+		mNewLabels.clear();
+		mRowCount = 0;
+	}
+
+	private void indexBlock(long offset, int rowCount) {
+		for (int i = 0; i < mNewLabels.size(); i++) {
+			mIndex.addLabel(mNewLabels.get(i));
+		}
+		long bit = mTimestampColumn >= 0 ? 1L << mTimestampColumn : 0;
+		long[] timestamps = mTimestampColumn >= 0 ? mColumns[mTimestampColumn] : null;
+		for (int row = 0; row < rowCount; row++) {
+			boolean hasTimestamp = (mRowMasks[row] & bit) != 0;
+			mIndex.addRow(mRowLabels[row], hasTimestamp ? timestamps[row] : 0, hasTimestamp);
+		}
+		mIndex.endBlock(offset, mBytesWritten);
+	}
+
+	/**
+	 * Returns the number of bytes handed to the output stream so far.
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	private int internLabel(String label) {
+		if (label == null) {
+			label = "";
+		}
+		Integer id = mLabelIds.get(label);
+		if (id == null) {
+			id = Integer.valueOf(mLabelIds.size());
+			mLabelIds.put(label, id);
+			mNewLabels.add(label);
+		}
+		return id.intValue();
+	}
+
+	private void writeBuffer() throws IOException {
+		mOut.write(mBuffer, 0, mLength);
+		mBytesWritten += mLength;
+		mLength = 0;
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (mLength + extra > mBuffer.length) {
+			int size = Math.max(mBuffer.length * 2, mLength + extra);
+			byte[] buffer = new byte[size];
+			System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+			mBuffer = buffer;
+		}
+	}
+
+	private void putByte(int value) {
+		ensureCapacity(1);
+		mBuffer[mLength++] = (byte) value;
+	}
+
+	private void putBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, mBuffer, mLength, length);
+		mLength += length;
+	}
+
+	private void putInt(int value) {
+		ensureCapacity(4);
+		mBuffer[mLength++] = (byte) (value >>> 24);
+		mBuffer[mLength++] = (byte) (value >>> 16);
+		mBuffer[mLength++] = (byte) (value >>> 8);
+		mBuffer[mLength++] = (byte) value;
+	}
+
+	private void putVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			mBuffer[mLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		mBuffer[mLength++] = (byte) value;
+	}
+
+	private void putString(String value) {
+		byte[] bytes;
+		try {
+			bytes = value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		putVarint(bytes.length);
+		putBytes(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,285 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Writes snapshots in the binary format of {@link MemoryTraceBinaryEncoder}.
+ * Labels are interned and the numeric metrics are delta and varint encoded
+ * per column, which is several times smaller and cheaper to write than
+ * {@link MemoryTraceCsvWriter}. Convert the file with
+ * {@link MemoryTraceBinaryDecoder}.
+ */
+public class MemoryTraceBinaryWriter implements MemoryTracer.SnapshotWriter, MemoryTracer.CountingWriter, Flushable {
+	private static final String TAG = MemoryTraceBinaryWriter.class.getSimpleName();
+
+	private static final String DEFAULT_MEMORY_TRACE_FILE_NAME = "kmemtrace.kmt";
+	private static final String MEMORY_TRACE_FILE_NAME_PREFIX = "kmemtrace_";
+	private static final String MEMORY_TRACE_FILE_NAME_EXT = ".kmt";
+	private static final int TRACE_FILE_BUFFER_SIZE = 8192;
+
+	private final String[] mMetricKeys;
+	private final long[] mValues;
+	private final int mLabelColumn;
+	private final MemoryTraceMetric[] mMetrics;
+	private final String mFileName;
+	private final int mTimestampColumn;
+
+	private OutputStream mTraceOut;
+	private volatile MemoryTraceCountingOutputStream mCounter;
+	private volatile long mBytesWritten;
+	private MemoryTraceBinaryEncoder mEncoder;
+	private MemoryTraceSegments mSegments;
+	private String mTraceLabel;
+	private boolean mIndexed;
+	private File mTraceFile;
+	private MemoryTraceIndex mIndex;
+
+	public MemoryTraceBinaryWriter() {
+		this(MemoryTraceCsvWriter.DEFAULT_METRIC_KEYS);
+	}
+
+	public MemoryTraceBinaryWriter(String[] metricKeys) {
+		this(metricKeys, DEFAULT_MEMORY_TRACE_FILE_NAME);
+	}
+
+	public MemoryTraceBinaryWriter(String[] metricKeys, String fileName) {
+		mMetricKeys = metricKeys;
+		mValues = new long[metricKeys.length];
+		mMetrics = new MemoryTraceMetric[metricKeys.length];
+		int labelColumn = -1;
+		int timestampColumn = -1;
+		for (int i = 0; i < metricKeys.length; i++) {
+			if (MemoryTracer.METRIC_KEY_LABEL.equals(metricKeys[i])) {
+				labelColumn = i;
+			} else if (MemoryTracer.METRIC_KEY_TIMESTAMP.equals(metricKeys[i])) {
+				timestampColumn = i;
+			}
+			mMetrics[i] = MemoryTraceMetric.forKey(metricKeys[i]);
+		}
+		mLabelColumn = labelColumn;
+		mTimestampColumn = timestampColumn;
+		mFileName = fileName;
+	}
+
+	/**
+	 * Writes the trace to rolling, timestamped segments instead of the single
+	 * trace file. Each segment starts with its own header, so it decodes on
+	 * its own.
+	 */
+	public void setSegments(MemoryTraceSegments segments) {
+		mSegments = segments;
+	}
+
+	/**
+	 * Builds an index of the trace while it is written, so that
+	 * {@link MemoryTraceStore} can query it by label and time range without
+	 * scanning it. The index is written next to the trace file when tracing
+	 * stops. Segmented traces are not indexed.
+	 */
+	public void setIndexed(boolean indexed) {
+		mIndexed = indexed;
+	}
+
+	/**
+	 * Returns segments that are named like timestamped binary trace files,
+	 * without any roll or retention limits set.
+	 */
+	public static MemoryTraceSegments createSegments() {
+		return new MemoryTraceSegments(MEMORY_TRACE_FILE_NAME_PREFIX, MEMORY_TRACE_FILE_NAME_EXT);
+	}
+
+	@Override
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	@Override
+	public void writeTraceStart(String label) {
+		Log.d(TAG, "Start tracing for " + label);
+		mTraceLabel = label;
+		if (mSegments != null) {
+			openSegment();
+			return;
+		}
+		File traceFile = MemoryTraceFiles.getTraceFile(mFileName);
+		if (traceFile == null) {
+			return;
+		}
+		mTraceFile = traceFile;
+		if (mIndexed) {
+			// The index of the previous trace in this file is stale.
+			MemoryTraceIndex.getIndexFile(traceFile).delete();
+			mIndex = new MemoryTraceIndex();
+		}
+		try {
+			openEncoder(new FileOutputStream(traceFile));
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to open the trace file " + traceFile.getAbsolutePath(), e);
+			closeTraceFile();
+		}
+	}
+
+	private void openEncoder(OutputStream out) throws IOException {
+		mCounter = new MemoryTraceCountingOutputStream(out, mBytesWritten);
+		mTraceOut = new BufferedOutputStream(mCounter, TRACE_FILE_BUFFER_SIZE);
+		mEncoder = new MemoryTraceBinaryEncoder(mTraceOut, mMetricKeys.length);
+		if (mIndex != null) {
+			mEncoder.setIndex(mIndex, mTimestampColumn);
+		}
+		mEncoder.writeHeader(mTraceLabel, mMetricKeys);
+	}
+
+	private void openSegment() {
+		try {
+			OutputStream out = mSegments.openSegment();
+			if (out != null) {
+				openEncoder(out);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to open a trace segment", e);
+			closeTraceFile();
+		}
+	}
+
+	private void addRow(long presentMask) {
+		long timestamp = mTimestampColumn >= 0 && (presentMask & (1L << mTimestampColumn)) != 0
+				? mValues[mTimestampColumn] : -1;
+		mSegments.addRow(timestamp);
+		if (mSegments.isRollDue()) {
+			closeSegment();
+			openSegment();
+		}
+	}
+
+	private void closeSegment() {
+		try {
+			mEncoder.flushBlock();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write the last block", e);
+		}
+		closeTraceFile();
+		mSegments.closeSegment();
+	}
+
+	@Override
+	public void writeTraceSnapshot(Bundle snapshot) {
+		if (mEncoder == null) {
+			return;
+		}
+		String[] keys = mMetricKeys;
+		long presentMask = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (i == mLabelColumn) {
+				continue;
+			}
+			Object value = snapshot.get(keys[i]);
+			if (value instanceof Number) {
+				mValues[i] = ((Number) value).longValue();
+				presentMask |= 1L << i;
+			}
+		}
+		try {
+			mEncoder.addRow(snapshot.getString(MemoryTracer.METRIC_KEY_LABEL), mValues, presentMask);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write a snapshot", e);
+		}
+		if (mSegments != null) {
+			addRow(presentMask);
+		}
+	}
+
+	@Override
+	public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		if (mEncoder == null) {
+			return;
+		}
+		long presentMask = 0;
+		for (int i = 0; i < mMetrics.length; i++) {
+			MemoryTraceMetric metric = mMetrics[i];
+			if (metric != null && snapshot.has(metric)) {
+				mValues[i] = snapshot.get(metric);
+				presentMask |= 1L << i;
+			}
+		}
+		try {
+			mEncoder.addRow(snapshot.getLabel(), mValues, presentMask);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write a snapshot", e);
+		}
+		if (mSegments != null) {
+			addRow(presentMask);
+		}
+	}
+
+	/**
+	 * Writes the pending rows as a block and flushes the file.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (mEncoder != null) {
+			mEncoder.flushBlock();
+			mTraceOut.flush();
+		}
+	}
+
+	@Override
+	public void writeTraceStop(Bundle results) {
+		Log.d(TAG, "Stop tracing");
+		if (mEncoder != null) {
+			try {
+				mEncoder.flushBlock();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to write the last block", e);
+			}
+		}
+		closeTraceFile();
+		if (mSegments != null) {
+			mSegments.finish();
+		}
+		writeIndex();
+		MemoryTraceSections.writeSectionsFile(results);
+	}
+
+	private void writeIndex() {
+		if (mIndex == null) {
+			return;
+		}
+		File indexFile = MemoryTraceIndex.getIndexFile(mTraceFile);
+		try {
+			mIndex.write(indexFile);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write the index " + indexFile.getAbsolutePath(), e);
+		}
+		mIndex = null;
+	}
+
+	private void closeTraceFile() {
+		if (mTraceOut != null) {
+			try {
+				mTraceOut.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to close the trace file", e);
+			}
+		}
+		if (mCounter != null) {
+			mBytesWritten = mCounter.getCount();
+			mCounter = null;
+		}
+		mTraceOut = null;
+		mEncoder = null;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		MemoryTraceCountingOutputStream counter = mCounter;
+		return counter != null ? counter.getCount() : mBytesWritten;
+	}
+}
@@ -0,0 +1,437 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.Bundle;
+
+/**
+ * Limits on the metrics of snapshots, checked as the snapshots are recorded
+ * so that a run can be stopped at the first violation. Set it with
+ * {@link MemoryTracer#setBudget(MemoryTraceBudget)}.
+ *
+ * A budget is a list of rules, one per line:
+ * <pre>
+ * # [label] metric limit
+ * java_pss 48000
+ * CheckoutActivity-OnResume native_allocated 12000000
+ * * global_alloc_size +10%
+ * </pre>
+ * A rule without a label, or with <code>*</code>, applies to every label. A
+ * limit is either absolute, or a percentage over the baseline: the largest
+ * value of the label and metric in a baseline run, read from the output of
+ * the host tool <code>MemoryTraceAnalyzer stats</code>. A relative rule does
+ * not apply to labels the baseline does not have.
+ */
+public class MemoryTraceBudget {
+
+	public static final String BUDGET_KEY_LABEL = "label";
+	public static final String BUDGET_KEY_RULE = "rule";
+	public static final String BUDGET_KEY_METRIC = "metric";
+	public static final String BUDGET_KEY_VALUE = "value";
+	public static final String BUDGET_KEY_LIMIT = "limit";
+	public static final String BUDGET_KEY_COUNT = "count";
+
+	private static final String ANY_LABEL = "*";
+
+	/**
+	 * Notified of the first violation of each rule by each label, on the
+	 * thread that records the snapshot.
+	 */
+	public interface Listener {
+		public void onBudgetExceeded(Violation violation);
+	}
+
+	/**
+	 * A limit on one metric, for one label or all of them.
+	 */
+	public static class Rule {
+		private final String mLabel;
+		private final MemoryTraceMetric mMetric;
+		private final long mLimit;
+		private final double mTolerance;
+		private final boolean mRelative;
+
+		private Rule(String label, MemoryTraceMetric metric, long limit, double tolerance,
+				boolean relative) {
+			mLabel = label;
+			mMetric = metric;
+			mLimit = limit;
+			mTolerance = tolerance;
+			mRelative = relative;
+		}
+
+		/**
+		 * Returns a rule that limits <code>metric</code> to
+		 * <code>limit</code>, for <code>label</code> or every label if it
+		 * is null.
+		 */
+		public static Rule absolute(String label, MemoryTraceMetric metric, long limit) {
+			return new Rule(label, metric, limit, 0, false);
+		}
+
+		/**
+		 * Returns a rule that limits <code>metric</code> to the baseline
+		 * plus <code>tolerance</code>, e.g. 0.1 for 10%.
+		 */
+		public static Rule relative(String label, MemoryTraceMetric metric, double tolerance) {
+			return new Rule(label, metric, 0, tolerance, true);
+		}
+
+		public String getLabel() {
+			return mLabel;
+		}
+
+		public MemoryTraceMetric getMetric() {
+			return mMetric;
+		}
+
+		@Override
+		public String toString() {
+			return (mLabel != null ? mLabel : ANY_LABEL) + " " + mMetric.getKey() + " "
+					+ (mRelative ? "+" + mTolerance * 100 + "%" : Long.toString(mLimit));
+		}
+	}
+
+	/**
+	 * The snapshots of one label that exceeded one rule.
+	 */
+	public static class Violation {
+		private final Rule mRule;
+		private final String mLabel;
+		private final long mLimit;
+		private long mValue;
+		private long mCount;
+
+		Violation(Rule rule, String label, long limit, long value) {
+			mRule = rule;
+			mLabel = label;
+			mLimit = limit;
+			mValue = value;
+			mCount = 1;
+		}
+
+		public Rule getRule() {
+			return mRule;
+		}
+
+		public String getLabel() {
+			return mLabel;
+		}
+
+		public MemoryTraceMetric getMetric() {
+			return mRule.mMetric;
+		}
+
+		/**
+		 * Returns the resolved limit, absolute or from the baseline.
+		 */
+		public long getLimit() {
+			return mLimit;
+		}
+
+		/**
+		 * Returns the largest value over the limit so far.
+		 */
+		public synchronized long getValue() {
+			return mValue;
+		}
+
+		/**
+		 * Returns the number of snapshots over the limit so far.
+		 */
+		public synchronized long getCount() {
+			return mCount;
+		}
+
+		synchronized void add(long value) {
+			mCount++;
+			if (value > mValue) {
+				mValue = value;
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return mLabel + " " + mRule.mMetric.getKey() + " = " + mValue + " > " + mLimit
+					+ " (" + mCount + (mCount == 1 ? " snapshot)" : " snapshots)");
+		}
+	}
+
+	/*
+	 * A rule resolved for one label: the limit it is checked against, and
+	 * its violation once there is one.
+	 */
+	private static class Check {
+		final Rule mRule;
+		final MemoryTraceMetric mMetric;
+		final long mLimit;
+		Violation mViolation;
+
+		Check(Rule rule, long limit) {
+			mRule = rule;
+			mMetric = rule.mMetric;
+			mLimit = limit;
+		}
+	}
+
+	private static final Check[] NO_CHECKS = new Check[0];
+
+	private final List<Rule> mRules = new ArrayList<Rule>();
+	// The largest value per label and metric key of the baseline run.
+	private final HashMap<String, HashMap<String, Long>> mBaseline =
+			new HashMap<String, HashMap<String, Long>>();
+	// Only touched by the thread that records snapshots. Indexed by label id.
+	private Check[][] mChecks = new Check[16][];
+	private final List<Violation> mViolations = new ArrayList<Violation>();
+	private volatile Listener mListener;
+
+	public void addRule(Rule rule) {
+		mRules.add(rule);
+	}
+
+	public List<Rule> getRules() {
+		return mRules;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Reads rules in the format above. Throws an IllegalArgumentException
+	 * naming the line of a malformed rule.
+	 */
+	public static MemoryTraceBudget parse(InputStream in) throws IOException {
+		MemoryTraceBudget budget = new MemoryTraceBudget();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			try {
+				budget.addRule(parseRule(line.split("\\s+")));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+			}
+		}
+		return budget;
+	}
+
+	private static Rule parseRule(String[] fields) {
+		if (fields.length < 2 || fields.length > 3) {
+			throw new IllegalArgumentException("Expected [label] metric limit");
+		}
+		String label = fields.length == 3 && !ANY_LABEL.equals(fields[0]) ? fields[0] : null;
+		String key = fields[fields.length - 2];
+		String limit = fields[fields.length - 1];
+		MemoryTraceMetric metric = MemoryTraceMetric.forKey(key);
+		if (metric == null) {
+			throw new IllegalArgumentException("Unknown metric " + key);
+		}
+		try {
+			if (limit.startsWith("+") && limit.endsWith("%")) {
+				double percent = Double.parseDouble(limit.substring(1, limit.length() - 1));
+				return Rule.relative(label, metric, percent / 100);
+			}
+			return Rule.absolute(label, metric, Long.parseLong(limit));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad limit " + limit);
+		}
+	}
+
+	/**
+	 * Reads the baseline of the relative rules from the CSV output of
+	 * <code>MemoryTraceAnalyzer stats</code>, using its max column.
+	 */
+	public void setBaseline(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String header = reader.readLine();
+		if (header == null) {
+			throw new IOException("Empty baseline");
+		}
+		String[] columns = header.split(",");
+		int labelColumn = indexOf(columns, "label");
+		int metricColumn = indexOf(columns, "metric");
+		int maxColumn = indexOf(columns, "max");
+		if (labelColumn < 0 || metricColumn < 0 || maxColumn < 0) {
+			throw new IOException("Not a baseline: " + header);
+		}
+		mBaseline.clear();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split(",");
+			if (fields.length <= Math.max(maxColumn, Math.max(labelColumn, metricColumn))) {
+				continue;
+			}
+			long max;
+			try {
+				max = Long.parseLong(fields[maxColumn]);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			HashMap<String, Long> metrics = mBaseline.get(fields[labelColumn]);
+			if (metrics == null) {
+				metrics = new HashMap<String, Long>();
+				mBaseline.put(fields[labelColumn], metrics);
+			}
+			metrics.put(fields[metricColumn], Long.valueOf(max));
+		}
+	}
+
+	private static int indexOf(String[] values, String value) {
+		for (int i = 0; i < values.length; i++) {
+			if (value.equals(values[i].trim())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the keys of the metrics the rules limit, which have to be
+	 * collected.
+	 */
+	public String[] getMetricKeys() {
+		String[] keys = new String[mRules.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = mRules.get(i).mMetric.getKey();
+		}
+		return keys;
+	}
+
+	/**
+	 * Forgets the violations and the limits resolved per label, e.g. when
+	 * tracing starts again.
+	 */
+	public synchronized void reset() {
+		mChecks = new Check[16][];
+		mViolations.clear();
+	}
+
+	/*
+	 * Checks a recorded snapshot. Called by the single thread that records
+	 * snapshots at a time.
+	 */
+	void check(MemoryTraceSnapshot snapshot) {
+		Check[] checks = checksOf(snapshot);
+		for (int i = 0; i < checks.length; i++) {
+			Check check = checks[i];
+			if (!snapshot.has(check.mMetric)) {
+				continue;
+			}
+			long value = snapshot.get(check.mMetric);
+			if (value <= check.mLimit) {
+				continue;
+			}
+			if (check.mViolation != null) {
+				check.mViolation.add(value);
+				continue;
+			}
+			Violation violation = new Violation(check.mRule, snapshot.getLabel(), check.mLimit, value);
+			check.mViolation = violation;
+			synchronized (this) {
+				mViolations.add(violation);
+			}
+			Listener listener = mListener;
+			if (listener != null) {
+				listener.onBudgetExceeded(violation);
+			}
+		}
+	}
+
+	private Check[] checksOf(MemoryTraceSnapshot snapshot) {
+		int labelId = snapshot.getLabelId();
+		if (labelId < 0) {
+			return NO_CHECKS;
+		}
+		Check[][] checks = mChecks;
+		if (labelId >= checks.length) {
+			Check[][] grown = new Check[Math.max(checks.length * 2, labelId + 1)][];
+			System.arraycopy(checks, 0, grown, 0, checks.length);
+			checks = grown;
+			mChecks = grown;
+		}
+		Check[] labelChecks = checks[labelId];
+		if (labelChecks == null) {
+			labelChecks = resolve(snapshot.getLabel());
+			checks[labelId] = labelChecks;
+		}
+		return labelChecks;
+	}
+
+	private Check[] resolve(String label) {
+		List<Check> checks = new ArrayList<Check>();
+		for (Rule rule : mRules) {
+			if (rule.mLabel != null && !rule.mLabel.equals(label)) {
+				continue;
+			}
+			if (!rule.mRelative) {
+				checks.add(new Check(rule, rule.mLimit));
+				continue;
+			}
+			HashMap<String, Long> metrics = mBaseline.get(label);
+			Long baseline = metrics != null ? metrics.get(rule.mMetric.getKey()) : null;
+			if (baseline != null) {
+				long base = baseline.longValue();
+				checks.add(new Check(rule, base + (long) Math.ceil(Math.abs(base) * rule.mTolerance)));
+			}
+		}
+		return checks.isEmpty() ? NO_CHECKS : checks.toArray(new Check[checks.size()]);
+	}
+
+	public synchronized boolean isExceeded() {
+		return !mViolations.isEmpty();
+	}
+
+	public synchronized List<Violation> getViolations() {
+		return new ArrayList<Violation>(mViolations);
+	}
+
+	/**
+	 * Returns a Bundle with one Bundle per violation, keyed by label and the
+	 * index of the rule, holding its <code>BUDGET_KEY_*</code> values, or
+	 * null if the budget holds. Rules on the same metric, e.g. one for all
+	 * labels and one for a single label, each have their own entry.
+	 */
+	public synchronized Bundle toBundle() {
+		if (mViolations.isEmpty()) {
+			return null;
+		}
+		Bundle results = new Bundle();
+		for (Violation violation : mViolations) {
+			Bundle values = new Bundle();
+			values.putString(BUDGET_KEY_LABEL, violation.getLabel());
+			values.putString(BUDGET_KEY_RULE, violation.getRule().toString());
+			values.putString(BUDGET_KEY_METRIC, violation.getMetric().getKey());
+			values.putLong(BUDGET_KEY_VALUE, violation.getValue());
+			values.putLong(BUDGET_KEY_LIMIT, violation.getLimit());
+			values.putLong(BUDGET_KEY_COUNT, violation.getCount());
+			results.putBundle(violation.getLabel() + "/" + indexOf(violation.getRule()), values);
+		}
+		return results;
+	}
+
+	// Rules are compared by identity, so that equal rules stay apart too.
+	private int indexOf(Rule rule) {
+		for (int i = 0; i < mRules.size(); i++) {
+			if (mRules.get(i) == rule) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
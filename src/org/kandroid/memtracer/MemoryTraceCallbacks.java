@@ -0,0 +1,144 @@
+package org.kandroid.memtracer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.app.Activity;
+import android.app.Application;
+
+/**
+ * The lifecycle callbacks {@link MemoryInstrumentation} takes snapshots at,
+ * whether each is enabled and takes a full snapshot, and the table of their
+ * labels. A label is the local class name of the activity, or the package
+ * name of the application, and the callback name, e.g. "MainActivity-OnCreate".
+ * Labels are built and interned once per component class and callback; after
+ * that, looking one up allocates nothing.
+ */
+class MemoryTraceCallbacks {
+
+	enum Callback {
+		ON_CREATE("OnCreate"),
+		ON_DESTROY("OnDestroy"),
+		ON_NEW_INTENT("OnNewIntent"),
+		ON_PAUSE("OnPause"),
+		ON_POST_CREATE("OnPostCreate"),
+		ON_RESTART("OnRestart"),
+		ON_RESTORE_INSTANCE_STATE("OnRestoreInstanceState"),
+		ON_RESUME("OnResume"),
+		ON_SAVE_INSTANCE_STATE("OnSaveInstanceState"),
+		ON_START("OnStart"),
+		ON_STOP("OnStop"),
+		ON_USER_LEAVING("OnUserLeaving"),
+		ON_APP_CREATE("OnAppCreate");
+
+		private static final Callback[] VALUES = values();
+
+		private final String mName;
+
+		private Callback(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * Returns the callback with the given name, or null if there is none.
+		 */
+		static Callback forName(String name) {
+			for (Callback callback : VALUES) {
+				if (callback.mName.equals(name)) {
+					return callback;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The labels of the callbacks of one component class.
+	 */
+	static class Labels {
+		private final MemoryTracer mTracer;
+		private final String mPrefix;
+		private final String[] mLabels = new String[Callback.VALUES.length];
+		private final int[] mIds = new int[Callback.VALUES.length];
+
+		Labels(MemoryTracer tracer, String prefix) {
+			mTracer = tracer;
+			mPrefix = prefix;
+			for (int i = 0; i < mIds.length; i++) {
+				mIds[i] = -1;
+			}
+		}
+
+		String get(Callback callback) {
+			String label = mLabels[callback.ordinal()];
+			if (label == null) {
+				label = mPrefix + "-" + callback.mName;
+				mLabels[callback.ordinal()] = label;
+			}
+			return label;
+		}
+
+		/**
+		 * Returns the id the tracer interned the label as.
+		 */
+		int getId(Callback callback) {
+			int id = mIds[callback.ordinal()];
+			if (id < 0) {
+				id = mTracer.internLabel(get(callback));
+				mIds[callback.ordinal()] = id;
+			}
+			return id;
+		}
+	}
+
+	private final MemoryTracer mTracer;
+	private final ConcurrentHashMap<Class<?>, Labels> mLabels = new ConcurrentHashMap<Class<?>, Labels>();
+	private final boolean[] mEnabled = new boolean[Callback.VALUES.length];
+	private final boolean[] mFull = new boolean[Callback.VALUES.length];
+
+	MemoryTraceCallbacks(MemoryTracer tracer) {
+		mTracer = tracer;
+		for (int i = 0; i < mEnabled.length; i++) {
+			mEnabled[i] = true;
+		}
+	}
+
+	boolean isEnabled(Callback callback) {
+		return mEnabled[callback.ordinal()];
+	}
+
+	void setEnabled(Callback callback, boolean enabled) {
+		mEnabled[callback.ordinal()] = enabled;
+	}
+
+	/**
+	 * Returns whether the callback takes a full snapshot in the light
+	 * snapshot mode.
+	 */
+	boolean isFull(Callback callback) {
+		return mFull[callback.ordinal()];
+	}
+
+	void setFull(Callback callback, boolean full) {
+		mFull[callback.ordinal()] = full;
+	}
+
+	Labels getLabels(Activity activity) {
+		Labels labels = mLabels.get(activity.getClass());
+		return labels != null ? labels : addLabels(activity.getClass(), activity.getLocalClassName());
+	}
+
+	Labels getLabels(Application app) {
+		Labels labels = mLabels.get(app.getClass());
+		return labels != null ? labels : addLabels(app.getClass(), app.getPackageName());
+	}
+
+	private Labels addLabels(Class<?> componentClass, String prefix) {
+		Labels labels = new Labels(mTracer, prefix);
+		Labels existing = mLabels.putIfAbsent(componentClass, labels);
+		return existing != null ? existing : labels;
+	}
+}
@@ -0,0 +1,21 @@
+package org.kandroid.memtracer;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * The clock of the trace: nanoseconds of elapsed realtime, the clock of
+ * systrace and the GC log, so that snapshots line up with both. Before API
+ * level 17 it only has millisecond resolution.
+ */
+class MemoryTraceClock {
+
+	private static final boolean HAS_NANOS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+
+	private MemoryTraceClock() {
+	}
+
+	static long now() {
+		return HAS_NANOS ? SystemClock.elapsedRealtimeNanos() : SystemClock.elapsedRealtime() * 1000000L;
+	}
+}
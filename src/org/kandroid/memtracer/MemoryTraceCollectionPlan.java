@@ -0,0 +1,68 @@
+package org.kandroid.memtracer;
+
+/**
+ * Decides once, from the requested metrics, which collectors a snapshot has
+ * to run. Collectors none of whose metrics are requested are skipped.
+ */
+public class MemoryTraceCollectionPlan {
+
+	/**
+	 * A plan that collects every metric.
+	 */
+	public static final MemoryTraceCollectionPlan ALL = new MemoryTraceCollectionPlan(-1L);
+
+	private final long mMetricMask;
+	private final boolean[] mCollectors = new boolean[MemoryTraceMetric.Collector.values().length];
+
+	private MemoryTraceCollectionPlan(long metricMask) {
+		mMetricMask = metricMask;
+		for (int i = 0; i < MemoryTraceMetric.count(); i++) {
+			MemoryTraceMetric metric = MemoryTraceMetric.get(i);
+			if ((metricMask & metric.mask()) != 0) {
+				mCollectors[metric.getCollector().ordinal()] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns a plan for the given metric keys, or {@link #ALL} if the keys
+	 * are null. Keys that name no metric, like the label, are ignored.
+	 */
+	public static MemoryTraceCollectionPlan forKeys(String[] metricKeys) {
+		if (metricKeys == null) {
+			return ALL;
+		}
+		long mask = 0;
+		for (String key : metricKeys) {
+			MemoryTraceMetric metric = MemoryTraceMetric.forKey(key);
+			if (metric != null) {
+				mask |= metric.mask();
+			}
+		}
+		return new MemoryTraceCollectionPlan(mask);
+	}
+
+	public boolean collects(MemoryTraceMetric.Collector collector) {
+		return mCollectors[collector.ordinal()];
+	}
+
+	public boolean collects(MemoryTraceMetric metric) {
+		return (mMetricMask & metric.mask()) != 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MemoryTraceCollectionPlan[");
+		boolean first = true;
+		for (MemoryTraceMetric.Collector collector : MemoryTraceMetric.Collector.values()) {
+			if (collects(collector)) {
+				if (!first) {
+					sb.append(',');
+				}
+				sb.append(collector);
+				first = false;
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
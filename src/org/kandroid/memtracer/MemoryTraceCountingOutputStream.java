@@ -0,0 +1,38 @@
+package org.kandroid.memtracer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it. The count may be read from any
+ * thread.
+ */
+class MemoryTraceCountingOutputStream extends FilterOutputStream {
+	private volatile long mCount;
+
+	/**
+	 * Creates a stream whose count starts at <code>initialCount</code>, so
+	 * that a writer can keep one count over the files it writes in turn.
+	 */
+	MemoryTraceCountingOutputStream(OutputStream out, long initialCount) {
+		super(out);
+		mCount = initialCount;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		mCount++;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		out.write(buffer, offset, length);
+		mCount += length;
+	}
+
+	long getCount() {
+		return mCount;
+	}
+}
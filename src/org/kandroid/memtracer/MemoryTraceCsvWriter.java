@@ -1,21 +1,23 @@
 package org.kandroid.memtracer;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 import android.os.Bundle;
-import android.os.Environment;
 import android.util.Log;
 
-public class MemoryTraceCsvWriter implements MemoryTracer.ResultsWriter {
+public class MemoryTraceCsvWriter implements MemoryTracer.SnapshotWriter, MemoryTracer.CountingWriter, Flushable {
 	private static final String TAG = MemoryTraceCsvWriter.class.getSimpleName();
 	
-	private static final String[] DEFAULT_METRIC_KEYS = {
+	static final String[] DEFAULT_METRIC_KEYS = {
 		MemoryTracer.METRIC_KEY_LABEL,
+		MemoryTracer.METRIC_KEY_TIMESTAMP,
 		MemoryTracer.METRIC_KEY_JAVA_ALLOCATED,
 		MemoryTracer.METRIC_KEY_JAVA_FREE,
 		MemoryTracer.METRIC_KEY_NATIVE_ALLOCATED,
@@ -25,11 +27,24 @@ public class MemoryTraceCsvWriter implements MemoryTracer.ResultsWriter {
 	private static final String DEFAULT_MEMORY_TRACE_FILE_NAME = "kmemtrace.csv";
 	private static final String MEMORY_TRACE_FILE_NAME_PREFIX = "kmemtrace_";
 	private static final String MEMORY_TRACE_FILE_NAME_EXT = ".csv";
-	private static final SimpleDateFormat MEMORY_TRACE_FILE_NAME_DATE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss");
-	private static final String MEMORY_TRACE_FILE_DIR = "kmemtracer";
+	private static final int TRACE_FILE_BUFFER_SIZE = 8192;
+	private static final byte[] NULL_VALUE = "null".getBytes();
+	private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator", "\n").getBytes();
 
 	private PrintStream mTraceOut;
+	private volatile MemoryTraceCountingOutputStream mCounter;
+	private volatile long mBytesWritten;
 	private String[] mMetricKeys;
+	private boolean mAutoFlush = true;
+	private MemoryTraceSegments mSegments;
+	private String mTraceLabel;
+
+	// Resolved metric of each key, or null for the label and unknown keys.
+	private MemoryTraceMetric[] mMetrics;
+	// Rows of snapshot records are formatted here without allocating.
+	private byte[] mRow = new byte[256];
+	private int mRowLength;
+	private byte[][] mLabelBytes = new byte[64][];
 	
 	public MemoryTraceCsvWriter() {
 		this(DEFAULT_METRIC_KEYS);
@@ -37,14 +52,61 @@ public class MemoryTraceCsvWriter implements MemoryTracer.ResultsWriter {
 	
 	public MemoryTraceCsvWriter(String[] metricKeys) {
 		mMetricKeys = metricKeys;
+		mMetrics = new MemoryTraceMetric[metricKeys.length];
+		for (int i = 0; i < metricKeys.length; i++) {
+			mMetrics[i] = MemoryTraceMetric.forKey(metricKeys[i]);
+		}
+	}
+	
+	/**
+	 * Sets whether every snapshot is flushed to the trace file as soon as it
+	 * is written. Turn this off when an outer writer calls {@link #flush()}
+	 * itself, e.g. {@link MemoryTraceAsyncWriter}.
+	 */
+	public void setAutoFlush(boolean autoFlush) {
+		mAutoFlush = autoFlush;
+	}
+	
+	/**
+	 * Writes the trace to rolling, timestamped segments instead of
+	 * overwriting kmemtrace.csv. Each segment starts with the label and
+	 * header lines.
+	 */
+	public void setSegments(MemoryTraceSegments segments) {
+		mSegments = segments;
+	}
+	
+	/**
+	 * Returns segments that are named like the timestamped trace files,
+	 * without any roll or retention limits set.
+	 */
+	public static MemoryTraceSegments createSegments() {
+		return new MemoryTraceSegments(MEMORY_TRACE_FILE_NAME_PREFIX, MEMORY_TRACE_FILE_NAME_EXT);
+	}
+	
+	@Override
+	public String[] getMetricKeys() {
+		return mMetricKeys;
 	}
 	
 	@Override
 	public void writeTraceStart(String label) {
 		Log.d(TAG, "Start tracing for " + label);
-		openTraceFile(DEFAULT_MEMORY_TRACE_FILE_NAME);
+		mTraceLabel = label;
+		if (mSegments != null) {
+			openSegment();
+		} else {
+			openTraceFile(DEFAULT_MEMORY_TRACE_FILE_NAME);
+			writeHeader();
+		}
+	}
+
+	private void writeHeader() {
 		PrintStream out = mTraceOut;
-		out.println(label);
+		if (out == null) {
+			return;
+		}
+		out.println(mTraceLabel);
 		for (String key : mMetricKeys) {
 			out.print(key);
 			out.print(',');
@@ -54,51 +116,184 @@ public class MemoryTraceCsvWriter implements MemoryTracer.ResultsWriter {
 	}
 
 	private void openTraceFile(String filename) {
-		if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-			File traceFileDir = new File(
-					Environment.getExternalStorageDirectory().getAbsolutePath()
-					+ File.separator + MEMORY_TRACE_FILE_DIR);
-			traceFileDir.mkdirs();
-			File traceFile = new File(traceFileDir, filename);
+		File traceFile = MemoryTraceFiles.getTraceFile(filename);
+		if (traceFile != null) {
 			try {
-				mTraceOut = new PrintStream(new FileOutputStream(traceFile));
+				mCounter = new MemoryTraceCountingOutputStream(new FileOutputStream(traceFile), mBytesWritten);
+				mTraceOut = new PrintStream(new BufferedOutputStream(mCounter, TRACE_FILE_BUFFER_SIZE));
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
 				Log.w(TAG, "Failed to open the trace file "+traceFile.getAbsolutePath());
 			}			
-		} else {
-			Log.w(TAG, "Media not mounted");
 		}
 	}
 	
-	private static String getTraceFileName() {
-		StringBuilder sb = new StringBuilder();
-		sb.append(MEMORY_TRACE_FILE_NAME_PREFIX);
-		sb.append(MEMORY_TRACE_FILE_NAME_DATE_FORMAT.format(new Date()));
-		sb.append(MEMORY_TRACE_FILE_NAME_EXT);
-		return sb.toString();
+	private void openSegment() {
+		try {
+			OutputStream out = mSegments.openSegment();
+			if (out != null) {
+				mCounter = new MemoryTraceCountingOutputStream(out, mBytesWritten);
+				mTraceOut = new PrintStream(new BufferedOutputStream(mCounter, TRACE_FILE_BUFFER_SIZE));
+				writeHeader();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to open a trace segment", e);
+		}
+	}
+	
+	private void rollSegment() {
+		closeTraceFile();
+		mSegments.closeSegment();
+		openSegment();
+	}
+	
+	private void addRow(long timestamp) {
+		mSegments.addRow(timestamp);
+		if (mSegments.isRollDue()) {
+			rollSegment();
+		}
 	}
 	
 	@Override
 	public void writeTraceStop(Bundle results) {
 		Log.d(TAG, "Stop tracing");
-		closeTraceFile();		
+		closeTraceFile();
+		if (mSegments != null) {
+			mSegments.finish();
+		}
+		MemoryTraceSections.writeSectionsFile(results);
 	}
 
 	private void closeTraceFile() {
-		mTraceOut.close();
+		if (mTraceOut != null) {
+			mTraceOut.close();
+			mTraceOut = null;
+			mBytesWritten = mCounter.getCount();
+			mCounter = null;
+		}
+	}
+
+	@Override
+	public long getBytesWritten() {
+		MemoryTraceCountingOutputStream counter = mCounter;
+		return counter != null ? counter.getCount() : mBytesWritten;
 	}
 	
 	@Override
 	public void writeTraceSnapshot(Bundle snapshot) {
-		Log.d(TAG, "Write a snapshot "+snapshot);
+		if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Write a snapshot "+snapshot);
 		PrintStream out = mTraceOut;
+		if (out == null) {
+			return;
+		}
 		for (String key : mMetricKeys) {
 			out.print(snapshot.get(key));
 			out.print(',');
 		}
 		out.println();
-		out.flush();
+		if (mAutoFlush) out.flush();
+		if (mSegments != null) {
+			Object timestamp = snapshot.get(MemoryTracer.METRIC_KEY_TIMESTAMP);
+			addRow(timestamp instanceof Number ? ((Number) timestamp).longValue() : -1);
+		}
+	}
+
+	@Override
+	public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Write a snapshot "+snapshot);
+		mRowLength = 0;
+		for (int i = 0; i < mMetricKeys.length; i++) {
+			MemoryTraceMetric metric = mMetrics[i];
+			if (metric != null) {
+				if (snapshot.has(metric)) {
+					appendLong(snapshot.get(metric));
+				} else {
+					appendBytes(NULL_VALUE);
+				}
+			} else if (MemoryTracer.METRIC_KEY_LABEL.equals(mMetricKeys[i])) {
+				appendBytes(getLabelBytes(snapshot));
+			} else {
+				appendBytes(NULL_VALUE);
+			}
+			appendByte(',');
+		}
+		appendBytes(LINE_SEPARATOR);
+		PrintStream out = mTraceOut;
+		if (out == null) {
+			return;
+		}
+		out.write(mRow, 0, mRowLength);
+		if (mAutoFlush) out.flush();
+		if (mSegments != null) {
+			addRow(snapshot.has(MemoryTraceMetric.TIMESTAMP)
+					? snapshot.get(MemoryTraceMetric.TIMESTAMP) : -1);
+		}
+	}
+
+	private byte[] getLabelBytes(MemoryTraceSnapshot snapshot) {
+		int id = snapshot.getLabelId();
+		if (id < 0) {
+			return String.valueOf(snapshot.getLabel()).getBytes();
+		}
+		if (id >= mLabelBytes.length) {
+			byte[][] grown = new byte[Math.max(mLabelBytes.length * 2, id + 1)][];
+			System.arraycopy(mLabelBytes, 0, grown, 0, mLabelBytes.length);
+			mLabelBytes = grown;
+		}
+		byte[] bytes = mLabelBytes[id];
+		if (bytes == null) {
+			bytes = String.valueOf(snapshot.getLabel()).getBytes();
+			mLabelBytes[id] = bytes;
+		}
+		return bytes;
+	}
+
+	private void ensureRowCapacity(int extra) {
+		if (mRowLength + extra > mRow.length) {
+			byte[] row = new byte[Math.max(mRow.length * 2, mRowLength + extra)];
+			System.arraycopy(mRow, 0, row, 0, mRowLength);
+			mRow = row;
+		}
+	}
+
+	private void appendByte(int b) {
+		ensureRowCapacity(1);
+		mRow[mRowLength++] = (byte) b;
+	}
+
+	private void appendBytes(byte[] bytes) {
+		ensureRowCapacity(bytes.length);
+		System.arraycopy(bytes, 0, mRow, mRowLength, bytes.length);
+		mRowLength += bytes.length;
+	}
+
+	private void appendLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			appendBytes(String.valueOf(value).getBytes());
+			return;
+		}
+		ensureRowCapacity(20);
+		if (value < 0) {
+			mRow[mRowLength++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		int position = mRowLength + digits;
+		mRowLength = position;
+		do {
+			mRow[--position] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+	}
+
+	@Override
+	public void flush() {
+		if (mTraceOut != null) {
+			mTraceOut.flush();
+		}
 	}
 
 }
\ No newline at end of file
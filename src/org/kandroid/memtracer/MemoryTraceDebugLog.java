@@ -0,0 +1,101 @@
+package org.kandroid.memtracer;
+
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Logs snapshots from a background thread. Logging a snapshot only copies
+ * it into a preallocated ring; the line is rendered and written on the
+ * thread, so that its allocations do not land in the callback being
+ * measured. If the thread falls behind, the oldest lines are dropped.
+ */
+class MemoryTraceDebugLog {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final String mTag;
+	private final MemoryTraceRingBuffer mRing;
+	private final MemoryTraceSnapshot[] mBatch;
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+
+	MemoryTraceDebugLog(String tag) {
+		this(tag, DEFAULT_CAPACITY);
+	}
+
+	MemoryTraceDebugLog(String tag, int capacity) {
+		mTag = tag;
+		mRing = new MemoryTraceRingBuffer(capacity);
+		mBatch = new MemoryTraceSnapshot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mBatch[i] = new MemoryTraceSnapshot();
+		}
+	}
+
+	synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				while (mRunning) {
+					LockSupport.park(this);
+					writeLines();
+				}
+			}
+		}, MemoryTraceDebugLog.class.getSimpleName());
+		mThread.start();
+	}
+
+	/**
+	 * Queues the snapshot to be logged as "[label] snapshot".
+	 */
+	void log(MemoryTraceSnapshot snapshot) {
+		mRing.put(snapshot);
+		LockSupport.unpark(mThread);
+	}
+
+	/*
+	 * Stops the thread and logs what is left.
+	 */
+	synchronized void stop() {
+		if (!mRunning) {
+			return;
+		}
+		mRunning = false;
+		Thread thread = mThread;
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+		writeLines();
+		long dropped = mRing.getOverwrittenCount();
+		if (dropped > 0) {
+			Log.w(mTag, "Dropped " + dropped + " debug lines");
+		}
+	}
+
+	private void writeLines() {
+		int count;
+		while ((count = mRing.drainTo(mBatch)) > 0) {
+			for (int i = 0; i < count; i++) {
+				MemoryTraceSnapshot snapshot = mBatch[i];
+				Log.d(mTag, "[" + snapshot.getLabel() + "] " + snapshot.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.kandroid.memtracer;
+
+import android.os.Debug;
+
+/**
+ * Reads the binder, allocation, heap and memory info metrics from
+ * {@link Debug} and {@link Runtime}, as the tracer always did.
+ */
+public class MemoryTraceDebugSource implements MemoryTraceMetricSource {
+
+	private final ThreadLocal<Debug.MemoryInfo> mMemoryInfo = new ThreadLocal<Debug.MemoryInfo>() {
+		@Override
+		protected Debug.MemoryInfo initialValue() {
+			return new Debug.MemoryInfo();
+		}
+	};
+
+	@Override
+	public boolean provides(MemoryTraceMetric.Collector collector) {
+		switch (collector) {
+		case BINDER:
+		case ALLOC_COUNTS:
+		case NATIVE_HEAP:
+		case JAVA_HEAP:
+		case MEMORY_INFO:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public void collect(MemoryTraceMetric.Collector collector, MemoryTraceSnapshot snapshot) {
+		switch (collector) {
+		case BINDER:
+			snapshot.set(MemoryTraceMetric.SENT_TRANSACTIONS, Debug.getBinderSentTransactions());
+			snapshot.set(MemoryTraceMetric.RECEIVED_TRANSACTIONS, Debug.getBinderReceivedTransactions());
+			break;
+		case ALLOC_COUNTS:
+			collectAllocCounts(snapshot);
+			break;
+		case NATIVE_HEAP:
+			snapshot.set(MemoryTraceMetric.NATIVE_SIZE, Debug.getNativeHeapSize() / 1024);
+			snapshot.set(MemoryTraceMetric.NATIVE_ALLOCATED, Debug.getNativeHeapAllocatedSize() / 1024);
+			snapshot.set(MemoryTraceMetric.NATIVE_FREE, Debug.getNativeHeapFreeSize() / 1024);
+			break;
+		case JAVA_HEAP:
+			collectJavaHeap(snapshot);
+			break;
+		case MEMORY_INFO:
+			collectMemoryInfo(snapshot);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static void collectAllocCounts(MemoryTraceSnapshot snapshot) {
+		snapshot.set(MemoryTraceMetric.GLOBAL_ALLOC_COUNT, Debug.getGlobalAllocCount());
+		snapshot.set(MemoryTraceMetric.GLOBAL_ALLOC_SIZE, Debug.getGlobalAllocSize());
+		snapshot.set(MemoryTraceMetric.GLOBAL_FREED_COUNT, Debug.getGlobalFreedCount());
+		snapshot.set(MemoryTraceMetric.GLOBAL_FREED_SIZE, Debug.getGlobalFreedSize());
+		snapshot.set(MemoryTraceMetric.GLOBAL_EXTERNAL_ALLOC_COUNT, Debug.getGlobalExternalAllocCount());
+		snapshot.set(MemoryTraceMetric.GLOBAL_EXTERNAL_ALLOC_SIZE, Debug.getGlobalExternalAllocSize());
+		snapshot.set(MemoryTraceMetric.GLOBAL_EXTERNAL_FREED_COUNT, Debug.getGlobalExternalFreedCount());
+		snapshot.set(MemoryTraceMetric.GLOBAL_EXTERNAL_FREED_SIZE, Debug.getGlobalExternalFreedSize());
+		snapshot.set(MemoryTraceMetric.GC_INVOCATION_COUNT, Debug.getGlobalGcInvocationCount());
+		snapshot.set(MemoryTraceMetric.THREAD_ALLOC_COUNT, Debug.getThreadAllocCount());
+		snapshot.set(MemoryTraceMetric.THREAD_ALLOC_SIZE, Debug.getThreadAllocSize());
+	}
+
+	private static void collectJavaHeap(MemoryTraceSnapshot snapshot) {
+		Runtime runtime = Runtime.getRuntime();
+
+		long dalvikMax = runtime.totalMemory() / 1024;
+		long dalvikFree = runtime.freeMemory() / 1024;
+		long dalvikAllocated = dalvikMax - dalvikFree;
+
+		snapshot.set(MemoryTraceMetric.JAVA_SIZE, dalvikMax);
+		snapshot.set(MemoryTraceMetric.JAVA_ALLOCATED, dalvikAllocated);
+		snapshot.set(MemoryTraceMetric.JAVA_FREE, dalvikFree);
+	}
+
+	private void collectMemoryInfo(MemoryTraceSnapshot snapshot) {
+		Debug.MemoryInfo memInfo = mMemoryInfo.get();
+		Debug.getMemoryInfo(memInfo);
+
+		snapshot.set(MemoryTraceMetric.NATIVE_PSS, memInfo.nativePss);
+		snapshot.set(MemoryTraceMetric.NATIVE_PRIVATE_DIRTY, memInfo.nativePrivateDirty);
+		snapshot.set(MemoryTraceMetric.NATIVE_SHARED_DIRTY, memInfo.nativeSharedDirty);
+
+		snapshot.set(MemoryTraceMetric.JAVA_PSS, memInfo.dalvikPss);
+		snapshot.set(MemoryTraceMetric.JAVA_PRIVATE_DIRTY, memInfo.dalvikPrivateDirty);
+		snapshot.set(MemoryTraceMetric.JAVA_SHARED_DIRTY, memInfo.dalvikSharedDirty);
+
+		snapshot.set(MemoryTraceMetric.OTHER_PSS, memInfo.otherPss);
+		snapshot.set(MemoryTraceMetric.OTHER_PRIVATE_DIRTY, memInfo.otherPrivateDirty);
+		snapshot.set(MemoryTraceMetric.OTHER_SHARED_DIRTY, memInfo.otherSharedDirty);
+	}
+}
@@ -0,0 +1,43 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Locates the trace files on external storage.
+ */
+class MemoryTraceFiles {
+	private static final String TAG = MemoryTraceFiles.class.getSimpleName();
+
+	static final String MEMORY_TRACE_FILE_DIR = "kmemtracer";
+
+	private MemoryTraceFiles() {
+	}
+
+	/**
+	 * Returns the trace directory, creating it if needed, or null if the
+	 * external storage is not mounted.
+	 */
+	static File getTraceFileDir() {
+		if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+			Log.w(TAG, "Media not mounted");
+			return null;
+		}
+		File traceFileDir = new File(
+				Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ File.separator + MEMORY_TRACE_FILE_DIR);
+		traceFileDir.mkdirs();
+		return traceFileDir;
+	}
+
+	/**
+	 * Returns the named file in the trace directory, or null if the external
+	 * storage is not mounted.
+	 */
+	static File getTraceFile(String filename) {
+		File traceFileDir = getTraceFileDir();
+		return traceFileDir != null ? new File(traceFileDir, filename) : null;
+	}
+}
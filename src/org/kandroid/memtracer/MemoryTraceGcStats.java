@@ -0,0 +1,69 @@
+package org.kandroid.memtracer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Reads the number of collections and the time spent in them since the
+ * process started, from the statistics ART reports through
+ * <code>Debug.getRuntimeStat</code>. That method was added in API level 23,
+ * after the platform this library builds against, so it is looked up once
+ * by reflection. On older platforms the statistics are not available.
+ */
+class MemoryTraceGcStats {
+	private static final String TAG = MemoryTraceGcStats.class.getSimpleName();
+
+	private static final String STAT_GC_COUNT = "art.gc.gc-count";
+	private static final String STAT_GC_TIME = "art.gc.gc-time";
+
+	private static final Method sGetRuntimeStat = findGetRuntimeStat();
+
+	private MemoryTraceGcStats() {
+	}
+
+	private static Method findGetRuntimeStat() {
+		try {
+			return Debug.class.getMethod("getRuntimeStat", String.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	static boolean isAvailable() {
+		return sGetRuntimeStat != null;
+	}
+
+	/**
+	 * Returns the number of collections, or -1 if not available.
+	 */
+	static long getCount() {
+		return getStat(STAT_GC_COUNT);
+	}
+
+	/**
+	 * Returns the milliseconds spent collecting, or -1 if not available.
+	 */
+	static long getTimeMillis() {
+		return getStat(STAT_GC_TIME);
+	}
+
+	private static long getStat(String name) {
+		if (sGetRuntimeStat == null) {
+			return -1;
+		}
+		try {
+			Object value = sGetRuntimeStat.invoke(null, name);
+			return value != null ? Long.parseLong((String) value) : -1;
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "Failed to read " + name, e);
+		} catch (InvocationTargetException e) {
+			Log.w(TAG, "Failed to read " + name, e.getCause());
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Failed to read " + name, e);
+		}
+		return -1;
+	}
+}
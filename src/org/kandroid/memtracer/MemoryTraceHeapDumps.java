@@ -0,0 +1,448 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Captures heap dumps when the Java heap crosses a threshold, grows too
+ * fast, or a destroyed activity is not reclaimed. Set it with
+ * {@link MemoryTracer#setHeapDumps(MemoryTraceHeapDumps)}.
+ *
+ * Snapshots are checked as they are recorded. A dump suspends every thread
+ * of the process for seconds and writes a file as large as the heap, so
+ * dumps are rate limited: at most one at a time, none within the cooldown
+ * of the previous one, at most a number per run, and none that would take
+ * the dumps in the directory over the disk quota. Each dump is taken on its
+ * own thread, which first records a snapshot labeled
+ * <code>HeapDump-&lt;reason&gt;</code> so that the dump can be found in the
+ * trace.
+ */
+public class MemoryTraceHeapDumps {
+	private static final String TAG = MemoryTraceHeapDumps.class.getSimpleName();
+
+	public static final String REASON_THRESHOLD = "Threshold";
+	public static final String REASON_GROWTH = "Growth";
+	public static final String REASON_LEAK = "Leak";
+
+	public static final String DUMP_KEY_REASON = "reason";
+	public static final String DUMP_KEY_DETAIL = "detail";
+	public static final String DUMP_KEY_FILE = "file";
+	public static final String DUMP_KEY_TIMESTAMP = "timestamp";
+	public static final String DUMP_KEY_JAVA_ALLOCATED = "java_allocated";
+	public static final String DUMP_KEY_SIZE = "size";
+	public static final String DUMP_KEY_DURATION = "duration";
+	public static final String DUMP_KEY_SKIPPED = "skipped";
+
+	static final String DUMP_FILE_PREFIX = "kmemtrace_heap_";
+	static final String DUMP_FILE_SUFFIX = ".hprof";
+	private static final String EVENT_LABEL_PREFIX = "HeapDump-";
+
+	private static final long DEFAULT_COOLDOWN_MILLIS = 60000;
+	private static final int DEFAULT_MAX_DUMPS = 3;
+	private static final long DEFAULT_QUOTA_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Notified of each dump when it is complete, on the thread that took it.
+	 */
+	public interface Listener {
+		public void onHeapDump(Dump dump);
+	}
+
+	/**
+	 * A heap dump and what triggered it.
+	 */
+	public static class Dump {
+		private final String mReason;
+		private final String mDetail;
+		private final File mFile;
+		private final long mTimestamp;
+		private final long mJavaAllocated;
+		private long mSize;
+		private long mDuration;
+
+		Dump(String reason, String detail, File file, long timestamp, long javaAllocated) {
+			mReason = reason;
+			mDetail = detail;
+			mFile = file;
+			mTimestamp = timestamp;
+			mJavaAllocated = javaAllocated;
+		}
+
+		/**
+		 * Returns one of the <code>REASON_*</code> values.
+		 */
+		public String getReason() {
+			return mReason;
+		}
+
+		public String getDetail() {
+			return mDetail;
+		}
+
+		public File getFile() {
+			return mFile;
+		}
+
+		/**
+		 * Returns the time of the trigger, in the clock of the trace.
+		 */
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		/**
+		 * Returns the allocated Java heap in KB that triggered the dump, or -1
+		 * if not known.
+		 */
+		public long getJavaAllocated() {
+			return mJavaAllocated;
+		}
+
+		/**
+		 * Returns the size of the file, or zero if the dump failed.
+		 */
+		public long getSize() {
+			return mSize;
+		}
+
+		public long getDuration() {
+			return mDuration;
+		}
+
+		@Override
+		public String toString() {
+			return mReason + " (" + mDetail + "): " + mFile.getName() + ", " + mSize + " bytes in "
+					+ mDuration + " ms";
+		}
+	}
+
+	private long mThreshold;
+	private int mGrowthWindow;
+	private long mGrowthLimit;
+	private long mCooldownMillis = DEFAULT_COOLDOWN_MILLIS;
+	private int mMaxDumps = DEFAULT_MAX_DUMPS;
+	private long mQuotaBytes = DEFAULT_QUOTA_BYTES;
+	private File mDirectory;
+	private Listener mListener;
+
+	private MemoryTracer mTracer;
+	private int[] mEventLabelIds;
+	private boolean mArmed;
+	// The timestamps and values of the last snapshots, for the growth rate.
+	private long[] mWindowTimes;
+	private long[] mWindowValues;
+	private int mWindowCount;
+	private int mWindowNext;
+	private long mLastDumpTime;
+	private Thread mDumpThread;
+	private long mLastDumpSize;
+	private int mSequence;
+	private int mSkipped;
+	private final List<Dump> mDumps = new ArrayList<Dump>();
+
+	/**
+	 * Dumps the heap when the allocated Java heap reaches the given KB. It
+	 * has to fall below it again before it can trigger another dump. Zero
+	 * turns it off, which is the default.
+	 */
+	public synchronized void setThreshold(long javaAllocatedKb) {
+		mThreshold = javaAllocatedKb;
+	}
+
+	/**
+	 * Dumps the heap when the allocated Java heap grew by more than
+	 * <code>kbPerSecond</code> on average over the last
+	 * <code>snapshots</code> snapshots. Zero turns it off, which is the
+	 * default.
+	 */
+	public synchronized void setGrowthLimit(int snapshots, long kbPerSecond) {
+		if (snapshots == 1 || snapshots < 0) {
+			throw new IllegalArgumentException("Invalid growth window: " + snapshots);
+		}
+		mGrowthWindow = snapshots;
+		mGrowthLimit = kbPerSecond;
+	}
+
+	/**
+	 * Sets the time after a dump during which no other dump is taken. It is
+	 * a minute by default.
+	 */
+	public synchronized void setCooldownMillis(long cooldownMillis) {
+		mCooldownMillis = cooldownMillis;
+	}
+
+	/**
+	 * Sets the most dumps taken per run. It is three by default.
+	 */
+	public synchronized void setMaxDumps(int maxDumps) {
+		mMaxDumps = maxDumps;
+	}
+
+	/**
+	 * Sets the most bytes the dumps in the directory, including those of
+	 * earlier runs, may take. A dump that is expected to exceed it is not
+	 * taken, and one that does is deleted. It is 256 MB by default.
+	 */
+	public synchronized void setQuotaBytes(long quotaBytes) {
+		mQuotaBytes = quotaBytes;
+	}
+
+	/**
+	 * Sets the directory of the dumps. It is the trace directory by default.
+	 */
+	public synchronized void setDirectory(File directory) {
+		mDirectory = directory;
+	}
+
+	public synchronized void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Returns the keys of the metrics the triggers read.
+	 */
+	String[] getMetricKeys() {
+		return new String[] { MemoryTracer.METRIC_KEY_TIMESTAMP, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED };
+	}
+
+	/*
+	 * Resets the triggers and the limits for a new run.
+	 */
+	synchronized void start(MemoryTracer tracer) {
+		mTracer = tracer;
+		String[] reasons = { REASON_THRESHOLD, REASON_GROWTH, REASON_LEAK };
+		mEventLabelIds = new int[reasons.length];
+		for (int i = 0; i < reasons.length; i++) {
+			mEventLabelIds[i] = tracer.internLabel(EVENT_LABEL_PREFIX + reasons[i]);
+		}
+		mArmed = true;
+		mWindowTimes = mGrowthWindow > 0 ? new long[mGrowthWindow] : null;
+		mWindowValues = mGrowthWindow > 0 ? new long[mGrowthWindow] : null;
+		mWindowCount = 0;
+		mWindowNext = 0;
+		mLastDumpTime = -1;
+		mSkipped = 0;
+		mDumps.clear();
+	}
+
+	/*
+	 * Stops triggering dumps and waits for the dump in progress, if any, so
+	 * that its file is complete and its event is in the trace. Called while
+	 * the tracer still records.
+	 */
+	void stop() {
+		Thread dumpThread;
+		synchronized (this) {
+			mTracer = null;
+			dumpThread = mDumpThread;
+		}
+		if (dumpThread == null) {
+			return;
+		}
+		try {
+			dumpThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Checks a recorded snapshot against the threshold and the growth limit.
+	 * Runs on the thread that records snapshots.
+	 */
+	synchronized void check(MemoryTraceSnapshot snapshot) {
+		if (mEventLabelIds == null || !snapshot.has(MemoryTraceMetric.JAVA_ALLOCATED)) {
+			return;
+		}
+		for (int labelId : mEventLabelIds) {
+			if (snapshot.getLabelId() == labelId) {
+				return;
+			}
+		}
+		long value = snapshot.get(MemoryTraceMetric.JAVA_ALLOCATED);
+		if (mThreshold > 0) {
+			if (value < mThreshold) {
+				mArmed = true;
+			} else if (mArmed) {
+				mArmed = false;
+				trigger(REASON_THRESHOLD, snapshot.getLabel() + " at " + value + " KB", value);
+			}
+		}
+		if (mWindowValues != null && snapshot.has(MemoryTraceMetric.TIMESTAMP)) {
+			checkGrowth(snapshot, snapshot.get(MemoryTraceMetric.TIMESTAMP), value);
+		}
+	}
+
+	private void checkGrowth(MemoryTraceSnapshot snapshot, long timestamp, long value) {
+		mWindowTimes[mWindowNext] = timestamp;
+		mWindowValues[mWindowNext] = value;
+		mWindowNext = (mWindowNext + 1) % mWindowValues.length;
+		if (mWindowCount < mWindowValues.length) {
+			mWindowCount++;
+			return;
+		}
+		// The window is full, so the next slot holds the oldest value.
+		long elapsed = timestamp - mWindowTimes[mWindowNext];
+		if (elapsed <= 0) {
+			return;
+		}
+		long rate = (long) ((value - mWindowValues[mWindowNext]) * 1e9 / elapsed);
+		if (rate > mGrowthLimit) {
+			// Start over, so that one burst triggers once.
+			mWindowCount = 0;
+			trigger(REASON_GROWTH, snapshot.getLabel() + " at " + rate + " KB/s over "
+					+ mWindowValues.length + " snapshots", value);
+		}
+	}
+
+	/**
+	 * Takes a dump unless the limits forbid it, and returns whether it did.
+	 * The dump is taken on another thread. The snapshots trigger
+	 * {@link #REASON_THRESHOLD} and {@link #REASON_GROWTH} dumps; call it
+	 * with {@link #REASON_LEAK} from
+	 * {@link MemoryTraceActivityTracker.Listener#onLeakSuspected}.
+	 */
+	public synchronized boolean trigger(String reason, String detail, long javaAllocatedKb) {
+		if (mTracer == null) {
+			return false;
+		}
+		long now = SystemClock.elapsedRealtime();
+		String skipped = null;
+		if (mDumpThread != null) {
+			skipped = "a dump is in progress";
+		} else if (mDumps.size() >= mMaxDumps) {
+			skipped = "the limit of " + mMaxDumps + " dumps is reached";
+		} else if (mLastDumpTime >= 0 && now - mLastDumpTime < mCooldownMillis) {
+			skipped = "the cooldown has " + (mCooldownMillis - (now - mLastDumpTime)) + " ms left";
+		}
+		File directory = mDirectory != null ? mDirectory : MemoryTraceFiles.getTraceFileDir();
+		if (skipped == null && directory == null) {
+			skipped = "there is no directory for it";
+		}
+		if (skipped == null) {
+			long expected = mLastDumpSize > 0 ? mLastDumpSize : Runtime.getRuntime().totalMemory();
+			if (getUsedBytes(directory) + expected > mQuotaBytes) {
+				skipped = "the quota of " + mQuotaBytes + " bytes would be exceeded";
+			}
+		}
+		if (skipped != null) {
+			mSkipped++;
+			Log.w(TAG, "Skipped a heap dump for " + reason + " (" + detail + ") as " + skipped);
+			return false;
+		}
+		mLastDumpTime = now;
+		final Dump dump = new Dump(reason, detail,
+				new File(directory, DUMP_FILE_PREFIX + (++mSequence) + "_" + reason.toLowerCase()
+						+ "_" + now + DUMP_FILE_SUFFIX),
+				MemoryTraceClock.now(), javaAllocatedKb);
+		final int eventLabelId = mEventLabelIds[reasonIndex(reason)];
+		final MemoryTracer tracer = mTracer;
+		mDumpThread = new Thread(TAG) {
+			@Override
+			public void run() {
+				dump(tracer, eventLabelId, dump);
+			}
+		};
+		mDumpThread.start();
+		return true;
+	}
+
+	private static int reasonIndex(String reason) {
+		return REASON_THRESHOLD.equals(reason) ? 0 : REASON_GROWTH.equals(reason) ? 1 : 2;
+	}
+
+	private void dump(MemoryTracer tracer, int eventLabelId, Dump dump) {
+		// The event goes into the trace before the pause the dump causes.
+		tracer.addSnapshot(eventLabelId, false, null);
+		long start = SystemClock.uptimeMillis();
+		File file = dump.getFile();
+		try {
+			Debug.dumpHprofData(file.getAbsolutePath());
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to dump the heap to " + file.getAbsolutePath(), e);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Failed to dump the heap to " + file.getAbsolutePath(), e);
+		}
+		dump.mDuration = SystemClock.uptimeMillis() - start;
+		dump.mSize = file.length();
+		Listener listener;
+		synchronized (this) {
+			if (dump.mSize > 0 && getUsedBytes(file.getParentFile()) > mQuotaBytes) {
+				Log.w(TAG, "Deleted " + file.getName() + " as it exceeds the quota of " + mQuotaBytes + " bytes");
+				file.delete();
+				dump.mSize = 0;
+				mSkipped++;
+			}
+			if (dump.mSize > 0) {
+				mLastDumpSize = dump.mSize;
+				mDumps.add(dump);
+				Log.d(TAG, "Dumped the heap for " + dump);
+			}
+			mDumpThread = null;
+			listener = mListener;
+		}
+		if (listener != null && dump.mSize > 0) {
+			listener.onHeapDump(dump);
+		}
+	}
+
+	private static long getUsedBytes(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		long used = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(DUMP_FILE_PREFIX) && name.endsWith(DUMP_FILE_SUFFIX)) {
+				used += file.length();
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the dumps of this run.
+	 */
+	public synchronized List<Dump> getDumps() {
+		return new ArrayList<Dump>(mDumps);
+	}
+
+	/**
+	 * Returns the number of triggers the limits kept from dumping.
+	 */
+	public synchronized int getSkippedCount() {
+		return mSkipped;
+	}
+
+	/**
+	 * Returns the dumps by file name, along with the number of skipped
+	 * triggers, or null if nothing triggered.
+	 */
+	public synchronized Bundle toBundle() {
+		if (mDumps.isEmpty() && mSkipped == 0) {
+			return null;
+		}
+		Bundle results = new Bundle();
+		for (Dump dump : mDumps) {
+			Bundle values = new Bundle();
+			values.putString(DUMP_KEY_REASON, dump.getReason());
+			values.putString(DUMP_KEY_DETAIL, dump.getDetail());
+			values.putString(DUMP_KEY_FILE, dump.getFile().getAbsolutePath());
+			values.putLong(DUMP_KEY_TIMESTAMP, dump.getTimestamp());
+			values.putLong(DUMP_KEY_JAVA_ALLOCATED, dump.getJavaAllocated());
+			values.putLong(DUMP_KEY_SIZE, dump.getSize());
+			values.putLong(DUMP_KEY_DURATION, dump.getDuration());
+			results.putBundle(dump.getFile().getName(), values);
+		}
+		results.putInt(DUMP_KEY_SKIPPED, mSkipped);
+		return results;
+	}
+}
@@ -0,0 +1,385 @@
+package org.kandroid.memtracer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The index of a binary trace, kept next to it as <code>&lt;trace&gt;.idx</code>.
+ * It is built block by block while the trace is written:
+ * <ul>
+ * <li>a sparse time index: the file offset, the row count and the range of
+ * timestamps of every block;</li>
+ * <li>a posting list per label: the blocks that hold rows of the label, and
+ * how many.</li>
+ * </ul>
+ *
+ * <pre>
+ * index   := "KMTI" version:u8 dataLength:varint blockCount:varint block*
+ *            labelCount:varint label* crc:u32
+ * block   := offsetDelta:varint rowCount:varint minTimestamp:zigzag maxTimestamp:zigzag
+ * label   := name:string postingCount:varint (blockDelta:varint rows:varint)*
+ * </pre>
+ *
+ * A block without timestamps has an empty range, from Long.MAX_VALUE to
+ * Long.MIN_VALUE.
+ */
+class MemoryTraceIndex {
+
+	static final String INDEX_FILE_EXT = ".idx";
+
+	private static final byte[] MAGIC = { 'K', 'M', 'T', 'I' };
+	private static final int VERSION = 1;
+
+	private long mDataLength;
+	private int mBlockCount;
+	private long[] mOffsets = new long[64];
+	private int[] mRowCounts = new int[64];
+	private long[] mMinTimestamps = new long[64];
+	private long[] mMaxTimestamps = new long[64];
+
+	private final ArrayList<String> mLabels = new ArrayList<String>();
+	// Indexed by label id.
+	private int[][] mPostingBlocks = new int[16][];
+	private int[][] mPostingRows = new int[16][];
+	private int[] mPostingCounts = new int[16];
+
+	// The block being added.
+	private int mBlockRows;
+	private long mBlockMin = Long.MAX_VALUE;
+	private long mBlockMax = Long.MIN_VALUE;
+	private int[] mBlockLabelRows = new int[16];
+	private int[] mBlockLabels = new int[16];
+	private int mBlockLabelCount;
+
+	/**
+	 * Returns the index file of a trace file.
+	 */
+	static File getIndexFile(File traceFile) {
+		return new File(traceFile.getPath() + INDEX_FILE_EXT);
+	}
+
+	/**
+	 * Declares the next label, whose id is the number of labels so far.
+	 */
+	void addLabel(String label) {
+		int id = mLabels.size();
+		mLabels.add(label);
+		if (id == mPostingCounts.length) {
+			int size = id * 2;
+			mPostingBlocks = grow(mPostingBlocks, size);
+			mPostingRows = grow(mPostingRows, size);
+			mPostingCounts = grow(mPostingCounts, size);
+			mBlockLabelRows = grow(mBlockLabelRows, size);
+			mBlockLabels = grow(mBlockLabels, size);
+		}
+	}
+
+	/**
+	 * Adds a row to the block being added.
+	 */
+	void addRow(int labelId, long timestamp, boolean hasTimestamp) {
+		mBlockRows++;
+		if (mBlockLabelRows[labelId]++ == 0) {
+			mBlockLabels[mBlockLabelCount++] = labelId;
+		}
+		if (hasTimestamp) {
+			if (timestamp < mBlockMin) {
+				mBlockMin = timestamp;
+			}
+			if (timestamp > mBlockMax) {
+				mBlockMax = timestamp;
+			}
+		}
+	}
+
+	/**
+	 * Ends the block being added, which was written at
+	 * <code>[offset, end)</code> in the trace file.
+	 */
+	void endBlock(long offset, long end) {
+		int block = mBlockCount;
+		if (block == mOffsets.length) {
+			int size = block * 2;
+			mOffsets = grow(mOffsets, size);
+			mRowCounts = grow(mRowCounts, size);
+			mMinTimestamps = grow(mMinTimestamps, size);
+			mMaxTimestamps = grow(mMaxTimestamps, size);
+		}
+		mOffsets[block] = offset;
+		mRowCounts[block] = mBlockRows;
+		mMinTimestamps[block] = mBlockMin;
+		mMaxTimestamps[block] = mBlockMax;
+		mBlockCount = block + 1;
+		mDataLength = end;
+
+		for (int i = 0; i < mBlockLabelCount; i++) {
+			int labelId = mBlockLabels[i];
+			addPosting(labelId, block, mBlockLabelRows[labelId]);
+			mBlockLabelRows[labelId] = 0;
+		}
+		mBlockLabelCount = 0;
+		mBlockRows = 0;
+		mBlockMin = Long.MAX_VALUE;
+		mBlockMax = Long.MIN_VALUE;
+	}
+
+	private void addPosting(int labelId, int block, int rows) {
+		int count = mPostingCounts[labelId];
+		int[] blocks = mPostingBlocks[labelId];
+		if (blocks == null) {
+			blocks = new int[4];
+			mPostingBlocks[labelId] = blocks;
+			mPostingRows[labelId] = new int[4];
+		} else if (count == blocks.length) {
+			blocks = grow(blocks, count * 2);
+			mPostingBlocks[labelId] = blocks;
+			mPostingRows[labelId] = grow(mPostingRows[labelId], count * 2);
+		}
+		blocks[count] = block;
+		mPostingRows[labelId][count] = rows;
+		mPostingCounts[labelId] = count + 1;
+	}
+
+	/**
+	 * Returns the length of the trace file that is indexed.
+	 */
+	long getDataLength() {
+		return mDataLength;
+	}
+
+	int getBlockCount() {
+		return mBlockCount;
+	}
+
+	long getOffset(int block) {
+		return mOffsets[block];
+	}
+
+	/**
+	 * Returns the number of bytes of a block, including its framing.
+	 */
+	long getLength(int block) {
+		long end = block + 1 < mBlockCount ? mOffsets[block + 1] : mDataLength;
+		return end - mOffsets[block];
+	}
+
+	int getRowCount(int block) {
+		return mRowCounts[block];
+	}
+
+	long getMinTimestamp(int block) {
+		return mMinTimestamps[block];
+	}
+
+	long getMaxTimestamp(int block) {
+		return mMaxTimestamps[block];
+	}
+
+	List<String> getLabels() {
+		return mLabels;
+	}
+
+	int getPostingCount(int labelId) {
+		return mPostingCounts[labelId];
+	}
+
+	/**
+	 * Returns the blocks holding rows of a label, in ascending order. Only the
+	 * first {@link #getPostingCount(int)} entries are valid.
+	 */
+	int[] getPostingBlocks(int labelId) {
+		int[] blocks = mPostingBlocks[labelId];
+		return blocks != null ? blocks : new int[0];
+	}
+
+	int[] getPostingRows(int labelId) {
+		int[] rows = mPostingRows[labelId];
+		return rows != null ? rows : new int[0];
+	}
+
+	/**
+	 * Writes the index to a temporary file and renames it over
+	 * <code>file</code>, so a reader never sees half an index.
+	 */
+	void write(File file) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + mBlockCount * 12);
+		buffer.write(MAGIC);
+		buffer.write(VERSION);
+		writeVarint(buffer, mDataLength);
+		writeVarint(buffer, mBlockCount);
+		long previousOffset = 0;
+		long previousMin = 0;
+		for (int block = 0; block < mBlockCount; block++) {
+			writeVarint(buffer, mOffsets[block] - previousOffset);
+			writeVarint(buffer, mRowCounts[block]);
+			writeVarint(buffer, MemoryTraceBinaryEncoder.zigzag(mMinTimestamps[block] - previousMin));
+			writeVarint(buffer, MemoryTraceBinaryEncoder.zigzag(
+					mMaxTimestamps[block] - mMinTimestamps[block]));
+			previousOffset = mOffsets[block];
+			previousMin = mMinTimestamps[block];
+		}
+		writeVarint(buffer, mLabels.size());
+		for (int labelId = 0; labelId < mLabels.size(); labelId++) {
+			byte[] name;
+			try {
+				name = mLabels.get(labelId).getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+			writeVarint(buffer, name.length);
+			buffer.write(name);
+			int count = mPostingCounts[labelId];
+			writeVarint(buffer, count);
+			int previousBlock = 0;
+			for (int i = 0; i < count; i++) {
+				writeVarint(buffer, mPostingBlocks[labelId][i] - previousBlock);
+				writeVarint(buffer, mPostingRows[labelId][i]);
+				previousBlock = mPostingBlocks[labelId][i];
+			}
+		}
+		byte[] bytes = buffer.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			out.write(bytes);
+			int value = (int) crc.getValue();
+			out.write(value >>> 24);
+			out.write(value >>> 16);
+			out.write(value >>> 8);
+			out.write(value);
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Failed to rename " + tmpFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #write(File)}.
+	 */
+	static MemoryTraceIndex read(File file) throws IOException {
+		long fileLength = file.length();
+		if (fileLength < MAGIC.length + 5 || fileLength > Integer.MAX_VALUE) {
+			throw new IOException("Bad index length " + fileLength);
+		}
+		byte[] bytes = new byte[(int) fileLength];
+		InputStream fileIn = new FileInputStream(file);
+		try {
+			MemoryTraceBinaryDecoder.readFully(fileIn, bytes, 0, bytes.length);
+		} finally {
+			fileIn.close();
+		}
+		int length = bytes.length - 4;
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		if (MemoryTraceBinaryDecoder.readInt(new ByteArrayInputStream(bytes, length, 4))
+				!= (int) crc.getValue()) {
+			throw new IOException("Corrupt index");
+		}
+		InputStream in = new ByteArrayInputStream(bytes, 0, length);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.read() != MAGIC[i]) {
+				throw new IOException("Not a trace index");
+			}
+		}
+		int version = in.read();
+		if (version != VERSION) {
+			throw new IOException("Unsupported index version " + version);
+		}
+
+		MemoryTraceIndex index = new MemoryTraceIndex();
+		index.mDataLength = MemoryTraceBinaryDecoder.readVarint(in);
+		int blockCount = readCount(in);
+		index.mBlockCount = blockCount;
+		index.mOffsets = new long[Math.max(blockCount, 1)];
+		index.mRowCounts = new int[index.mOffsets.length];
+		index.mMinTimestamps = new long[index.mOffsets.length];
+		index.mMaxTimestamps = new long[index.mOffsets.length];
+		long offset = 0;
+		long min = 0;
+		for (int block = 0; block < blockCount; block++) {
+			offset += MemoryTraceBinaryDecoder.readVarint(in);
+			index.mOffsets[block] = offset;
+			index.mRowCounts[block] = (int) MemoryTraceBinaryDecoder.readVarint(in);
+			min += unzigzag(MemoryTraceBinaryDecoder.readVarint(in));
+			index.mMinTimestamps[block] = min;
+			index.mMaxTimestamps[block] = min + unzigzag(MemoryTraceBinaryDecoder.readVarint(in));
+		}
+		int labelCount = readCount(in);
+		for (int labelId = 0; labelId < labelCount; labelId++) {
+			byte[] name = new byte[readCount(in)];
+			MemoryTraceBinaryDecoder.readFully(in, name, 0, name.length);
+			index.addLabel(new String(name, "UTF-8"));
+			int count = readCount(in);
+			int[] blocks = new int[Math.max(count, 1)];
+			int[] rows = new int[blocks.length];
+			int block = 0;
+			for (int i = 0; i < count; i++) {
+				block += (int) MemoryTraceBinaryDecoder.readVarint(in);
+				if (block < 0 || block >= blockCount) {
+					throw new IOException("Bad posting " + block);
+				}
+				blocks[i] = block;
+				rows[i] = (int) MemoryTraceBinaryDecoder.readVarint(in);
+			}
+			index.mPostingBlocks[labelId] = blocks;
+			index.mPostingRows[labelId] = rows;
+			index.mPostingCounts[labelId] = count;
+		}
+		return index;
+	}
+
+	private static int readCount(InputStream in) throws IOException {
+		long count = MemoryTraceBinaryDecoder.readVarint(in);
+		// Every count is bounded by the bytes left.
+		if (count < 0 || count > in.available()) {
+			throw new IOException("Bad count " + count);
+		}
+		return (int) count;
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static int[] grow(int[] array, int size) {
+		int[] grown = new int[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static long[] grow(long[] array, int size) {
+		long[] grown = new long[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[][] grow(int[][] array, int size) {
+		int[][] grown = new int[size][];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
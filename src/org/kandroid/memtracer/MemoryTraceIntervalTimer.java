@@ -0,0 +1,26 @@
+package org.kandroid.memtracer;
+
+/**
+ * The per-thread state of snapshot recording: the start of the current
+ * interval. Each thread that takes snapshots has its own, so recording needs
+ * no lock.
+ */
+class MemoryTraceIntervalTimer {
+	// The tracing session the interval start belongs to.
+	int mGeneration = -1;
+	// In nanoseconds of the trace clock.
+	long mLastExecTime;
+	long mLastCpuTime;
+	long mLastThreadCpuTime;
+	// Whether the thread is in the tracer, and what it cost so far.
+	boolean mInTracer;
+	long mSectionStartTime;
+	long mSectionStartCpuTime;
+	long mSectionStartAllocCount;
+	long mSectionStartAllocSize;
+	// What the tracer cost the thread in the current interval.
+	long mTracerTime;
+	long mTracerCpuTime;
+	long mTracerAllocCount;
+	long mTracerAllocSize;
+}
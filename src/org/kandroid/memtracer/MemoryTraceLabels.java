@@ -0,0 +1,53 @@
+package org.kandroid.memtracer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns snapshot labels to small integer ids. Looking up a label that has
+ * already been interned neither locks nor allocates.
+ */
+public class MemoryTraceLabels {
+
+	private final ConcurrentHashMap<String, Integer> mIds = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] mLabels = new String[64];
+	private int mCount;
+
+	/**
+	 * Returns the id of the label, assigning the next free id on first use.
+	 */
+	public int intern(String label) {
+		Integer id = mIds.get(label);
+		if (id != null) {
+			return id.intValue();
+		}
+		synchronized (this) {
+			id = mIds.get(label);
+			if (id != null) {
+				return id.intValue();
+			}
+			String[] labels = mLabels;
+			if (mCount == labels.length) {
+				String[] grown = new String[labels.length * 2];
+				System.arraycopy(labels, 0, grown, 0, labels.length);
+				labels = grown;
+			}
+			int newId = mCount++;
+			labels[newId] = label;
+			// Publish the array before the id so that readers of the id see it.
+			mLabels = labels;
+			mIds.put(label, Integer.valueOf(newId));
+			return newId;
+		}
+	}
+
+	/**
+	 * Returns the label of an interned id.
+	 */
+	public String get(int id) {
+		return mLabels[id];
+	}
+
+	public synchronized int size() {
+		return mCount;
+	}
+}
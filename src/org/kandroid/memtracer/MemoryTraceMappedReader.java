@@ -0,0 +1,297 @@
+package org.kandroid.memtracer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Recovers the snapshots from a file written by {@link MemoryTraceMappedWriter},
+ * including one left behind by a process that died while tracing. Every
+ * complete record is read, also those written after the last update of the
+ * committed length; only a torn final record is discarded.
+ */
+public class MemoryTraceMappedReader {
+
+	private final InputStream mIn;
+	private final CRC32 mCrc = new CRC32();
+	private final ArrayList<String> mLabels = new ArrayList<String>();
+	private long mPosition;
+
+	private int mChunkSize;
+	private long mCommittedLength;
+	private String mTraceLabel;
+	private String[] mMetricKeys;
+	private boolean mTruncated;
+
+	private byte[] mRecord = new byte[256];
+	private int mRecordLength;
+	private int mRecordPosition;
+
+	private String mLabel;
+	private long[] mValues;
+	private long mPresentMask;
+
+	public MemoryTraceMappedReader(InputStream in) throws IOException {
+		mIn = in;
+		readPrefix();
+		if (!readRecord() || mRecord[0] != MemoryTraceMappedWriter.RECORD_HEADER) {
+			throw new IOException("Missing trace header");
+		}
+		mRecordPosition = 1;
+		mTraceLabel = recordString();
+		int keyCount = (int) recordVarint();
+		if (keyCount < 0 || keyCount > MemoryTraceBinaryEncoder.MAX_COLUMNS) {
+			throw new IOException("Bad key count " + keyCount);
+		}
+		mMetricKeys = new String[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			mMetricKeys[i] = recordString();
+		}
+		mValues = new long[keyCount];
+	}
+
+	public String getTraceLabel() {
+		return mTraceLabel;
+	}
+
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	/**
+	 * Returns the committed length recorded in the file header. Records past
+	 * it are still read if they are complete.
+	 */
+	public long getCommittedLength() {
+		return mCommittedLength;
+	}
+
+	/**
+	 * Advances to the next row. Returns false at the end of the trace.
+	 */
+	public boolean next() throws IOException {
+		while (readRecord()) {
+			int kind = mRecord[0];
+			mRecordPosition = 1;
+			if (kind == MemoryTraceMappedWriter.RECORD_LABEL) {
+				mLabels.add(recordString());
+			} else if (kind == MemoryTraceMappedWriter.RECORD_ROW) {
+				readRow();
+				return true;
+			} else {
+				throw new IOException("Unknown record " + kind + " at " + mPosition);
+			}
+		}
+		return false;
+	}
+
+	public String getLabel() {
+		return mLabel;
+	}
+
+	/**
+	 * Returns the values of the current row, indexed like the metric keys.
+	 * The array is reused by {@link #next()}.
+	 */
+	public long[] getValues() {
+		return mValues;
+	}
+
+	public boolean isPresent(int column) {
+		return (mPresentMask & (1L << column)) != 0;
+	}
+
+	/**
+	 * Returns true if a torn final record was discarded.
+	 */
+	public boolean isTruncated() {
+		return mTruncated;
+	}
+
+	/**
+	 * Writes the remaining rows in the layout of {@link MemoryTraceCsvWriter}.
+	 * Returns the number of rows written.
+	 */
+	public long writeCsv(PrintStream out) throws IOException {
+		String[] keys = mMetricKeys;
+		out.println(mTraceLabel);
+		for (String key : keys) {
+			out.print(key);
+			out.print(',');
+		}
+		out.println();
+		long rows = 0;
+		while (next()) {
+			for (int column = 0; column < keys.length; column++) {
+				if (MemoryTracer.METRIC_KEY_LABEL.equals(keys[column])) {
+					out.print(mLabel);
+				} else if (isPresent(column)) {
+					out.print(mValues[column]);
+				} else {
+					out.print("null");
+				}
+				out.print(',');
+			}
+			out.println();
+			rows++;
+		}
+		out.flush();
+		return rows;
+	}
+
+	private void readPrefix() throws IOException {
+		byte[] prefix = new byte[MemoryTraceMappedWriter.PREFIX_SIZE];
+		MemoryTraceBinaryDecoder.readFully(mIn, prefix, 0, prefix.length);
+		mPosition = prefix.length;
+		for (int i = 0; i < MemoryTraceMappedWriter.MAGIC.length; i++) {
+			if (prefix[i] != MemoryTraceMappedWriter.MAGIC[i]) {
+				throw new IOException("Not a mapped memory trace");
+			}
+		}
+		int version = prefix[MemoryTraceMappedWriter.MAGIC.length];
+		if (version != MemoryTraceMappedWriter.VERSION) {
+			throw new IOException("Unsupported version " + version);
+		}
+		mChunkSize = (int) getBigEndian(prefix, MemoryTraceMappedWriter.CHUNK_SIZE_OFFSET, 4);
+		mCommittedLength = getBigEndian(prefix, MemoryTraceMappedWriter.COMMITTED_OFFSET, 8);
+		if (mChunkSize <= MemoryTraceMappedWriter.PREFIX_SIZE) {
+			throw new IOException("Bad chunk size " + mChunkSize);
+		}
+	}
+
+	/*
+	 * Reads the next record into the record buffer. Returns false at the end
+	 * of the trace, which is the end of the file, a chunk that starts with
+	 * zeros, or a torn record.
+	 */
+	private boolean readRecord() throws IOException {
+		while (true) {
+			long start = mPosition;
+			int b = read();
+			if (b < 0) {
+				return false;
+			}
+			if (b == 0) {
+				long chunkStart = start - start % mChunkSize;
+				if (start == chunkStart || start == MemoryTraceMappedWriter.PREFIX_SIZE) {
+					return false;
+				}
+				// The rest of the chunk is padding.
+				if (!skip(chunkStart + mChunkSize - mPosition)) {
+					return false;
+				}
+				continue;
+			}
+			try {
+				long length = b & 0x7F;
+				for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+					if (shift > 28) {
+						throw new IOException("Malformed length");
+					}
+					b = read();
+					if (b < 0) {
+						throw new EOFException();
+					}
+					length |= (long) (b & 0x7F) << shift;
+				}
+				if (length > mChunkSize) {
+					throw new IOException("Bad record length " + length);
+				}
+				int recordLength = (int) length;
+				if (mRecord.length < recordLength) {
+					mRecord = new byte[recordLength];
+				}
+				MemoryTraceBinaryDecoder.readFully(mIn, mRecord, 0, recordLength);
+				mPosition += recordLength;
+				int crc = MemoryTraceBinaryDecoder.readInt(mIn);
+				mPosition += 4;
+				mCrc.reset();
+				mCrc.update(mRecord, 0, recordLength);
+				if ((int) mCrc.getValue() != crc) {
+					throw new IOException("Record checksum mismatch");
+				}
+				mRecordLength = recordLength;
+				return true;
+			} catch (IOException e) {
+				// A record cut short by the death of the writing process.
+				mTruncated = true;
+				return false;
+			}
+		}
+	}
+
+	private void readRow() throws IOException {
+		int labelId = (int) recordVarint();
+		if (labelId < 0 || labelId >= mLabels.size()) {
+			throw new IOException("Unknown label id " + labelId);
+		}
+		mLabel = mLabels.get(labelId);
+		mPresentMask = recordVarint();
+		for (int column = 0; column < mValues.length; column++) {
+			if ((mPresentMask & (1L << column)) != 0) {
+				long delta = recordVarint();
+				mValues[column] += (delta >>> 1) ^ -(delta & 1);
+			}
+		}
+	}
+
+	private long recordVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (mRecordPosition >= mRecordLength) {
+				throw new IOException("Record overrun");
+			}
+			int b = mRecord[mRecordPosition++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private String recordString() throws IOException {
+		int length = (int) recordVarint();
+		if (length < 0 || mRecordPosition + length > mRecordLength) {
+			throw new IOException("Record overrun");
+		}
+		String value = new String(mRecord, mRecordPosition, length, "UTF-8");
+		mRecordPosition += length;
+		return value;
+	}
+
+	private int read() throws IOException {
+		int b = mIn.read();
+		if (b >= 0) {
+			mPosition++;
+		}
+		return b;
+	}
+
+	private boolean skip(long count) throws IOException {
+		while (count > 0) {
+			long skipped = mIn.skip(count);
+			if (skipped <= 0) {
+				if (read() < 0) {
+					return false;
+				}
+				skipped = 1;
+			} else {
+				mPosition += skipped;
+			}
+			count -= skipped;
+		}
+		return true;
+	}
+
+	private static long getBigEndian(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,425 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Writes snapshots into a memory-mapped trace file. A snapshot is stored
+ * with plain memory writes and then committed by updating the committed
+ * length in the file header; nothing is flushed. The kernel keeps the pages,
+ * so everything committed survives when the process crashes or is killed,
+ * e.g. by the low-memory killer, without a system call per snapshot.
+ *
+ * <pre>
+ * file    := prefix record*
+ * prefix  := "KMTM" version:u8 0:u8[3] chunkSize:u32 0:u32 committed:u64
+ * record  := length:varint payload crc:u32   (a 0 length pads to the next chunk)
+ * payload := 'H' label:string keyCount:varint key:string*
+ *          | 'L' label:string                (label ids count up from 0)
+ *          | 'R' labelId:varint presentMask:varint value:varint*
+ * string  := length:varint utf8
+ * </pre>
+ *
+ * Values are zigzag varint deltas from the last value of the same column in
+ * the file. The file is mapped one chunk at a time and records never cross
+ * chunks. When the file reaches its maximum size, tracing continues in a new
+ * file with a numbered name. Read the files with {@link MemoryTraceMappedReader}.
+ *
+ * Writes are serialized, and stopping waits for a write in progress, so the
+ * file is never trimmed or unmapped under a record being stored.
+ */
+public class MemoryTraceMappedWriter implements MemoryTracer.SnapshotWriter, MemoryTracer.CountingWriter {
+	private static final String TAG = MemoryTraceMappedWriter.class.getSimpleName();
+
+	static final byte[] MAGIC = { 'K', 'M', 'T', 'M' };
+	static final int VERSION = 1;
+	static final int PREFIX_SIZE = 24;
+	static final int CHUNK_SIZE_OFFSET = 8;
+	static final int COMMITTED_OFFSET = 16;
+	static final int RECORD_HEADER = 'H';
+	static final int RECORD_LABEL = 'L';
+	static final int RECORD_ROW = 'R';
+
+	private static final String DEFAULT_FILE_NAME = "kmemtrace";
+	private static final String FILE_NAME_EXT = ".kmm";
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	private static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+	// Length varint and CRC around a payload.
+	private static final int RECORD_OVERHEAD = 5 + 4;
+
+	private final String[] mMetricKeys;
+	private final MemoryTraceMetric[] mMetrics;
+	private final int mLabelColumn;
+	private final String mFileName;
+	private final int mChunkSize;
+	private final long mMaxFileSize;
+
+	private final long[] mValues;
+	private final long[] mLastValues;
+	private final CRC32 mCrc = new CRC32();
+	private byte[] mRecord = new byte[256];
+	private int mRecordLength;
+
+	// File label ids, by label and by tracer label id; reset per file.
+	private final HashMap<String, Integer> mLabelIds = new HashMap<String, Integer>();
+	private int mLabelCount;
+	private int[] mLabelIdsByTracerId = new int[64];
+	private byte[][] mLabelBytes = new byte[64][];
+
+	private String mTraceLabel;
+	private int mFileIndex;
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mPrefix;
+	private MappedByteBuffer mChunk;
+	private long mChunkOffset;
+	private long mCommitted;
+	private volatile long mBytesWritten;
+
+	public MemoryTraceMappedWriter() {
+		this(MemoryTraceCsvWriter.DEFAULT_METRIC_KEYS);
+	}
+
+	public MemoryTraceMappedWriter(String[] metricKeys) {
+		this(metricKeys, DEFAULT_FILE_NAME, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_FILE_SIZE);
+	}
+
+	/**
+	 * @param fileName the name of the trace file, without extension
+	 * @param chunkSize the size of the regions the file is mapped in
+	 * @param maxFileSize the size at which a new file is started
+	 */
+	public MemoryTraceMappedWriter(String[] metricKeys, String fileName, int chunkSize, long maxFileSize) {
+		if (metricKeys.length > MemoryTraceBinaryEncoder.MAX_COLUMNS) {
+			throw new IllegalArgumentException("At most " + MemoryTraceBinaryEncoder.MAX_COLUMNS
+					+ " metric keys: " + metricKeys.length);
+		}
+		if (chunkSize < 4096 || maxFileSize < chunkSize) {
+			throw new IllegalArgumentException("Invalid sizes: " + chunkSize + ", " + maxFileSize);
+		}
+		mMetricKeys = metricKeys;
+		mMetrics = new MemoryTraceMetric[metricKeys.length];
+		int labelColumn = -1;
+		for (int i = 0; i < metricKeys.length; i++) {
+			if (MemoryTracer.METRIC_KEY_LABEL.equals(metricKeys[i])) {
+				labelColumn = i;
+			}
+			mMetrics[i] = MemoryTraceMetric.forKey(metricKeys[i]);
+		}
+		mLabelColumn = labelColumn;
+		mFileName = fileName;
+		mChunkSize = chunkSize;
+		mMaxFileSize = maxFileSize;
+		mValues = new long[metricKeys.length];
+		mLastValues = new long[metricKeys.length];
+	}
+
+	@Override
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	/**
+	 * Returns the name of the n-th trace file, counting from 0.
+	 */
+	public String getTraceFileName(int index) {
+		return index == 0 ? mFileName + FILE_NAME_EXT : mFileName + "-" + index + FILE_NAME_EXT;
+	}
+
+	@Override
+	public synchronized void writeTraceStart(String label) {
+		Log.d(TAG, "Start tracing for " + label);
+		mTraceLabel = label != null ? label : "";
+		mFileIndex = 0;
+		openTraceFile();
+	}
+
+	@Override
+	public synchronized void writeTraceSnapshot(Bundle snapshot) {
+		if (mChunk == null) {
+			return;
+		}
+		String label = String.valueOf(snapshot.getString(MemoryTracer.METRIC_KEY_LABEL));
+		byte[] labelBytes = mLabelIds.containsKey(label) ? null : utf8(label);
+		if (!reserve(labelBytes)) {
+			return;
+		}
+		// Moving on to a new file may have forgotten the label.
+		Integer id = mLabelIds.get(label);
+		int labelId = id != null ? id : appendLabel(label, labelBytes != null ? labelBytes : utf8(label));
+		long presentMask = 0;
+		String[] keys = mMetricKeys;
+		for (int i = 0; i < keys.length; i++) {
+			if (i == mLabelColumn) {
+				continue;
+			}
+			Object value = snapshot.get(keys[i]);
+			if (value instanceof Number) {
+				mValues[i] = ((Number) value).longValue();
+				presentMask |= 1L << i;
+			}
+		}
+		appendRow(labelId, presentMask);
+	}
+
+	@Override
+	public synchronized void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		if (mChunk == null) {
+			return;
+		}
+		int tracerId = snapshot.getLabelId();
+		if (tracerId < 0) {
+			writeTraceSnapshot(snapshot.toBundle());
+			return;
+		}
+		if (tracerId >= mLabelIdsByTracerId.length) {
+			int length = Math.max(mLabelIdsByTracerId.length * 2, tracerId + 1);
+			int[] ids = new int[length];
+			System.arraycopy(mLabelIdsByTracerId, 0, ids, 0, mLabelIdsByTracerId.length);
+			mLabelIdsByTracerId = ids;
+			byte[][] bytes = new byte[length][];
+			System.arraycopy(mLabelBytes, 0, bytes, 0, mLabelBytes.length);
+			mLabelBytes = bytes;
+		}
+		// Ids are stored plus one, so that 0 means not yet in this file.
+		if (!reserve(mLabelIdsByTracerId[tracerId] == 0 ? getLabelBytes(snapshot) : null)) {
+			return;
+		}
+		if (mLabelIdsByTracerId[tracerId] == 0) {
+			mLabelIdsByTracerId[tracerId] = appendLabel(String.valueOf(snapshot.getLabel()),
+					getLabelBytes(snapshot)) + 1;
+		}
+		int labelId = mLabelIdsByTracerId[tracerId] - 1;
+		long presentMask = 0;
+		for (int i = 0; i < mMetrics.length; i++) {
+			MemoryTraceMetric metric = mMetrics[i];
+			if (metric != null && snapshot.has(metric)) {
+				mValues[i] = snapshot.get(metric);
+				presentMask |= 1L << i;
+			}
+		}
+		appendRow(labelId, presentMask);
+	}
+
+	private byte[] getLabelBytes(MemoryTraceSnapshot snapshot) {
+		int tracerId = snapshot.getLabelId();
+		byte[] bytes = mLabelBytes[tracerId];
+		if (bytes == null) {
+			bytes = utf8(String.valueOf(snapshot.getLabel()));
+			mLabelBytes[tracerId] = bytes;
+		}
+		return bytes;
+	}
+
+	@Override
+	public synchronized void writeTraceStop(Bundle results) {
+		Log.d(TAG, "Stop tracing");
+		// A null chunk marks the file closed to the writes that follow.
+		closeTraceFile();
+		MemoryTraceSections.writeSectionsFile(results);
+	}
+
+	private void openTraceFile() {
+		File traceFile = MemoryTraceFiles.getTraceFile(getTraceFileName(mFileIndex));
+		if (traceFile == null) {
+			return;
+		}
+		try {
+			mFile = new RandomAccessFile(traceFile, "rw");
+			mFile.setLength(0);
+			mChannel = mFile.getChannel();
+			mChunkOffset = 0;
+			mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mChunkSize);
+			mPrefix = mChunk;
+			mChunk.put(MAGIC);
+			mChunk.put((byte) VERSION);
+			mChunk.putInt(CHUNK_SIZE_OFFSET, mChunkSize);
+			mChunk.position(PREFIX_SIZE);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to map the trace file " + traceFile.getAbsolutePath(), e);
+			closeTraceFile();
+			return;
+		}
+		mLabelIds.clear();
+		mLabelCount = 0;
+		for (int i = 0; i < mLabelIdsByTracerId.length; i++) {
+			mLabelIdsByTracerId[i] = 0;
+		}
+		for (int i = 0; i < mLastValues.length; i++) {
+			mLastValues[i] = 0;
+		}
+		mRecordLength = 0;
+		putByte(RECORD_HEADER);
+		putBytes(utf8(mTraceLabel));
+		putVarint(mMetricKeys.length);
+		for (String key : mMetricKeys) {
+			putBytes(utf8(key));
+		}
+		commit();
+	}
+
+	private void closeTraceFile() {
+		if (mChunk != null) {
+			mChunk.force();
+		}
+		mChunk = null;
+		mPrefix = null;
+		if (mFile != null) {
+			try {
+				// Drop the unused rest of the last chunk.
+				mFile.setLength(mCommitted);
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to trim the trace file", e);
+			}
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to close the trace file", e);
+			}
+		}
+		mFile = null;
+		mChannel = null;
+		mCommitted = 0;
+	}
+
+	/*
+	 * Makes room in the current chunk for a row and, if not null, a label
+	 * record, moving on to the next chunk or file if needed. Returns false
+	 * if writing has to stop.
+	 */
+	private boolean reserve(byte[] newLabel) {
+		int needed = RECORD_OVERHEAD + 1 + 5 + 10 + 10 * mMetricKeys.length;
+		if (newLabel != null) {
+			needed += RECORD_OVERHEAD + 1 + 5 + newLabel.length;
+		}
+		if (mChunk.remaining() >= needed) {
+			return true;
+		}
+		if (needed > mChunkSize - PREFIX_SIZE) {
+			Log.w(TAG, "Snapshot does not fit in a chunk");
+			return false;
+		}
+		if (mChunk.hasRemaining()) {
+			mChunk.put((byte) 0);
+		}
+		if (mChunkOffset + 2L * mChunkSize > mMaxFileSize) {
+			closeTraceFile();
+			mFileIndex++;
+			openTraceFile();
+			return mChunk != null;
+		}
+		try {
+			mChunkOffset += mChunkSize;
+			mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, mChunkOffset, mChunkSize);
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to map the next chunk", e);
+			closeTraceFile();
+			return false;
+		}
+	}
+
+	private int appendLabel(String label, byte[] labelBytes) {
+		int id = mLabelCount++;
+		mLabelIds.put(label, id);
+		mRecordLength = 0;
+		putByte(RECORD_LABEL);
+		putBytes(labelBytes);
+		commit();
+		return id;
+	}
+
+	private void appendRow(int labelId, long presentMask) {
+		mRecordLength = 0;
+		putByte(RECORD_ROW);
+		putVarint(labelId);
+		putVarint(presentMask);
+		for (int i = 0; i < mValues.length; i++) {
+			if ((presentMask & (1L << i)) != 0) {
+				long delta = mValues[i] - mLastValues[i];
+				putVarint((delta << 1) ^ (delta >> 63));
+				mLastValues[i] = mValues[i];
+			}
+		}
+		commit();
+	}
+
+	/*
+	 * Stores the record in the mapped chunk, then moves the committed length
+	 * past it. A record is only read back once the length covers it or its
+	 * CRC matches.
+	 */
+	private void commit() {
+		MappedByteBuffer chunk = mChunk;
+		int length = mRecordLength;
+		int start = chunk.position();
+		for (int value = length; ; value >>>= 7) {
+			if ((value & ~0x7F) == 0) {
+				chunk.put((byte) value);
+				break;
+			}
+			chunk.put((byte) ((value & 0x7F) | 0x80));
+		}
+		chunk.put(mRecord, 0, length);
+		mCrc.reset();
+		mCrc.update(mRecord, 0, length);
+		chunk.putInt((int) mCrc.getValue());
+		mCommitted = mChunkOffset + chunk.position();
+		mBytesWritten += chunk.position() - start;
+		mPrefix.putLong(COMMITTED_OFFSET, mCommitted);
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	private void ensureRecordCapacity(int extra) {
+		if (mRecordLength + extra > mRecord.length) {
+			byte[] record = new byte[Math.max(mRecord.length * 2, mRecordLength + extra)];
+			System.arraycopy(mRecord, 0, record, 0, mRecordLength);
+			mRecord = record;
+		}
+	}
+
+	private void putByte(int b) {
+		ensureRecordCapacity(1);
+		mRecord[mRecordLength++] = (byte) b;
+	}
+
+	private void putVarint(long value) {
+		ensureRecordCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			mRecord[mRecordLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		mRecord[mRecordLength++] = (byte) value;
+	}
+
+	/*
+	 * Puts a length-prefixed string.
+	 */
+	private void putBytes(byte[] bytes) {
+		putVarint(bytes.length);
+		ensureRecordCapacity(bytes.length);
+		System.arraycopy(bytes, 0, mRecord, mRecordLength, bytes.length);
+		mRecordLength += bytes.length;
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.kandroid.memtracer;
+
+import java.util.HashMap;
+
+/**
+ * The metrics of a snapshot. The ordinal indexes the values of a
+ * {@link MemoryTraceSnapshot}; the key is the one used in snapshot Bundles.
+ */
+public enum MemoryTraceMetric {
+	TIMESTAMP(Collector.CLOCK, MemoryTracer.METRIC_KEY_TIMESTAMP),
+	CPU_TIME(Collector.TIMING, MemoryTracer.METRIC_KEY_CPU_TIME),
+	EXECUTION_TIME(Collector.TIMING, MemoryTracer.METRIC_KEY_EXECUTION_TIME),
+	SENT_TRANSACTIONS(Collector.BINDER, MemoryTracer.METRIC_KEY_SENT_TRANSACTIONS),
+	RECEIVED_TRANSACTIONS(Collector.BINDER, MemoryTracer.METRIC_KEY_RECEIVED_TRANSACTIONS),
+	GC_INVOCATION_COUNT(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GC_INVOCATION_COUNT),
+	GLOBAL_ALLOC_COUNT(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_ALLOC_COUNT),
+	GLOBAL_ALLOC_SIZE(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_ALLOC_SIZE),
+	GLOBAL_FREED_COUNT(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_FREED_COUNT),
+	GLOBAL_FREED_SIZE(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_FREED_SIZE),
+	GLOBAL_EXTERNAL_ALLOC_COUNT(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_EXTERNAL_ALLOC_COUNT),
+	GLOBAL_EXTERNAL_ALLOC_SIZE(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_EXTERNAL_ALLOC_SIZE),
+	GLOBAL_EXTERNAL_FREED_COUNT(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_EXTERNAL_FREED_COUNT),
+	GLOBAL_EXTERNAL_FREED_SIZE(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_GLOBAL_EXTERNAL_FREED_SIZE),
+	NATIVE_SIZE(Collector.NATIVE_HEAP, MemoryTracer.METRIC_KEY_NATIVE_SIZE),
+	NATIVE_ALLOCATED(Collector.NATIVE_HEAP, MemoryTracer.METRIC_KEY_NATIVE_ALLOCATED),
+	NATIVE_FREE(Collector.NATIVE_HEAP, MemoryTracer.METRIC_KEY_NATIVE_FREE),
+	NATIVE_PSS(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_NATIVE_PSS),
+	NATIVE_PRIVATE_DIRTY(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_NATIVE_PRIVATE_DIRTY),
+	NATIVE_SHARED_DIRTY(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_NATIVE_SHARED_DIRTY),
+	JAVA_SIZE(Collector.JAVA_HEAP, MemoryTracer.METRIC_KEY_JAVA_SIZE),
+	JAVA_ALLOCATED(Collector.JAVA_HEAP, MemoryTracer.METRIC_KEY_JAVA_ALLOCATED),
+	JAVA_FREE(Collector.JAVA_HEAP, MemoryTracer.METRIC_KEY_JAVA_FREE),
+	JAVA_PSS(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_JAVA_PSS),
+	JAVA_PRIVATE_DIRTY(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_JAVA_PRIVATE_DIRTY),
+	JAVA_SHARED_DIRTY(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_JAVA_SHARED_DIRTY),
+	OTHER_PSS(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_OTHER_PSS),
+	OTHER_PRIVATE_DIRTY(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_OTHER_PRIVATE_DIRTY),
+	OTHER_SHARED_DIRTY(Collector.MEMORY_INFO, MemoryTracer.METRIC_KEY_OTHER_SHARED_DIRTY),
+	VM_SIZE(Collector.PROCESS_MEMORY, MemoryTracer.METRIC_KEY_VM_SIZE),
+	RSS(Collector.PROCESS_MEMORY, MemoryTracer.METRIC_KEY_RSS),
+	RSS_SHARED(Collector.PROCESS_MEMORY, MemoryTracer.METRIC_KEY_RSS_SHARED),
+	VM_HWM(Collector.PROCESS_STATUS, MemoryTracer.METRIC_KEY_VM_HWM),
+	RSS_ANON(Collector.PROCESS_STATUS, MemoryTracer.METRIC_KEY_RSS_ANON),
+	RSS_FILE(Collector.PROCESS_STATUS, MemoryTracer.METRIC_KEY_RSS_FILE),
+	RSS_SHMEM(Collector.PROCESS_STATUS, MemoryTracer.METRIC_KEY_RSS_SHMEM),
+	VM_SWAP(Collector.PROCESS_STATUS, MemoryTracer.METRIC_KEY_VM_SWAP),
+	TOTAL_PSS(Collector.MEMORY_ROLLUP, MemoryTracer.METRIC_KEY_TOTAL_PSS),
+	TOTAL_PRIVATE_DIRTY(Collector.MEMORY_ROLLUP, MemoryTracer.METRIC_KEY_TOTAL_PRIVATE_DIRTY),
+	TOTAL_SHARED_DIRTY(Collector.MEMORY_ROLLUP, MemoryTracer.METRIC_KEY_TOTAL_SHARED_DIRTY),
+	TOTAL_SWAP_PSS(Collector.MEMORY_ROLLUP, MemoryTracer.METRIC_KEY_TOTAL_SWAP_PSS),
+	THREAD_ALLOC_COUNT(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_THREAD_ALLOC_COUNT),
+	THREAD_ALLOC_SIZE(Collector.ALLOC_COUNTS, MemoryTracer.METRIC_KEY_THREAD_ALLOC_SIZE),
+	THREAD_CPU_TIME(Collector.TIMING, MemoryTracer.METRIC_KEY_THREAD_CPU_TIME),
+	GC_COUNT(Collector.GC, MemoryTracer.METRIC_KEY_GC_COUNT),
+	GC_TIME(Collector.GC, MemoryTracer.METRIC_KEY_GC_TIME),
+	TRACER_TIME(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_TIME),
+	TRACER_CPU_TIME(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_CPU_TIME),
+	TRACER_ALLOC_COUNT(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_ALLOC_COUNT),
+	TRACER_ALLOC_SIZE(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_ALLOC_SIZE),
+	TRACER_WRITE_TIME(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_WRITE_TIME),
+	TRACER_BYTES_WRITTEN(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_BYTES_WRITTEN),
+	TRACER_OVERHEAD(Collector.OVERHEAD, MemoryTracer.METRIC_KEY_TRACER_OVERHEAD);
+
+	/**
+	 * The groups in which metrics are collected. A group is skipped entirely
+	 * when none of its metrics is requested.
+	 */
+	public enum Collector {
+		/** The time at which the snapshot is taken. */
+		CLOCK,
+		/** Wall clock and CPU time. */
+		TIMING,
+		/** Binder transaction counts. */
+		BINDER,
+		/** Allocation and GC counters of {@link android.os.Debug}. */
+		ALLOC_COUNTS,
+		/** Native heap size, allocated and free. */
+		NATIVE_HEAP,
+		/** Java heap size, allocated and free. */
+		JAVA_HEAP,
+		/** PSS and dirty pages from /proc/self/smaps. By far the most expensive. */
+		MEMORY_INFO,
+		/** Virtual and resident set size from /proc/self/statm. */
+		PROCESS_MEMORY,
+		/** Resident set breakdown, peak and swap from /proc/self/status. */
+		PROCESS_STATUS,
+		/** Process-wide PSS and dirty pages from /proc/self/smaps_rollup. */
+		MEMORY_ROLLUP,
+		/** Collection count and time of the runtime, where it reports them. */
+		GC,
+		/** The cost of the tracer itself, if tracked. */
+		OVERHEAD,
+	}
+
+	/**
+	 * A snapshot keeps track of the metrics it holds in a 64-bit mask.
+	 */
+	static final int MAX_COUNT = 64;
+
+	private static final MemoryTraceMetric[] VALUES = values();
+	private static final HashMap<String, MemoryTraceMetric> BY_KEY =
+			new HashMap<String, MemoryTraceMetric>();
+
+	static {
+		for (MemoryTraceMetric metric : VALUES) {
+			BY_KEY.put(metric.mKey, metric);
+		}
+	}
+
+	private final Collector mCollector;
+	private final String mKey;
+
+	private MemoryTraceMetric(Collector collector, String key) {
+		mCollector = collector;
+		mKey = key;
+	}
+
+	public Collector getCollector() {
+		return mCollector;
+	}
+
+	public String getKey() {
+		return mKey;
+	}
+
+	long mask() {
+		return 1L << ordinal();
+	}
+
+	/**
+	 * Returns the metric reported under the given key, or null.
+	 */
+	public static MemoryTraceMetric forKey(String key) {
+		return BY_KEY.get(key);
+	}
+
+	public static MemoryTraceMetric get(int ordinal) {
+		return VALUES[ordinal];
+	}
+
+	public static int count() {
+		return VALUES.length;
+	}
+}
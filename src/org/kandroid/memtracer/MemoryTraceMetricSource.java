@@ -0,0 +1,21 @@
+package org.kandroid.memtracer;
+
+/**
+ * Provides the metrics of one or more collectors to {@link MemoryTracer}.
+ * For each collector, the tracer collects through the first of its sources
+ * that provides it, so a source can be replaced by a fake one. Sources are
+ * called from every thread that takes snapshots, possibly concurrently.
+ */
+public interface MemoryTraceMetricSource {
+	/**
+	 * Returns true if this source provides the metrics of the collector.
+	 * Called when tracing starts.
+	 */
+	public boolean provides(MemoryTraceMetric.Collector collector);
+
+	/**
+	 * Sets the metrics of the collector in the snapshot. Metrics that cannot
+	 * be read are left out.
+	 */
+	public void collect(MemoryTraceMetric.Collector collector, MemoryTraceSnapshot snapshot);
+}
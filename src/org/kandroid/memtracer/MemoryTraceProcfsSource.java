@@ -0,0 +1,316 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads process memory metrics straight from procfs: <code>statm</code> and
+ * <code>status</code> for the resident set, and <code>smaps_rollup</code>
+ * for PSS and dirty pages. <code>smaps_rollup</code> is summed up by the
+ * kernel, which is much cheaper than the per-mapping walk behind
+ * {@link android.os.Debug#getMemoryInfo}; it needs Linux 4.14.
+ *
+ * Each file is opened once and read again from the start into a reused
+ * buffer, and numbers are parsed in place, so collecting does not allocate.
+ * The class does not depend on Android, so it also reads a directory of
+ * fixture files or <code>/proc</code> on a Linux host.
+ */
+public class MemoryTraceProcfsSource implements MemoryTraceMetricSource {
+
+	public static final File PROC_SELF = new File("/proc/self");
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final long DEFAULT_PAGE_SIZE_KB = 4;
+
+	private static final byte[] KEY_VM_SIZE = bytes("VmSize");
+	private static final byte[] KEY_VM_HWM = bytes("VmHWM");
+	private static final byte[] KEY_RSS_ANON = bytes("RssAnon");
+	private static final byte[] KEY_RSS_FILE = bytes("RssFile");
+	private static final byte[] KEY_RSS_SHMEM = bytes("RssShmem");
+	private static final byte[] KEY_VM_SWAP = bytes("VmSwap");
+	private static final byte[] KEY_PSS = bytes("Pss");
+	private static final byte[] KEY_PRIVATE_DIRTY = bytes("Private_Dirty");
+	private static final byte[] KEY_SHARED_DIRTY = bytes("Shared_Dirty");
+	private static final byte[] KEY_SWAP_PSS = bytes("SwapPss");
+
+	private final ProcFile mStatm;
+	private final ProcFile mStatus;
+	private final ProcFile mSmapsRollup;
+	private volatile long mPageSizeKb;
+
+	public MemoryTraceProcfsSource() {
+		this(PROC_SELF);
+	}
+
+	/**
+	 * Reads the files of the given process directory instead of
+	 * <code>/proc/self</code>.
+	 */
+	public MemoryTraceProcfsSource(File processDir) {
+		mStatm = new ProcFile(new File(processDir, "statm"));
+		mStatus = new ProcFile(new File(processDir, "status"));
+		mSmapsRollup = new ProcFile(new File(processDir, "smaps_rollup"));
+	}
+
+	@Override
+	public boolean provides(MemoryTraceMetric.Collector collector) {
+		switch (collector) {
+		case PROCESS_MEMORY:
+			if (mPageSizeKb == 0) {
+				mPageSizeKb = readPageSizeKb();
+			}
+			return mStatm.canRead();
+		case PROCESS_STATUS:
+			return mStatus.canRead();
+		case MEMORY_ROLLUP:
+			return mSmapsRollup.canRead();
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public void collect(MemoryTraceMetric.Collector collector, MemoryTraceSnapshot snapshot) {
+		switch (collector) {
+		case PROCESS_MEMORY:
+			collectStatm(snapshot);
+			break;
+		case PROCESS_STATUS:
+			collectStatus(snapshot);
+			break;
+		case MEMORY_ROLLUP:
+			collectSmapsRollup(snapshot);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Closes the files. They are opened again when needed.
+	 */
+	public void close() {
+		mStatm.close();
+		mStatus.close();
+		mSmapsRollup.close();
+	}
+
+	private void collectStatm(MemoryTraceSnapshot snapshot) {
+		ProcFile file = mStatm;
+		long pageSizeKb = mPageSizeKb > 0 ? mPageSizeKb : DEFAULT_PAGE_SIZE_KB;
+		synchronized (file) {
+			if (file.read()) {
+				setPages(snapshot, MemoryTraceMetric.VM_SIZE, parseField(file.mBuffer, file.mLength, 0), pageSizeKb);
+				setPages(snapshot, MemoryTraceMetric.RSS, parseField(file.mBuffer, file.mLength, 1), pageSizeKb);
+				setPages(snapshot, MemoryTraceMetric.RSS_SHARED, parseField(file.mBuffer, file.mLength, 2), pageSizeKb);
+			}
+		}
+	}
+
+	private void collectStatus(MemoryTraceSnapshot snapshot) {
+		ProcFile file = mStatus;
+		synchronized (file) {
+			if (file.read()) {
+				set(snapshot, MemoryTraceMetric.VM_HWM, parseValue(file.mBuffer, file.mLength, KEY_VM_HWM));
+				set(snapshot, MemoryTraceMetric.RSS_ANON, parseValue(file.mBuffer, file.mLength, KEY_RSS_ANON));
+				set(snapshot, MemoryTraceMetric.RSS_FILE, parseValue(file.mBuffer, file.mLength, KEY_RSS_FILE));
+				set(snapshot, MemoryTraceMetric.RSS_SHMEM, parseValue(file.mBuffer, file.mLength, KEY_RSS_SHMEM));
+				set(snapshot, MemoryTraceMetric.VM_SWAP, parseValue(file.mBuffer, file.mLength, KEY_VM_SWAP));
+			}
+		}
+	}
+
+	private void collectSmapsRollup(MemoryTraceSnapshot snapshot) {
+		ProcFile file = mSmapsRollup;
+		synchronized (file) {
+			if (file.read()) {
+				set(snapshot, MemoryTraceMetric.TOTAL_PSS, parseValue(file.mBuffer, file.mLength, KEY_PSS));
+				set(snapshot, MemoryTraceMetric.TOTAL_PRIVATE_DIRTY,
+						parseValue(file.mBuffer, file.mLength, KEY_PRIVATE_DIRTY));
+				set(snapshot, MemoryTraceMetric.TOTAL_SHARED_DIRTY,
+						parseValue(file.mBuffer, file.mLength, KEY_SHARED_DIRTY));
+				set(snapshot, MemoryTraceMetric.TOTAL_SWAP_PSS, parseValue(file.mBuffer, file.mLength, KEY_SWAP_PSS));
+			}
+		}
+	}
+
+	/*
+	 * statm counts pages. Derives the page size from the virtual size, which
+	 * status reports in KB.
+	 */
+	private long readPageSizeKb() {
+		long sizeKb = -1;
+		long sizePages = -1;
+		synchronized (mStatus) {
+			if (mStatus.read()) {
+				sizeKb = parseValue(mStatus.mBuffer, mStatus.mLength, KEY_VM_SIZE);
+			}
+		}
+		synchronized (mStatm) {
+			if (mStatm.read()) {
+				sizePages = parseField(mStatm.mBuffer, mStatm.mLength, 0);
+			}
+		}
+		if (sizeKb <= 0 || sizePages <= 0) {
+			return DEFAULT_PAGE_SIZE_KB;
+		}
+		// Round to the nearest power of two; the size may change in between.
+		long ratio = Math.round((double) sizeKb / sizePages);
+		long pageSizeKb = Long.highestOneBit(Math.max(1, ratio));
+		return ratio - pageSizeKb > pageSizeKb * 2 - ratio ? pageSizeKb * 2 : pageSizeKb;
+	}
+
+	private static void set(MemoryTraceSnapshot snapshot, MemoryTraceMetric metric, long value) {
+		if (value >= 0) {
+			snapshot.set(metric, value);
+		}
+	}
+
+	private static void setPages(MemoryTraceSnapshot snapshot, MemoryTraceMetric metric, long pages,
+			long pageSizeKb) {
+		if (pages >= 0) {
+			snapshot.set(metric, pages * pageSizeKb);
+		}
+	}
+
+	/**
+	 * Returns the decimal number in the given whitespace separated field of
+	 * the first line, or -1.
+	 */
+	static long parseField(byte[] buffer, int length, int index) {
+		int pos = 0;
+		for (int field = 0; ; field++) {
+			while (pos < length && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+				pos++;
+			}
+			if (pos >= length || buffer[pos] == '\n') {
+				return -1;
+			}
+			if (field == index) {
+				return parseNumber(buffer, pos, length);
+			}
+			while (pos < length && buffer[pos] != ' ' && buffer[pos] != '\t' && buffer[pos] != '\n') {
+				pos++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number on the line that starts with the key and a colon,
+	 * like <code>VmRSS:     1234 kB</code>, or -1.
+	 */
+	static long parseValue(byte[] buffer, int length, byte[] key) {
+		int pos = 0;
+		while (pos < length) {
+			if (startsWithKey(buffer, pos, length, key)) {
+				pos += key.length + 1;
+				while (pos < length && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+					pos++;
+				}
+				return parseNumber(buffer, pos, length);
+			}
+			while (pos < length && buffer[pos] != '\n') {
+				pos++;
+			}
+			pos++;
+		}
+		return -1;
+	}
+
+	private static boolean startsWithKey(byte[] buffer, int pos, int length, byte[] key) {
+		if (pos + key.length >= length || buffer[pos + key.length] != ':') {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (buffer[pos + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseNumber(byte[] buffer, int pos, int length) {
+		if (pos >= length || buffer[pos] < '0' || buffer[pos] > '9') {
+			return -1;
+		}
+		long value = 0;
+		while (pos < length && buffer[pos] >= '0' && buffer[pos] <= '9') {
+			value = value * 10 + (buffer[pos++] - '0');
+		}
+		return value;
+	}
+
+	private static byte[] bytes(String key) {
+		byte[] bytes = new byte[key.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) key.charAt(i);
+		}
+		return bytes;
+	}
+
+	/*
+	 * A procfs file that is kept open and read again from the start, which
+	 * makes the kernel generate fresh contents. Callers synchronize on it.
+	 */
+	private static class ProcFile {
+		private final File mFile;
+		private RandomAccessFile mIn;
+		private boolean mFailed;
+		byte[] mBuffer = new byte[BUFFER_SIZE];
+		int mLength;
+
+		ProcFile(File file) {
+			mFile = file;
+		}
+
+		synchronized boolean canRead() {
+			return read();
+		}
+
+		/*
+		 * Reads the whole file into the buffer. Returns false if it cannot be
+		 * read; a file that failed once is not tried again until closed.
+		 */
+		synchronized boolean read() {
+			if (mFailed) {
+				return false;
+			}
+			try {
+				if (mIn == null) {
+					mIn = new RandomAccessFile(mFile, "r");
+				} else {
+					mIn.seek(0);
+				}
+				int length = 0;
+				int read;
+				while ((read = mIn.read(mBuffer, length, mBuffer.length - length)) > 0) {
+					length += read;
+					if (length == mBuffer.length) {
+						byte[] grown = new byte[mBuffer.length * 2];
+						System.arraycopy(mBuffer, 0, grown, 0, length);
+						mBuffer = grown;
+					}
+				}
+				mLength = length;
+				return true;
+			} catch (IOException e) {
+				close();
+				mFailed = true;
+				return false;
+			}
+		}
+
+		synchronized void close() {
+			if (mIn != null) {
+				try {
+					mIn.close();
+				} catch (IOException e) {
+					// Nothing left to read from it anyway.
+				}
+				mIn = null;
+			}
+			mFailed = false;
+		}
+	}
+}
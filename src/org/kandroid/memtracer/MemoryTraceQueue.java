@@ -0,0 +1,107 @@
+package org.kandroid.memtracer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue.
+ *
+ * Each slot carries a sequence number telling producers and consumers whose
+ * turn it is, so neither side ever takes a lock or allocates. The capacity is
+ * rounded up to a power of two.
+ */
+public class MemoryTraceQueue<E> {
+
+	private final AtomicReferenceArray<E> mElements;
+	private final AtomicLongArray mSequences;
+	private final int mMask;
+	private final AtomicLong mEnqueuePosition = new AtomicLong();
+	private final AtomicLong mDequeuePosition = new AtomicLong();
+
+	public MemoryTraceQueue(int capacity) {
+		if (capacity < 2) {
+			capacity = 2;
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		mElements = new AtomicReferenceArray<E>(size);
+		mSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			mSequences.set(i, i);
+		}
+		mMask = size - 1;
+	}
+
+	/**
+	 * Returns false without blocking if the queue is full.
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		long position = mEnqueuePosition.get();
+		int index;
+		for (;;) {
+			index = (int) position & mMask;
+			long difference = mSequences.get(index) - position;
+			if (difference == 0) {
+				if (mEnqueuePosition.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = mEnqueuePosition.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = mEnqueuePosition.get();
+			}
+		}
+		mElements.set(index, element);
+		mSequences.set(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * Returns null without blocking if the queue is empty.
+	 */
+	public E poll() {
+		long position = mDequeuePosition.get();
+		int index;
+		for (;;) {
+			index = (int) position & mMask;
+			long difference = mSequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (mDequeuePosition.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = mDequeuePosition.get();
+			} else if (difference < 0) {
+				return null;
+			} else {
+				position = mDequeuePosition.get();
+			}
+		}
+		E element = mElements.get(index);
+		mElements.set(index, null);
+		mSequences.set(index, position + mMask + 1);
+		return element;
+	}
+
+	/**
+	 * Returns an estimate of the number of queued elements.
+	 */
+	public int size() {
+		long size = mEnqueuePosition.get() - mDequeuePosition.get();
+		if (size < 0) {
+			return 0;
+		}
+		return size > mMask + 1 ? mMask + 1 : (int) size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mMask + 1;
+	}
+}
@@ -0,0 +1,74 @@
+package org.kandroid.memtracer;
+
+/**
+ * A fixed-size ring of preallocated snapshot records. Snapshots are copied
+ * in and out, so putting and draining never allocates. When the ring is
+ * full the oldest snapshot is overwritten.
+ */
+public class MemoryTraceRingBuffer {
+
+	private final MemoryTraceSnapshot[] mSlots;
+	private int mHead;
+	private int mCount;
+	private long mOverwrittenCount;
+
+	public MemoryTraceRingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		mSlots = new MemoryTraceSnapshot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mSlots[i] = new MemoryTraceSnapshot();
+		}
+	}
+
+	/**
+	 * Copies a snapshot into the ring and returns the number of snapshots
+	 * held afterwards.
+	 */
+	public synchronized int put(MemoryTraceSnapshot snapshot) {
+		int capacity = mSlots.length;
+		int tail = mHead + mCount;
+		if (tail >= capacity) {
+			tail -= capacity;
+		}
+		mSlots[tail].copyFrom(snapshot);
+		if (mCount == capacity) {
+			mHead = mHead + 1 == capacity ? 0 : mHead + 1;
+			mOverwrittenCount++;
+		} else {
+			mCount++;
+		}
+		return mCount;
+	}
+
+	/**
+	 * Moves up to <code>out.length</code> of the oldest snapshots into
+	 * <code>out</code>, oldest first, and returns how many were moved.
+	 */
+	public synchronized int drainTo(MemoryTraceSnapshot[] out) {
+		int count = Math.min(mCount, out.length);
+		int capacity = mSlots.length;
+		for (int i = 0; i < count; i++) {
+			out[i].copyFrom(mSlots[mHead]);
+			mHead = mHead + 1 == capacity ? 0 : mHead + 1;
+		}
+		mCount -= count;
+		return count;
+	}
+
+	public synchronized int size() {
+		return mCount;
+	}
+
+	public int capacity() {
+		return mSlots.length;
+	}
+
+	/**
+	 * Returns the number of snapshots lost because the ring was full.
+	 */
+	public synchronized long getOverwrittenCount() {
+		return mOverwrittenCount;
+	}
+}
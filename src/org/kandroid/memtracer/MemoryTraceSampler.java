@@ -0,0 +1,155 @@
+package org.kandroid.memtracer;
+
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+
+/**
+ * Takes light snapshots on a low-priority thread between lifecycle
+ * callbacks. While it runs, the tracer leaves the samples to this thread,
+ * which writes them in batches. Lifecycle snapshots are written right away,
+ * and so are samples while a budget or heap dump triggers check them.
+ *
+ * The sampling period adapts to the Java heap: it is halved, down to the
+ * minimum, while the heap grows faster than the growth threshold, and
+ * lengthened again, up to the maximum, while the heap is stable.
+ */
+public class MemoryTraceSampler {
+	private static final String TAG = MemoryTraceSampler.class.getSimpleName();
+
+	/**
+	 * The label of sampled snapshots.
+	 */
+	public static final String LABEL_SAMPLE = "Sample";
+
+	private static final int DEFAULT_BATCH_SIZE = 32;
+	private static final long DEFAULT_PERIOD_MILLIS = 1000;
+	private static final long DEFAULT_GROWTH_THRESHOLD_KB_PER_SECOND = 512;
+
+	private final int mBatchSize;
+
+	private long mMinPeriodMillis;
+	private long mMaxPeriodMillis;
+	private volatile long mPeriodMillis;
+	private long mGrowthThreshold = DEFAULT_GROWTH_THRESHOLD_KB_PER_SECOND;
+
+	private MemoryTracer mTracer;
+	private int mLabelId;
+	private volatile boolean mRunning;
+	private Thread mThread;
+
+	private long mLastJavaAllocated = -1;
+	private long mLastSampleTime;
+
+	public MemoryTraceSampler() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	public MemoryTraceSampler(int batchSize) {
+		mBatchSize = Math.max(1, batchSize);
+		setSamplingPeriod(DEFAULT_PERIOD_MILLIS / 10, DEFAULT_PERIOD_MILLIS, DEFAULT_PERIOD_MILLIS * 10);
+	}
+
+	/**
+	 * Sets the bounds and the starting value of the sampling period.
+	 */
+	public void setSamplingPeriod(long minMillis, long initialMillis, long maxMillis) {
+		if (minMillis <= 0 || minMillis > initialMillis || initialMillis > maxMillis) {
+			throw new IllegalArgumentException("Invalid sampling period: "
+					+ minMillis + " <= " + initialMillis + " <= " + maxMillis);
+		}
+		mMinPeriodMillis = minMillis;
+		mPeriodMillis = initialMillis;
+		mMaxPeriodMillis = maxMillis;
+	}
+
+	/**
+	 * Sets the Java heap growth, in KB per second, above which sampling speeds up.
+	 */
+	public void setGrowthThreshold(long kbPerSecond) {
+		mGrowthThreshold = kbPerSecond;
+	}
+
+	public long getSamplingPeriod() {
+		return mPeriodMillis;
+	}
+
+	boolean isRunning() {
+		return mRunning;
+	}
+
+	synchronized void start(MemoryTracer tracer) {
+		if (mRunning) {
+			return;
+		}
+		mTracer = tracer;
+		mLabelId = tracer.internLabel(LABEL_SAMPLE);
+		mLastJavaAllocated = -1;
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				sampleUntilStopped();
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/*
+	 * Stops the sampling thread. The tracer writes what is left in its queue.
+	 */
+	synchronized void stop() {
+		if (!mRunning) {
+			return;
+		}
+		mRunning = false;
+		Thread thread = mThread;
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+	}
+
+	private void sampleUntilStopped() {
+		while (mRunning) {
+			LockSupport.parkNanos(mPeriodMillis * 1000000L);
+			if (!mRunning) {
+				break;
+			}
+			long javaAllocated = mTracer.addSample(mLabelId);
+			if (javaAllocated >= 0) {
+				adaptPeriod(javaAllocated);
+			}
+			if (mTracer.getPendingCount() >= mBatchSize) {
+				mTracer.drainRecords(Integer.MAX_VALUE, false);
+			}
+		}
+	}
+
+	private void adaptPeriod(long javaAllocated) {
+		long now = System.nanoTime();
+		if (mLastJavaAllocated >= 0) {
+			long elapsedMillis = Math.max(1, (now - mLastSampleTime) / 1000000L);
+			long growth = (javaAllocated - mLastJavaAllocated) * 1000 / elapsedMillis;
+			long period = mPeriodMillis;
+			if (growth > mGrowthThreshold) {
+				period = Math.max(mMinPeriodMillis, period / 2);
+			} else if (Math.abs(growth) < mGrowthThreshold / 4) {
+				period = Math.min(mMaxPeriodMillis, period + period / 2);
+			}
+			mPeriodMillis = period;
+		}
+		mLastJavaAllocated = javaAllocated;
+		mLastSampleTime = now;
+	}
+}
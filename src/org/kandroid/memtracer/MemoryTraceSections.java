@@ -0,0 +1,337 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Measures scoped sections of code, like <code>android.os.Trace</code>
+ * sections: the number and size of allocations, the thread CPU time and the
+ * wall time between a begin and its end.
+ *
+ * Each thread keeps its own stack of open sections and its own totals per
+ * label, so beginning and ending a section neither locks against other
+ * threads nor allocates. A section's totals include its children; the
+ * <code>self_*</code> totals exclude them. A section nested in a section of
+ * the same label only adds to the self totals, so recursion is not counted
+ * twice. The stacks of threads that have died are dropped, and their totals
+ * kept, whenever a thread starts measuring and when the totals are
+ * collected or cleared.
+ */
+public class MemoryTraceSections {
+	private static final String TAG = MemoryTraceSections.class.getSimpleName();
+
+	public static final String SECTION_KEY_COUNT = "count";
+	public static final String SECTION_KEY_ALLOC_COUNT = "alloc_count";
+	public static final String SECTION_KEY_ALLOC_SIZE = "alloc_size";
+	public static final String SECTION_KEY_CPU_NANOS = "cpu_nanos";
+	public static final String SECTION_KEY_WALL_NANOS = "wall_nanos";
+	public static final String SECTION_KEY_SELF_ALLOC_COUNT = "self_alloc_count";
+	public static final String SECTION_KEY_SELF_ALLOC_SIZE = "self_alloc_size";
+	public static final String SECTION_KEY_SELF_CPU_NANOS = "self_cpu_nanos";
+	public static final String SECTION_KEY_SELF_WALL_NANOS = "self_wall_nanos";
+
+	static final String SECTIONS_FILE_NAME = "kmemtrace_sections.csv";
+
+	// Sections nested deeper are not measured, but still balance their ends.
+	private static final int MAX_DEPTH = 64;
+
+	// The costs measured per section.
+	private static final int ALLOC_COUNT = 0;
+	private static final int ALLOC_SIZE = 1;
+	private static final int CPU_NANOS = 2;
+	private static final int WALL_NANOS = 3;
+	private static final int COSTS = 4;
+
+	// The totals per label: the count, the costs including children, and the
+	// costs excluding them.
+	private static final int COUNT = 0;
+	private static final int TOTAL = 1;
+	private static final int SELF = TOTAL + COSTS;
+	private static final int FIELDS = SELF + COSTS;
+
+	private static final String[] FIELD_KEYS = {
+		SECTION_KEY_COUNT,
+		SECTION_KEY_ALLOC_COUNT,
+		SECTION_KEY_ALLOC_SIZE,
+		SECTION_KEY_CPU_NANOS,
+		SECTION_KEY_WALL_NANOS,
+		SECTION_KEY_SELF_ALLOC_COUNT,
+		SECTION_KEY_SELF_ALLOC_SIZE,
+		SECTION_KEY_SELF_CPU_NANOS,
+		SECTION_KEY_SELF_WALL_NANOS,
+	};
+
+	/*
+	 * The open sections and the totals of one thread. Only the owning thread
+	 * touches the stack; the totals are guarded by the stack's monitor, which
+	 * is only contended while the totals are collected.
+	 */
+	private static class Stack {
+		final WeakReference<Thread> mOwner = new WeakReference<Thread>(Thread.currentThread());
+		int mDepth;
+		final int[] mLabelIds = new int[MAX_DEPTH];
+		final long[] mStarts = new long[MAX_DEPTH * COSTS];
+		// The costs of the completed children of each open section.
+		final long[] mChildren = new long[MAX_DEPTH * COSTS];
+		final long[] mCosts = new long[COSTS];
+		// Indexed by label id.
+		long[][] mTotals = new long[16][];
+	}
+
+	private final List<Stack> mAllStacks = new ArrayList<Stack>();
+	// The totals of the threads whose stacks were dropped. Guarded by
+	// mAllStacks.
+	private long[][] mRetiredTotals = new long[0][];
+	private final ThreadLocal<Stack> mStacks = new ThreadLocal<Stack>() {
+		@Override
+		protected Stack initialValue() {
+			Stack stack = new Stack();
+			synchronized (mAllStacks) {
+				pruneLocked();
+				mAllStacks.add(stack);
+			}
+			return stack;
+		}
+	};
+
+	/**
+	 * Begins a section on the calling thread.
+	 */
+	public void begin(int labelId) {
+		Stack stack = mStacks.get();
+		int depth = stack.mDepth++;
+		if (depth >= MAX_DEPTH) {
+			return;
+		}
+		stack.mLabelIds[depth] = labelId;
+		int base = depth * COSTS;
+		long[] children = stack.mChildren;
+		for (int i = 0; i < COSTS; i++) {
+			children[base + i] = 0;
+		}
+		// Take the clocks last so that the begin itself is not measured.
+		long[] starts = stack.mStarts;
+		starts[base + ALLOC_COUNT] = Debug.getThreadAllocCount();
+		starts[base + ALLOC_SIZE] = Debug.getThreadAllocSize();
+		starts[base + CPU_NANOS] = Debug.threadCpuTimeNanos();
+		starts[base + WALL_NANOS] = System.nanoTime();
+	}
+
+	/**
+	 * Ends the innermost open section of the calling thread. Does nothing if
+	 * the thread has no open section.
+	 */
+	public void end() {
+		long wallNanos = System.nanoTime();
+		long cpuNanos = Debug.threadCpuTimeNanos();
+		Stack stack = mStacks.get();
+		if (stack.mDepth == 0) {
+			return;
+		}
+		int depth = --stack.mDepth;
+		if (depth >= MAX_DEPTH) {
+			return;
+		}
+		int base = depth * COSTS;
+		long[] starts = stack.mStarts;
+		long[] costs = stack.mCosts;
+		costs[ALLOC_COUNT] = Debug.getThreadAllocCount() - starts[base + ALLOC_COUNT];
+		costs[ALLOC_SIZE] = Debug.getThreadAllocSize() - starts[base + ALLOC_SIZE];
+		costs[CPU_NANOS] = cpuNanos - starts[base + CPU_NANOS];
+		costs[WALL_NANOS] = wallNanos - starts[base + WALL_NANOS];
+		for (int i = 0; i < COSTS; i++) {
+			// A full snapshot inside the section resets the thread's
+			// allocation counts.
+			if (costs[i] < 0) {
+				costs[i] = 0;
+			}
+		}
+
+		int labelId = stack.mLabelIds[depth];
+		boolean recursive = false;
+		for (int i = 0; i < depth; i++) {
+			if (stack.mLabelIds[i] == labelId) {
+				recursive = true;
+				break;
+			}
+		}
+		long[] children = stack.mChildren;
+		synchronized (stack) {
+			long[] totals = totalsOf(stack, labelId);
+			totals[COUNT]++;
+			for (int i = 0; i < COSTS; i++) {
+				if (!recursive) {
+					totals[TOTAL + i] += costs[i];
+				}
+				totals[SELF + i] += Math.max(0, costs[i] - children[base + i]);
+			}
+		}
+		if (depth > 0) {
+			int parent = base - COSTS;
+			for (int i = 0; i < COSTS; i++) {
+				children[parent + i] += costs[i];
+			}
+		}
+	}
+
+	private static long[] totalsOf(Stack stack, int labelId) {
+		if (labelId >= stack.mTotals.length) {
+			long[][] grown = new long[Math.max(stack.mTotals.length * 2, labelId + 1)][];
+			System.arraycopy(stack.mTotals, 0, grown, 0, stack.mTotals.length);
+			stack.mTotals = grown;
+		}
+		long[] totals = stack.mTotals[labelId];
+		if (totals == null) {
+			totals = new long[FIELDS];
+			stack.mTotals[labelId] = totals;
+		}
+		return totals;
+	}
+
+	/**
+	 * Clears the totals of all threads. Sections that are open stay open.
+	 */
+	public void clear() {
+		synchronized (mAllStacks) {
+			pruneLocked();
+			mRetiredTotals = new long[0][];
+			for (Stack stack : mAllStacks) {
+				synchronized (stack) {
+					stack.mTotals = new long[16][];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a Bundle with one Bundle per label, holding the
+	 * <code>SECTION_KEY_*</code> totals of all threads, or null if no section
+	 * has ended.
+	 */
+	public Bundle toBundle(MemoryTraceLabels labels) {
+		long[][] merged;
+		synchronized (mAllStacks) {
+			pruneLocked();
+			merged = merge(new long[0][], mRetiredTotals);
+			for (Stack stack : mAllStacks) {
+				synchronized (stack) {
+					merged = merge(merged, stack.mTotals);
+				}
+			}
+		}
+		Bundle results = null;
+		for (int id = 0; id < merged.length; id++) {
+			if (merged[id] == null) {
+				continue;
+			}
+			Bundle section = new Bundle();
+			for (int i = 0; i < FIELDS; i++) {
+				section.putLong(FIELD_KEYS[i], merged[id][i]);
+			}
+			if (results == null) {
+				results = new Bundle();
+			}
+			results.putBundle(labels.get(id), section);
+		}
+		return results;
+	}
+
+	/*
+	 * Drops the stacks of the threads that have died, keeping their totals.
+	 * Called with mAllStacks held.
+	 */
+	private void pruneLocked() {
+		for (Iterator<Stack> it = mAllStacks.iterator(); it.hasNext();) {
+			Stack stack = it.next();
+			Thread owner = stack.mOwner.get();
+			if (owner != null && owner.isAlive()) {
+				continue;
+			}
+			synchronized (stack) {
+				mRetiredTotals = merge(mRetiredTotals, stack.mTotals);
+			}
+			it.remove();
+		}
+	}
+
+	/*
+	 * Adds the totals to the merged totals, and returns the merged totals,
+	 * grown if they had fewer labels.
+	 */
+	private static long[][] merge(long[][] merged, long[][] totals) {
+		if (totals.length > merged.length) {
+			long[][] grown = new long[totals.length][];
+			System.arraycopy(merged, 0, grown, 0, merged.length);
+			merged = grown;
+		}
+		for (int id = 0; id < totals.length; id++) {
+			if (totals[id] == null) {
+				continue;
+			}
+			if (merged[id] == null) {
+				merged[id] = new long[FIELDS];
+			}
+			for (int i = 0; i < FIELDS; i++) {
+				merged[id][i] += totals[id][i];
+			}
+		}
+		return merged;
+	}
+
+	/*
+	 * Returns the number of threads whose stacks are kept.
+	 */
+	int getStackCount() {
+		synchronized (mAllStacks) {
+			return mAllStacks.size();
+		}
+	}
+
+	/**
+	 * Writes the sections of a results Bundle, if it has any, to
+	 * kmemtrace_sections.csv, one line per label.
+	 */
+	static void writeSectionsFile(Bundle results) {
+		Bundle sections = results != null ? results.getBundle(MemoryTracer.METRIC_KEY_SECTIONS) : null;
+		if (sections == null) {
+			return;
+		}
+		File file = MemoryTraceFiles.getTraceFile(SECTIONS_FILE_NAME);
+		if (file == null) {
+			return;
+		}
+		PrintStream out;
+		try {
+			out = new PrintStream(new FileOutputStream(file));
+		} catch (FileNotFoundException e) {
+			Log.w(TAG, "Failed to open " + file.getAbsolutePath(), e);
+			return;
+		}
+		out.print(MemoryTracer.METRIC_KEY_LABEL);
+		for (String key : FIELD_KEYS) {
+			out.print(',');
+			out.print(key);
+		}
+		out.println();
+		for (String label : sections.keySet()) {
+			Bundle section = sections.getBundle(label);
+			out.print(label);
+			for (String key : FIELD_KEYS) {
+				out.print(',');
+				out.print(section.getLong(key));
+			}
+			out.println();
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,533 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Splits a trace into timestamped segment files that roll on size or age,
+ * gzips closed segments on a background thread, and deletes the oldest
+ * segments beyond a total size or age.
+ *
+ * A manifest next to the segments lists each segment with its wall clock
+ * range, the range of its <code>timestamp</code> column, its row count and
+ * its size, one CSV line per segment, so analysis tools can open only the
+ * segments of the window they need:
+ * <pre>
+ * file,start_time,end_time,first_timestamp,last_timestamp,rows,bytes
+ * </pre>
+ * The manifest is rewritten whenever a segment is opened, closed, compressed
+ * or deleted, and segments of earlier runs listed in it are kept under the
+ * same retention policy.
+ */
+public class MemoryTraceSegments {
+	private static final String TAG = MemoryTraceSegments.class.getSimpleName();
+
+	static final String MANIFEST_FILE_NAME_SUFFIX = "manifest.csv";
+	static final String MANIFEST_HEADER = "file,start_time,end_time,first_timestamp,last_timestamp,rows,bytes";
+	static final String COMPRESSED_FILE_NAME_EXT = ".gz";
+
+	private static final String TEMP_FILE_NAME_EXT = ".tmp";
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	/**
+	 * One segment file, as listed in the manifest.
+	 */
+	public static class Segment {
+		private String mFileName;
+		private final long mStartTime;
+		private long mEndTime;
+		private long mFirstTimestamp = -1;
+		private long mLastTimestamp = -1;
+		private long mRows;
+		private long mBytes;
+		// Closed and waiting for the compressor.
+		private boolean mPending;
+
+		Segment(String fileName, long startTime) {
+			mFileName = fileName;
+			mStartTime = startTime;
+			mEndTime = startTime;
+		}
+
+		public String getFileName() {
+			return mFileName;
+		}
+
+		/**
+		 * Returns the wall clock time in milliseconds at which the segment was
+		 * opened.
+		 */
+		public long getStartTime() {
+			return mStartTime;
+		}
+
+		/**
+		 * Returns the wall clock time in milliseconds at which the segment was
+		 * closed, or last listed if it is still open.
+		 */
+		public long getEndTime() {
+			return mEndTime;
+		}
+
+		/**
+		 * Returns the <code>timestamp</code> of the first row, or -1 if no row
+		 * had one.
+		 */
+		public long getFirstTimestamp() {
+			return mFirstTimestamp;
+		}
+
+		public long getLastTimestamp() {
+			return mLastTimestamp;
+		}
+
+		public long getRows() {
+			return mRows;
+		}
+
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public boolean isCompressed() {
+			return mFileName.endsWith(COMPRESSED_FILE_NAME_EXT);
+		}
+	}
+
+	// Tells the compressor thread to finish.
+	private static final Segment FINISH = new Segment("", 0);
+
+	private final String mPrefix;
+	private final String mExtension;
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+
+	private String mLastBaseName;
+	private int mSequence;
+
+	private long mMaxSegmentBytes;
+	private long mMaxSegmentMillis;
+	private long mMaxTotalBytes;
+	private long mMaxAgeMillis;
+	private boolean mCompress = true;
+
+	// Guarded by this; the writer thread and the compressor thread both
+	// update the list and the manifest.
+	private final List<Segment> mSegments = new ArrayList<Segment>();
+	private File mDir;
+	private boolean mManifestLoaded;
+
+	private Segment mCurrent;
+	// Counts the bytes that reach the segment file. Buffered writers above it
+	// make a segment roll up to one buffer late.
+	private MemoryTraceCountingOutputStream mCurrentOut;
+
+	private final LinkedBlockingQueue<Segment> mCompressQueue = new LinkedBlockingQueue<Segment>();
+	private Thread mCompressThread;
+
+	/**
+	 * @param prefix the prefix of the segment file names, e.g. "kmemtrace_"
+	 * @param extension the extension of uncompressed segments, e.g. ".csv"
+	 */
+	public MemoryTraceSegments(String prefix, String extension) {
+		mPrefix = prefix;
+		mExtension = extension;
+	}
+
+	/**
+	 * Rolls to a new segment once the current one has this many bytes. Zero
+	 * disables rolling on size.
+	 */
+	public void setMaxSegmentBytes(long maxSegmentBytes) {
+		mMaxSegmentBytes = maxSegmentBytes;
+	}
+
+	/**
+	 * Rolls to a new segment once the current one is this old. Zero disables
+	 * rolling on age.
+	 */
+	public void setMaxSegmentMillis(long maxSegmentMillis) {
+		mMaxSegmentMillis = maxSegmentMillis;
+	}
+
+	/**
+	 * Deletes the oldest closed segments while all segments together have
+	 * more bytes. Zero keeps every segment.
+	 */
+	public void setMaxTotalBytes(long maxTotalBytes) {
+		mMaxTotalBytes = maxTotalBytes;
+	}
+
+	/**
+	 * Deletes closed segments that were closed longer ago. Zero keeps every
+	 * segment.
+	 */
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		mMaxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Sets whether closed segments are gzipped. On by default.
+	 */
+	public void setCompress(boolean compress) {
+		mCompress = compress;
+	}
+
+	/**
+	 * Returns the manifest file, or null if the external storage is not
+	 * mounted.
+	 */
+	public File getManifestFile() {
+		File dir = MemoryTraceFiles.getTraceFileDir();
+		return dir != null ? new File(dir, mPrefix + MANIFEST_FILE_NAME_SUFFIX) : null;
+	}
+
+	/**
+	 * Returns a copy of the segments currently listed in the manifest, oldest
+	 * first.
+	 */
+	public synchronized List<Segment> getSegments() {
+		return new ArrayList<Segment>(mSegments);
+	}
+
+	/**
+	 * Opens the next segment and returns the stream to write it through, or
+	 * null if the external storage is not mounted.
+	 */
+	OutputStream openSegment() throws IOException {
+		File dir = MemoryTraceFiles.getTraceFileDir();
+		if (dir == null) {
+			return null;
+		}
+		synchronized (this) {
+			if (!mManifestLoaded || !dir.equals(mDir)) {
+				mDir = dir;
+				loadManifest();
+				mManifestLoaded = true;
+			}
+		}
+		long now = System.currentTimeMillis();
+		String fileName = getSegmentFileName(dir, now);
+		MemoryTraceCountingOutputStream out = new MemoryTraceCountingOutputStream(
+				new FileOutputStream(new File(dir, fileName)), 0);
+		Segment segment = new Segment(fileName, now);
+		synchronized (this) {
+			mSegments.add(segment);
+			mCurrent = segment;
+			mCurrentOut = out;
+			writeManifest();
+		}
+		if (mCompress) {
+			startCompressor();
+		}
+		Log.d(TAG, "Opened segment " + fileName);
+		return out;
+	}
+
+	private String getSegmentFileName(File dir, long now) {
+		String base = mPrefix + mDateFormat.format(new Date(now));
+		// Segments that roll within a second get increasing sequence numbers,
+		// so the names sort in order even after older ones were deleted.
+		if (!base.equals(mLastBaseName)) {
+			mLastBaseName = base;
+			mSequence = 0;
+		}
+		String fileName = base + mExtension;
+		while (mSequence > 0 || new File(dir, fileName).exists()
+				|| new File(dir, fileName + COMPRESSED_FILE_NAME_EXT).exists()) {
+			mSequence++;
+			fileName = base + "_" + mSequence + mExtension;
+			if (!new File(dir, fileName).exists()
+					&& !new File(dir, fileName + COMPRESSED_FILE_NAME_EXT).exists()) {
+				break;
+			}
+		}
+		return fileName;
+	}
+
+	/**
+	 * Accounts for one row written to the current segment. The timestamp is
+	 * the row's <code>timestamp</code> value, or -1 if it has none.
+	 */
+	void addRow(long timestamp) {
+		Segment segment = mCurrent;
+		if (segment == null) {
+			return;
+		}
+		segment.mRows++;
+		if (timestamp >= 0) {
+			if (segment.mFirstTimestamp < 0) {
+				segment.mFirstTimestamp = timestamp;
+			}
+			segment.mLastTimestamp = timestamp;
+		}
+	}
+
+	/**
+	 * Returns true if the current segment should be closed and the next one
+	 * opened.
+	 */
+	boolean isRollDue() {
+		Segment segment = mCurrent;
+		if (segment == null) {
+			return false;
+		}
+		if (mMaxSegmentBytes > 0 && mCurrentOut.getCount() >= mMaxSegmentBytes) {
+			return true;
+		}
+		return mMaxSegmentMillis > 0
+				&& System.currentTimeMillis() - segment.mStartTime >= mMaxSegmentMillis;
+	}
+
+	/**
+	 * Completes the current segment after the writer has closed its stream,
+	 * and queues it for compression.
+	 */
+	void closeSegment() {
+		Segment segment;
+		synchronized (this) {
+			segment = mCurrent;
+			if (segment == null) {
+				return;
+			}
+			segment.mEndTime = System.currentTimeMillis();
+			segment.mBytes = mCurrentOut.getCount();
+			segment.mPending = mCompress && segment.mRows > 0;
+			mCurrent = null;
+			mCurrentOut = null;
+			applyRetention();
+			writeManifest();
+		}
+		if (segment.mPending) {
+			mCompressQueue.add(segment);
+		}
+	}
+
+	/**
+	 * Closes the current segment and waits until every closed segment is
+	 * compressed.
+	 */
+	void finish() {
+		closeSegment();
+		Thread thread;
+		synchronized (this) {
+			thread = mCompressThread;
+			mCompressThread = null;
+		}
+		if (thread == null) {
+			return;
+		}
+		mCompressQueue.add(FINISH);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while waiting for the compressor");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void startCompressor() {
+		if (mCompressThread != null) {
+			return;
+		}
+		mCompressThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				compressUntilFinished();
+			}
+		}, TAG);
+		mCompressThread.start();
+	}
+
+	private void compressUntilFinished() {
+		try {
+			for (Segment segment = mCompressQueue.take(); segment != FINISH;
+					segment = mCompressQueue.take()) {
+				compress(segment);
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	private void compress(Segment segment) {
+		File dir;
+		String fileName;
+		synchronized (this) {
+			// Retention may have deleted it while it was queued.
+			if (!mSegments.contains(segment)) {
+				return;
+			}
+			dir = mDir;
+			fileName = segment.mFileName;
+		}
+		File source = new File(dir, fileName);
+		File target = new File(dir, fileName + COMPRESSED_FILE_NAME_EXT);
+		File temp = new File(dir, fileName + COMPRESSED_FILE_NAME_EXT + TEMP_FILE_NAME_EXT);
+		try {
+			InputStream in = new FileInputStream(source);
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE);
+				try {
+					byte[] buffer = new byte[COPY_BUFFER_SIZE];
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			if (!temp.renameTo(target)) {
+				throw new IOException("Failed to rename " + temp);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to compress " + source.getAbsolutePath(), e);
+			temp.delete();
+			return;
+		}
+		synchronized (this) {
+			if (!mSegments.contains(segment)) {
+				target.delete();
+				return;
+			}
+			segment.mFileName = target.getName();
+			segment.mBytes = target.length();
+			segment.mPending = false;
+			source.delete();
+			applyRetention();
+			writeManifest();
+		}
+	}
+
+	// Deletes the oldest closed segments beyond the total size or age.
+	// Segments waiting for the compressor only count, and can only be
+	// deleted, once they are compressed.
+	private void applyRetention() {
+		if (mMaxTotalBytes <= 0 && mMaxAgeMillis <= 0) {
+			return;
+		}
+		long totalBytes = 0;
+		for (Segment segment : mSegments) {
+			if (segment == mCurrent) {
+				totalBytes += mCurrentOut.getCount();
+			} else if (!segment.mPending) {
+				totalBytes += segment.mBytes;
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < mSegments.size();) {
+			Segment segment = mSegments.get(i);
+			if (segment == mCurrent || segment.mPending) {
+				i++;
+				continue;
+			}
+			boolean tooLarge = mMaxTotalBytes > 0 && totalBytes > mMaxTotalBytes;
+			boolean tooOld = mMaxAgeMillis > 0 && now - segment.mEndTime > mMaxAgeMillis;
+			if (!tooLarge && !tooOld) {
+				i++;
+				continue;
+			}
+			new File(mDir, segment.mFileName).delete();
+			mSegments.remove(i);
+			totalBytes -= segment.mBytes;
+			Log.d(TAG, "Deleted segment " + segment.mFileName);
+		}
+	}
+
+	private void loadManifest() {
+		mSegments.clear();
+		File manifest = new File(mDir, mPrefix + MANIFEST_FILE_NAME_SUFFIX);
+		if (!manifest.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(manifest));
+			try {
+				String line = reader.readLine();
+				while ((line = reader.readLine()) != null) {
+					Segment segment = parseSegment(line);
+					if (segment != null && new File(mDir, segment.mFileName).exists()) {
+						mSegments.add(segment);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read " + manifest.getAbsolutePath(), e);
+		}
+	}
+
+	static Segment parseSegment(String line) {
+		String[] fields = line.split(",");
+		if (fields.length < 7) {
+			return null;
+		}
+		try {
+			Segment segment = new Segment(fields[0], Long.parseLong(fields[1]));
+			segment.mEndTime = Long.parseLong(fields[2]);
+			segment.mFirstTimestamp = Long.parseLong(fields[3]);
+			segment.mLastTimestamp = Long.parseLong(fields[4]);
+			segment.mRows = Long.parseLong(fields[5]);
+			segment.mBytes = Long.parseLong(fields[6]);
+			return segment;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	// Written to a temporary file and renamed, so readers never see a torn
+	// manifest.
+	private void writeManifest() {
+		File manifest = new File(mDir, mPrefix + MANIFEST_FILE_NAME_SUFFIX);
+		File temp = new File(mDir, manifest.getName() + TEMP_FILE_NAME_EXT);
+		try {
+			PrintStream out = new PrintStream(new FileOutputStream(temp));
+			try {
+				out.println(MANIFEST_HEADER);
+				for (Segment segment : mSegments) {
+					boolean open = segment == mCurrent;
+					out.print(segment.mFileName);
+					out.print(',');
+					out.print(segment.mStartTime);
+					out.print(',');
+					out.print(open ? System.currentTimeMillis() : segment.mEndTime);
+					out.print(',');
+					out.print(segment.mFirstTimestamp);
+					out.print(',');
+					out.print(segment.mLastTimestamp);
+					out.print(',');
+					out.print(segment.mRows);
+					out.print(',');
+					out.println(open ? mCurrentOut.getCount() : segment.mBytes);
+				}
+			} finally {
+				out.close();
+			}
+			if (out.checkError() || !temp.renameTo(manifest)) {
+				throw new IOException("Failed to replace " + manifest);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write " + manifest.getAbsolutePath(), e);
+		}
+	}
+}
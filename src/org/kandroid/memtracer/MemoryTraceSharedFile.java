@@ -0,0 +1,238 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A file shared by the processes of an application, each of which writes
+ * its snapshots into a slot of its own. A process claims a slot by locking
+ * the slot header, holds the lock while it traces, and is the only writer of
+ * the slot; the lock goes away with the process. The file is memory-mapped,
+ * so writing a snapshot takes no system call and no IPC.
+ *
+ * <pre>
+ * file     := header slot*
+ * header   := "KMTS" version:u8 0:u8[3] slotCount:u32 capacity:u32 metricCount:u32 0:u8[12]
+ * slot     := pid:u32 0:u32 epoch:u64 head:u64 nameLength:u8 name:u8[63] check:u64 0:u8[32] record[capacity]
+ * record   := seq:u64 presentMask:u64 labelLength:u8 label:u8[47] value:i64[64] check:u64
+ * </pre>
+ *
+ * All numbers are big-endian. Values are indexed by
+ * {@link MemoryTraceMetric} ordinal. The epoch of a slot is odd while a
+ * process claims it and even once claimed, and record n of a slot, stored
+ * at index n % capacity, has the sequence 2n + 1 while it is written and
+ * 2n + 2 once complete. The head of a slot counts the complete records.
+ *
+ * Plain accesses to mapped memory are not ordered, and on weakly ordered
+ * CPUs another process may see the stores of a record in any order. So
+ * the counters are only hints: the slot header and each record also carry
+ * a checksum of what they hold, the epoch and the sequence included, and a
+ * reader takes a copy only if the checksum of what it read matches.
+ */
+class MemoryTraceSharedFile {
+
+	static final byte[] MAGIC = { 'K', 'M', 'T', 'S' };
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 32;
+	static final int DEFAULT_SLOT_COUNT = 8;
+	static final int DEFAULT_CAPACITY = 1024;
+	static final String DEFAULT_FILE_NAME = "kmemtrace_shared.kms";
+
+	static final int SLOT_PID_OFFSET = 0;
+	static final int SLOT_EPOCH_OFFSET = 8;
+	static final int SLOT_HEAD_OFFSET = 16;
+	static final int SLOT_NAME_OFFSET = 24;
+	static final int MAX_NAME_LENGTH = 63;
+	static final int SLOT_CHECK_OFFSET = 88;
+	static final int SLOT_HEADER_SIZE = 128;
+
+	static final int RECORD_SEQ_OFFSET = 0;
+	static final int RECORD_MASK_OFFSET = 8;
+	static final int RECORD_LABEL_OFFSET = 16;
+	static final int MAX_LABEL_LENGTH = 47;
+	static final int RECORD_VALUES_OFFSET = 64;
+	static final int MAX_METRICS = 64;
+	static final int RECORD_CHECK_OFFSET = RECORD_VALUES_OFFSET + 8 * MAX_METRICS;
+	static final int RECORD_SIZE = RECORD_CHECK_OFFSET + 8;
+
+	private static final long CHECK_SEED = 0x4B4D5453L;
+
+	private static final int SLOT_COUNT_OFFSET = 8;
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mBuffer;
+	private final int mSlotCount;
+	private final int mCapacity;
+
+	private MemoryTraceSharedFile(RandomAccessFile file, MappedByteBuffer buffer, int slotCount, int capacity) {
+		mFile = file;
+		mChannel = file.getChannel();
+		mBuffer = buffer;
+		mSlotCount = slotCount;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Maps the file for a writer, laying it out with the given number of
+	 * slots and records per slot unless another process already did. A file
+	 * left by another version of the tracer is laid out anew.
+	 */
+	static synchronized MemoryTraceSharedFile open(File path, int slotCount, int capacity) throws IOException {
+		if (slotCount <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("Invalid layout: " + slotCount + " slots of " + capacity);
+		}
+		if (fileSize(slotCount, capacity) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Layout too large: " + slotCount + " slots of " + capacity);
+		}
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock(0, HEADER_SIZE, false);
+			try {
+				if (!readLayout(file)) {
+					file.setLength(0);
+					file.setLength(fileSize(slotCount, capacity));
+					file.seek(SLOT_COUNT_OFFSET);
+					file.writeInt(slotCount);
+					file.writeInt(capacity);
+					file.writeInt(MemoryTraceMetric.count());
+					file.seek(0);
+					file.write(MAGIC);
+					file.write(VERSION);
+				}
+				file.seek(SLOT_COUNT_OFFSET);
+				slotCount = file.readInt();
+				capacity = file.readInt();
+			} finally {
+				lock.release();
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					fileSize(slotCount, capacity));
+			return new MemoryTraceSharedFile(file, buffer, slotCount, capacity);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps the file for a reader. Only writers lay the file out, so a file
+	 * that is missing or not laid out by this version of the tracer fails
+	 * with an IOException and is left as it is.
+	 */
+	static synchronized MemoryTraceSharedFile openReadOnly(File path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			int slotCount;
+			int capacity;
+			// Wait for a writer laying the file out.
+			FileLock lock = channel.lock(0, HEADER_SIZE, true);
+			try {
+				if (!readLayout(file)) {
+					throw new IOException("Not a shared trace file: " + path);
+				}
+				file.seek(SLOT_COUNT_OFFSET);
+				slotCount = file.readInt();
+				capacity = file.readInt();
+			} finally {
+				lock.release();
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					fileSize(slotCount, capacity));
+			return new MemoryTraceSharedFile(file, buffer, slotCount, capacity);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private static boolean readLayout(RandomAccessFile file) throws IOException {
+		if (file.length() < HEADER_SIZE) {
+			return false;
+		}
+		byte[] magic = new byte[MAGIC.length];
+		file.seek(0);
+		file.readFully(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		if (file.read() != VERSION) {
+			return false;
+		}
+		file.seek(SLOT_COUNT_OFFSET);
+		int slotCount = file.readInt();
+		int capacity = file.readInt();
+		int metricCount = file.readInt();
+		return slotCount > 0 && capacity > 0 && metricCount == MemoryTraceMetric.count()
+				&& file.length() == fileSize(slotCount, capacity);
+	}
+
+	private static long fileSize(int slotCount, int capacity) {
+		return HEADER_SIZE + (long) slotCount * slotSize(capacity);
+	}
+
+	private static long slotSize(int capacity) {
+		return SLOT_HEADER_SIZE + (long) capacity * RECORD_SIZE;
+	}
+
+	int getSlotCount() {
+		return mSlotCount;
+	}
+
+	int getCapacity() {
+		return mCapacity;
+	}
+
+	MappedByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	int slotOffset(int slot) {
+		return (int) (HEADER_SIZE + slot * slotSize(mCapacity));
+	}
+
+	int recordOffset(int slot, long n) {
+		return (int) (slotOffset(slot) + SLOT_HEADER_SIZE + (n % mCapacity) * RECORD_SIZE);
+	}
+
+	/**
+	 * Locks the header of the slot and returns the lock, or null if another
+	 * writer holds the slot.
+	 */
+	FileLock claimSlot(int slot) throws IOException {
+		try {
+			return mChannel.tryLock(slotOffset(slot), SLOT_HEADER_SIZE, false);
+		} catch (OverlappingFileLockException e) {
+			// Claimed by this process.
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a checksum of the slot header or of a record.
+	 */
+	static long startCheck(long epoch, long seq) {
+		return check(check(CHECK_SEED, epoch), seq);
+	}
+
+	/**
+	 * Adds a value to a checksum.
+	 */
+	static long check(long check, long value) {
+		check = (check ^ value) * 0x9E3779B97F4A7C15L;
+		return check ^ (check >>> 29);
+	}
+
+	void close() throws IOException {
+		mFile.close();
+	}
+}
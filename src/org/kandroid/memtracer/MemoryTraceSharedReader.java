@@ -0,0 +1,353 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Merges the snapshots that the processes of an application write into the
+ * shared file, see {@link MemoryTraceSharedWriter}, into one trace ordered
+ * by timestamp, in the CSV layout of {@link MemoryTraceCsvWriter} with two
+ * more columns, the name and the id of the process. The writers never wait
+ * for the reader; records overwritten before they were read are counted as
+ * lost.
+ */
+public class MemoryTraceSharedReader {
+	private static final String TAG = MemoryTraceSharedReader.class.getSimpleName();
+
+	public static final String METRIC_KEY_PROCESS = "process";
+	public static final String METRIC_KEY_PID = "pid";
+
+	static final String DEFAULT_MERGED_FILE_NAME = "kmemtrace_processes.csv";
+
+	private static final Comparator<Row> BY_TIMESTAMP = new Comparator<Row>() {
+		@Override
+		public int compare(Row a, Row b) {
+			return a.mTimestamp < b.mTimestamp ? -1 : a.mTimestamp == b.mTimestamp ? 0 : 1;
+		}
+	};
+
+	private static class Row {
+		String mProcess;
+		int mPid;
+		String mLabel;
+		long mTimestamp;
+		long mPresentMask;
+		final long[] mValues = new long[MemoryTraceSharedFile.MAX_METRICS];
+	}
+
+	private final MemoryTraceSharedFile mFile;
+	private final MappedByteBuffer mBuffer;
+	private final String[] mMetricKeys;
+	private final MemoryTraceMetric[] mMetrics;
+	private final byte[] mBytes = new byte[Math.max(MemoryTraceSharedFile.MAX_NAME_LENGTH,
+			MemoryTraceSharedFile.MAX_LABEL_LENGTH)];
+	private int mLength;
+
+	// What is known of each slot: its owner and the next record to read.
+	private final long[] mEpochs;
+	private final long[] mNext;
+	private final String[] mProcesses;
+	private final int[] mPids;
+
+	// Read but not yet written, because an earlier record may still come.
+	private final ArrayList<Row> mPending = new ArrayList<Row>();
+	private long mLostCount;
+
+	private volatile boolean mMerging;
+	private Thread mThread;
+
+	/**
+	 * Maps the shared file read-only. A writer must have laid it out; the
+	 * reader fails on any other file and leaves it as it is.
+	 *
+	 * @param metricKeys the columns of the merged trace
+	 */
+	public MemoryTraceSharedReader(File file, String[] metricKeys) throws IOException {
+		mFile = MemoryTraceSharedFile.openReadOnly(file);
+		mBuffer = mFile.getBuffer();
+		mMetricKeys = metricKeys;
+		mMetrics = new MemoryTraceMetric[metricKeys.length];
+		for (int i = 0; i < metricKeys.length; i++) {
+			mMetrics[i] = MemoryTraceMetric.forKey(metricKeys[i]);
+		}
+		int slots = mFile.getSlotCount();
+		mEpochs = new long[slots];
+		mNext = new long[slots];
+		mProcesses = new String[slots];
+		mPids = new int[slots];
+	}
+
+	/**
+	 * Skips the records already in the file, so that only those of the
+	 * current run are merged.
+	 */
+	public synchronized void skipExisting() {
+		for (int slot = 0; slot < mEpochs.length; slot++) {
+			if (readOwner(slot)) {
+				mNext[slot] = readHead(slot);
+			}
+		}
+	}
+
+	/**
+	 * Reads the records written since the previous call, and returns how
+	 * many.
+	 */
+	public synchronized int poll() {
+		int count = 0;
+		int capacity = mFile.getCapacity();
+		for (int slot = 0; slot < mEpochs.length; slot++) {
+			long epoch = mEpochs[slot];
+			if (!readOwner(slot)) {
+				continue;
+			}
+			if (mEpochs[slot] != epoch) {
+				mNext[slot] = 0;
+			}
+			long head = readHead(slot);
+			if (head - mNext[slot] > capacity) {
+				mLostCount += head - capacity - mNext[slot];
+				mNext[slot] = head - capacity;
+			}
+			for (; mNext[slot] < head; mNext[slot]++) {
+				Row row = readRecord(slot, mNext[slot]);
+				if (row != null) {
+					mPending.add(row);
+					count++;
+				} else if (isOverwritten(slot, mNext[slot])) {
+					mLostCount++;
+				} else {
+					// Not all of it is visible here yet; read it at the next poll.
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Brings the owner of the slot up to date. Returns false if the slot was
+	 * never claimed or is being claimed.
+	 */
+	private boolean readOwner(int slot) {
+		MappedByteBuffer buffer = mBuffer;
+		int offset = mFile.slotOffset(slot);
+		long epoch = buffer.getLong(offset + MemoryTraceSharedFile.SLOT_EPOCH_OFFSET);
+		if (epoch == 0 || (epoch & 1) != 0) {
+			return false;
+		}
+		if (epoch == mEpochs[slot]) {
+			return true;
+		}
+		int pid = buffer.getInt(offset + MemoryTraceSharedFile.SLOT_PID_OFFSET);
+		long check = MemoryTraceSharedFile.check(MemoryTraceSharedFile.startCheck(epoch, 0), pid);
+		check = readBytes(offset + MemoryTraceSharedFile.SLOT_NAME_OFFSET, MemoryTraceSharedFile.MAX_NAME_LENGTH,
+				check);
+		if (buffer.getLong(offset + MemoryTraceSharedFile.SLOT_CHECK_OFFSET) != check) {
+			// Claimed again, or not all of the claim is visible here yet.
+			return false;
+		}
+		mEpochs[slot] = epoch;
+		mPids[slot] = pid;
+		mProcesses[slot] = newString();
+		return true;
+	}
+
+	private long readHead(int slot) {
+		return mBuffer.getLong(mFile.slotOffset(slot) + MemoryTraceSharedFile.SLOT_HEAD_OFFSET);
+	}
+
+	/*
+	 * Copies record n of the slot, or returns null if what was copied does
+	 * not match its checksum: the record was overwritten before or while it
+	 * was copied, or not all of it is visible here yet.
+	 */
+	private Row readRecord(int slot, long n) {
+		MappedByteBuffer buffer = mBuffer;
+		int offset = mFile.recordOffset(slot, n);
+		long seq = 2 * n + 2;
+		if (buffer.getLong(offset + MemoryTraceSharedFile.RECORD_SEQ_OFFSET) != seq) {
+			return null;
+		}
+		Row row = new Row();
+		row.mProcess = mProcesses[slot];
+		row.mPid = mPids[slot];
+		long mask = buffer.getLong(offset + MemoryTraceSharedFile.RECORD_MASK_OFFSET);
+		row.mPresentMask = mask;
+		long check = MemoryTraceSharedFile.check(MemoryTraceSharedFile.startCheck(mEpochs[slot], seq), mask);
+		check = readBytes(offset + MemoryTraceSharedFile.RECORD_LABEL_OFFSET, MemoryTraceSharedFile.MAX_LABEL_LENGTH,
+				check);
+		for (int i = 0; mask != 0 && i < row.mValues.length; i++, mask >>>= 1) {
+			if ((mask & 1) != 0) {
+				long value = buffer.getLong(offset + MemoryTraceSharedFile.RECORD_VALUES_OFFSET + 8 * i);
+				row.mValues[i] = value;
+				check = MemoryTraceSharedFile.check(check, value);
+			}
+		}
+		if (buffer.getLong(offset + MemoryTraceSharedFile.RECORD_CHECK_OFFSET) != check) {
+			return null;
+		}
+		row.mLabel = newString();
+		row.mTimestamp = row.mValues[MemoryTraceMetric.TIMESTAMP.ordinal()];
+		return row;
+	}
+
+	/*
+	 * Tells whether record n of the slot that could not be read is gone for
+	 * good, rather than not all visible yet.
+	 */
+	private boolean isOverwritten(int slot, long n) {
+		long seq = mBuffer.getLong(mFile.recordOffset(slot, n) + MemoryTraceSharedFile.RECORD_SEQ_OFFSET);
+		return seq > 2 * n + 2 || readHead(slot) - n >= mFile.getCapacity();
+	}
+
+	/*
+	 * Copies the length and the bytes at the offset into mBytes, and returns
+	 * the checksum with them added.
+	 */
+	private long readBytes(int offset, int maxLength, long check) {
+		int length = mBuffer.get(offset) & 0xFF;
+		check = MemoryTraceSharedFile.check(check, length);
+		mLength = Math.min(length, maxLength);
+		for (int i = 0; i < mLength; i++) {
+			mBytes[i] = mBuffer.get(offset + 1 + i);
+			check = MemoryTraceSharedFile.check(check, mBytes[i]);
+		}
+		return check;
+	}
+
+	private String newString() {
+		try {
+			return new String(mBytes, 0, mLength, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Returns the number of records overwritten before they were read.
+	 */
+	public synchronized long getLostCount() {
+		return mLostCount;
+	}
+
+	public void writeHeader(PrintStream out, String label) {
+		out.println(label);
+		out.print(METRIC_KEY_PROCESS);
+		out.print(',');
+		out.print(METRIC_KEY_PID);
+		out.print(',');
+		for (String key : mMetricKeys) {
+			out.print(key);
+			out.print(',');
+		}
+		out.println();
+	}
+
+	/**
+	 * Writes the records read so far with a timestamp up to
+	 * <code>until</code>, in timestamp order, and returns how many. Records
+	 * with the same timestamp keep the order they were read in.
+	 */
+	public synchronized int writeRows(PrintStream out, long until) {
+		Collections.sort(mPending, BY_TIMESTAMP);
+		int count = 0;
+		while (count < mPending.size() && mPending.get(count).mTimestamp <= until) {
+			writeRow(out, mPending.get(count));
+			count++;
+		}
+		mPending.subList(0, count).clear();
+		return count;
+	}
+
+	private void writeRow(PrintStream out, Row row) {
+		out.print(row.mProcess);
+		out.print(',');
+		out.print(row.mPid);
+		out.print(',');
+		for (int i = 0; i < mMetricKeys.length; i++) {
+			MemoryTraceMetric metric = mMetrics[i];
+			if (MemoryTracer.METRIC_KEY_LABEL.equals(mMetricKeys[i])) {
+				out.print(row.mLabel);
+			} else if (metric != null && (row.mPresentMask & metric.mask()) != 0) {
+				out.print(row.mValues[metric.ordinal()]);
+			} else {
+				out.print("null");
+			}
+			out.print(',');
+		}
+		out.println();
+	}
+
+	/**
+	 * Merges on a background thread, polling every
+	 * <code>periodMillis</code>. A record is written once it is older than
+	 * <code>delayMillis</code>, by which time the records of the other
+	 * processes that come before it have been read.
+	 */
+	public synchronized void startMerging(final PrintStream out, final long periodMillis, final long delayMillis) {
+		if (mMerging) {
+			return;
+		}
+		mMerging = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				while (mMerging) {
+					poll();
+					writeRows(out, MemoryTraceClock.now() - delayMillis * 1000000L);
+					LockSupport.parkNanos(periodMillis * 1000000L);
+				}
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stops merging and writes the remaining records.
+	 */
+	public void stopMerging(PrintStream out) {
+		Thread thread;
+		synchronized (this) {
+			if (!mMerging) {
+				return;
+			}
+			mMerging = false;
+			thread = mThread;
+			mThread = null;
+		}
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		poll();
+		writeRows(out, Long.MAX_VALUE);
+		long lost = getLostCount();
+		if (lost > 0) {
+			Log.w(TAG, "Lost " + lost + " records overwritten before they were merged");
+		}
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+}
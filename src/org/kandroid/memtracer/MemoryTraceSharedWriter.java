@@ -0,0 +1,282 @@
+package org.kandroid.memtracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileLock;
+
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Writes snapshots into a slot of the file shared by the processes of an
+ * application, see {@link MemoryTraceSharedFile}, for
+ * {@link MemoryTraceSharedReader} to merge into one trace. Every process to
+ * trace, e.g. a service running in a process of its own, traces to a writer
+ * of its own:
+ * <pre>
+ * MemoryTracer tracer = new MemoryTracer(new MemoryTraceSharedWriter(":sync"));
+ * tracer.startTracing(":sync");
+ * </pre>
+ * A snapshot is stored with plain memory writes into a ring of records, so
+ * the oldest records are overwritten if the reader falls behind. Labels are
+ * cut to 47 bytes.
+ */
+public class MemoryTraceSharedWriter implements MemoryTracer.SnapshotWriter {
+	private static final String TAG = MemoryTraceSharedWriter.class.getSimpleName();
+
+	private final String[] mMetricKeys;
+	private final long mMetricMask;
+	private final String mProcessName;
+	private final String mFileName;
+	private final int mSlotCount;
+	private final int mCapacity;
+
+	private byte[][] mLabelBytes = new byte[64][];
+
+	private MemoryTraceSharedFile mFile;
+	private MappedByteBuffer mBuffer;
+	private FileLock mLock;
+	private int mSlot;
+	private long mEpoch;
+	private long mHead;
+
+	public MemoryTraceSharedWriter(String processName) {
+		this(MemoryTraceCsvWriter.DEFAULT_METRIC_KEYS, processName);
+	}
+
+	public MemoryTraceSharedWriter(String[] metricKeys, String processName) {
+		this(metricKeys, processName, MemoryTraceSharedFile.DEFAULT_FILE_NAME,
+				MemoryTraceSharedFile.DEFAULT_SLOT_COUNT, MemoryTraceSharedFile.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param processName the name of the process in the merged trace, or
+	 *        null for the label tracing starts with
+	 * @param fileName the name of the shared file
+	 * @param slotCount the number of processes the file holds, if this
+	 *        process lays it out
+	 * @param capacity the number of records per slot, likewise
+	 */
+	public MemoryTraceSharedWriter(String[] metricKeys, String processName, String fileName,
+			int slotCount, int capacity) {
+		// The reader orders the snapshots by their timestamps.
+		long mask = MemoryTraceMetric.TIMESTAMP.mask();
+		boolean hasTimestamp = false;
+		for (String key : metricKeys) {
+			MemoryTraceMetric metric = MemoryTraceMetric.forKey(key);
+			if (metric != null) {
+				mask |= metric.mask();
+			}
+			hasTimestamp |= MemoryTracer.METRIC_KEY_TIMESTAMP.equals(key);
+		}
+		if (!hasTimestamp) {
+			String[] keys = new String[metricKeys.length + 1];
+			System.arraycopy(metricKeys, 0, keys, 0, metricKeys.length);
+			keys[metricKeys.length] = MemoryTracer.METRIC_KEY_TIMESTAMP;
+			metricKeys = keys;
+		}
+		mMetricKeys = metricKeys;
+		mMetricMask = mask;
+		mProcessName = processName;
+		mFileName = fileName;
+		mSlotCount = slotCount;
+		mCapacity = capacity;
+	}
+
+	@Override
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	/**
+	 * Returns the slot this process writes to, or -1 if it has none.
+	 */
+	public int getSlot() {
+		return mBuffer != null ? mSlot : -1;
+	}
+
+	@Override
+	public void writeTraceStart(String label) {
+		Log.d(TAG, "Start tracing for " + label);
+		File file = MemoryTraceFiles.getTraceFile(mFileName);
+		if (file == null) {
+			return;
+		}
+		try {
+			mFile = MemoryTraceSharedFile.open(file, mSlotCount, mCapacity);
+			for (int slot = 0; slot < mFile.getSlotCount() && mLock == null; slot++) {
+				mLock = mFile.claimSlot(slot);
+				mSlot = slot;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to open the shared trace file " + file.getAbsolutePath(), e);
+		}
+		if (mLock == null) {
+			Log.w(TAG, "No free slot in the shared trace file " + file.getAbsolutePath());
+			close();
+			return;
+		}
+		mBuffer = mFile.getBuffer();
+		claim(mProcessName != null ? mProcessName : String.valueOf(label));
+	}
+
+	/*
+	 * Takes over the slot: the odd epoch tells readers that the header is
+	 * being written and that the records are no longer those they know.
+	 */
+	private void claim(String processName) {
+		MappedByteBuffer buffer = mBuffer;
+		int offset = mFile.slotOffset(mSlot);
+		long epoch = buffer.getLong(offset + MemoryTraceSharedFile.SLOT_EPOCH_OFFSET);
+		epoch += (epoch & 1) != 0 ? 1 : 2;
+		buffer.putLong(offset + MemoryTraceSharedFile.SLOT_EPOCH_OFFSET, epoch - 1);
+		int pid = Process.myPid();
+		buffer.putInt(offset + MemoryTraceSharedFile.SLOT_PID_OFFSET, pid);
+		buffer.putLong(offset + MemoryTraceSharedFile.SLOT_HEAD_OFFSET, 0);
+		byte[] name = truncate(utf8(processName), MemoryTraceSharedFile.MAX_NAME_LENGTH);
+		long check = MemoryTraceSharedFile.check(MemoryTraceSharedFile.startCheck(epoch, 0), pid);
+		check = putBytes(buffer, offset + MemoryTraceSharedFile.SLOT_NAME_OFFSET, name, check);
+		buffer.putLong(offset + MemoryTraceSharedFile.SLOT_CHECK_OFFSET, check);
+		buffer.putLong(offset + MemoryTraceSharedFile.SLOT_EPOCH_OFFSET, epoch);
+		mEpoch = epoch;
+		mHead = 0;
+	}
+
+	@Override
+	public void writeTraceSnapshot(Bundle snapshot) {
+		if (mBuffer == null) {
+			return;
+		}
+		MemoryTraceSnapshot record = new MemoryTraceSnapshot();
+		for (String key : snapshot.keySet()) {
+			MemoryTraceMetric metric = MemoryTraceMetric.forKey(key);
+			Object value = snapshot.get(key);
+			if (metric != null && value instanceof Number) {
+				record.set(metric, ((Number) value).longValue());
+			}
+		}
+		appendRecord(labelBytes(snapshot.getString(MemoryTracer.METRIC_KEY_LABEL)), record);
+	}
+
+	@Override
+	public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		if (mBuffer == null) {
+			return;
+		}
+		int labelId = snapshot.getLabelId();
+		if (labelId < 0) {
+			appendRecord(labelBytes(snapshot.getLabel()), snapshot);
+			return;
+		}
+		if (labelId >= mLabelBytes.length) {
+			byte[][] bytes = new byte[Math.max(mLabelBytes.length * 2, labelId + 1)][];
+			System.arraycopy(mLabelBytes, 0, bytes, 0, mLabelBytes.length);
+			mLabelBytes = bytes;
+		}
+		byte[] label = mLabelBytes[labelId];
+		if (label == null) {
+			label = labelBytes(snapshot.getLabel());
+			mLabelBytes[labelId] = label;
+		}
+		appendRecord(label, snapshot);
+	}
+
+	/*
+	 * Stores the record under an odd sequence, then completes it and moves
+	 * the head past it. Readers may see these stores in any order; the
+	 * checksum tells them whether what they read is the whole record.
+	 */
+	private void appendRecord(byte[] label, MemoryTraceSnapshot snapshot) {
+		MappedByteBuffer buffer = mBuffer;
+		long head = mHead;
+		int offset = mFile.recordOffset(mSlot, head);
+		long seq = 2 * head + 2;
+		buffer.putLong(offset + MemoryTraceSharedFile.RECORD_SEQ_OFFSET, seq - 1);
+		long mask = snapshot.getPresentMask() & mMetricMask;
+		buffer.putLong(offset + MemoryTraceSharedFile.RECORD_MASK_OFFSET, mask);
+		long check = MemoryTraceSharedFile.check(MemoryTraceSharedFile.startCheck(mEpoch, seq), mask);
+		check = putBytes(buffer, offset + MemoryTraceSharedFile.RECORD_LABEL_OFFSET, label, check);
+		for (int i = 0; mask != 0; i++, mask >>>= 1) {
+			if ((mask & 1) != 0) {
+				long value = snapshot.get(MemoryTraceMetric.get(i));
+				buffer.putLong(offset + MemoryTraceSharedFile.RECORD_VALUES_OFFSET + 8 * i, value);
+				check = MemoryTraceSharedFile.check(check, value);
+			}
+		}
+		buffer.putLong(offset + MemoryTraceSharedFile.RECORD_CHECK_OFFSET, check);
+		buffer.putLong(offset + MemoryTraceSharedFile.RECORD_SEQ_OFFSET, seq);
+		mHead = ++head;
+		buffer.putLong(mFile.slotOffset(mSlot) + MemoryTraceSharedFile.SLOT_HEAD_OFFSET, head);
+	}
+
+	/*
+	 * Stores the length and the bytes at the offset, and returns the checksum
+	 * with them added.
+	 */
+	private static long putBytes(MappedByteBuffer buffer, int offset, byte[] bytes, long check) {
+		buffer.put(offset, (byte) bytes.length);
+		check = MemoryTraceSharedFile.check(check, bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(offset + 1 + i, bytes[i]);
+			check = MemoryTraceSharedFile.check(check, bytes[i]);
+		}
+		return check;
+	}
+
+	@Override
+	public void writeTraceStop(Bundle results) {
+		Log.d(TAG, "Stop tracing");
+		close();
+	}
+
+	private void close() {
+		mBuffer = null;
+		if (mLock != null) {
+			try {
+				mLock.release();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to release the shared trace slot", e);
+			}
+			mLock = null;
+		}
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to close the shared trace file", e);
+			}
+			mFile = null;
+		}
+	}
+
+	private static byte[] labelBytes(String label) {
+		return truncate(utf8(String.valueOf(label)), MemoryTraceSharedFile.MAX_LABEL_LENGTH);
+	}
+
+	/*
+	 * Cuts the bytes to the length, without cutting a character in two.
+	 */
+	private static byte[] truncate(byte[] bytes, int maxLength) {
+		if (bytes.length <= maxLength) {
+			return bytes;
+		}
+		int length = maxLength;
+		while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		byte[] truncated = new byte[length];
+		System.arraycopy(bytes, 0, truncated, 0, length);
+		return truncated;
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
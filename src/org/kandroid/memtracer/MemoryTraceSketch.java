@@ -0,0 +1,148 @@
+package org.kandroid.memtracer;
+
+/**
+ * Summarizes a stream of values of one metric in fixed memory: count, min,
+ * max, mean and variance exactly, and quantiles from a log-linear histogram
+ * with a relative error of about 6%. Sketches of the same metric can be
+ * merged, e.g. to combine runs or labels.
+ */
+public class MemoryTraceSketch {
+
+	// Each power of two is split into 2^SUB_BUCKET_BITS linear buckets.
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = ((63 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + SUB_BUCKETS;
+
+	private final int[] mPositiveBuckets = new int[BUCKET_COUNT];
+	// Most metrics never go negative, so this is only allocated on demand.
+	private int[] mNegativeBuckets;
+
+	private long mCount;
+	private long mMin = Long.MAX_VALUE;
+	private long mMax = Long.MIN_VALUE;
+	private double mMean;
+	private double mSumOfSquares;
+
+	public void add(long value) {
+		mCount++;
+		if (value < mMin) {
+			mMin = value;
+		}
+		if (value > mMax) {
+			mMax = value;
+		}
+		// Welford's online update.
+		double delta = value - mMean;
+		mMean += delta / mCount;
+		mSumOfSquares += delta * (value - mMean);
+
+		if (value >= 0) {
+			mPositiveBuckets[bucketOf(value)]++;
+		} else {
+			if (mNegativeBuckets == null) {
+				mNegativeBuckets = new int[BUCKET_COUNT];
+			}
+			// -(value + 1) cannot overflow, unlike -value.
+			mNegativeBuckets[bucketOf(-(value + 1))]++;
+		}
+	}
+
+	public void merge(MemoryTraceSketch other) {
+		if (other.mCount == 0) {
+			return;
+		}
+		long count = mCount + other.mCount;
+		double delta = other.mMean - mMean;
+		mSumOfSquares += other.mSumOfSquares + delta * delta * mCount * other.mCount / count;
+		mMean += delta * other.mCount / count;
+		mCount = count;
+		mMin = Math.min(mMin, other.mMin);
+		mMax = Math.max(mMax, other.mMax);
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mPositiveBuckets[i] += other.mPositiveBuckets[i];
+		}
+		if (other.mNegativeBuckets != null) {
+			if (mNegativeBuckets == null) {
+				mNegativeBuckets = new int[BUCKET_COUNT];
+			}
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				mNegativeBuckets[i] += other.mNegativeBuckets[i];
+			}
+		}
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getMin() {
+		return mMin;
+	}
+
+	public long getMax() {
+		return mMax;
+	}
+
+	public double getMean() {
+		return mMean;
+	}
+
+	/**
+	 * Returns the sample variance, or zero for fewer than two values.
+	 */
+	public double getVariance() {
+		return mCount > 1 ? mSumOfSquares / (mCount - 1) : 0;
+	}
+
+	/**
+	 * Returns an estimate of the given quantile, between 0 and 1.
+	 */
+	public long getQuantile(double quantile) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * mCount);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		if (mNegativeBuckets != null) {
+			for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+				seen += mNegativeBuckets[i];
+				if (seen >= rank) {
+					return clamp(-1 - midpointOf(i));
+				}
+			}
+		}
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mPositiveBuckets[i];
+			if (seen >= rank) {
+				return clamp(midpointOf(i));
+			}
+		}
+		return mMax;
+	}
+
+	private long clamp(long value) {
+		return Math.max(mMin, Math.min(mMax, value));
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	static long midpointOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+		long lower = ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+		return lower + ((1L << shift) >> 1);
+	}
+}
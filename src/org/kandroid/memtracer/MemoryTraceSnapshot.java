@@ -0,0 +1,98 @@
+package org.kandroid.memtracer;
+
+import android.os.Bundle;
+
+/**
+ * A snapshot backed by a primitive array, indexed by
+ * {@link MemoryTraceMetric}. Instances are meant to be reused through a
+ * {@link MemoryTraceSnapshotPool}; {@link #toBundle()} converts one to the
+ * Bundle form for the APIs that still need it.
+ */
+public class MemoryTraceSnapshot {
+
+	private final long[] mValues = new long[MemoryTraceMetric.count()];
+	private long mPresentMask;
+	private int mLabelId = -1;
+	private String mLabel;
+
+	public int getLabelId() {
+		return mLabelId;
+	}
+
+	public String getLabel() {
+		return mLabel;
+	}
+
+	void setLabel(int labelId, String label) {
+		mLabelId = labelId;
+		mLabel = label;
+	}
+
+	public boolean has(MemoryTraceMetric metric) {
+		return (mPresentMask & metric.mask()) != 0;
+	}
+
+	/**
+	 * Returns the value of the metric, or zero if the snapshot does not hold it.
+	 */
+	public long get(MemoryTraceMetric metric) {
+		return mValues[metric.ordinal()];
+	}
+
+	public void set(MemoryTraceMetric metric, long value) {
+		mValues[metric.ordinal()] = value;
+		mPresentMask |= metric.mask();
+	}
+
+	/**
+	 * Returns a mask with bit <code>ordinal</code> set for every metric held.
+	 */
+	public long getPresentMask() {
+		return mPresentMask;
+	}
+
+	public void clear() {
+		long[] values = mValues;
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 0;
+		}
+		mPresentMask = 0;
+		mLabelId = -1;
+		mLabel = null;
+	}
+
+	public void copyFrom(MemoryTraceSnapshot other) {
+		System.arraycopy(other.mValues, 0, mValues, 0, mValues.length);
+		mPresentMask = other.mPresentMask;
+		mLabelId = other.mLabelId;
+		mLabel = other.mLabel;
+	}
+
+	public Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putString(MemoryTracer.METRIC_KEY_LABEL, mLabel);
+		for (int i = 0; i < mValues.length; i++) {
+			if ((mPresentMask & (1L << i)) != 0) {
+				bundle.putLong(MemoryTraceMetric.get(i).getKey(), mValues[i]);
+			}
+		}
+		return bundle;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(mLabel).append(" {");
+		boolean first = true;
+		for (int i = 0; i < mValues.length; i++) {
+			if ((mPresentMask & (1L << i)) != 0) {
+				if (!first) {
+					sb.append(", ");
+				}
+				sb.append(MemoryTraceMetric.get(i).getKey()).append('=').append(mValues[i]);
+				first = false;
+			}
+		}
+		return sb.append('}').toString();
+	}
+}
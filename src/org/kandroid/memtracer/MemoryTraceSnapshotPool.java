@@ -0,0 +1,49 @@
+package org.kandroid.memtracer;
+
+/**
+ * A lock-free pool of {@link MemoryTraceSnapshot}s. Snapshots are only
+ * allocated while the pool warms up; after that obtaining and recycling one
+ * allocates nothing.
+ */
+public class MemoryTraceSnapshotPool {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final MemoryTraceQueue<MemoryTraceSnapshot> mFree;
+
+	public MemoryTraceSnapshotPool() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public MemoryTraceSnapshotPool(int capacity) {
+		mFree = new MemoryTraceQueue<MemoryTraceSnapshot>(capacity);
+	}
+
+	/**
+	 * Returns a cleared snapshot.
+	 */
+	public MemoryTraceSnapshot obtain() {
+		MemoryTraceSnapshot snapshot = mFree.poll();
+		if (snapshot == null) {
+			return new MemoryTraceSnapshot();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Allocates snapshots up front until the pool holds <code>count</code>,
+	 * or is full.
+	 */
+	public void prefill(int count) {
+		while (mFree.size() < count) {
+			if (!mFree.offer(new MemoryTraceSnapshot())) {
+				return;
+			}
+		}
+	}
+
+	public void recycle(MemoryTraceSnapshot snapshot) {
+		snapshot.clear();
+		mFree.offer(snapshot);
+	}
+}
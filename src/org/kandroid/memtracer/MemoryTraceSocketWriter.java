@@ -0,0 +1,511 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Streams snapshots live to the host tool <code>MemoryTraceCollector</code>
+ * over a loopback TCP socket. On a device, forward the port with
+ * <code>adb forward tcp:7575 tcp:7575</code>.
+ *
+ * Rows are encoded in blocks by {@link MemoryTraceBinaryEncoder} and handed
+ * to a sender thread through a queue bounded in bytes. The collector grants
+ * credits, one per frame it is ready to take, and the sender only sends
+ * while it has credits. When the collector falls behind, the queue fills
+ * and new rows are dropped and counted instead of blocking the caller; the
+ * stream then restarts with a new header, so it stays decodable.
+ *
+ * <pre>
+ * frame  := type:u8 length:u32 payload
+ * 'H'    := dropped:u64 header    (a header of MemoryTraceBinaryEncoder)
+ * 'B'    := block                 (a block of MemoryTraceBinaryEncoder)
+ * 'E'    := dropped:u64           (the end of the trace)
+ * credit := count:u32             (from the collector)
+ * </pre>
+ */
+public class MemoryTraceSocketWriter implements MemoryTracer.SnapshotWriter, MemoryTracer.CountingWriter, Flushable {
+	private static final String TAG = MemoryTraceSocketWriter.class.getSimpleName();
+
+	public static final int DEFAULT_PORT = 7575;
+
+	static final int FRAME_HEADER = 'H';
+	static final int FRAME_BLOCK = 'B';
+	static final int FRAME_END = 'E';
+
+	private static final int DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+	private static final int DEFAULT_BLOCK_ROWS = 32;
+	private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+	private static final int POLL_MILLIS = 100;
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	/*
+	 * One encoded header, block or end, with the number of rows it holds.
+	 */
+	private static class Frame {
+		final int mType;
+		final byte[] mPayload;
+		final int mRows;
+
+		Frame(int type, byte[] payload, int rows) {
+			mType = type;
+			mPayload = payload;
+			mRows = rows;
+		}
+	}
+
+	private final String[] mMetricKeys;
+	private final long[] mValues;
+	private final int mLabelColumn;
+	private final MemoryTraceMetric[] mMetrics;
+	private final int mPort;
+	private final int mMaxQueuedBytes;
+	private final int mBlockRows;
+	private final long mFlushIntervalMillis;
+
+	private final LinkedBlockingQueue<Frame> mQueue = new LinkedBlockingQueue<Frame>();
+	private final AtomicLong mQueuedBytes = new AtomicLong();
+	private final AtomicLong mDroppedRows = new AtomicLong();
+	// Written by the sender thread only.
+	private volatile long mBytesSent;
+
+	// Guards the encoder, which the sender flushes when the stream is idle.
+	private final Object mEncoderLock = new Object();
+	// Collects what the encoder writes until it is taken as a frame.
+	private final ByteArrayOutputStream mFrameBuffer = new ByteArrayOutputStream(4096);
+	private MemoryTraceBinaryEncoder mEncoder;
+	private int mPendingRows;
+	private String mTraceLabel;
+	// Set when the stream has to restart with a header, after a drop or
+	// when a new collector connects.
+	private volatile boolean mRestart;
+
+	private volatile boolean mStopping;
+	// Set when the collector did not take the rest of the stream in time.
+	private volatile boolean mAborting;
+	private ServerSocket mServerSocket;
+	private Thread mSenderThread;
+	// Only touched by the sender thread: the part of a credit read so far.
+	private int mCredit;
+	private int mCreditBytes;
+
+	public MemoryTraceSocketWriter() {
+		this(MemoryTraceCsvWriter.DEFAULT_METRIC_KEYS);
+	}
+
+	public MemoryTraceSocketWriter(String[] metricKeys) {
+		this(metricKeys, DEFAULT_PORT);
+	}
+
+	public MemoryTraceSocketWriter(String[] metricKeys, int port) {
+		this(metricKeys, port, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_BLOCK_ROWS,
+				DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param port the loopback port to listen on
+	 * @param maxQueuedBytes the bytes that may wait for the collector before
+	 *            rows are dropped
+	 * @param blockRows the rows per block; smaller blocks reach the collector
+	 *            sooner
+	 * @param flushIntervalMillis how long a partial block may wait while the
+	 *            stream is idle
+	 */
+	public MemoryTraceSocketWriter(String[] metricKeys, int port, int maxQueuedBytes, int blockRows,
+			long flushIntervalMillis) {
+		mMetricKeys = metricKeys;
+		mValues = new long[metricKeys.length];
+		mMetrics = new MemoryTraceMetric[metricKeys.length];
+		int labelColumn = -1;
+		for (int i = 0; i < metricKeys.length; i++) {
+			if (MemoryTracer.METRIC_KEY_LABEL.equals(metricKeys[i])) {
+				labelColumn = i;
+			}
+			mMetrics[i] = MemoryTraceMetric.forKey(metricKeys[i]);
+		}
+		mLabelColumn = labelColumn;
+		mPort = port;
+		mMaxQueuedBytes = maxQueuedBytes;
+		mBlockRows = Math.max(1, blockRows);
+		mFlushIntervalMillis = flushIntervalMillis;
+	}
+
+	@Override
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	/**
+	 * Returns the number of rows dropped because the collector fell behind
+	 * or was not connected.
+	 */
+	public long getDroppedCount() {
+		return mDroppedRows.get();
+	}
+
+	/**
+	 * Returns the bytes of the frames sent to the collector.
+	 */
+	@Override
+	public long getBytesWritten() {
+		return mBytesSent;
+	}
+
+	/**
+	 * Returns the port the writer listens on, which is useful when it was
+	 * created with port 0.
+	 */
+	public int getLocalPort() {
+		ServerSocket serverSocket = mServerSocket;
+		return serverSocket != null ? serverSocket.getLocalPort() : -1;
+	}
+
+	@Override
+	public void writeTraceStart(String label) {
+		Log.d(TAG, "Start tracing for " + label);
+		try {
+			mServerSocket = new ServerSocket(mPort, 1, InetAddress.getByName("127.0.0.1"));
+			mServerSocket.setSoTimeout(POLL_MILLIS);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to listen on port " + mPort, e);
+			return;
+		}
+		synchronized (mEncoderLock) {
+			mTraceLabel = label;
+			startStream();
+		}
+		mStopping = false;
+		mAborting = false;
+		mSenderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				sendUntilStopped();
+			}
+		}, TAG);
+		mSenderThread.start();
+	}
+
+	@Override
+	public void writeTraceSnapshot(Bundle snapshot) {
+		long presentMask = 0;
+		for (int i = 0; i < mMetricKeys.length; i++) {
+			if (i == mLabelColumn) {
+				continue;
+			}
+			Object value = snapshot.get(mMetricKeys[i]);
+			if (value instanceof Number) {
+				mValues[i] = ((Number) value).longValue();
+				presentMask |= 1L << i;
+			}
+		}
+		addRow(snapshot.getString(MemoryTracer.METRIC_KEY_LABEL), presentMask);
+	}
+
+	@Override
+	public void writeTraceSnapshot(MemoryTraceSnapshot snapshot) {
+		long presentMask = 0;
+		for (int i = 0; i < mMetrics.length; i++) {
+			MemoryTraceMetric metric = mMetrics[i];
+			if (metric != null && snapshot.has(metric)) {
+				mValues[i] = snapshot.get(metric);
+				presentMask |= 1L << i;
+			}
+		}
+		addRow(snapshot.getLabel(), presentMask);
+	}
+
+	private void addRow(String label, long presentMask) {
+		synchronized (mEncoderLock) {
+			if (mEncoder == null) {
+				return;
+			}
+			if (mRestart) {
+				// Restart only once there is room again, not for every row.
+				if (mQueuedBytes.get() > mMaxQueuedBytes / 2) {
+					mDroppedRows.incrementAndGet();
+					return;
+				}
+				startStream();
+			}
+			try {
+				mEncoder.addRow(label, mValues, presentMask);
+				mPendingRows++;
+				if (mPendingRows == mBlockRows) {
+					takeFrame(FRAME_BLOCK);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to encode a snapshot", e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the pending rows as a block.
+	 */
+	@Override
+	public void flush() {
+		synchronized (mEncoderLock) {
+			flushBlock();
+		}
+	}
+
+	// Called with mEncoderLock held.
+	private void flushBlock() {
+		if (mEncoder == null || mPendingRows == 0) {
+			return;
+		}
+		try {
+			mEncoder.flushBlock();
+			takeFrame(FRAME_BLOCK);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to encode a block", e);
+		}
+	}
+
+	// Called with mEncoderLock held. Pending rows of the previous stream are
+	// dropped, since their labels are unknown to the new one.
+	private void startStream() {
+		mRestart = false;
+		mDroppedRows.addAndGet(mPendingRows);
+		mPendingRows = 0;
+		mFrameBuffer.reset();
+		DataOutputStream out = new DataOutputStream(mFrameBuffer);
+		try {
+			out.writeLong(mDroppedRows.get());
+			mEncoder = new MemoryTraceBinaryEncoder(mFrameBuffer, mMetricKeys.length, mBlockRows);
+			mEncoder.writeHeader(mTraceLabel, mMetricKeys);
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream.
+			throw new IllegalStateException(e);
+		}
+		takeFrame(FRAME_HEADER);
+	}
+
+	// Called with mEncoderLock held.
+	private void takeFrame(int type) {
+		if (mFrameBuffer.size() == 0) {
+			return;
+		}
+		Frame frame = new Frame(type, mFrameBuffer.toByteArray(), type == FRAME_BLOCK ? mPendingRows : 0);
+		mFrameBuffer.reset();
+		mPendingRows = 0;
+		if (mQueuedBytes.get() + frame.mPayload.length > mMaxQueuedBytes) {
+			mDroppedRows.addAndGet(frame.mRows);
+			mRestart = true;
+			return;
+		}
+		mQueuedBytes.addAndGet(frame.mPayload.length);
+		mQueue.add(frame);
+	}
+
+	@Override
+	public void writeTraceStop(Bundle results) {
+		Log.d(TAG, "Stop tracing");
+		if (mSenderThread == null) {
+			return;
+		}
+		synchronized (mEncoderLock) {
+			flushBlock();
+			mEncoder = null;
+			ByteArrayOutputStream end = new ByteArrayOutputStream(8);
+			try {
+				new DataOutputStream(end).writeLong(mDroppedRows.get());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			mQueue.add(new Frame(FRAME_END, end.toByteArray(), 0));
+		}
+		mStopping = true;
+		try {
+			mSenderThread.join(STOP_TIMEOUT_MILLIS);
+			if (mSenderThread.isAlive()) {
+				mAborting = true;
+				mSenderThread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closeQuietly(mServerSocket);
+		// Whatever no collector took.
+		for (Frame frame = mQueue.poll(); frame != null; frame = mQueue.poll()) {
+			mDroppedRows.addAndGet(frame.mRows);
+		}
+		mQueuedBytes.set(0);
+		mSenderThread = null;
+		mServerSocket = null;
+		Log.d(TAG, "Dropped " + mDroppedRows.get() + " rows");
+	}
+
+	private void sendUntilStopped() {
+		int connections = 0;
+		while ((!mStopping || !mQueue.isEmpty()) && !mAborting) {
+			Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (SocketTimeoutException e) {
+				if (mStopping) {
+					break;
+				}
+				continue;
+			} catch (IOException e) {
+				break;
+			}
+			Log.d(TAG, "Collector connected from " + socket.getRemoteSocketAddress());
+			if (++connections > 1) {
+				// Frames already queued continue a stream the new collector
+				// has not seen the header of.
+				mRestart = true;
+			}
+			try {
+				send(socket, connections > 1);
+			} catch (IOException e) {
+				Log.w(TAG, "Collector disconnected", e);
+			} finally {
+				closeQuietly(socket);
+			}
+			if (mStopping && mQueue.isEmpty()) {
+				break;
+			}
+		}
+	}
+
+	private void send(Socket socket, boolean skipToHeader) throws IOException {
+		socket.setSoTimeout(POLL_MILLIS);
+		socket.setTcpNoDelay(true);
+		InputStream in = socket.getInputStream();
+		mCredit = 0;
+		mCreditBytes = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		long credits = 0;
+		long idleSince = System.currentTimeMillis();
+		while (true) {
+			Frame frame;
+			try {
+				frame = mQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (frame == null) {
+				out.flush();
+				if (mStopping || mAborting) {
+					return;
+				}
+				if (System.currentTimeMillis() - idleSince >= mFlushIntervalMillis) {
+					flush();
+					idleSince = System.currentTimeMillis();
+				}
+				continue;
+			}
+			mQueuedBytes.addAndGet(-frame.mPayload.length);
+			if (skipToHeader && frame.mType != FRAME_HEADER) {
+				mDroppedRows.addAndGet(frame.mRows);
+				continue;
+			}
+			skipToHeader = false;
+			credits += readCredits(in, false);
+			while (credits == 0) {
+				out.flush();
+				try {
+					credits += readCredits(in, true);
+				} catch (SocketTimeoutException e) {
+					if (mAborting) {
+						mDroppedRows.addAndGet(frame.mRows);
+						return;
+					}
+				} catch (EOFException e) {
+					mDroppedRows.addAndGet(frame.mRows);
+					throw e;
+				}
+			}
+			out.writeByte(frame.mType);
+			out.writeInt(frame.mPayload.length);
+			out.write(frame.mPayload);
+			mBytesSent += 5 + frame.mPayload.length;
+			credits--;
+			if (mQueue.isEmpty()) {
+				out.flush();
+			}
+			idleSince = System.currentTimeMillis();
+			if (frame.mType == FRAME_END) {
+				out.flush();
+				finishStream(socket, in);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Closing a socket with unread credits resets the connection, and the
+	 * collector could lose the frames still in flight. So this half-closes
+	 * it and reads until the collector closes its side.
+	 */
+	private void finishStream(Socket socket, InputStream in) throws IOException {
+		socket.shutdownOutput();
+		while (!mAborting) {
+			try {
+				if (in.read() < 0) {
+					return;
+				}
+			} catch (SocketTimeoutException e) {
+				// Keep waiting until aborted.
+			}
+		}
+	}
+
+	/*
+	 * Reads the credits that have arrived, or waits for at least one if
+	 * block is set. A credit may arrive in pieces, and a read may time out
+	 * in between, so the bytes read so far are kept.
+	 */
+	private long readCredits(InputStream in, boolean block) throws IOException {
+		long credits = 0;
+		while (block ? credits == 0 : in.available() > 0) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			mCredit = (mCredit << 8) | b;
+			if (++mCreditBytes == 4) {
+				credits += mCredit;
+				mCredit = 0;
+				mCreditBytes = 0;
+			}
+		}
+		return credits;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignored.
+		}
+	}
+
+	private static void closeQuietly(ServerSocket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignored.
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.kandroid.memtracer;
+
+import android.os.Bundle;
+import android.os.Process;
+
+/**
+ * A timeline of the startup of the application, recorded before the tracer
+ * starts. Starting the tracer forces collections and opens the trace, which
+ * would distort the very startup it measures, so
+ * {@link MemoryInstrumentation} records marks here until the main activity
+ * is idle and starts the tracer afterwards.
+ *
+ * A mark holds a nanosecond timestamp, in the clock of the trace, and the
+ * heap counters, which are cheap to read. Nothing is allocated or written
+ * while marks are recorded: the snapshots are allocated up front, and the
+ * timeline is reported once, by {@link #toBundle()}.
+ */
+public class MemoryTraceStartup {
+
+	/**
+	 * In a report, the nanoseconds since the first mark.
+	 */
+	public static final String STARTUP_KEY_ELAPSED = "elapsed";
+	/**
+	 * In a report, the nanoseconds from the first mark to the last.
+	 */
+	public static final String STARTUP_KEY_STARTUP_TIME = "startup_time";
+	public static final String STARTUP_KEY_DROPPED = "dropped";
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final MemoryTraceSnapshot[] mMarks;
+	private final MemoryTraceDebugSource mSource = new MemoryTraceDebugSource();
+	// The trace clock in nanoseconds, at the resolution of System.nanoTime().
+	private final long mBaseTimestamp;
+	private final long mBaseNanoTime;
+	private int mCount;
+	private int mDropped;
+	private long mLastNanoTime;
+	private long mLastCpuTime;
+	private boolean mStopped;
+
+	public MemoryTraceStartup() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a timeline of at most <code>capacity</code> marks.
+	 */
+	public MemoryTraceStartup(int capacity) {
+		mMarks = new MemoryTraceSnapshot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mMarks[i] = new MemoryTraceSnapshot();
+		}
+		mBaseNanoTime = System.nanoTime();
+		mBaseTimestamp = MemoryTraceClock.now();
+		mLastNanoTime = mBaseNanoTime;
+		mLastCpuTime = Process.getElapsedCpuTime();
+	}
+
+	/**
+	 * Records a mark, and copies it into <code>result</code> if not null.
+	 * Returns false if the timeline is stopped. Marks are dropped once it is
+	 * full. The execution and CPU times are the milliseconds since the
+	 * previous mark.
+	 */
+	public synchronized boolean mark(String label, MemoryTraceSnapshot result) {
+		if (mStopped) {
+			return false;
+		}
+		if (mCount == mMarks.length) {
+			mDropped++;
+			return true;
+		}
+		long nanoTime = System.nanoTime();
+		long cpuTime = Process.getElapsedCpuTime();
+		MemoryTraceSnapshot mark = mMarks[mCount];
+		mark.clear();
+		mark.setLabel(mCount, label);
+		mark.set(MemoryTraceMetric.TIMESTAMP, mBaseTimestamp + nanoTime - mBaseNanoTime);
+		mark.set(MemoryTraceMetric.EXECUTION_TIME, (nanoTime - mLastNanoTime) / 1000000L);
+		mark.set(MemoryTraceMetric.CPU_TIME, cpuTime - mLastCpuTime);
+		mSource.collect(MemoryTraceMetric.Collector.JAVA_HEAP, mark);
+		mSource.collect(MemoryTraceMetric.Collector.NATIVE_HEAP, mark);
+		mLastNanoTime = nanoTime;
+		mLastCpuTime = cpuTime;
+		mCount++;
+		if (result != null) {
+			result.copyFrom(mark);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops recording marks.
+	 */
+	public synchronized void stop() {
+		mStopped = true;
+	}
+
+	public synchronized boolean isStopped() {
+		return mStopped;
+	}
+
+	public synchronized int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Returns the nanoseconds from the first mark to the last.
+	 */
+	public synchronized long getStartupTime() {
+		return mCount > 0 ? elapsed(mCount - 1) : 0;
+	}
+
+	private long elapsed(int index) {
+		return mMarks[index].get(MemoryTraceMetric.TIMESTAMP) - mMarks[0].get(MemoryTraceMetric.TIMESTAMP);
+	}
+
+	/**
+	 * Returns the marks in order, keyed by their zero-padded index and label.
+	 */
+	public synchronized Bundle toBundle() {
+		Bundle results = new Bundle();
+		for (int i = 0; i < mCount; i++) {
+			Bundle values = mMarks[i].toBundle();
+			values.putLong(STARTUP_KEY_ELAPSED, elapsed(i));
+			results.putBundle(keyOf(i), values);
+		}
+		results.putLong(STARTUP_KEY_STARTUP_TIME, getStartupTime());
+		results.putInt(STARTUP_KEY_DROPPED, mDropped);
+		return results;
+	}
+
+	private String keyOf(int index) {
+		return (index < 10 ? "0" : "") + index + "-" + mMarks[index].getLabel();
+	}
+
+	/**
+	 * Returns one line per mark with the time since the first mark and the
+	 * allocated heaps.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder("Startup in ")
+				.append(getStartupTime() / 1000000.0).append(" ms:\n");
+		for (int i = 0; i < mCount; i++) {
+			MemoryTraceSnapshot mark = mMarks[i];
+			builder.append("  +").append(elapsed(i) / 1000000.0).append(" ms ")
+					.append(mark.getLabel())
+					.append(" java_allocated=").append(mark.get(MemoryTraceMetric.JAVA_ALLOCATED))
+					.append(" native_allocated=").append(mark.get(MemoryTraceMetric.NATIVE_ALLOCATED))
+					.append(" cpu_time=").append(mark.get(MemoryTraceMetric.CPU_TIME))
+					.append('\n');
+		}
+		if (mDropped > 0) {
+			builder.append("  ").append(mDropped).append(" marks dropped\n");
+		}
+		return builder.toString();
+	}
+}
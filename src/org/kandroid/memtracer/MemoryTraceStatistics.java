@@ -0,0 +1,145 @@
+package org.kandroid.memtracer;
+
+import android.os.Bundle;
+
+/**
+ * Aggregates snapshots online, per label and metric, into
+ * {@link MemoryTraceSketch}es instead of keeping the snapshots. Memory stays
+ * bounded by the number of labels; labels beyond the limit are folded into
+ * {@link #LABEL_OTHER}.
+ */
+public class MemoryTraceStatistics {
+
+	/**
+	 * The label that collects the snapshots of labels beyond the limit.
+	 */
+	public static final String LABEL_OTHER = "(other)";
+
+	public static final String STAT_KEY_COUNT = "count";
+	public static final String STAT_KEY_MIN = "min";
+	public static final String STAT_KEY_MAX = "max";
+	public static final String STAT_KEY_MEAN = "mean";
+	public static final String STAT_KEY_VARIANCE = "variance";
+	public static final String STAT_KEY_P50 = "p50";
+	public static final String STAT_KEY_P95 = "p95";
+	public static final String STAT_KEY_P99 = "p99";
+
+	private static final int DEFAULT_MAX_LABELS = 256;
+
+	private final int mMaxLabels;
+	// Indexed by label id, then by metric ordinal. Sketches are created on
+	// the first value they see.
+	private MemoryTraceSketch[][] mSketches = new MemoryTraceSketch[16][];
+	private final String[] mLabelNames;
+	private final MemoryTraceSketch[] mOther = new MemoryTraceSketch[MemoryTraceMetric.count()];
+	private int mLabelCount;
+
+	public MemoryTraceStatistics() {
+		this(DEFAULT_MAX_LABELS);
+	}
+
+	public MemoryTraceStatistics(int maxLabels) {
+		mMaxLabels = maxLabels;
+		mLabelNames = new String[maxLabels];
+	}
+
+	public synchronized void add(MemoryTraceSnapshot snapshot) {
+		MemoryTraceSketch[] sketches = sketchesOf(snapshot);
+		long mask = snapshot.getPresentMask();
+		for (int i = 0; mask != 0; i++, mask >>>= 1) {
+			if ((mask & 1) == 0) {
+				continue;
+			}
+			MemoryTraceSketch sketch = sketches[i];
+			if (sketch == null) {
+				sketch = new MemoryTraceSketch();
+				sketches[i] = sketch;
+			}
+			sketch.add(snapshot.get(MemoryTraceMetric.get(i)));
+		}
+	}
+
+	private MemoryTraceSketch[] sketchesOf(MemoryTraceSnapshot snapshot) {
+		int id = snapshot.getLabelId();
+		if (id < 0 || id >= mMaxLabels) {
+			return mOther;
+		}
+		if (id >= mSketches.length) {
+			MemoryTraceSketch[][] grown = new MemoryTraceSketch[Math.min(mMaxLabels,
+					Math.max(mSketches.length * 2, id + 1))][];
+			System.arraycopy(mSketches, 0, grown, 0, mSketches.length);
+			mSketches = grown;
+		}
+		MemoryTraceSketch[] sketches = mSketches[id];
+		if (sketches == null) {
+			sketches = new MemoryTraceSketch[MemoryTraceMetric.count()];
+			mSketches[id] = sketches;
+			mLabelNames[id] = snapshot.getLabel();
+			mLabelCount++;
+		}
+		return sketches;
+	}
+
+	/**
+	 * Returns the sketch of a label and metric, or null if none was recorded.
+	 */
+	public synchronized MemoryTraceSketch getSketch(String label, MemoryTraceMetric metric) {
+		for (int id = 0; id < mSketches.length; id++) {
+			if (mSketches[id] != null && label.equals(mLabelNames[id])) {
+				return mSketches[id][metric.ordinal()];
+			}
+		}
+		return LABEL_OTHER.equals(label) ? mOther[metric.ordinal()] : null;
+	}
+
+	public synchronized int getLabelCount() {
+		return mLabelCount;
+	}
+
+	public synchronized void clear() {
+		mSketches = new MemoryTraceSketch[16][];
+		for (int i = 0; i < mOther.length; i++) {
+			mOther[i] = null;
+		}
+		mLabelCount = 0;
+	}
+
+	/**
+	 * Returns a Bundle with one Bundle per label, holding one Bundle per
+	 * metric with the <code>STAT_KEY_*</code> values.
+	 */
+	public synchronized Bundle toBundle() {
+		Bundle results = new Bundle();
+		for (int id = 0; id < mSketches.length; id++) {
+			if (mSketches[id] != null) {
+				results.putBundle(mLabelNames[id], toBundle(mSketches[id]));
+			}
+		}
+		Bundle other = toBundle(mOther);
+		if (!other.isEmpty()) {
+			results.putBundle(LABEL_OTHER, other);
+		}
+		return results;
+	}
+
+	private static Bundle toBundle(MemoryTraceSketch[] sketches) {
+		Bundle metrics = new Bundle();
+		for (int i = 0; i < sketches.length; i++) {
+			MemoryTraceSketch sketch = sketches[i];
+			if (sketch == null) {
+				continue;
+			}
+			Bundle stats = new Bundle();
+			stats.putLong(STAT_KEY_COUNT, sketch.getCount());
+			stats.putLong(STAT_KEY_MIN, sketch.getMin());
+			stats.putLong(STAT_KEY_MAX, sketch.getMax());
+			stats.putDouble(STAT_KEY_MEAN, sketch.getMean());
+			stats.putDouble(STAT_KEY_VARIANCE, sketch.getVariance());
+			stats.putLong(STAT_KEY_P50, sketch.getQuantile(0.50));
+			stats.putLong(STAT_KEY_P95, sketch.getQuantile(0.95));
+			stats.putLong(STAT_KEY_P99, sketch.getQuantile(0.99));
+			metrics.putBundle(MemoryTraceMetric.get(i).getKey(), stats);
+		}
+		return metrics;
+	}
+}
@@ -0,0 +1,446 @@
+package org.kandroid.memtracer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Queries a binary trace by label and time range through its
+ * {@link MemoryTraceIndex}. A query only reads the blocks that can hold
+ * matching rows, so its cost follows the size of the result rather than the
+ * size of the trace.
+ *
+ * A trace without an index, or with an index that stops short of the end of
+ * the trace because the process died, is indexed on open by scanning the
+ * blocks the index does not cover.
+ *
+ * A store and its cursors are not thread safe.
+ */
+public class MemoryTraceStore {
+
+	private final File mTraceFile;
+	private final RandomAccessFile mFile;
+	private final String mTraceLabel;
+	private final String[] mMetricKeys;
+	private final int mTimestampColumn;
+	private final MemoryTraceIndex mIndex;
+	private final HashMap<String, Integer> mLabelIds = new HashMap<String, Integer>();
+
+	// The running maximum of the blocks' largest timestamps, and the running
+	// minimum from the end of their smallest ones. Both are sorted even if the
+	// timestamps are not, so the blocks of a time range are found by binary
+	// search.
+	private final long[] mMaxTimestamps;
+	private final long[] mMinTimestamps;
+
+	private byte[] mBlock = new byte[4096];
+
+	/**
+	 * Rows matching a query, read lazily block by block.
+	 */
+	public class Cursor {
+		private final int mLabelId;
+		private final long mFrom;
+		private final long mTo;
+		private final boolean mTimed;
+		private final int mLastBlock;
+		private final MemoryTraceBinaryDecoder mDecoder;
+		// The next block to read, or the next posting of the label.
+		private int mNext;
+		private final int mEnd;
+
+		Cursor(int labelId, long from, long to) {
+			mLabelId = labelId;
+			mFrom = from;
+			mTo = to;
+			mTimed = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+			mDecoder = new MemoryTraceBinaryDecoder(mTraceLabel, mMetricKeys, mIndex.getLabels());
+			int firstBlock = firstBlockFrom(from);
+			mLastBlock = lastBlockTo(to);
+			if (labelId < 0) {
+				mNext = firstBlock;
+				mEnd = mLastBlock + 1;
+			} else {
+				int[] blocks = mIndex.getPostingBlocks(labelId);
+				int count = mIndex.getPostingCount(labelId);
+				mNext = lowerBound(blocks, count, firstBlock);
+				mEnd = count;
+			}
+		}
+
+		/**
+		 * Advances to the next matching row. Returns false when there is none.
+		 */
+		public boolean next() throws IOException {
+			while (true) {
+				while (mDecoder.nextInBlock()) {
+					if (matches()) {
+						return true;
+					}
+				}
+				if (!readNextBlock()) {
+					return false;
+				}
+			}
+		}
+
+		private boolean matches() {
+			if (mLabelId >= 0 && mDecoder.getLabelId() != mLabelId) {
+				return false;
+			}
+			if (!mTimed) {
+				return true;
+			}
+			if (mTimestampColumn < 0 || !mDecoder.isPresent(mTimestampColumn)) {
+				return false;
+			}
+			long timestamp = mDecoder.getValues()[mTimestampColumn];
+			return timestamp >= mFrom && timestamp <= mTo;
+		}
+
+		private boolean readNextBlock() throws IOException {
+			if (mNext >= mEnd) {
+				return false;
+			}
+			int block = mLabelId < 0 ? mNext : mIndex.getPostingBlocks(mLabelId)[mNext];
+			if (block > mLastBlock) {
+				mNext = mEnd;
+				return false;
+			}
+			mNext++;
+			readBlock(mDecoder, block);
+			return true;
+		}
+
+		public String getLabel() {
+			return mDecoder.getLabel();
+		}
+
+		/**
+		 * Returns the timestamp of the current row, or -1 if it has none.
+		 */
+		public long getTimestamp() {
+			return mTimestampColumn >= 0 && mDecoder.isPresent(mTimestampColumn)
+					? mDecoder.getValues()[mTimestampColumn] : -1;
+		}
+
+		/**
+		 * Returns the values of the current row, indexed like the metric keys.
+		 * The array is reused by {@link #next()}.
+		 */
+		public long[] getValues() {
+			return mDecoder.getValues();
+		}
+
+		public boolean isPresent(int column) {
+			return mDecoder.isPresent(column);
+		}
+	}
+
+	private MemoryTraceStore(File traceFile) throws IOException {
+		mTraceFile = traceFile;
+		CountingInputStream in = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(traceFile)));
+		MemoryTraceIndex index;
+		try {
+			MemoryTraceBinaryDecoder decoder = new MemoryTraceBinaryDecoder(in);
+			mTraceLabel = decoder.getTraceLabel();
+			mMetricKeys = decoder.getMetricKeys();
+			mTimestampColumn = indexOf(mMetricKeys, MemoryTracer.METRIC_KEY_TIMESTAMP);
+			index = loadIndex(traceFile);
+			if (index.getDataLength() < traceFile.length()) {
+				index = scan(decoder, in, index);
+			}
+		} finally {
+			in.close();
+		}
+		mIndex = index;
+		List<String> labels = index.getLabels();
+		for (int id = 0; id < labels.size(); id++) {
+			mLabelIds.put(labels.get(id), Integer.valueOf(id));
+		}
+		int blockCount = index.getBlockCount();
+		mMaxTimestamps = new long[blockCount];
+		mMinTimestamps = new long[blockCount];
+		long max = Long.MIN_VALUE;
+		for (int block = 0; block < blockCount; block++) {
+			max = Math.max(max, index.getMaxTimestamp(block));
+			mMaxTimestamps[block] = max;
+		}
+		long min = Long.MAX_VALUE;
+		for (int block = blockCount - 1; block >= 0; block--) {
+			min = Math.min(min, index.getMinTimestamp(block));
+			mMinTimestamps[block] = min;
+		}
+		mFile = new RandomAccessFile(traceFile, "r");
+	}
+
+	/**
+	 * Opens a binary trace, indexing whatever its index does not cover.
+	 */
+	public static MemoryTraceStore open(File traceFile) throws IOException {
+		return new MemoryTraceStore(traceFile);
+	}
+
+	private static MemoryTraceIndex loadIndex(File traceFile) {
+		File indexFile = MemoryTraceIndex.getIndexFile(traceFile);
+		if (indexFile.exists()) {
+			try {
+				MemoryTraceIndex index = MemoryTraceIndex.read(indexFile);
+				if (index.getDataLength() <= traceFile.length()) {
+					return index;
+				}
+			} catch (IOException e) {
+				// Rebuilt below.
+			}
+		}
+		return new MemoryTraceIndex();
+	}
+
+	/*
+	 * Adds the blocks after the end of the index, up to the end of the trace
+	 * or its first torn block.
+	 */
+	private static MemoryTraceIndex scan(MemoryTraceBinaryDecoder decoder, CountingInputStream in,
+			MemoryTraceIndex index) throws IOException {
+		long start = index.getBlockCount() > 0 ? index.getDataLength() : in.getCount();
+		if (in.getCount() > start) {
+			// The index does not belong to this trace.
+			index = new MemoryTraceIndex();
+			start = in.getCount();
+		}
+		in.skipTo(start);
+		decoder.addLabels(index.getLabels());
+		int timestampColumn = indexOf(decoder.getMetricKeys(), MemoryTracer.METRIC_KEY_TIMESTAMP);
+		int labelCount = index.getLabels().size();
+		while (true) {
+			long offset = in.getCount();
+			if (!decoder.readBlock(in)) {
+				break;
+			}
+			while (decoder.nextInBlock()) {
+				int labelId = decoder.getLabelId();
+				while (labelId >= labelCount) {
+					// Labels are declared in order of first use.
+					index.addLabel(decoder.getLabel());
+					labelCount++;
+				}
+				boolean hasTimestamp = timestampColumn >= 0 && decoder.isPresent(timestampColumn);
+				index.addRow(labelId, hasTimestamp ? decoder.getValues()[timestampColumn] : 0,
+						hasTimestamp);
+			}
+			index.endBlock(offset, in.getCount());
+		}
+		return index;
+	}
+
+	private void readBlock(MemoryTraceBinaryDecoder decoder, int block) throws IOException {
+		long length = mIndex.getLength(block);
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Bad block length " + length);
+		}
+		if (mBlock.length < length) {
+			mBlock = new byte[(int) length];
+		}
+		mFile.seek(mIndex.getOffset(block));
+		mFile.readFully(mBlock, 0, (int) length);
+		if (!decoder.readBlock(new ByteArrayInputStream(mBlock, 0, (int) length))) {
+			throw new IOException("Corrupt block at " + mIndex.getOffset(block) + " in " + mTraceFile);
+		}
+	}
+
+	public String getTraceLabel() {
+		return mTraceLabel;
+	}
+
+	public String[] getMetricKeys() {
+		return mMetricKeys;
+	}
+
+	/**
+	 * Returns the labels of the trace, in order of first appearance.
+	 */
+	public List<String> getLabels() {
+		return new ArrayList<String>(mIndex.getLabels());
+	}
+
+	/**
+	 * Returns the number of rows with a label, from the index alone.
+	 */
+	public long getRowCount(String label) {
+		Integer labelId = mLabelIds.get(label);
+		if (labelId == null) {
+			return 0;
+		}
+		int[] rows = mIndex.getPostingRows(labelId.intValue());
+		long count = 0;
+		for (int i = mIndex.getPostingCount(labelId.intValue()) - 1; i >= 0; i--) {
+			count += rows[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the smallest timestamp of the trace, or -1 if it has none.
+	 */
+	public long getFirstTimestamp() {
+		return mMinTimestamps.length > 0 && mMinTimestamps[0] != Long.MAX_VALUE
+				? mMinTimestamps[0] : -1;
+	}
+
+	/**
+	 * Returns the rows of all labels.
+	 */
+	public Cursor query() {
+		return new Cursor(-1, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the rows with <code>label</code>, or of all labels if it is
+	 * null, whose timestamp is within <code>[from, to]</code>. Pass
+	 * Long.MIN_VALUE and Long.MAX_VALUE for an open range; rows without a
+	 * timestamp only match a range open at both ends.
+	 */
+	public Cursor query(String label, long from, long to) {
+		int labelId = -1;
+		if (label != null) {
+			Integer id = mLabelIds.get(label);
+			if (id == null) {
+				// Matches nothing.
+				return new Cursor(-1, Long.MAX_VALUE, Long.MIN_VALUE);
+			}
+			labelId = id.intValue();
+		}
+		return new Cursor(labelId, from, to);
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	// The first block that may hold a timestamp at or after from.
+	private int firstBlockFrom(long from) {
+		if (from == Long.MIN_VALUE) {
+			return 0;
+		}
+		int low = 0;
+		int high = mMaxTimestamps.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mMaxTimestamps[mid] < from) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// The last block that may hold a timestamp at or before to.
+	private int lastBlockTo(long to) {
+		if (to == Long.MAX_VALUE) {
+			return mMinTimestamps.length - 1;
+		}
+		int low = 0;
+		int high = mMinTimestamps.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mMinTimestamps[mid] <= to) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+
+	private static int lowerBound(int[] values, int count, int value) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static int indexOf(String[] keys, String key) {
+		for (int i = 0; i < keys.length; i++) {
+			if (key.equals(keys[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Counts the bytes read, which are the file offset since the stream reads
+	 * from the start of the file.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long mCount;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		long getCount() {
+			return mCount;
+		}
+
+		void skipTo(long offset) throws IOException {
+			while (mCount < offset) {
+				long skipped = in.skip(offset - mCount);
+				if (skipped <= 0) {
+					if (in.read() < 0) {
+						return;
+					}
+					skipped = 1;
+				}
+				mCount += skipped;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				mCount++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read > 0) {
+				mCount += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = in.skip(count);
+			mCount += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
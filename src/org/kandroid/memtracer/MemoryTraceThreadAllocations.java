@@ -0,0 +1,274 @@
+package org.kandroid.memtracer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+import android.os.Debug;
+
+/**
+ * Attributes allocations to the threads that make them, from the per-thread
+ * counters of {@link Debug}.
+ *
+ * A thread's counters can only be read on the thread itself, so each thread
+ * records its own allocations: when it takes a snapshot, when it ends a
+ * section, or when it calls {@link #record()}. A thread is tracked from the
+ * first time it records.
+ *
+ * At most <code>maxThreads</code> threads are tracked in a fixed table. The
+ * slot of a thread that has died is reused; threads beyond the table are
+ * added up in {@link #THREAD_OTHER}, so the cost stays bounded however many
+ * threads the app runs.
+ */
+public class MemoryTraceThreadAllocations {
+
+	/**
+	 * The name under which the threads beyond the table are reported.
+	 */
+	public static final String THREAD_OTHER = "(other)";
+
+	public static final String THREAD_KEY_RANK = "rank";
+	public static final String THREAD_KEY_ALLOC_COUNT = "alloc_count";
+	public static final String THREAD_KEY_ALLOC_SIZE = "alloc_size";
+
+	private static final int DEFAULT_MAX_THREADS = 32;
+
+	/**
+	 * The allocations of one thread, or of all threads beyond the table.
+	 */
+	public static class Entry {
+		private final WeakReference<Thread> mThread;
+		private final String mName;
+		private final long mThreadId;
+		private final int mGeneration;
+		// Where the allocations are added up: this entry, or the other entry
+		// for threads beyond the table.
+		private final Entry mTarget;
+		private final AtomicLong mAllocCount = new AtomicLong();
+		private final AtomicLong mAllocSize = new AtomicLong();
+		// Only touched by the thread itself: its counters at the last record.
+		private int mLastCount;
+		private int mLastSize;
+		// Only touched while ranking, under the lock of the table.
+		private long mRankedCount;
+		private long mRankedSize;
+		private long mIntervalCount;
+		private long mIntervalSize;
+
+		Entry(Thread thread, String name, int generation, Entry target) {
+			mThread = thread != null ? new WeakReference<Thread>(thread) : null;
+			mName = name;
+			mThreadId = thread != null ? thread.getId() : -1;
+			mGeneration = generation;
+			mTarget = target != null ? target : this;
+		}
+
+		public String getThreadName() {
+			return mName;
+		}
+
+		/**
+		 * Returns the id of the thread, or -1 for {@link #THREAD_OTHER}.
+		 */
+		public long getThreadId() {
+			return mThreadId;
+		}
+
+		public long getAllocCount() {
+			return mAllocCount.get();
+		}
+
+		/**
+		 * Returns the bytes allocated since the thread was first seen.
+		 */
+		public long getAllocSize() {
+			return mAllocSize.get();
+		}
+
+		/**
+		 * Returns the allocations counted between the last two rankings.
+		 */
+		public long getIntervalAllocCount() {
+			return mIntervalCount;
+		}
+
+		public long getIntervalAllocSize() {
+			return mIntervalSize;
+		}
+
+		boolean isAlive() {
+			Thread thread = mThread != null ? mThread.get() : null;
+			return thread != null && thread.isAlive();
+		}
+
+		@Override
+		public String toString() {
+			return mThreadId >= 0 ? mName + "#" + mThreadId : mName;
+		}
+	}
+
+	private final int mMaxThreads;
+	// Guarded by this.
+	private final Entry[] mSlots;
+	private int mSlotCount;
+	private Entry mOther;
+	private volatile int mGeneration;
+
+	private final ThreadLocal<Entry> mEntries = new ThreadLocal<Entry>();
+
+	public MemoryTraceThreadAllocations() {
+		this(DEFAULT_MAX_THREADS);
+	}
+
+	public MemoryTraceThreadAllocations(int maxThreads) {
+		mMaxThreads = Math.max(1, maxThreads);
+		mSlots = new Entry[mMaxThreads];
+		mOther = new Entry(null, THREAD_OTHER, 0, null);
+	}
+
+	/**
+	 * Adds the allocations of the calling thread since it last recorded. The
+	 * first call only starts tracking the thread.
+	 */
+	public void record() {
+		int count = Debug.getThreadAllocCount();
+		int size = Debug.getThreadAllocSize();
+		Entry entry = mEntries.get();
+		if (entry == null || entry.mGeneration != mGeneration) {
+			entry = assign(Thread.currentThread());
+			mEntries.set(entry);
+			entry.mLastCount = count;
+			entry.mLastSize = size;
+			return;
+		}
+		// The counters restart from zero when they are reset.
+		int countDelta = count >= entry.mLastCount ? count - entry.mLastCount : count;
+		int sizeDelta = size >= entry.mLastSize ? size - entry.mLastSize : size;
+		entry.mLastCount = count;
+		entry.mLastSize = size;
+		if (countDelta != 0 || sizeDelta != 0) {
+			entry.mTarget.mAllocCount.addAndGet(countDelta);
+			entry.mTarget.mAllocSize.addAndGet(sizeDelta);
+		}
+	}
+
+	/**
+	 * Tells that the calling thread has just reset its counters, e.g. for a
+	 * full snapshot. Call {@link #record()} right before the reset.
+	 */
+	void onCountsReset() {
+		Entry entry = mEntries.get();
+		if (entry != null) {
+			entry.mLastCount = 0;
+			entry.mLastSize = 0;
+		}
+	}
+
+	private synchronized Entry assign(Thread thread) {
+		int generation = mGeneration;
+		Entry entry = new Entry(thread, thread.getName(), generation, null);
+		if (mSlotCount < mMaxThreads) {
+			mSlots[mSlotCount++] = entry;
+			return entry;
+		}
+		for (int i = 0; i < mSlotCount; i++) {
+			Entry dead = mSlots[i];
+			if (!dead.isAlive()) {
+				// Keep the dead thread's allocations in the totals.
+				mOther.mAllocCount.addAndGet(dead.mAllocCount.get());
+				mOther.mAllocSize.addAndGet(dead.mAllocSize.get());
+				mOther.mRankedCount += dead.mRankedCount;
+				mOther.mRankedSize += dead.mRankedSize;
+				mSlots[i] = entry;
+				return entry;
+			}
+		}
+		return new Entry(thread, thread.getName(), generation, mOther);
+	}
+
+	/**
+	 * Forgets every thread and its allocations.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < mSlotCount; i++) {
+			mSlots[i] = null;
+		}
+		mSlotCount = 0;
+		mGeneration++;
+		mOther = new Entry(null, THREAD_OTHER, mGeneration, null);
+	}
+
+	/**
+	 * Returns the <code>count</code> threads that allocated the most bytes
+	 * since the previous call, largest first, and starts the next interval.
+	 * See {@link Entry#getIntervalAllocSize()}.
+	 */
+	public synchronized List<Entry> rank(int count) {
+		for (int i = 0; i <= mSlotCount; i++) {
+			Entry entry = i < mSlotCount ? mSlots[i] : mOther;
+			long allocCount = entry.mAllocCount.get();
+			long allocSize = entry.mAllocSize.get();
+			entry.mIntervalCount = allocCount - entry.mRankedCount;
+			entry.mIntervalSize = allocSize - entry.mRankedSize;
+			entry.mRankedCount = allocCount;
+			entry.mRankedSize = allocSize;
+		}
+		return top(count, true);
+	}
+
+	/**
+	 * Returns the <code>count</code> threads that allocated the most bytes
+	 * overall, largest first.
+	 */
+	public synchronized List<Entry> getTop(int count) {
+		return top(count, false);
+	}
+
+	private List<Entry> top(int count, boolean interval) {
+		List<Entry> top = new ArrayList<Entry>(Math.min(count, mSlotCount + 1));
+		for (int i = 0; i <= mSlotCount; i++) {
+			Entry entry = i < mSlotCount ? mSlots[i] : mOther;
+			long size = sizeOf(entry, interval);
+			if (size <= 0) {
+				continue;
+			}
+			int position = top.size();
+			while (position > 0 && sizeOf(top.get(position - 1), interval) < size) {
+				position--;
+			}
+			if (position < count) {
+				top.add(position, entry);
+				if (top.size() > count) {
+					top.remove(count);
+				}
+			}
+		}
+		return top;
+	}
+
+	private static long sizeOf(Entry entry, boolean interval) {
+		return interval ? entry.mIntervalSize : entry.mAllocSize.get();
+	}
+
+	/**
+	 * Returns a Bundle with one Bundle per thread, keyed by thread name and
+	 * id, holding its <code>THREAD_KEY_*</code> values. The values are those
+	 * of the interval if <code>interval</code> is set, and totals otherwise.
+	 */
+	public static Bundle toBundle(List<Entry> entries, boolean interval) {
+		Bundle results = new Bundle();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			Bundle thread = new Bundle();
+			thread.putInt(THREAD_KEY_RANK, i + 1);
+			thread.putLong(THREAD_KEY_ALLOC_COUNT,
+					interval ? entry.getIntervalAllocCount() : entry.getAllocCount());
+			thread.putLong(THREAD_KEY_ALLOC_SIZE,
+					interval ? entry.getIntervalAllocSize() : entry.getAllocSize());
+			results.putBundle(entry.toString(), thread);
+		}
+		return results;
+	}
+}
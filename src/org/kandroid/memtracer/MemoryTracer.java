@@ -1,12 +1,14 @@
 package org.kandroid.memtracer;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Bundle;
 import android.os.Debug;
 import android.os.Parcelable;
 import android.os.Process;
-import android.os.SystemClock;
 
 /**
  * Note that most part of this class is taken from android.os.PerformanceCollector.
@@ -20,14 +22,67 @@ public class MemoryTracer {
         public void writeTraceSnapshot(Bundle snapshot);
     }
 
+    /**
+     * A {@link ResultsWriter} that also consumes snapshot records directly,
+     * so that no Bundle has to be built for it. The record is only valid
+     * during the call; writers that keep it must copy it.
+     */
+    public interface SnapshotWriter extends ResultsWriter {
+        public void writeTraceSnapshot(MemoryTraceSnapshot snapshot);
+        /**
+         * Returns the keys this writer emits, or null if it emits every
+         * metric. The tracer skips collecting metrics no writer needs.
+         */
+        public String[] getMetricKeys();
+    }
+
+    /**
+     * A {@link ResultsWriter} that counts the bytes it wrote, for
+     * {@link #METRIC_KEY_TRACER_BYTES_WRITTEN}. The count may be read from
+     * any thread.
+     */
+    public interface CountingWriter extends ResultsWriter {
+        public long getBytesWritten();
+    }
+
     /**
      * In a results Bundle, this key references a list of snapshot Bundles.
      */
     public static final String METRIC_KEY_SNAPSHOTS = "snapshots";
+    /**
+     * In a results Bundle, this key references the per-label statistics of
+     * all snapshots. See {@link MemoryTraceStatistics#toBundle()}.
+     */
+    public static final String METRIC_KEY_STATISTICS = "statistics";
+    /**
+     * In a results Bundle, this key references the per-label totals of the
+     * sections. See {@link MemoryTraceSections#toBundle(MemoryTraceLabels)}.
+     */
+    public static final String METRIC_KEY_SECTIONS = "sections";
+    /**
+     * In a results Bundle, this key references the threads that allocated
+     * the most. See {@link MemoryTraceThreadAllocations#toBundle(java.util.List, boolean)}.
+     */
+    public static final String METRIC_KEY_THREAD_ALLOCATIONS = "thread_allocations";
+    /**
+     * In a results Bundle, this key references the violations of the budget,
+     * if any. See {@link MemoryTraceBudget#toBundle()}.
+     */
+    public static final String METRIC_KEY_BUDGET_VIOLATIONS = "budget_violations";
+    /**
+     * In a results Bundle, this key references the heap dumps taken, if any.
+     * See {@link MemoryTraceHeapDumps#toBundle()}.
+     */
+    public static final String METRIC_KEY_HEAP_DUMPS = "heap_dumps";
     /**
      * In a snapshot Bundle, this key describes the snapshot.
      */
     public static final String METRIC_KEY_LABEL = "label";
+    /**
+     * In a snapshot Bundle, this key reports when the snapshot was taken, in
+     * nanoseconds of elapsed realtime.
+     */
+    public static final String METRIC_KEY_TIMESTAMP = "timestamp";
     /**
      * In a results Bundle, this key reports the cpu time of the code block
      * under measurement.
@@ -177,13 +232,216 @@ public class MemoryTracer {
      * used by everything else.
      */
     public static final String METRIC_KEY_OTHER_SHARED_DIRTY = "other_shared_dirty";
+    /**
+     * In a snapshot Bundle, this key reports the virtual memory size of the
+     * process, in KB.
+     */
+    public static final String METRIC_KEY_VM_SIZE = "vm_size";
+    /**
+     * In a snapshot Bundle, this key reports the resident set size of the
+     * process, in KB.
+     */
+    public static final String METRIC_KEY_RSS = "rss";
+    /**
+     * In a snapshot Bundle, this key reports the resident pages backed by
+     * files or shared memory, in KB.
+     */
+    public static final String METRIC_KEY_RSS_SHARED = "rss_shared";
+    /**
+     * In a snapshot Bundle, this key reports the peak resident set size, in KB.
+     */
+    public static final String METRIC_KEY_VM_HWM = "vm_hwm";
+    /**
+     * In a snapshot Bundle, this key reports the resident anonymous memory, in KB.
+     */
+    public static final String METRIC_KEY_RSS_ANON = "rss_anon";
+    /**
+     * In a snapshot Bundle, this key reports the resident file mappings, in KB.
+     */
+    public static final String METRIC_KEY_RSS_FILE = "rss_file";
+    /**
+     * In a snapshot Bundle, this key reports the resident shared memory, in KB.
+     */
+    public static final String METRIC_KEY_RSS_SHMEM = "rss_shmem";
+    /**
+     * In a snapshot Bundle, this key reports the swapped out anonymous
+     * memory, in KB.
+     */
+    public static final String METRIC_KEY_VM_SWAP = "vm_swap";
+    /**
+     * In a snapshot Bundle, this key reports the proportional set size of
+     * the whole process, in KB.
+     */
+    public static final String METRIC_KEY_TOTAL_PSS = "total_pss";
+    /**
+     * In a snapshot Bundle, this key reports the private dirty pages of the
+     * whole process, in KB.
+     */
+    public static final String METRIC_KEY_TOTAL_PRIVATE_DIRTY = "total_private_dirty";
+    /**
+     * In a snapshot Bundle, this key reports the shared dirty pages of the
+     * whole process, in KB.
+     */
+    public static final String METRIC_KEY_TOTAL_SHARED_DIRTY = "total_shared_dirty";
+    /**
+     * In a snapshot Bundle, this key reports the proportional swap usage of
+     * the whole process, in KB.
+     */
+    public static final String METRIC_KEY_TOTAL_SWAP_PSS = "total_swap_pss";
+    /**
+     * In a snapshot Bundle, this key reports the number of objects allocated
+     * by the thread that took the snapshot.
+     */
+    public static final String METRIC_KEY_THREAD_ALLOC_COUNT = "thread_alloc_count";
+    /**
+     * In a snapshot Bundle, this key reports the size of all objects
+     * allocated by the thread that took the snapshot.
+     */
+    public static final String METRIC_KEY_THREAD_ALLOC_SIZE = "thread_alloc_size";
+    /**
+     * In a snapshot Bundle, this key reports the CPU time, in nanoseconds,
+     * of the thread that took the snapshot since its previous snapshot.
+     */
+    public static final String METRIC_KEY_THREAD_CPU_TIME = "thread_cpu_time";
+    /**
+     * In a snapshot Bundle, this key reports the number of garbage
+     * collections since the previous snapshot of any thread. Only ART
+     * reports it, from API level 23.
+     */
+    public static final String METRIC_KEY_GC_COUNT = "gc_count";
+    /**
+     * In a snapshot Bundle, this key reports the milliseconds the runtime
+     * spent collecting since the previous snapshot of any thread, an
+     * estimate of what the collections cost the code under measurement. Only
+     * ART reports it, from API level 23.
+     */
+    public static final String METRIC_KEY_GC_TIME = "gc_time";
+    /**
+     * In a snapshot Bundle, this key reports the nanoseconds the thread
+     * that took the snapshot spent in the tracer since its previous
+     * snapshot: collecting, recording and, unless another thread does it,
+     * writing the previous snapshot. See
+     * {@link #setOverheadTracking(boolean, boolean)}.
+     */
+    public static final String METRIC_KEY_TRACER_TIME = "tracer_time";
+    /**
+     * In a snapshot Bundle, this key reports the CPU nanoseconds of
+     * {@link #METRIC_KEY_TRACER_TIME}. In a results Bundle, it reports the
+     * CPU nanoseconds the tracer took on all threads.
+     */
+    public static final String METRIC_KEY_TRACER_CPU_TIME = "tracer_cpu_time";
+    /**
+     * In a snapshot Bundle, this key reports the number of objects the
+     * tracer allocated on the thread that took the snapshot since its
+     * previous snapshot, if allocations are counted.
+     */
+    public static final String METRIC_KEY_TRACER_ALLOC_COUNT = "tracer_alloc_count";
+    /**
+     * In a snapshot Bundle, this key reports the bytes of
+     * {@link #METRIC_KEY_TRACER_ALLOC_COUNT}.
+     */
+    public static final String METRIC_KEY_TRACER_ALLOC_SIZE = "tracer_alloc_size";
+    /**
+     * In a snapshot Bundle, this key reports the nanoseconds spent in the
+     * results writer, on any thread, since the previous snapshot of any
+     * thread. Writers with threads of their own do most of their work there,
+     * which is not included.
+     */
+    public static final String METRIC_KEY_TRACER_WRITE_TIME = "tracer_write_time";
+    /**
+     * In a snapshot Bundle, this key reports the bytes the results writer
+     * wrote since the previous snapshot of any thread, if it is a
+     * {@link CountingWriter}.
+     */
+    public static final String METRIC_KEY_TRACER_BYTES_WRITTEN = "tracer_bytes_written";
+    /**
+     * In snapshot and results Bundles, this key reports the share of the
+     * CPU time of the process since tracing started that the tracer took, in
+     * hundredths of a percent. A budget rule on it alerts when the tracer
+     * costs too much.
+     */
+    public static final String METRIC_KEY_TRACER_OVERHEAD = "tracer_overhead";
+
+    /**
+     * Every snapshot forces a GC, resets the allocation counters and reads
+     * the full memory info. This is the default.
+     */
+    public static final int SNAPSHOT_MODE_FULL = 0;
+    /**
+     * Snapshots read only the cheap heap, binder and allocation counters. No
+     * GC is forced, the allocation counters are not reset, and the PSS and
+     * dirty page metrics are left out. Full snapshots are still taken when
+     * requested explicitly or on the full snapshot interval.
+     */
+    public static final int SNAPSHOT_MODE_LIGHT = 1;
+
+    private static final int DEFAULT_RESULTS_TAIL_SIZE = 100;
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
 
     private ResultsWriter mResultsWriter;
     private Bundle mPerfResults;
-    private long mSnapshotCpuTime;
-    private long mSnapshotExecTime;
+    private volatile long mSnapshotCpuTime;
+    // While tracing, in nanoseconds of the trace clock, so that the
+    // intervals line up with the timestamps.
+    private volatile long mSnapshotExecTime;
+    // The collection counters are process-wide, so every thread's snapshot
+    // reports the collections since the previous snapshot of any thread.
+    private final AtomicLong mLastGcCount = new AtomicLong();
+    private final AtomicLong mLastGcTime = new AtomicLong();
+    private volatile boolean mTrackOverhead;
+    private volatile boolean mSubtractOverhead;
+    // The tracer's own cost beyond what the interval timers hold: the time
+    // in the writer and the CPU time of threads that are not taking a
+    // snapshot since the last snapshot, its CPU time since tracing started,
+    // and its allocations since the counts were last reset.
+    private final AtomicLong mWriteTime = new AtomicLong();
+    private final AtomicLong mBackgroundCpuTime = new AtomicLong();
+    private final AtomicLong mTracerCpuTime = new AtomicLong();
+    private final AtomicLong mTracerAllocCount = new AtomicLong();
+    private final AtomicLong mTracerAllocSize = new AtomicLong();
+    private final AtomicLong mLastBytesWritten = new AtomicLong();
+    private volatile long mOverheadStartCpuTime;
+    private volatile int mGeneration;
     private boolean mShouldReportResults;
 	private boolean mIsStarted;
+    // Set while snapshots are recorded. A producer counts itself in
+    // mProducers before it checks the flag, so that stopping can clear the
+    // flag and then wait for the snapshots already being taken.
+    private volatile boolean mRecording;
+    private final AtomicInteger mProducers = new AtomicInteger();
+    private int mSnapshotMode = SNAPSHOT_MODE_FULL;
+    private int mFullSnapshotInterval;
+    private final AtomicInteger mSnapshotCount = new AtomicInteger();
+    private final MemoryTraceLabels mLabels = new MemoryTraceLabels();
+    // Snapshots from any thread go through this queue to a single consumer,
+    // which reports and writes them. Whoever wins mDraining is the consumer.
+    private final MemoryTraceQueue<MemoryTraceSnapshot> mRecordQueue =
+            new MemoryTraceQueue<MemoryTraceSnapshot>(DEFAULT_QUEUE_CAPACITY);
+    private final MemoryTraceSnapshotPool mSnapshotPool =
+            new MemoryTraceSnapshotPool(DEFAULT_QUEUE_CAPACITY * 2);
+    private final AtomicBoolean mDraining = new AtomicBoolean();
+    private final ThreadLocal<MemoryTraceIntervalTimer> mTimers = new ThreadLocal<MemoryTraceIntervalTimer>() {
+        @Override
+        protected MemoryTraceIntervalTimer initialValue() {
+            return new MemoryTraceIntervalTimer();
+        }
+    };
+    private String[] mMetricKeys;
+    private volatile MemoryTraceCollectionPlan mCollectionPlan = MemoryTraceCollectionPlan.ALL;
+    private MemoryTraceMetricSource[] mMetricSources = {
+            new MemoryTraceDebugSource(), new MemoryTraceProcfsSource() };
+    // The source each collector collects through, or null, by ordinal.
+    private volatile MemoryTraceMetricSource[] mCollectorSources =
+            new MemoryTraceMetricSource[MemoryTraceMetric.Collector.values().length];
+    private volatile MemoryTraceSampler mSampler;
+    private final MemoryTraceStatistics mStatistics = new MemoryTraceStatistics();
+    private final MemoryTraceSections mSections = new MemoryTraceSections();
+    private volatile MemoryTraceThreadAllocations mThreadAllocations;
+    private int mThreadAllocationsTopCount;
+    private int mResultsTailSize = DEFAULT_RESULTS_TAIL_SIZE;
+    private MemoryTraceRingBuffer mResultsTail;
+    private volatile MemoryTraceBudget mBudget;
+    private volatile MemoryTraceHeapDumps mHeapDumps;
     
     public MemoryTracer() {
     	
@@ -197,15 +455,163 @@ public class MemoryTracer {
         mResultsWriter = writer;
     }
 
+    /**
+     * Sets either {@link #SNAPSHOT_MODE_FULL} or {@link #SNAPSHOT_MODE_LIGHT}.
+     */
+    public void setSnapshotMode(int mode) {
+        if (mode != SNAPSHOT_MODE_FULL && mode != SNAPSHOT_MODE_LIGHT) {
+            throw new IllegalArgumentException("Unknown snapshot mode: " + mode);
+        }
+        mSnapshotMode = mode;
+    }
+
+    public int getSnapshotMode() {
+        return mSnapshotMode;
+    }
+
+    /**
+     * In {@link #SNAPSHOT_MODE_LIGHT}, takes a full snapshot every
+     * <code>interval</code> snapshots. Zero disables the schedule.
+     */
+    public void setFullSnapshotInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Negative interval: " + interval);
+        }
+        mFullSnapshotInterval = interval;
+    }
+
+    /**
+     * Sets whether {@link #stopTracing()} reports per-label statistics of all
+     * snapshots along with the last <code>tailSize</code> snapshots. Only
+     * the statistics and the tail are kept, so memory stays bounded however
+     * long the run is.
+     */
+    public void setReportResults(boolean report, int tailSize) {
+        if (tailSize < 0) {
+            throw new IllegalArgumentException("Negative tail size: " + tailSize);
+        }
+        mShouldReportResults = report;
+        mResultsTailSize = tailSize;
+    }
+
+    /**
+     * Restricts collection to the metrics with the given keys. If not set,
+     * the keys come from the writer when it is a {@link SnapshotWriter},
+     * and every metric is collected otherwise.
+     */
+    public void setMetricKeys(String[] metricKeys) {
+        mMetricKeys = metricKeys;
+    }
+
+    /**
+     * Sets the sources metrics are collected through. For each collector,
+     * the first source that provides it is used. Takes effect when tracing
+     * starts. By default, metrics come from {@link MemoryTraceDebugSource}
+     * and {@link MemoryTraceProcfsSource}.
+     */
+    public void setMetricSources(MemoryTraceMetricSource... sources) {
+        mMetricSources = sources.clone();
+    }
+
+    /**
+     * Attributes allocations to the threads that make them, tracking at most
+     * <code>maxThreads</code> threads, and reports the <code>topCount</code>
+     * threads that allocated the most when tracing stops. Zero
+     * <code>maxThreads</code> turns it off, which is the default. See
+     * {@link MemoryTraceThreadAllocations}.
+     */
+    public synchronized void setThreadAllocationTracking(int maxThreads, int topCount) {
+        mThreadAllocations = maxThreads > 0 ? new MemoryTraceThreadAllocations(maxThreads) : null;
+        mThreadAllocationsTopCount = topCount;
+    }
+
+    /**
+     * Returns the per-thread allocations, or null if they are not tracked.
+     */
+    public MemoryTraceThreadAllocations getThreadAllocations() {
+        return mThreadAllocations;
+    }
+
+    /**
+     * Adds the allocations of the calling thread since it last took a
+     * snapshot, ended a section or called this, if threads are tracked. Call
+     * it from threads that do neither, e.g. after each task of a pool, and
+     * once when such a thread starts.
+     */
+    public void recordThreadAllocations() {
+        MemoryTraceThreadAllocations threadAllocations = mThreadAllocations;
+        if (threadAllocations != null) {
+            threadAllocations.record();
+        }
+    }
+
+    /**
+     * Checks every recorded snapshot against a budget, whose listener hears
+     * of the first violation of each rule by each label. The violations are
+     * reported when tracing stops. The metrics the budget limits are
+     * collected even if the metric keys leave them out. Takes effect when
+     * tracing starts.
+     */
+    public synchronized void setBudget(MemoryTraceBudget budget) {
+        mBudget = budget;
+    }
+
+    public MemoryTraceBudget getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Checks every recorded snapshot against the triggers of heap dumps.
+     * The dumps taken are reported when tracing stops, which waits for a
+     * dump in progress. Takes effect when tracing starts.
+     */
+    public synchronized void setHeapDumps(MemoryTraceHeapDumps heapDumps) {
+        mHeapDumps = heapDumps;
+    }
+
+    public MemoryTraceHeapDumps getHeapDumps() {
+        return mHeapDumps;
+    }
+
+    /**
+     * Measures what the tracer costs: every snapshot reports the time, CPU
+     * time and allocations the tracer took on its thread in its interval,
+     * the time spent in the writer, the bytes written, and the running
+     * share of the CPU time of the process the tracer took, in the
+     * <code>tracer_*</code> metrics. With <code>subtract</code> set, that
+     * cost is also taken out of the execution, CPU and thread CPU times and
+     * of the global allocation counts, so that they are the code's own.
+     * The cost of writers with threads of their own, and the memory the
+     * tracer occupies, are not accounted. Off by default.
+     */
+    public void setOverheadTracking(boolean track, boolean subtract) {
+        mTrackOverhead = track;
+        mSubtractOverhead = track && subtract;
+    }
+
+    /**
+     * Returns the share of the CPU time of the process since tracing started
+     * that the tracer took, in hundredths of a percent, if tracked.
+     */
+    public long getOverhead() {
+        long processCpuTime = (Process.getElapsedCpuTime() - mOverheadStartCpuTime) * 1000000L;
+        return processCpuTime > 0 ? (long) (mTracerCpuTime.get() * 10000.0 / processCpuTime) : 0;
+    }
+
     public synchronized void startTracing(String label) {
 		if (mIsStarted) {
 			return;
 		}
 		mIsStarted = true;
 		
+        mCollectionPlan = createCollectionPlan();
+        mCollectorSources = resolveMetricSources();
+        mSnapshotPool.prefill(DEFAULT_QUEUE_CAPACITY);
+
         if (mResultsWriter != null)
             mResultsWriter.writeTraceStart(label);
         startPerformanceTracking();
+        mRecording = true;
     }
 
     public synchronized Bundle stopTracing() {
@@ -215,77 +621,682 @@ public class MemoryTracer {
 		}
 		mIsStarted = false;
 		
-    	if (mResultsWriter != null)
-            mResultsWriter.writeTraceStop(mPerfResults);
+        // The event of a dump in progress still goes into the trace.
+        MemoryTraceHeapDumps heapDumps = mHeapDumps;
+        if (heapDumps != null) {
+            heapDumps.stop();
+        }
+        // Snapshots taken from here on are discarded; those being taken
+        // still make it into the trace.
+        stopRecording();
+        while (mProducers.get() != 0) {
+            Thread.yield();
+        }
+        stopSampling();
+        // Hold the queue until the trace is closed, so that no other thread
+        // writes to the writer while it stops.
+        while (!mDraining.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            drainQueue(Integer.MAX_VALUE);
+            reportResults();
+        } finally {
+            mDraining.set(false);
+        }
     	stopPerformanceTracking();
     	return mPerfResults;
     }
+
+    /*
+     * Completes the results and closes the trace with them.
+     */
+    private void reportResults() {
+        if (mShouldReportResults) {
+            addResultsSummary();
+        }
+        Bundle sections = mSections.toBundle(mLabels);
+        if (sections != null) {
+            mPerfResults.putBundle(METRIC_KEY_SECTIONS, sections);
+        }
+        MemoryTraceThreadAllocations threadAllocations = mThreadAllocations;
+        if (threadAllocations != null) {
+            mPerfResults.putBundle(METRIC_KEY_THREAD_ALLOCATIONS, MemoryTraceThreadAllocations.toBundle(
+                    threadAllocations.getTop(mThreadAllocationsTopCount), false));
+        }
+        MemoryTraceBudget budget = mBudget;
+        Bundle violations = budget != null ? budget.toBundle() : null;
+        if (violations != null) {
+            mPerfResults.putBundle(METRIC_KEY_BUDGET_VIOLATIONS, violations);
+        }
+        MemoryTraceHeapDumps heapDumps = mHeapDumps;
+        Bundle dumps = heapDumps != null ? heapDumps.toBundle() : null;
+        if (dumps != null) {
+            mPerfResults.putBundle(METRIC_KEY_HEAP_DUMPS, dumps);
+        }
+        if (mTrackOverhead) {
+            mPerfResults.putLong(METRIC_KEY_TRACER_CPU_TIME, mTracerCpuTime.get());
+            mPerfResults.putLong(METRIC_KEY_TRACER_OVERHEAD, getOverhead());
+        }
+        if (mResultsWriter != null)
+            mResultsWriter.writeTraceStop(mPerfResults);
+    }
+
+    /*
+     * Discards the snapshots taken from now on, without waiting for those
+     * being taken. Tracing still has to be stopped.
+     */
+    void stopRecording() {
+        mRecording = false;
+    }
+
+    private boolean beginRecording() {
+        // Once stopped, leave the count alone, for stopping to see it drop.
+        if (!mRecording) {
+            return false;
+        }
+        mProducers.incrementAndGet();
+        if (mRecording) {
+            return true;
+        }
+        mProducers.decrementAndGet();
+        return false;
+    }
+
+    private void endRecording() {
+        mProducers.decrementAndGet();
+    }
     
     public Bundle addSnapshot(String label) {
-        // Stop the timing. This must be done first before any other counting is stopped.
-        mSnapshotCpuTime = Process.getElapsedCpuTime() - mSnapshotCpuTime;
-        mSnapshotExecTime = SystemClock.uptimeMillis() - mSnapshotExecTime;
+        return addSnapshot(label, false);
+    }
+
+    /**
+     * Adds a snapshot. A full, GC-stabilized snapshot is taken if
+     * <code>forceFull</code> is set, in {@link #SNAPSHOT_MODE_FULL}, or when
+     * the full snapshot interval is due. Otherwise a light snapshot is taken.
+     * Unless tracing, no snapshot is taken and the bundle is empty.
+     */
+    public Bundle addSnapshot(String label, boolean forceFull) {
+        if (!beginRecording()) {
+            return new Bundle();
+        }
+        try {
+            MemoryTraceSnapshot snapshot = mSnapshotPool.obtain();
+            takeSnapshot(mLabels.intern(label), forceFull, snapshot);
+            Bundle bundle = snapshot.toBundle();
+            recordSnapshot(snapshot, false);
+            endOverhead();
+            return bundle;
+        } finally {
+            endRecording();
+        }
+    }
+
+    /**
+     * Adds a snapshot like {@link #addSnapshot(String, boolean)} but without
+     * allocating. The label is an id from {@link #internLabel(String)}. If
+     * <code>result</code> is not null, the snapshot is copied into it, or
+     * it is cleared if no snapshot is taken because tracing is not running.
+     */
+    public void addSnapshot(int labelId, boolean forceFull, MemoryTraceSnapshot result) {
+        if (!beginRecording()) {
+            if (result != null) {
+                result.clear();
+            }
+            return;
+        }
+        try {
+            MemoryTraceSnapshot snapshot = mSnapshotPool.obtain();
+            takeSnapshot(labelId, forceFull, snapshot);
+            if (result != null) {
+                result.copyFrom(snapshot);
+            }
+            recordSnapshot(snapshot, false);
+            endOverhead();
+        } finally {
+            endRecording();
+        }
+    }
+
+    /**
+     * Begins a section on the calling thread, like
+     * <code>android.os.Trace.beginSection</code>. Until the matching
+     * {@link #endSection()}, the thread's allocations, CPU time and wall time
+     * are counted to the section and to the sections it is nested in. The
+     * per-label totals are reported when tracing stops.
+     */
+    public void beginSection(String label) {
+        mSections.begin(mLabels.intern(label));
+    }
 
-        resetAllocCounting();
+    /**
+     * Begins a section with a label id from {@link #internLabel(String)}.
+     */
+    public void beginSection(int labelId) {
+        mSections.begin(labelId);
+    }
 
-        long nativeMax = Debug.getNativeHeapSize() / 1024;
-        long nativeAllocated = Debug.getNativeHeapAllocatedSize() / 1024;
-        long nativeFree = Debug.getNativeHeapFreeSize() / 1024;
+    /**
+     * Ends the innermost section the calling thread began.
+     */
+    public void endSection() {
+        mSections.end();
+        MemoryTraceThreadAllocations threadAllocations = mThreadAllocations;
+        if (threadAllocations != null) {
+            threadAllocations.record();
+        }
+    }
 
-        Debug.MemoryInfo memInfo = new Debug.MemoryInfo();
-        Debug.getMemoryInfo(memInfo);
+    /**
+     * Starts taking light snapshots in the background, starting at one per
+     * <code>periodMillis</code>. See {@link MemoryTraceSampler}.
+     */
+    public void startSampling(long periodMillis) {
+        MemoryTraceSampler sampler = new MemoryTraceSampler();
+        sampler.setSamplingPeriod(Math.max(1, periodMillis / 10), periodMillis, periodMillis * 10);
+        startSampling(sampler);
+    }
 
-        Runtime runtime = Runtime.getRuntime();
+    /**
+     * Starts taking snapshots in the background with the given sampler.
+     * Sampling stops at the latest when tracing stops.
+     */
+    public synchronized void startSampling(MemoryTraceSampler sampler) {
+        stopSampling();
+        mSampler = sampler;
+        sampler.start(this);
+    }
 
-        long dalvikMax = runtime.totalMemory() / 1024;
-        long dalvikFree = runtime.freeMemory() / 1024;
-        long dalvikAllocated = dalvikMax - dalvikFree;
+    public synchronized void stopSampling() {
+        MemoryTraceSampler sampler = mSampler;
+        if (sampler != null) {
+            sampler.stop();
+            mSampler = null;
+            drainRecords(Integer.MAX_VALUE, true);
+        }
+    }
+
+    /**
+     * Returns the id under which snapshots with the given label are recorded.
+     */
+    public int internLabel(String label) {
+        return mLabels.intern(label);
+    }
+
+    private MemoryTraceCollectionPlan createCollectionPlan() {
+        String[] metricKeys = mMetricKeys;
+        if (metricKeys == null && mResultsWriter instanceof SnapshotWriter) {
+            metricKeys = ((SnapshotWriter) mResultsWriter).getMetricKeys();
+        }
+        MemoryTraceBudget budget = mBudget;
+        if (metricKeys != null && budget != null) {
+            metricKeys = concat(metricKeys, budget.getMetricKeys());
+        }
+        MemoryTraceHeapDumps heapDumps = mHeapDumps;
+        if (metricKeys != null && heapDumps != null) {
+            metricKeys = concat(metricKeys, heapDumps.getMetricKeys());
+        }
+        return MemoryTraceCollectionPlan.forKeys(metricKeys);
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] keys = new String[first.length + second.length];
+        System.arraycopy(first, 0, keys, 0, first.length);
+        System.arraycopy(second, 0, keys, first.length, second.length);
+        return keys;
+    }
+
+    private void takeSnapshot(int labelId, boolean forceFull, MemoryTraceSnapshot snapshot) {
+        MemoryTraceCollectionPlan plan = mCollectionPlan;
+        MemoryTraceIntervalTimer timer = mTimers.get();
+
+        // Stop the timing. This must be done first before any other counting is stopped.
+        long cpuTime = 0;
+        long execTime = 0;
+        long threadCpuTime = 0;
+        long gcCount = -1;
+        long gcTime = -1;
+        boolean timing = plan.collects(MemoryTraceMetric.Collector.TIMING);
+        boolean gc = plan.collects(MemoryTraceMetric.Collector.GC) && MemoryTraceGcStats.isAvailable();
+        if (timing) {
+            cpuTime = Process.getElapsedCpuTime();
+            execTime = MemoryTraceClock.now();
+            threadCpuTime = Debug.threadCpuTimeNanos();
+        }
+        if (gc) {
+            gcCount = MemoryTraceGcStats.getCount();
+            gcTime = MemoryTraceGcStats.getTimeMillis();
+        }
+        boolean overhead = mTrackOverhead;
+        int generation = mGeneration;
+        if ((timing || overhead) && timer.mGeneration != generation) {
+            // The first interval of this thread starts with tracing, except
+            // for its CPU time, which is only known since the thread started.
+            timer.mGeneration = generation;
+            timer.mLastCpuTime = mSnapshotCpuTime;
+            timer.mLastExecTime = mSnapshotExecTime;
+            timer.mLastThreadCpuTime = 0;
+            clearOverhead(timer);
+        }
+        long tracerTime = 0;
+        long tracerCpuTime = 0;
+        long tracerAllocCount = 0;
+        long tracerAllocSize = 0;
+        if (overhead) {
+            tracerTime = timer.mTracerTime;
+            tracerCpuTime = timer.mTracerCpuTime;
+            tracerAllocCount = timer.mTracerAllocCount;
+            tracerAllocSize = timer.mTracerAllocSize;
+            clearOverhead(timer);
+            // Everything from here on, the GC a full snapshot forces
+            // included, is the tracer's cost.
+            beginOverhead(timer);
+        }
+
+        snapshot.setLabel(labelId, mLabels.get(labelId));
 
-        Bundle snapshot = new Bundle();
-        snapshot.putString(METRIC_KEY_LABEL, label);
-        
         // Add final binder counts
-        Bundle binderCounts = getBinderCounts();
-        for (String key : binderCounts.keySet()) {
-        	snapshot.putLong(key, binderCounts.getLong(key));
+        if (plan.collects(MemoryTraceMetric.Collector.BINDER)) {
+            collect(MemoryTraceMetric.Collector.BINDER, snapshot);
+        }
+
+        // Add alloc counts. Read them before a full snapshot resets them, so
+        // that they cover the interval since the last reset.
+        if (plan.collects(MemoryTraceMetric.Collector.ALLOC_COUNTS)) {
+            collect(MemoryTraceMetric.Collector.ALLOC_COUNTS, snapshot);
+            if (overhead && mSubtractOverhead) {
+                subtract(snapshot, MemoryTraceMetric.GLOBAL_ALLOC_COUNT, mTracerAllocCount.get());
+                subtract(snapshot, MemoryTraceMetric.GLOBAL_ALLOC_SIZE, mTracerAllocSize.get());
+            }
+        }
+        MemoryTraceThreadAllocations threadAllocations = mThreadAllocations;
+        if (threadAllocations != null) {
+            threadAllocations.record();
+        }
+
+        boolean full = forceFull || isFullSnapshotDue();
+        if (full) {
+            if (overhead) {
+                // Count what the tracer allocated up to the reset, and count
+                // on from the reset.
+                timer.mTracerAllocCount += sinceStart(Debug.getThreadAllocCount(), timer.mSectionStartAllocCount);
+                timer.mTracerAllocSize += sinceStart(Debug.getThreadAllocSize(), timer.mSectionStartAllocSize);
+            }
+            resetAllocCounting();
+            if (overhead) {
+                timer.mSectionStartAllocCount = Debug.getThreadAllocCount();
+                timer.mSectionStartAllocSize = Debug.getThreadAllocSize();
+            }
+            mTracerAllocCount.set(0);
+            mTracerAllocSize.set(0);
+            if (threadAllocations != null) {
+                threadAllocations.onCountsReset();
+            }
+        }
+
+        if (timing) {
+            // Milliseconds of the clock rather than of the difference, so
+            // that consecutive intervals add up to the elapsed time.
+            snapshot.set(MemoryTraceMetric.EXECUTION_TIME,
+                    execTime / 1000000L - timer.mLastExecTime / 1000000L);
+            snapshot.set(MemoryTraceMetric.CPU_TIME, cpuTime - timer.mLastCpuTime);
+            if (threadCpuTime >= 0) {
+                snapshot.set(MemoryTraceMetric.THREAD_CPU_TIME, threadCpuTime - timer.mLastThreadCpuTime);
+            }
+            if (full && !overhead) {
+                // Start the next interval after the collections forced above,
+                // which are the tracer's cost rather than the code's. When
+                // the overhead is tracked, they are counted to it instead.
+                execTime = MemoryTraceClock.now();
+                cpuTime = Process.getElapsedCpuTime();
+                threadCpuTime = Debug.threadCpuTimeNanos();
+            }
+            timer.mLastExecTime = execTime;
+            timer.mLastCpuTime = cpuTime;
+            timer.mLastThreadCpuTime = threadCpuTime;
+        }
+        if (gc) {
+            if (gcCount >= 0) {
+                snapshot.set(MemoryTraceMetric.GC_COUNT, advance(mLastGcCount, gcCount));
+            }
+            if (gcTime >= 0) {
+                snapshot.set(MemoryTraceMetric.GC_TIME, advance(mLastGcTime, gcTime));
+            }
+            if (full) {
+                // The collections forced above are the tracer's cost, so no
+                // snapshot reports them.
+                advance(mLastGcCount, MemoryTraceGcStats.getCount());
+                advance(mLastGcTime, MemoryTraceGcStats.getTimeMillis());
+            }
+        }
+        if (overhead) {
+            long backgroundCpuTime = mBackgroundCpuTime.getAndSet(0);
+            if (mSubtractOverhead && timing) {
+                subtract(snapshot, MemoryTraceMetric.EXECUTION_TIME, tracerTime / 1000000L);
+                subtract(snapshot, MemoryTraceMetric.CPU_TIME, (tracerCpuTime + backgroundCpuTime) / 1000000L);
+                subtract(snapshot, MemoryTraceMetric.THREAD_CPU_TIME, tracerCpuTime);
+            }
+            if (plan.collects(MemoryTraceMetric.Collector.OVERHEAD)) {
+                snapshot.set(MemoryTraceMetric.TRACER_TIME, tracerTime);
+                snapshot.set(MemoryTraceMetric.TRACER_CPU_TIME, tracerCpuTime);
+                snapshot.set(MemoryTraceMetric.TRACER_ALLOC_COUNT, tracerAllocCount);
+                snapshot.set(MemoryTraceMetric.TRACER_ALLOC_SIZE, tracerAllocSize);
+                collectWriteOverhead(snapshot);
+            }
+        }
+
+        collectMemory(snapshot, plan, false);
+
+        // Parsing smaps is the expensive part, so only full snapshots do it.
+        if (full && plan.collects(MemoryTraceMetric.Collector.MEMORY_INFO)) {
+            collect(MemoryTraceMetric.Collector.MEMORY_INFO, snapshot);
+        }
+        if (full && plan.collects(MemoryTraceMetric.Collector.MEMORY_ROLLUP)) {
+            collect(MemoryTraceMetric.Collector.MEMORY_ROLLUP, snapshot);
+        }
+    }
+
+    /*
+     * Records a light snapshot for the sampler and returns its allocated Java
+     * heap, which the sampler adapts to, or -1 if tracing is not running. It
+     * leaves the interval timers alone.
+     */
+    long addSample(int labelId) {
+        if (!beginRecording()) {
+            return -1;
+        }
+        try {
+            return recordSample(labelId);
+        } finally {
+            endRecording();
+        }
+    }
+
+    private long recordSample(int labelId) {
+        boolean overhead = mTrackOverhead;
+        long startCpuTime = overhead ? Debug.threadCpuTimeNanos() : 0;
+        MemoryTraceCollectionPlan plan = mCollectionPlan;
+        MemoryTraceSnapshot snapshot = mSnapshotPool.obtain();
+        snapshot.setLabel(labelId, mLabels.get(labelId));
+        if (plan.collects(MemoryTraceMetric.Collector.BINDER)) {
+            collect(MemoryTraceMetric.Collector.BINDER, snapshot);
+        }
+        if (plan.collects(MemoryTraceMetric.Collector.ALLOC_COUNTS)) {
+            collect(MemoryTraceMetric.Collector.ALLOC_COUNTS, snapshot);
+        }
+        collectMemory(snapshot, plan, true);
+        long javaAllocated = snapshot.get(MemoryTraceMetric.JAVA_ALLOCATED);
+        recordSnapshot(snapshot, true);
+        if (overhead) {
+            addBackgroundCpuTime(Debug.threadCpuTimeNanos() - startCpuTime);
+        }
+        return javaAllocated;
+    }
+
+    /*
+     * Starts counting what the tracer costs the calling thread, up to
+     * endOverhead(). The next snapshot of the thread reports it.
+     */
+    private static void beginOverhead(MemoryTraceIntervalTimer timer) {
+        timer.mInTracer = true;
+        timer.mSectionStartTime = System.nanoTime();
+        timer.mSectionStartCpuTime = Debug.threadCpuTimeNanos();
+        timer.mSectionStartAllocCount = Debug.getThreadAllocCount();
+        timer.mSectionStartAllocSize = Debug.getThreadAllocSize();
+    }
+
+    private void endOverhead() {
+        if (!mTrackOverhead) {
+            return;
+        }
+        MemoryTraceIntervalTimer timer = mTimers.get();
+        if (!timer.mInTracer) {
+            return;
+        }
+        timer.mInTracer = false;
+        long cpuTime = Debug.threadCpuTimeNanos() - timer.mSectionStartCpuTime;
+        long allocCount = sinceStart(Debug.getThreadAllocCount(), timer.mSectionStartAllocCount);
+        long allocSize = sinceStart(Debug.getThreadAllocSize(), timer.mSectionStartAllocSize);
+        timer.mTracerTime += System.nanoTime() - timer.mSectionStartTime;
+        timer.mTracerCpuTime += cpuTime;
+        timer.mTracerAllocCount += allocCount;
+        timer.mTracerAllocSize += allocSize;
+        mTracerCpuTime.addAndGet(cpuTime);
+        mTracerAllocCount.addAndGet(allocCount);
+        mTracerAllocSize.addAndGet(allocSize);
+    }
+
+    // A full snapshot on another thread may reset the counts in between.
+    private static long sinceStart(long count, long start) {
+        return count >= start ? count - start : count;
+    }
+
+    private static void clearOverhead(MemoryTraceIntervalTimer timer) {
+        timer.mTracerTime = 0;
+        timer.mTracerCpuTime = 0;
+        timer.mTracerAllocCount = 0;
+        timer.mTracerAllocSize = 0;
+    }
+
+    private void addBackgroundCpuTime(long cpuTime) {
+        mBackgroundCpuTime.addAndGet(cpuTime);
+        mTracerCpuTime.addAndGet(cpuTime);
+    }
+
+    private void collectWriteOverhead(MemoryTraceSnapshot snapshot) {
+        snapshot.set(MemoryTraceMetric.TRACER_WRITE_TIME, mWriteTime.getAndSet(0));
+        ResultsWriter writer = mResultsWriter;
+        if (writer instanceof CountingWriter) {
+            long bytes = ((CountingWriter) writer).getBytesWritten();
+            snapshot.set(MemoryTraceMetric.TRACER_BYTES_WRITTEN, bytes - mLastBytesWritten.getAndSet(bytes));
         }
+        snapshot.set(MemoryTraceMetric.TRACER_OVERHEAD, getOverhead());
+    }
 
-        // Add alloc counts
-        Bundle allocCounts = getAllocCounts();
-        for (String key : allocCounts.keySet()) {
-        	snapshot.putLong(key, allocCounts.getLong(key));
+    /*
+     * Moves a process-wide baseline forward to the value and returns by how
+     * much, so that each change is reported by one snapshot only, whichever
+     * thread reads the counter first.
+     */
+    private static long advance(AtomicLong last, long value) {
+        while (true) {
+            long previous = last.get();
+            if (value <= previous) {
+                return 0;
+            }
+            if (last.compareAndSet(previous, value)) {
+                return value - previous;
+            }
         }
+    }
 
-        snapshot.putLong(METRIC_KEY_EXECUTION_TIME, mSnapshotExecTime);
-        snapshot.putLong(METRIC_KEY_CPU_TIME, mSnapshotCpuTime);
+    private static void subtract(MemoryTraceSnapshot snapshot, MemoryTraceMetric metric, long value) {
+        if (snapshot.has(metric)) {
+            snapshot.set(metric, Math.max(0, snapshot.get(metric) - value));
+        }
+    }
 
-        snapshot.putLong(METRIC_KEY_NATIVE_SIZE, nativeMax);
-        snapshot.putLong(METRIC_KEY_NATIVE_ALLOCATED, nativeAllocated);
-        snapshot.putLong(METRIC_KEY_NATIVE_FREE, nativeFree);
-        snapshot.putLong(METRIC_KEY_NATIVE_PSS, memInfo.nativePss);
-        snapshot.putLong(METRIC_KEY_NATIVE_PRIVATE_DIRTY, memInfo.nativePrivateDirty);
-        snapshot.putLong(METRIC_KEY_NATIVE_SHARED_DIRTY, memInfo.nativeSharedDirty);
+    /*
+     * Collects the timestamp and the cheap memory metrics.
+     */
+    private void collectMemory(MemoryTraceSnapshot snapshot, MemoryTraceCollectionPlan plan,
+            boolean forceJavaHeap) {
+        if (plan.collects(MemoryTraceMetric.Collector.CLOCK)) {
+            snapshot.set(MemoryTraceMetric.TIMESTAMP, MemoryTraceClock.now());
+        }
+        if (plan.collects(MemoryTraceMetric.Collector.NATIVE_HEAP)) {
+            collect(MemoryTraceMetric.Collector.NATIVE_HEAP, snapshot);
+        }
+        if (forceJavaHeap || plan.collects(MemoryTraceMetric.Collector.JAVA_HEAP)) {
+            collect(MemoryTraceMetric.Collector.JAVA_HEAP, snapshot);
+        }
+        if (plan.collects(MemoryTraceMetric.Collector.PROCESS_MEMORY)) {
+            collect(MemoryTraceMetric.Collector.PROCESS_MEMORY, snapshot);
+        }
+        if (plan.collects(MemoryTraceMetric.Collector.PROCESS_STATUS)) {
+            collect(MemoryTraceMetric.Collector.PROCESS_STATUS, snapshot);
+        }
+    }
 
-        snapshot.putLong(METRIC_KEY_JAVA_SIZE, dalvikMax);
-        snapshot.putLong(METRIC_KEY_JAVA_ALLOCATED, dalvikAllocated);
-        snapshot.putLong(METRIC_KEY_JAVA_FREE, dalvikFree);
-        snapshot.putLong(METRIC_KEY_JAVA_PSS, memInfo.dalvikPss);
-        snapshot.putLong(METRIC_KEY_JAVA_PRIVATE_DIRTY, memInfo.dalvikPrivateDirty);
-        snapshot.putLong(METRIC_KEY_JAVA_SHARED_DIRTY, memInfo.dalvikSharedDirty);
+    private void collect(MemoryTraceMetric.Collector collector, MemoryTraceSnapshot snapshot) {
+        MemoryTraceMetricSource source = mCollectorSources[collector.ordinal()];
+        if (source != null) {
+            source.collect(collector, snapshot);
+        }
+    }
 
-        snapshot.putLong(METRIC_KEY_OTHER_PSS, memInfo.otherPss);
-        snapshot.putLong(METRIC_KEY_OTHER_PRIVATE_DIRTY, memInfo.otherPrivateDirty);
-        snapshot.putLong(METRIC_KEY_OTHER_SHARED_DIRTY, memInfo.otherSharedDirty);
+    private MemoryTraceMetricSource[] resolveMetricSources() {
+        MemoryTraceMetric.Collector[] collectors = MemoryTraceMetric.Collector.values();
+        MemoryTraceMetricSource[] resolved = new MemoryTraceMetricSource[collectors.length];
+        for (MemoryTraceMetric.Collector collector : collectors) {
+            for (MemoryTraceMetricSource source : mMetricSources) {
+                if (source.provides(collector)) {
+                    resolved[collector.ordinal()] = source;
+                    break;
+                }
+            }
+        }
+        return resolved;
+    }
 
+    /*
+     * Queues a snapshot for the consumer. The queue owns the snapshot
+     * afterwards. The snapshot is written right away, on this thread if no
+     * other is writing, unless it is a sample the sampler may drain in a
+     * batch. Samples are not batched while a budget or heap dump triggers
+     * check the snapshots, so that these act on them without delay. If the
+     * queue is full, this waits for room rather than lose the snapshot.
+     */
+    private void recordSnapshot(MemoryTraceSnapshot snapshot, boolean sample) {
+        while (!mRecordQueue.offer(snapshot)) {
+            // Help drain the queue, or give the thread that drains it a chance.
+            drainRecords(Integer.MAX_VALUE, false);
+            Thread.yield();
+        }
+        if (!sample || mSampler == null || mBudget != null || mHeapDumps != null) {
+            drainRecords(Integer.MAX_VALUE, false);
+        }
+    }
+
+    /*
+     * Returns the number of snapshots waiting for the consumer.
+     */
+    int getPendingCount() {
+        return mRecordQueue.size();
+    }
+
+    /*
+     * Reports and writes up to max queued snapshots, unless another thread is
+     * already doing so. With wait set, waits for that thread to finish and
+     * then drains what is left, so that every snapshot queued before the call
+     * is written when it returns.
+     */
+    void drainRecords(int max, boolean wait) {
+        for (;;) {
+            if (!mDraining.compareAndSet(false, true)) {
+                if (!wait) {
+                    return;
+                }
+                Thread.yield();
+                continue;
+            }
+            int count;
+            try {
+                count = drainQueue(max);
+            } finally {
+                mDraining.set(false);
+            }
+            // A producer that failed to become the consumer while we were
+            // draining relies on us to pick up its snapshot.
+            if (count == max || mRecordQueue.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Reports and writes up to max queued snapshots and returns their number.
+     * The caller holds mDraining.
+     */
+    private int drainQueue(int max) {
+        boolean overhead = mTrackOverhead;
+        long startTime = overhead ? System.nanoTime() : 0;
+        long startCpuTime = overhead ? Debug.threadCpuTimeNanos() : 0;
+        int count = 0;
+        try {
+            MemoryTraceSnapshot snapshot;
+            while (count < max && (snapshot = mRecordQueue.poll()) != null) {
+                addToResults(snapshot);
+                writeSnapshot(snapshot);
+                mSnapshotPool.recycle(snapshot);
+                count++;
+            }
+        } finally {
+            if (overhead && count > 0) {
+                mWriteTime.addAndGet(System.nanoTime() - startTime);
+                // A thread taking a snapshot counts its CPU time already.
+                if (!mTimers.get().mInTracer) {
+                    addBackgroundCpuTime(Debug.threadCpuTimeNanos() - startCpuTime);
+                }
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Folds a snapshot into the statistics and the tail of the results, and
+     * checks it against the budget and the triggers of heap dumps.
+     */
+    private void addToResults(MemoryTraceSnapshot snapshot) {
+        MemoryTraceBudget budget = mBudget;
+        if (budget != null) {
+            budget.check(snapshot);
+        }
+        MemoryTraceHeapDumps heapDumps = mHeapDumps;
+        if (heapDumps != null) {
+            heapDumps.check(snapshot);
+        }
         if (mShouldReportResults) {
-        	mPerfResults.getParcelableArrayList(METRIC_KEY_SNAPSHOTS).add(snapshot);
+            mStatistics.add(snapshot);
+            MemoryTraceRingBuffer tail = mResultsTail;
+            if (tail != null) {
+                tail.put(snapshot);
+            }
+        }
+    }
+
+    private void addResultsSummary() {
+        mPerfResults.putBundle(METRIC_KEY_STATISTICS, mStatistics.toBundle());
+        MemoryTraceRingBuffer tail = mResultsTail;
+        if (tail != null) {
+            ArrayList<Parcelable> snapshots = mPerfResults.getParcelableArrayList(METRIC_KEY_SNAPSHOTS);
+            MemoryTraceSnapshot[] drained = new MemoryTraceSnapshot[tail.size()];
+            for (int i = 0; i < drained.length; i++) {
+                drained[i] = new MemoryTraceSnapshot();
+            }
+            int count = tail.drainTo(drained);
+            for (int i = 0; i < count; i++) {
+                snapshots.add(drained[i].toBundle());
+            }
         }
+    }
+
+    private void writeSnapshot(MemoryTraceSnapshot snapshot) {
+        ResultsWriter writer = mResultsWriter;
+        if (writer instanceof SnapshotWriter) {
+            ((SnapshotWriter) writer).writeTraceSnapshot(snapshot);
+        } else if (writer != null) {
+            writer.writeTraceSnapshot(snapshot.toBundle());
+        }
+    }
 
-        if (mResultsWriter != null) {
-            mResultsWriter.writeTraceSnapshot(snapshot);
+    private boolean isFullSnapshotDue() {
+        if (mSnapshotMode == SNAPSHOT_MODE_FULL) {
+            return true;
         }
-        
-        return snapshot;
+        int count = mSnapshotCount.incrementAndGet();
+        return mFullSnapshotInterval > 0 && count % mFullSnapshotInterval == 0;
     }
 
     /*
@@ -296,6 +1307,22 @@ public class MemoryTracer {
         mPerfResults = new Bundle();
         mPerfResults.putParcelableArrayList(
                 METRIC_KEY_SNAPSHOTS, new ArrayList<Parcelable>());
+        mStatistics.clear();
+        mSections.clear();
+        MemoryTraceBudget budget = mBudget;
+        if (budget != null) {
+            budget.reset();
+        }
+        MemoryTraceHeapDumps heapDumps = mHeapDumps;
+        if (heapDumps != null) {
+            heapDumps.start(this);
+        }
+        MemoryTraceThreadAllocations threadAllocations = mThreadAllocations;
+        if (threadAllocations != null) {
+            threadAllocations.clear();
+        }
+        mResultsTail = mShouldReportResults && mResultsTailSize > 0
+                ? new MemoryTraceRingBuffer(mResultsTailSize) : null;
 
         // Add initial binder counts
         Bundle binderCounts = getBinderCounts();
@@ -311,8 +1338,26 @@ public class MemoryTracer {
         // Record CPU time up to this point, and start timing. Note: this
         // must happen at the end of this method, otherwise the timing will
         // include noise.
-        mSnapshotExecTime = SystemClock.uptimeMillis();
+        mSnapshotExecTime = MemoryTraceClock.now();
         mSnapshotCpuTime = Process.getElapsedCpuTime();
+        mLastGcCount.set(MemoryTraceGcStats.getCount());
+        mLastGcTime.set(MemoryTraceGcStats.getTimeMillis());
+        mWriteTime.set(0);
+        mBackgroundCpuTime.set(0);
+        mTracerCpuTime.set(0);
+        mTracerAllocCount.set(0);
+        mTracerAllocSize.set(0);
+        mLastBytesWritten.set(mResultsWriter instanceof CountingWriter
+                ? ((CountingWriter) mResultsWriter).getBytesWritten() : 0);
+        mOverheadStartCpuTime = mSnapshotCpuTime;
+        int generation = mGeneration + 1;
+        // The thread that starts tracing starts its CPU time here too.
+        MemoryTraceIntervalTimer timer = mTimers.get();
+        timer.mGeneration = generation;
+        timer.mLastExecTime = mSnapshotExecTime;
+        timer.mLastCpuTime = mSnapshotCpuTime;
+        timer.mLastThreadCpuTime = Debug.threadCpuTimeNanos();
+        mGeneration = generation;
     }
 
     /*
@@ -323,7 +1368,7 @@ public class MemoryTracer {
         // Stop the timing. This must be done first before any other counting is
         // stopped.
         mSnapshotCpuTime = Process.getElapsedCpuTime() - mSnapshotCpuTime;
-        mSnapshotExecTime = SystemClock.uptimeMillis() - mSnapshotExecTime;
+        mSnapshotExecTime = (MemoryTraceClock.now() - mSnapshotExecTime) / 1000000L;
 
         stopAllocCounting();
     }
@@ -365,23 +1410,6 @@ public class MemoryTracer {
         Debug.stopAllocCounting();
     }
 
-    /*
-     * Returns a bundle with the current results from the allocation counting.
-     */
-    private static Bundle getAllocCounts() {
-        Bundle results = new Bundle();
-        results.putLong(METRIC_KEY_GLOBAL_ALLOC_COUNT, Debug.getGlobalAllocCount());
-        results.putLong(METRIC_KEY_GLOBAL_ALLOC_SIZE, Debug.getGlobalAllocSize());
-        results.putLong(METRIC_KEY_GLOBAL_FREED_COUNT, Debug.getGlobalFreedCount());
-        results.putLong(METRIC_KEY_GLOBAL_FREED_SIZE, Debug.getGlobalFreedSize());
-        results.putLong(METRIC_KEY_GLOBAL_EXTERNAL_ALLOC_COUNT, Debug.getGlobalExternalAllocCount());
-        results.putLong(METRIC_KEY_GLOBAL_EXTERNAL_ALLOC_SIZE, Debug.getGlobalExternalAllocSize());
-        results.putLong(METRIC_KEY_GLOBAL_EXTERNAL_FREED_COUNT, Debug.getGlobalExternalFreedCount());
-        results.putLong(METRIC_KEY_GLOBAL_EXTERNAL_FREED_SIZE, Debug.getGlobalExternalFreedSize());
-        results.putLong(METRIC_KEY_GC_INVOCATION_COUNT, Debug.getGlobalGcInvocationCount());
-        return results;
-    }
-
     /*
      * Returns a bundle with the counts for various binder counts for this
      * process. Currently the only two that are reported are the number of send